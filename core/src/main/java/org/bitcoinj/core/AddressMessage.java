@@ -32,8 +32,8 @@ import java.util.List;
  */
 public class AddressMessage extends Message {
 
-    private static final long MAX_ADDRESSES = 1024;
-    private List<PeerAddress> addresses;
+    static final long MAX_ADDRESSES = 1024;
+    List<PeerAddress> addresses;
 
     /**
      * Construct a new 'addr' message.
@@ -0,0 +1,171 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Represents an "addrv2" message on the P2P network, which peers send instead of "addr" once we told them we
+ * understand it with a {@link SendAddrV2Message}. Unlike "addr", it can carry addresses that are not IP addresses,
+ * such as Tor v3 onion addresses.</p>
+ *
+ * <p>IPv4, IPv6 and Tor v3 addresses are kept, those of the other networks are skipped. Tor v3 addresses become
+ * {@link PeerAddress}es with an .onion hostname.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0155.mediawiki">BIP155</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class AddressV2Message extends AddressMessage {
+    // The longest address of any network, longer ones make the message invalid.
+    private static final int MAX_ADDRESS_LENGTH = 512;
+
+    AddressV2Message(NetworkParameters params, byte[] payload, MessageSerializer serializer, int length) throws ProtocolException {
+        super(params, payload, serializer, length);
+    }
+
+    AddressV2Message(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        long numAddresses = readVarInt();
+        // Guard against ultra large messages that will crash us.
+        if (numAddresses > MAX_ADDRESSES)
+            throw new ProtocolException("Address message too large.");
+        addresses = new ArrayList<>((int) numAddresses);
+        for (int i = 0; i < numAddresses; i++) {
+            long time = readUint32();
+            BigInteger services = BigInteger.valueOf(readVarInt());
+            int network = readByte() & 0xFF;
+            long addrLength = readVarInt();
+            if (addrLength > MAX_ADDRESS_LENGTH)
+                throw new ProtocolException("Address too long: " + addrLength);
+            byte[] addr = readBytes((int) addrLength);
+            int port = Utils.readUint16BE(payload, cursor);
+            cursor += 2;
+            PeerAddress address = toPeerAddress(network, addr, port, services, time);
+            if (address != null)
+                addresses.add(address);
+        }
+        length = cursor - offset;
+    }
+
+    @Nullable
+    private PeerAddress toPeerAddress(int network, byte[] addr, int port, BigInteger services, long time)
+            throws ProtocolException {
+        try {
+            switch (network) {
+                case PeerAddress.NETWORK_IPV4:
+                    checkAddressLength(network, addr, 4);
+                    return new PeerAddress(params, InetAddress.getByAddress(addr), null, port, services, time);
+                case PeerAddress.NETWORK_IPV6:
+                    checkAddressLength(network, addr, 16);
+                    InetAddress inetAddress = InetAddress.getByAddress(addr);
+                    // IPv4 addresses must use their own network ID, not be mapped into IPv6.
+                    return inetAddress instanceof Inet4Address ? null
+                            : new PeerAddress(params, inetAddress, null, port, services, time);
+                case PeerAddress.NETWORK_TORV3:
+                    checkAddressLength(network, addr, 32);
+                    return new PeerAddress(params, null, PeerAddress.encodeOnion(addr), port, services, time);
+                default:
+                    // Networks we can't connect to, or don't know.
+                    return null;
+            }
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private static void checkAddressLength(int network, byte[] addr, int expected) throws ProtocolException {
+        if (addr.length != expected)
+            throw new ProtocolException("Address of network " + network + " has length " + addr.length);
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        if (addresses == null)
+            return;
+        stream.write(new VarInt(addresses.size()).encode());
+        for (PeerAddress address : addresses)
+            serialize(address, stream);
+    }
+
+    private static void serialize(PeerAddress address, OutputStream stream) throws IOException {
+        int network;
+        byte[] addr;
+        if (address.getHostname() != null) {
+            addr = PeerAddress.decodeOnion(address.getHostname());
+            if (addr == null)
+                throw new IOException("Not a Tor v3 address: " + address.getHostname());
+            network = PeerAddress.NETWORK_TORV3;
+        } else {
+            addr = address.getAddr().getAddress();
+            network = addr.length == 4 ? PeerAddress.NETWORK_IPV4 : PeerAddress.NETWORK_IPV6;
+        }
+        Utils.uint32ToByteStreamLE(Math.max(address.getTime(), 0), stream);
+        stream.write(new VarInt(address.getServices().longValue()).encode());
+        stream.write(network);
+        stream.write(new VarInt(addr.length).encode());
+        stream.write(addr);
+        Utils.uint16ToByteStreamBE(address.getPort(), stream);
+    }
+
+    @Override
+    public void addAddress(PeerAddress address) {
+        checkArgument(address.getHostname() == null || PeerAddress.decodeOnion(address.getHostname()) != null,
+                "Not a Tor v3 address: %s", address.getHostname());
+        unCache();
+        addresses.add(address);
+        updateLength();
+    }
+
+    @Override
+    public void removeAddress(int index) {
+        unCache();
+        addresses.remove(index);
+        updateLength();
+    }
+
+    // The addresses are not child messages with a length of their own, so the length follows from serializing them.
+    private void updateLength() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            bitcoinSerializeToStream(stream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        length = stream.size();
+    }
+
+    @Override
+    public String toString() {
+        return "addrv2: " + Utils.SPACE_JOINER.join(addresses);
+    }
+}
@@ -60,6 +60,7 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetDataMessage.class, "getdata");
         names.put(Transaction.class, "tx");
         names.put(AddressMessage.class, "addr");
+        names.put(AddressV2Message.class, "addrv2");
         names.put(Ping.class, "ping");
         names.put(Pong.class, "pong");
         names.put(VersionAck.class, "verack");
@@ -75,7 +76,12 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetUTXOsMessage.class, "getutxos");
         names.put(UTXOsMessage.class, "utxos");
         names.put(SendHeadersMessage.class, "sendheaders");
+        names.put(SendAddrV2Message.class, "sendaddrv2");
         names.put(DSProofMessage.class, "dsproof-beta");
+        names.put(GetCFHeadersMessage.class, "getcfheaders");
+        names.put(CFHeadersMessage.class, "cfheaders");
+        names.put(GetCFiltersMessage.class, "getcfilters");
+        names.put(BlockFilter.class, "cfilter");
     }
 
     /**
@@ -234,6 +240,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return makeTransaction(payloadBytes, 0, length, hash);
         } else if (command.equals("addr")) {
             return makeAddressMessage(payloadBytes, length);
+        } else if (command.equals("addrv2")) {
+            return new AddressV2Message(params, payloadBytes, this, length);
         } else if (command.equals("ping")) {
             return new Ping(params, payloadBytes);
         } else if (command.equals("pong")) {
@@ -256,8 +264,20 @@ public class BitcoinSerializer extends MessageSerializer {
             return new GetUTXOsMessage(params, payloadBytes);
         } else if (command.equals("sendheaders")) {
             return new SendHeadersMessage(params, payloadBytes);
+        } else if (command.equals("sendaddrv2")) {
+            return new SendAddrV2Message(params);
+        } else if (command.equals("getaddr")) {
+            return new GetAddrMessage(params);
         } else if (command.equals("feefilter")) {
             return new FeeFilterMessage(params, payloadBytes);
+        } else if (command.equals("getcfheaders")) {
+            return new GetCFHeadersMessage(params, payloadBytes);
+        } else if (command.equals("cfheaders")) {
+            return new CFHeadersMessage(params, payloadBytes);
+        } else if (command.equals("getcfilters")) {
+            return new GetCFiltersMessage(params, payloadBytes);
+        } else if (command.equals("cfilter")) {
+            return new BlockFilter(params, payloadBytes);
         } else if(command.equals("dsproof-beta")) {
             return new DSProofMessage(params, payloadBytes);
         } else {
@@ -21,6 +21,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import org.bitcoinj.crypto.Sha256Engine;
 import org.bitcoinj.params.AbstractBitcoinNetParams;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
@@ -34,9 +35,12 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
-import static org.bitcoinj.core.Sha256Hash.hashTwice;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -520,16 +524,33 @@ public class Block extends Message {
      * extraNonce.</p>
      */
     public void solve() {
+        BigInteger target = getDifficultyTargetAsInteger();
+        byte[] header;
+        try {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+            writeHeader(bos);
+            header = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        // Only the nonce in the last 16 bytes changes, so the first 64 bytes are hashed once.
+        Sha256Engine engine = Sha256Hash.getEngine();
+        Sha256Engine.Midstate midstate = engine.midstate(header, 0, Sha256Engine.BLOCK_LENGTH);
+        byte[] hashBytes = new byte[Sha256Engine.HASH_LENGTH];
+        long nonce = getNonce();
         while (true) {
-            try {
-                // Is our proof of work valid yet?
-                if (checkProofOfWork(false))
-                    return;
-                // No, so increment the nonce and try again.
-                setNonce(getNonce() + 1);
-            } catch (VerificationException e) {
-                throw new RuntimeException(e); // Cannot happen.
+            Utils.uint32ToByteArrayLE(nonce, header, HEADER_SIZE - 4);
+            engine.hashTwice(midstate, header, Sha256Engine.BLOCK_LENGTH, HEADER_SIZE - Sha256Engine.BLOCK_LENGTH,
+                    hashBytes, 0);
+            Sha256Hash candidate = Sha256Hash.wrapReversed(hashBytes);
+            // Is our proof of work valid yet?
+            if (candidate.toBigInteger().compareTo(target) <= 0) {
+                setNonce(nonce);
+                hash = candidate;
+                return;
             }
+            // No, so increment the nonce and try again.
+            nonce++;
         }
     }
 
@@ -601,11 +622,6 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree(false);
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree(boolean useWTxId) {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -636,28 +652,118 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>(transactions.size());
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction tx : transactions) {
-            final Sha256Hash id = tx.getTxId();
-            tree.add(id.getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
+        //
+        // Only the current level is kept, in a flat array of 32 byte hashes in their internal byte order. Blocks with
+        // many transactions are hashed on the fork-join pool, both the transactions and each level of the tree.
+        int size = transactions.size();
+        boolean parallel = size >= PARALLEL_VERIFICATION_THRESHOLD;
+        byte[] level = new byte[size * 32];
+        HashLeaves leaves = new HashLeaves(transactions, level, 0, size);
+        if (parallel)
+            getVerificationPool().invoke(leaves);
+        else
+            leaves.compute();
+        byte[] next = new byte[((size + 1) / 2) * 32];
         // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, rightBytes)));
+        for (int levelSize = size; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            HashLevel hashLevel = new HashLevel(level, levelSize, next, 0, (levelSize + 1) / 2);
+            if (parallel && levelSize >= PARALLEL_VERIFICATION_THRESHOLD)
+                getVerificationPool().invoke(hashLevel);
+            else
+                hashLevel.compute();
+            byte[] swap = level;
+            level = next;
+            next = swap;
+        }
+        return Sha256Hash.wrapReversed(Arrays.copyOf(level, 32));
+    }
+
+    // Blocks with at least this many transactions are verified on several threads.
+    static final int PARALLEL_VERIFICATION_THRESHOLD = 256;
+    // How many transactions or tree nodes a fork-join task handles without splitting further.
+    private static final int VERIFICATION_TASK_SIZE = 64;
+
+    private static ForkJoinPool verificationPool;
+
+    private static synchronized ForkJoinPool getVerificationPool() {
+        if (verificationPool == null) {
+            verificationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                    new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                        @Override
+                        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                            thread.setName("Block verification " + thread.getPoolIndex());
+                            return thread;
+                        }
+                    }, null, false);
+        }
+        return verificationPool;
+    }
+
+    // Writes the transaction IDs from begin to end into the leaves, in internal byte order.
+    private static class HashLeaves extends RecursiveAction {
+        private static final long serialVersionUID = 6009278847960373592L;
+
+        private final List<Transaction> transactions;
+        private final byte[] leaves;
+        private final int begin, end;
+
+        HashLeaves(List<Transaction> transactions, byte[] leaves, int begin, int end) {
+            this.transactions = transactions;
+            this.leaves = leaves;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin > VERIFICATION_TASK_SIZE && getPool() != null) {
+                int middle = (begin + end) >>> 1;
+                invokeAll(new HashLeaves(transactions, leaves, begin, middle),
+                        new HashLeaves(transactions, leaves, middle, end));
+                return;
+            }
+            for (int i = begin; i < end; i++)
+                System.arraycopy(transactions.get(i).getTxId().getReversedBytes(), 0, leaves, i * 32, 32);
+        }
+    }
+
+    // Hashes the pairs of nodes of one level of the Merkle tree into the nodes from begin to end of the next level.
+    private static class HashLevel extends RecursiveAction {
+        private static final long serialVersionUID = 5273770860447415609L;
+
+        private final byte[] level;
+        private final int levelSize;
+        private final byte[] next;
+        private final int begin, end;
+
+        HashLevel(byte[] level, int levelSize, byte[] next, int begin, int end) {
+            this.level = level;
+            this.levelSize = levelSize;
+            this.next = next;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin > VERIFICATION_TASK_SIZE && getPool() != null) {
+                int middle = (begin + end) >>> 1;
+                invokeAll(new HashLevel(level, levelSize, next, begin, middle),
+                        new HashLevel(level, levelSize, next, middle, end));
+                return;
+            }
+            Sha256Engine engine = Sha256Hash.getEngine();
+            // Pairs of nodes are 64 byte messages next to each other, except for an odd node at the end, which is
+            // paired with itself as we don't have enough transactions.
+            int pairs = Math.min(end, levelSize / 2) - begin;
+            if (pairs > 0)
+                engine.hashTwiceMany(level, begin * 64, 64, pairs, next, begin * 32);
+            if (end > levelSize / 2) {
+                int last = (levelSize - 1) * 32;
+                engine.hashTwice(level, last, 32, level, last, 32, next, (levelSize / 2) * 32);
             }
-            // Move to the next level.
-            levelOffset += levelSize;
         }
-        return tree;
     }
 
     /**
@@ -720,11 +826,63 @@ public class Block extends Message {
             throw new VerificationException("Block larger than NetworkParameters.getMaxBlockSize");
         checkTransactions(height, flags);
         checkMerkleRoot();
+        if (transactions.size() >= PARALLEL_VERIFICATION_THRESHOLD) {
+            // The same checks as below, with the same exception thrown first if several fail.
+            VerifyTransactions task = new VerifyTransactions(transactions, 0, transactions.size());
+            int sigOps = getVerificationPool().invoke(task);
+            if (sigOps > params.getMaxBlockSigops())
+                throw new VerificationException("Block had too many Signature Operations");
+            if (task.exception != null)
+                throw task.exception;
+            return;
+        }
         checkSigOps();
         for (Transaction transaction : transactions)
             transaction.verify();
     }
 
+    // Counts the signature operations of the transactions from begin to end and verifies them. Rather than throwing,
+    // it keeps the exception of the first transaction that failed.
+    private static class VerifyTransactions extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 4550197727371023797L;
+
+        private final List<Transaction> transactions;
+        private final int begin, end;
+        @Nullable
+        VerificationException exception;
+
+        VerifyTransactions(List<Transaction> transactions, int begin, int end) {
+            this.transactions = transactions;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (end - begin > VERIFICATION_TASK_SIZE) {
+                int middle = (begin + end) >>> 1;
+                VerifyTransactions first = new VerifyTransactions(transactions, begin, middle);
+                VerifyTransactions second = new VerifyTransactions(transactions, middle, end);
+                invokeAll(first, second);
+                exception = first.exception != null ? first.exception : second.exception;
+                return first.join() + second.join();
+            }
+            int sigOps = 0;
+            for (int i = begin; i < end; i++) {
+                Transaction tx = transactions.get(i);
+                sigOps += tx.getSigOpCount();
+                if (exception == null) {
+                    try {
+                        tx.verify();
+                    } catch (VerificationException e) {
+                        exception = e;
+                    }
+                }
+            }
+            return sigOps;
+        }
+    }
+
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
      *
@@ -0,0 +1,361 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A compact block filter as defined by <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP
+ * 158</a>, also the "cfilter" message of <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP
+ * 157</a> that carries it. A filter is a Golomb-coded set of the output scripts a block creates and spends, which the
+ * client matches its own scripts against to decide whether to download the block. Unlike a {@link BloomFilter},
+ * the filter is the same for every client, so a peer learns nothing about which scripts are being looked for, and
+ * a block can be checked again for new scripts without asking the peer.</p>
+ *
+ * <p>Only the basic filter type is supported.</p>
+ */
+public class BlockFilter extends Message {
+    /** The basic filter type, of output scripts. */
+    public static final byte BASIC = 0;
+    /** The Golomb-Rice coding parameter of basic filters. */
+    public static final int BASIC_P = 19;
+    /** The inverse false positive rate of basic filters. */
+    public static final long BASIC_M = 784931;
+
+    private byte filterType;
+    private Sha256Hash blockHash;
+    // The number of elements followed by the Golomb-Rice coded differences between their sorted hashes.
+    private byte[] filter;
+    private long numElements;
+    private int dataOffset;
+
+    public BlockFilter(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public BlockFilter(NetworkParameters params, byte filterType, Sha256Hash blockHash, byte[] filter)
+            throws ProtocolException {
+        super(params);
+        checkArgument(filterType == BASIC, "Unsupported filter type");
+        this.filterType = filterType;
+        this.blockHash = checkNotNull(blockHash);
+        setFilter(filter);
+    }
+
+    private void setFilter(byte[] filter) throws ProtocolException {
+        try {
+            VarInt n = new VarInt(filter, 0);
+            this.numElements = n.value;
+            this.dataOffset = n.getOriginalSizeInBytes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        if (numElements < 0 || numElements > Integer.MAX_VALUE)
+            throw new ProtocolException("Too many elements in filter: " + numElements);
+        this.filter = filter;
+    }
+
+    /**
+     * Builds the basic filter of the given elements for the block with the given hash. Duplicate elements are only
+     * counted once.
+     */
+    public static BlockFilter build(NetworkParameters params, Sha256Hash blockHash, Collection<byte[]> elements) {
+        SortedSet<byte[]> unique = new TreeSet<>(UnsignedBytes.lexicographicalComparator());
+        unique.addAll(elements);
+        int n = unique.size();
+        long k0 = key(blockHash, 0), k1 = key(blockHash, 8);
+        long range = n * BASIC_M;
+        long[] values = new long[n];
+        int i = 0;
+        for (byte[] element : unique)
+            values[i++] = hashToRange(k0, k1, range, element);
+        Arrays.sort(values);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(n * 3 + 9);
+        try {
+            bos.write(new VarInt(n).encode());
+            BitWriter writer = new BitWriter(bos);
+            long last = 0;
+            for (long value : values) {
+                long delta = value - last;
+                for (long q = delta >>> BASIC_P; q > 0; q--)
+                    writer.write(1, 1);
+                writer.write(0, 1);
+                writer.write(delta, BASIC_P);
+                last = value;
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return new BlockFilter(params, BASIC, blockHash, bos.toByteArray());
+    }
+
+    /**
+     * Returns the elements of the basic filter of a block: every output script other than an empty or OP_RETURN
+     * one, and the scripts of the outputs the block spends, which the block doesn't contain and which must be given.
+     */
+    public static Collection<byte[]> getBasicFilterElements(Block block, Collection<byte[]> spentScripts) {
+        SortedSet<byte[]> elements = new TreeSet<>(UnsignedBytes.lexicographicalComparator());
+        for (Transaction tx : checkNotNull(block.getTransactions())) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                byte[] script = output.getScriptBytes();
+                if (script.length > 0 && (script[0] & 0xff) != ScriptOpCodes.OP_RETURN)
+                    elements.add(script);
+            }
+        }
+        for (byte[] script : spentScripts)
+            if (script.length > 0)
+                elements.add(script);
+        return elements;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte();
+        if (filterType != BASIC)
+            throw new ProtocolException("Unsupported filter type " + filterType);
+        blockHash = readHash();
+        setFilter(readByteArray());
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(filter.length).encode());
+        stream.write(filter);
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    /** Returns the hash of the block this filter is of. */
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the encoded filter, which must not be modified. */
+    public byte[] getFilterBytes() {
+        return filter;
+    }
+
+    /** Returns the number of distinct elements in the filter. */
+    public int getNumElements() {
+        return (int) numElements;
+    }
+
+    /** Returns the hash of the encoded filter, which the filter headers of BIP 157 commit to. */
+    public Sha256Hash getFilterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filter));
+    }
+
+    /**
+     * Returns the filter header of this filter given the header of the filter of the previous block, or
+     * {@link Sha256Hash#ZERO_HASH} for the genesis block.
+     */
+    public Sha256Hash computeHeader(Sha256Hash previousHeader) {
+        return computeHeader(getFilterHash(), previousHeader);
+    }
+
+    /** Returns the filter header of a filter with the given hash, given the previous filter header. */
+    public static Sha256Hash computeHeader(Sha256Hash filterHash, Sha256Hash previousHeader) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterHash.getReversedBytes(),
+                previousHeader.getReversedBytes()));
+    }
+
+    /** Returns true if the element is in the filter, or is a false positive. */
+    public boolean match(byte[] element) {
+        return matchAny(Collections.singletonList(element));
+    }
+
+    /**
+     * Returns true if any of the elements is in the filter, or is a false positive. The cost is one hash per element
+     * plus one pass over the filter, so it is cheaper to match many elements at once than one at a time.
+     */
+    public boolean matchAny(Collection<byte[]> elements) {
+        if (numElements == 0 || elements.isEmpty())
+            return false;
+        long k0 = key(blockHash, 0), k1 = key(blockHash, 8);
+        long range = numElements * BASIC_M;
+        long[] queries = new long[elements.size()];
+        int i = 0;
+        for (byte[] element : elements)
+            queries[i++] = hashToRange(k0, k1, range, element);
+        Arrays.sort(queries);
+
+        BitReader reader = new BitReader(filter, dataOffset);
+        int q = 0;
+        long value = 0;
+        for (long decoded = 0; decoded < numElements; decoded++) {
+            long quotient = 0;
+            while (reader.read(1) == 1)
+                quotient++;
+            value += (quotient << BASIC_P) | reader.read(BASIC_P);
+            while (queries[q] < value) {
+                if (++q == queries.length)
+                    return false;
+            }
+            if (queries[q] == value)
+                return true;
+        }
+        return false;
+    }
+
+    // The SipHash key is the first 16 bytes of the block hash, in the order it is sent on the wire.
+    private static long key(Sha256Hash blockHash, int offset) {
+        return Utils.readInt64(blockHash.getReversedBytes(), offset);
+    }
+
+    // Maps the element uniformly onto [0, range) by taking the high 64 bits of hash * range.
+    static long hashToRange(long k0, long k1, long range, byte[] element) {
+        return multiplyHighUnsigned(sipHash24(k0, k1, element), range);
+    }
+
+    static long multiplyHighUnsigned(long a, long b) {
+        long aLo = a & 0xffffffffL, aHi = a >>> 32;
+        long bLo = b & 0xffffffffL, bHi = b >>> 32;
+        long lo = aLo * bLo;
+        long mid1 = aHi * bLo + (lo >>> 32);
+        long mid2 = aLo * bHi + (mid1 & 0xffffffffL);
+        return aHi * bHi + (mid1 >>> 32) + (mid2 >>> 32);
+    }
+
+    /** SipHash-2-4 of the data with the given key. */
+    static long sipHash24(long k0, long k1, byte[] data) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+        int end = data.length & ~7;
+        for (int i = 0; i <= end; i += 8) {
+            long m;
+            if (i < end) {
+                m = Utils.readInt64(data, i);
+            } else {
+                // The last block holds the remaining bytes and the length in its top byte.
+                m = ((long) data.length) << 56;
+                for (int j = 0; j < data.length - end; j++)
+                    m |= (data[end + j] & 0xffL) << (8 * j);
+            }
+            v3 ^= m;
+            for (int r = 0; r < 2; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+        v2 ^= 0xff;
+        for (int r = 0; r < 4; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    // Writes bits most significant first.
+    private static class BitWriter {
+        private final OutputStream stream;
+        private int current;
+        private int count;
+
+        BitWriter(OutputStream stream) {
+            this.stream = stream;
+        }
+
+        void write(long value, int bits) throws IOException {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++count == 8) {
+                    stream.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            if (count > 0)
+                stream.write(current << (8 - count));
+            current = 0;
+            count = 0;
+        }
+    }
+
+    // Reads bits most significant first. Reading past the end gives zero bits.
+    private static class BitReader {
+        private final byte[] data;
+        private long position;
+        private final long end;
+
+        BitReader(byte[] data, int offset) {
+            this.data = data;
+            this.position = offset * 8L;
+            this.end = data.length * 8L;
+        }
+
+        long read(int bits) {
+            long result = 0;
+            for (int i = 0; i < bits; i++) {
+                int bit = 0;
+                if (position < end)
+                    bit = (data[(int) (position >>> 3)] >>> (7 - (int) (position & 7))) & 1;
+                position++;
+                result = (result << 1) | bit;
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlockFilter of " + blockHash + ": " + numElements + " elements, " + filter.length + " bytes";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BlockFilter other = (BlockFilter) o;
+        return filterType == other.filterType && blockHash.equals(other.blockHash)
+                && Arrays.equals(filter, other.filter);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(filterType, blockHash, Arrays.hashCode(filter));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>The answer to a {@link GetCFHeadersMessage}: the filter header of the block before the requested range and the
+ * hashes of the filters of the blocks in it, as defined by
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>. The filter headers of the
+ * range follow from these, see {@link #getFilterHeaders()}.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFHeadersMessage extends Message {
+    private byte filterType;
+    private Sha256Hash stopHash;
+    private Sha256Hash previousFilterHeader;
+    private List<Sha256Hash> filterHashes;
+
+    public CFHeadersMessage(NetworkParameters params, byte filterType, Sha256Hash stopHash,
+                            Sha256Hash previousFilterHeader, List<Sha256Hash> filterHashes) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = checkNotNull(stopHash);
+        this.previousFilterHeader = checkNotNull(previousFilterHeader);
+        this.filterHashes = ImmutableList.copyOf(filterHashes);
+    }
+
+    public CFHeadersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte();
+        stopHash = readHash();
+        previousFilterHeader = readHash();
+        long count = readVarInt();
+        if (count > GetCFHeadersMessage.MAX_HEADERS)
+            throw new ProtocolException("Too many filter hashes: " + count);
+        ImmutableList.Builder<Sha256Hash> hashes = ImmutableList.builder();
+        for (int i = 0; i < count; i++)
+            hashes.add(readHash());
+        filterHashes = hashes.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(previousFilterHeader.getReversedBytes());
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (Sha256Hash hash : filterHashes)
+            stream.write(hash.getReversedBytes());
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    /** Returns the filter header of the block before the first one of the range. */
+    public Sha256Hash getPreviousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    public List<Sha256Hash> getFilterHashes() {
+        return filterHashes;
+    }
+
+    /** Returns the filter headers of the blocks in the range, by chaining the filter hashes onto the previous header. */
+    public List<Sha256Hash> getFilterHeaders() {
+        List<Sha256Hash> headers = new ArrayList<>(filterHashes.size());
+        Sha256Hash header = previousFilterHeader;
+        for (Sha256Hash hash : filterHashes) {
+            header = BlockFilter.computeHeader(hash, header);
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "CFHeadersMessage: " + filterHashes.size() + " filter hashes up to " + stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFHeadersMessage other = (CFHeadersMessage) o;
+        return filterType == other.filterType && stopHash.equals(other.stopHash)
+                && previousFilterHeader.equals(other.previousFilterHeader) && filterHashes.equals(other.filterHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(filterType, stopHash, previousFilterHeader, filterHashes);
+    }
+}
@@ -31,10 +31,15 @@ import javax.annotation.Nullable;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -62,6 +67,10 @@ import static com.google.common.base.Preconditions.*;
  * <p>After the signatures come an int32 containing the number of checkpoints in the file. Then each checkpoint follows
  * one after the other. A checkpoint is 12 bytes for the total work done field, 4 bytes for the height, 80 bytes
  * for the block header and then 1 zero byte at the end (i.e. number of transactions in the block: always zero).</p>
+ *
+ * <p>As the checkpoints in a binary file have a fixed size and are in chain order, such a file does not need to be
+ * parsed to find a single checkpoint: {@link #getCheckpointBefore(NetworkParameters, File, long)} memory maps it and
+ * binary searches the header times instead.</p>
  */
 public class CheckpointManager {
     private static final Logger log = LoggerFactory.getLogger(CheckpointManager.class);
@@ -202,6 +211,89 @@ public class CheckpointManager {
         }
     }
 
+    /**
+     * Returns the last checkpoint before the given time from a file in the binary format, like
+     * {@link #getCheckpointBefore(long)} but without loading the file. The file is memory mapped and binary searched
+     * by header time, so only the returned checkpoint is deserialized.
+     */
+    public static StoredBlock getCheckpointBefore(NetworkParameters params, File file, long timeSecs)
+            throws IOException {
+        checkArgument(timeSecs > params.getGenesisBlock().getTimeSeconds());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] header = new byte[BINARY_MAGIC.length()];
+            if (buffer.remaining() < header.length + 4)
+                throw new IOException("Incomplete checkpoints file.");
+            buffer.get(header);
+            if (!Arrays.equals(header, BINARY_MAGIC.getBytes(StandardCharsets.US_ASCII)))
+                throw new IOException("Header bytes did not match expected version");
+            int numSignatures = checkPositionIndex(buffer.getInt(), MAX_SIGNATURES, "Num signatures out of range");
+            final int size = StoredBlock.COMPACT_SERIALIZED_SIZE;
+            // The header time is 68 bytes into the header, which follows the chain work and the height.
+            final int timeOffset = 12 + 4 + 68;
+            int start = buffer.position() + numSignatures * 65 + 4;
+            if (start > buffer.limit())
+                throw new IOException("Incomplete checkpoints file.");
+            int numCheckpoints = buffer.getInt(start - 4);
+            checkState(numCheckpoints > 0);
+            if (start + (long) numCheckpoints * size > buffer.limit())
+                throw new IOException("Incomplete read whilst loading checkpoints.");
+            int low = 0, high = numCheckpoints - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long time = Integer.reverseBytes(buffer.getInt(start + mid * size + timeOffset)) & 0xFFFFFFFFL;
+                if (time <= timeSecs) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found < 0) {
+                Block genesis = params.getGenesisBlock().cloneAsHeader();
+                return new StoredBlock(genesis, genesis.getWork(), 0);
+            }
+            buffer.position(start + found * size);
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new IOException(e);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Writes the given checkpoints, which must be in chain order, to the given stream in the binary format without any
+     * signatures. Returns the hash of the checkpoint data, as {@link #getDataHash()} would for the written file.
+     */
+    public static Sha256Hash writeBinary(Collection<StoredBlock> checkpoints, OutputStream outputStream)
+            throws IOException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        DigestOutputStream digestOutputStream = new DigestOutputStream(outputStream, digest);
+        DataOutputStream dataOutputStream = new DataOutputStream(digestOutputStream);
+        digestOutputStream.on(false);
+        dataOutputStream.writeBytes(BINARY_MAGIC);
+        dataOutputStream.writeInt(0); // Number of signatures to read. Do this later.
+        digestOutputStream.on(true);
+        dataOutputStream.writeInt(checkpoints.size());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock block : checkpoints) {
+            block.serializeCompact(buffer);
+            dataOutputStream.write(buffer.array());
+            buffer.position(0);
+        }
+        dataOutputStream.flush();
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /**
+     * Writes the loaded checkpoints to the given stream in the binary format, for example to precompile the bundled
+     * textual checkpoints into a file for {@link #getCheckpointBefore(NetworkParameters, File, long)}.
+     */
+    public Sha256Hash writeBinary(OutputStream outputStream) throws IOException {
+        return writeBinary(checkpoints.values(), outputStream);
+    }
+
     /**
      * Returns the number of checkpoints that were loaded.
      */
@@ -226,6 +318,47 @@ public class CheckpointManager {
     public static void checkpoint(NetworkParameters params, InputStream checkpoints, BlockStore store, long timeSecs)
             throws IOException, BlockStoreException {
         checkNotNull(params);
+        timeSecs = checkCheckpointable(store, timeSecs);
+        BufferedInputStream stream = new BufferedInputStream(checkpoints);
+        CheckpointManager manager = new CheckpointManager(params, stream);
+        StoredBlock checkpoint = manager.getCheckpointBefore(timeSecs);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+    }
+
+    /**
+     * Like {@link #checkpoint(NetworkParameters, InputStream, BlockStore, long)}, but for a file. A file in the binary
+     * format is looked up in place with {@link #getCheckpointBefore(NetworkParameters, File, long)}, any other file
+     * is loaded.
+     */
+    public static void checkpoint(NetworkParameters params, File checkpoints, BlockStore store, long timeSecs)
+            throws IOException, BlockStoreException {
+        checkNotNull(params);
+        timeSecs = checkCheckpointable(store, timeSecs);
+        StoredBlock checkpoint;
+        if (isBinary(checkpoints)) {
+            checkpoint = getCheckpointBefore(params, checkpoints, timeSecs);
+        } else {
+            try (InputStream stream = new FileInputStream(checkpoints)) {
+                checkpoint = new CheckpointManager(params, stream).getCheckpointBefore(timeSecs);
+            }
+        }
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+    }
+
+    /**
+     * Puts the checkpoint for the given time into the store and sets it to be the chain head, like
+     * {@link #checkpoint(NetworkParameters, InputStream, BlockStore, long)} does after loading its stream.
+     */
+    public void checkpoint(BlockStore store, long timeSecs) throws BlockStoreException {
+        timeSecs = checkCheckpointable(store, timeSecs);
+        StoredBlock checkpoint = getCheckpointBefore(timeSecs);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+    }
+
+    private static long checkCheckpointable(BlockStore store, long timeSecs) {
         checkNotNull(store);
         checkArgument(!(store instanceof FullPrunedBlockStore), "You cannot use checkpointing with a full store.");
 
@@ -234,11 +367,12 @@ public class CheckpointManager {
         checkArgument(timeSecs > 0);
         log.info("Attempting to initialize a new block store with a checkpoint for time {} ({})", timeSecs,
                 Utils.dateTimeFormat(timeSecs * 1000));
+        return timeSecs;
+    }
 
-        BufferedInputStream stream = new BufferedInputStream(checkpoints);
-        CheckpointManager manager = new CheckpointManager(params, stream);
-        StoredBlock checkpoint = manager.getCheckpointBefore(timeSecs);
-        store.put(checkpoint);
-        store.setChainHead(checkpoint);
+    private static boolean isBinary(File file) throws IOException {
+        try (InputStream stream = new FileInputStream(file)) {
+            return stream.read() == BINARY_MAGIC.charAt(0);
+        }
     }
 }
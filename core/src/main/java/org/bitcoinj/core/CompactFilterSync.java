@@ -0,0 +1,566 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CompactFilterStore;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Brings wallets up to date using BIP157/158 compact block filters instead of bloom filters. The peers don't learn
+ * anything about the wallets: for every block the basic {@link BlockFilter} is downloaded, checked against the chain of
+ * filter headers and matched against the scripts of the wallets locally, and only the blocks that match are
+ * downloaded in full and given to the wallets.</p>
+ *
+ * <p>The block headers must be kept up to date separately, by a {@link PeerGroup} driving an
+ * {@link AbstractBlockChain} without any wallets; {@link #configure(PeerGroup)} sets a peer group up for that. Every
+ * call to {@link #sync()} then catches the filter headers up with the chain head, downloads the filters the wallets
+ * haven't seen yet and delivers the matching blocks. The filters are kept in a {@link CompactFilterStore}, so after
+ * keys have been imported {@link #rescan(Wallet, int)} only has to match the stored filters again.</p>
+ *
+ * <p>Filter headers are checked against the ones before them, so a peer can't hand out filters that are inconsistent
+ * with the headers it gave earlier. The first header the store is started from is taken on trust, unless it is the
+ * one of the genesis block; like the block headers themselves, it is best taken from several peers or a checkpoint.
+ * On Bitcoin Cash the compact filter service bit is the one also used for Graphene, see
+ * {@link VersionMessage#NODE_COMPACT_FILTERS}.</p>
+ */
+public class CompactFilterSync {
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterSync.class);
+
+    // Filters are matched in slices of this many blocks, which are then split up between the threads.
+    private static final int MATCH_SLICE = 1000;
+    private static final int MATCH_TASK = 50;
+    // How many matching blocks are requested ahead of the one being delivered.
+    private static final int BLOCKS_IN_FLIGHT = 16;
+
+    /** Where the filters and blocks come from. {@link #fromPeer(Peer)} and {@link #fromPeerGroup(PeerGroup)} adapt peers. */
+    public interface FilterSource {
+        /** See {@link Peer#getFilterHeaders(int, Sha256Hash)}. */
+        ListenableFuture<CFHeadersMessage> getFilterHeaders(int startHeight, Sha256Hash stopHash);
+
+        /** See {@link Peer#getFilters(int, Sha256Hash)}. */
+        ListenableFuture<List<BlockFilter>> getFilters(int startHeight, Sha256Hash stopHash);
+
+        /** See {@link Peer#getBlock(Sha256Hash)}. */
+        ListenableFuture<Block> getBlock(Sha256Hash blockHash);
+    }
+
+    /** Returns a source that asks the given peer, which must serve compact filters. */
+    public static FilterSource fromPeer(final Peer peer) {
+        return new FilterSource() {
+            @Override
+            public ListenableFuture<CFHeadersMessage> getFilterHeaders(int startHeight, Sha256Hash stopHash) {
+                return peer.getFilterHeaders(startHeight, stopHash);
+            }
+
+            @Override
+            public ListenableFuture<List<BlockFilter>> getFilters(int startHeight, Sha256Hash stopHash) {
+                return peer.getFilters(startHeight, stopHash);
+            }
+
+            @Override
+            public ListenableFuture<Block> getBlock(Sha256Hash blockHash) {
+                return peer.getBlock(blockHash);
+            }
+        };
+    }
+
+    /**
+     * Returns a source that asks a connected peer of the given group that serves compact filters, the download peer
+     * if it does. Each request goes to the peer chosen at the time it is made.
+     */
+    public static FilterSource fromPeerGroup(final PeerGroup peerGroup) {
+        return new FilterSource() {
+            @Override
+            public ListenableFuture<CFHeadersMessage> getFilterHeaders(int startHeight, Sha256Hash stopHash) {
+                Peer peer = pickPeer(peerGroup);
+                if (peer == null)
+                    return Futures.immediateFailedFuture(new IllegalStateException("No peer serves compact filters"));
+                return peer.getFilterHeaders(startHeight, stopHash);
+            }
+
+            @Override
+            public ListenableFuture<List<BlockFilter>> getFilters(int startHeight, Sha256Hash stopHash) {
+                Peer peer = pickPeer(peerGroup);
+                if (peer == null)
+                    return Futures.immediateFailedFuture(new IllegalStateException("No peer serves compact filters"));
+                return peer.getFilters(startHeight, stopHash);
+            }
+
+            @Override
+            public ListenableFuture<Block> getBlock(Sha256Hash blockHash) {
+                Peer peer = pickPeer(peerGroup);
+                if (peer == null)
+                    return Futures.immediateFailedFuture(new IllegalStateException("No peer serves compact filters"));
+                return peer.getBlock(blockHash);
+            }
+        };
+    }
+
+    private static Peer pickPeer(PeerGroup peerGroup) {
+        Peer download = peerGroup.getDownloadPeer();
+        if (download != null && servesFilters(download))
+            return download;
+        for (Peer peer : peerGroup.getConnectedPeers())
+            if (servesFilters(peer))
+                return peer;
+        return null;
+    }
+
+    private static boolean servesFilters(Peer peer) {
+        VersionMessage version = peer.getPeerVersionMessage();
+        return version != null && (version.localServices & VersionMessage.NODE_COMPACT_FILTERS) != 0;
+    }
+
+    /**
+     * Sets up a peer group for use with compact filters: bloom filters are not sent, only peers serving compact
+     * filters are connected to, and the chain is downloaded as headers up to an hour ago. The peer group must not have
+     * any wallets added, they are given to the {@link CompactFilterSync} instead.
+     */
+    public static void configure(PeerGroup peerGroup) {
+        peerGroup.setBloomFilteringEnabled(false);
+        peerGroup.setRequiredServices(VersionMessage.NODE_NETWORK | VersionMessage.NODE_COMPACT_FILTERS);
+        peerGroup.setFastCatchupTimeSecs(Utils.currentTimeSeconds() - 3600);
+    }
+
+    private final NetworkParameters params;
+    private final BlockStore blockStore;
+    private final CompactFilterStore filterStore;
+    private final FilterSource source;
+    private final CopyOnWriteArrayList<Wallet> wallets = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor;
+    // Runs the syncs scheduled by syncOnNewBlocks(), which must not take a thread from the matching.
+    private final ExecutorService syncExecutor;
+    // Only one sync or rescan runs at a time.
+    private final ReentrantLock syncLock = Threading.lock(CompactFilterSync.class);
+    private final AtomicBoolean syncScheduled = new AtomicBoolean();
+    private volatile long timeoutSecs = 60;
+
+    /**
+     * Creates a sync that follows the chain in the given block store and keeps its filters in the given filter store.
+     * Matching is spread over as many threads as there are processors.
+     */
+    public CompactFilterSync(NetworkParameters params, BlockStore blockStore, CompactFilterStore filterStore,
+                             FilterSource source) {
+        this(params, blockStore, filterStore, source, Runtime.getRuntime().availableProcessors());
+    }
+
+    public CompactFilterSync(NetworkParameters params, BlockStore blockStore, CompactFilterStore filterStore,
+                             FilterSource source, int threads) {
+        checkArgument(threads > 0);
+        this.params = checkNotNull(params);
+        this.blockStore = checkNotNull(blockStore);
+        this.filterStore = checkNotNull(filterStore);
+        this.source = checkNotNull(source);
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("Compact filter matching"));
+        this.syncExecutor = Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("Compact filter sync"));
+    }
+
+    /** Adds a wallet to be kept up to date. It catches up from its last seen block on the next {@link #sync()}. */
+    public void addWallet(Wallet wallet) {
+        checkArgument(wallet.getParams().equals(params), "Wallet is for another network");
+        wallets.addIfAbsent(wallet);
+    }
+
+    public boolean removeWallet(Wallet wallet) {
+        return wallets.remove(wallet);
+    }
+
+    public List<Wallet> getWallets() {
+        return Collections.unmodifiableList(wallets);
+    }
+
+    /** Sets how long to wait for each answer of the {@link FilterSource}. The default is a minute. */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutSecs = unit.toSeconds(timeout);
+    }
+
+    /**
+     * Runs {@link #sync()} in the background whenever the given chain gets a new best block. A sync that is already
+     * scheduled covers all blocks that arrive before it starts, so catching up with many headers costs few syncs.
+     */
+    public void syncOnNewBlocks(AbstractBlockChain chain) {
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                if (!syncScheduled.compareAndSet(false, true))
+                    return;
+                syncExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        syncScheduled.set(false);
+                        try {
+                            sync();
+                        } catch (Exception e) {
+                            log.warn("Compact filter sync failed", e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Catches the filter headers up with the head of the block store, then downloads the filters of the blocks the
+     * wallets haven't seen yet, matches them and gives the wallets the transactions of the blocks that match. Headers
+     * and filters of blocks that have left the best chain are dropped first.
+     *
+     * @throws VerificationException if a peer sent headers, filters or blocks that don't check out
+     */
+    public void sync() throws BlockStoreException, InterruptedException, ExecutionException, TimeoutException {
+        syncLock.lock();
+        try {
+            StoredBlock head = blockStore.getChainHead();
+            int headHeight = head.getHeight();
+            List<Wallet> wallets = new ArrayList<>(this.wallets);
+            int scanFrom = headHeight + 1;
+            for (Wallet wallet : wallets)
+                scanFrom = Math.min(scanFrom, wallet.getLastBlockSeenHeight() + 1);
+            // Go back one more so that the blocks the wallets last saw can be checked for being on the chain.
+            List<StoredBlock> chain = walkBack(head, scanFrom - 1);
+            for (Wallet wallet : wallets)
+                if (rewind(wallet, chain))
+                    scanFrom = Math.min(scanFrom, wallet.getLastBlockSeenHeight() + 1);
+            int lowest = chain.get(0).getHeight();
+            syncHeaders(chain);
+            scanFrom = Math.max(scanFrom, Math.max(lowest, filterStore.getBaseHeight() + 1));
+            if (scanFrom > headHeight)
+                return;
+            syncFilters(chain, scanFrom, headHeight);
+            int[] starts = new int[wallets.size()];
+            for (int i = 0; i < starts.length; i++)
+                starts[i] = Math.max(scanFrom, wallets.get(i).getLastBlockSeenHeight() + 1);
+            deliver(chain, wallets, starts, headHeight, false);
+            for (Wallet wallet : wallets) {
+                wallet.notifyNewBestBlock(head);
+                fixDepths(wallet, headHeight);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Matches the stored filters from the given height up to the last stored filter header against the wallet again,
+     * and gives it the transactions it doesn't have yet from the blocks that match. Use this after importing keys
+     * with an earlier creation time; only the matching blocks are downloaded, plus any filters that were never
+     * fetched. The wallet doesn't have to be added to this sync.
+     */
+    public void rescan(Wallet wallet, int fromHeight)
+            throws BlockStoreException, InterruptedException, ExecutionException, TimeoutException {
+        syncLock.lock();
+        try {
+            StoredBlock head = blockStore.getChainHead();
+            List<StoredBlock> chain = walkBack(head, fromHeight);
+            int to = Math.min(head.getHeight(), filterStore.getHeaderHeight());
+            int from = Math.max(fromHeight, Math.max(chain.get(0).getHeight(), filterStore.getBaseHeight() + 1));
+            if (from > to)
+                return;
+            log.info("Rescanning {} from height {} to {}", wallet, from, to);
+            syncFilters(chain, from, to);
+            deliver(chain, Collections.singletonList(wallet), new int[] { from }, to, true);
+            fixDepths(wallet, wallet.getLastBlockSeenHeight());
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /** Stops the sync and matching threads. The stores are not closed. */
+    public void close() {
+        syncExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    // Returns the best chain from the given height, or from the block the filter store forks off at if that is
+    // lower, or from as far back as the block store goes, up to the head in ascending order. Drops headers of blocks
+    // no longer on the best chain from the filter store.
+    private List<StoredBlock> walkBack(StoredBlock head, int from) throws BlockStoreException {
+        int headerHeight = filterStore.getHeaderHeight();
+        boolean forkFound = headerHeight < 0;
+        int forkHeight = -1;
+        List<StoredBlock> chain = new ArrayList<>();
+        StoredBlock cursor = head;
+        while (cursor != null) {
+            int height = cursor.getHeight();
+            chain.add(cursor);
+            if (!forkFound && height <= headerHeight
+                    && cursor.getHeader().getHash().equals(filterStore.getBlockHash(height))) {
+                forkFound = true;
+                forkHeight = height;
+            }
+            if ((forkFound && height <= from) || height == 0)
+                break;
+            cursor = cursor.getPrev(blockStore);
+        }
+        Collections.reverse(chain);
+        if (!forkFound) {
+            log.info("Filter headers don't connect to the chain, starting over from height {}", chain.get(0).getHeight());
+            filterStore.truncate(-1);
+        } else if (forkHeight >= 0 && forkHeight < headerHeight) {
+            log.info("Dropping filter headers above height {} after a reorganize", forkHeight);
+            filterStore.truncate(forkHeight);
+        }
+        return chain;
+    }
+
+    // If the last block the wallet saw has left the best chain, takes the blocks since the split off the wallet,
+    // which makes their transactions pending, so that it catches up from the split point again. The wallet is given
+    // no new blocks here, they come through the filters like any others. Returns true if the wallet was rewound.
+    private boolean rewind(Wallet wallet, List<StoredBlock> chain) throws BlockStoreException {
+        Sha256Hash seenHash = wallet.getLastBlockSeenHash();
+        if (seenHash == null)
+            return false;
+        int lowest = chain.get(0).getHeight();
+        int highest = chain.get(chain.size() - 1).getHeight();
+        int seenHeight = wallet.getLastBlockSeenHeight();
+        if (seenHeight >= lowest && seenHeight <= highest
+                && chain.get(seenHeight - lowest).getHeader().getHash().equals(seenHash))
+            return false;
+        StoredBlock cursor = blockStore.get(seenHash);
+        List<StoredBlock> oldBlocks = new ArrayList<>();
+        while (cursor != null && cursor.getHeight() >= lowest) {
+            int height = cursor.getHeight();
+            if (height <= highest && chain.get(height - lowest).getHeader().getHash().equals(cursor.getHeader().getHash())) {
+                log.info("Rewinding {} from height {} to {} after a reorganize", wallet, seenHeight, height);
+                wallet.reorganize(cursor, oldBlocks, Collections.<StoredBlock>emptyList());
+                wallet.setLastBlockSeenHeight(height);
+                wallet.setLastBlockSeenTimeSecs(cursor.getHeader().getTimeSeconds());
+                return true;
+            }
+            oldBlocks.add(cursor);
+            cursor = cursor.getPrev(blockStore);
+        }
+        log.warn("Cannot find where the last block seen by {} split off the chain", wallet);
+        return false;
+    }
+
+    private void syncHeaders(List<StoredBlock> chain)
+            throws BlockStoreException, InterruptedException, ExecutionException, TimeoutException {
+        int lowest = chain.get(0).getHeight();
+        int headHeight = chain.get(chain.size() - 1).getHeight();
+        int stored = filterStore.getHeaderHeight();
+        int from = stored < 0 ? Math.max(lowest, 1) : stored + 1;
+        while (from <= headHeight) {
+            int stop = Math.min(from + GetCFHeadersMessage.MAX_HEADERS - 1, headHeight);
+            Sha256Hash stopHash = chain.get(stop - lowest).getHeader().getHash();
+            CFHeadersMessage message = source.getFilterHeaders(from, stopHash).get(timeoutSecs, TimeUnit.SECONDS);
+            if (!message.getStopHash().equals(stopHash) || message.getFilterHashes().size() != stop - from + 1)
+                throw new VerificationException("Filter headers for the wrong blocks: " + message);
+            Sha256Hash previous = filterStore.getFilterHeader(from - 1);
+            if (previous == null && from == 1) {
+                // The genesis block spends nothing, so its filter can be built here.
+                Block genesis = params.getGenesisBlock();
+                previous = BlockFilter.build(params, genesis.getHash(),
+                        BlockFilter.getBasicFilterElements(genesis, Collections.<byte[]>emptyList()))
+                        .computeHeader(Sha256Hash.ZERO_HASH);
+            }
+            if (previous != null && !previous.equals(message.getPreviousFilterHeader()))
+                throw new VerificationException("Filter headers from " + from + " don't connect to the ones before");
+            List<Sha256Hash> blockHashes = new ArrayList<>(stop - from + 1);
+            for (int height = from; height <= stop; height++)
+                blockHashes.add(chain.get(height - lowest).getHeader().getHash());
+            Sha256Hash previousBlockHash = chain.get(from - lowest).getHeader().getPrevBlockHash();
+            filterStore.putFilterHeaders(from, previousBlockHash, message.getPreviousFilterHeader(), blockHashes,
+                    message.getFilterHeaders());
+            log.info("Got filter headers up to height {}", stop);
+            from = stop + 1;
+        }
+    }
+
+    // Downloads the filters between the given heights that aren't stored yet, checking each against its header.
+    private void syncFilters(List<StoredBlock> chain, int from, int to)
+            throws BlockStoreException, InterruptedException, ExecutionException, TimeoutException {
+        int lowest = chain.get(0).getHeight();
+        int height = from;
+        while (height <= to) {
+            if (filterStore.hasFilter(height)) {
+                height++;
+                continue;
+            }
+            int stop = Math.min(height + GetCFiltersMessage.MAX_FILTERS - 1, to);
+            Sha256Hash stopHash = chain.get(stop - lowest).getHeader().getHash();
+            List<BlockFilter> filters = source.getFilters(height, stopHash).get(timeoutSecs, TimeUnit.SECONDS);
+            if (filters.size() != stop - height + 1)
+                throw new VerificationException("Expected " + (stop - height + 1) + " filters, got " + filters.size());
+            Sha256Hash previous = filterStore.getFilterHeader(height - 1);
+            for (BlockFilter filter : filters) {
+                if (!filter.getBlockHash().equals(chain.get(height - lowest).getHeader().getHash()))
+                    throw new VerificationException("Filter for the wrong block at height " + height);
+                Sha256Hash header = filter.computeHeader(previous);
+                if (!header.equals(filterStore.getFilterHeader(height)))
+                    throw new VerificationException("Filter at height " + height + " doesn't match its header");
+                filterStore.putFilter(height, filter);
+                previous = header;
+                height++;
+            }
+        }
+    }
+
+    // Gives each wallet the relevant transactions of the blocks from its start height up to the given one whose
+    // filters match its scripts. The filters are matched up front; if a wallet's scripts grow while its blocks are
+    // delivered, the filters after the current block are matched against it again.
+    private void deliver(List<StoredBlock> chain, List<Wallet> wallets, int[] starts, int to, boolean rescan)
+            throws BlockStoreException, InterruptedException, ExecutionException, TimeoutException {
+        if (wallets.isEmpty())
+            return;
+        int lowest = chain.get(0).getHeight();
+        int from = Integer.MAX_VALUE;
+        for (int start : starts)
+            from = Math.min(from, start);
+        if (from > to)
+            return;
+        List<List<byte[]>> scripts = new ArrayList<>(wallets.size());
+        for (Wallet wallet : wallets)
+            scripts.add(wallet.getFilterScripts());
+        BitSet[] matches = match(from, to, scripts);
+        for (int i = 0; i < wallets.size(); i++)
+            matches[i].clear(0, starts[i] - from);
+        BitSet any = new BitSet();
+        for (BitSet match : matches)
+            any.or(match);
+        log.info("{} of {} blocks match the filters", any.cardinality(), to - from + 1);
+
+        TreeMap<Integer, ListenableFuture<Block>> inFlight = new TreeMap<>();
+        int next = any.nextSetBit(0);
+        while (next >= 0) {
+            // Keep the next few matching blocks on their way.
+            for (int ahead = next; ahead >= 0 && inFlight.size() < BLOCKS_IN_FLIGHT; ahead = any.nextSetBit(ahead + 1))
+                if (!inFlight.containsKey(ahead))
+                    inFlight.put(ahead, source.getBlock(chain.get(from + ahead - lowest).getHeader().getHash()));
+            int height = from + next;
+            StoredBlock stored = chain.get(height - lowest);
+            Block block = inFlight.remove(next).get(timeoutSecs, TimeUnit.SECONDS);
+            if (!block.getHash().equals(stored.getHeader().getHash()))
+                throw new VerificationException("Got the wrong block for height " + height);
+            block.verifyTransactions(height, EnumSet.noneOf(Block.VerifyFlag.class));
+
+            boolean first = true;
+            for (int i = 0; i < wallets.size(); i++) {
+                if (!matches[i].get(next))
+                    continue;
+                Wallet wallet = wallets.get(i);
+                int scriptCount = scripts.get(i).size();
+                List<Transaction> transactions = block.getTransactions();
+                for (int offset = 0; offset < transactions.size(); offset++) {
+                    Transaction tx = transactions.get(offset);
+                    if (rescan && wallet.getTransaction(tx.getTxId()) != null)
+                        continue;
+                    if (!wallet.isTransactionRelevant(tx))
+                        continue;
+                    // Each wallet gets its own copy, like in WalletHost.
+                    Transaction copy = first ? tx : params.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+                    first = false;
+                    wallet.receiveFromBlock(copy, stored, AbstractBlockChain.NewBlockType.BEST_CHAIN, offset);
+                }
+                if (!rescan)
+                    wallet.notifyNewBestBlock(stored);
+                // Receiving may have used up lookahead keys, and new ones may be paid in the blocks to come.
+                List<byte[]> updated = wallet.getFilterScripts();
+                if (updated.size() != scriptCount && height < to) {
+                    scripts.set(i, updated);
+                    BitSet rematch = match(height + 1, to, Collections.singletonList(updated))[0];
+                    int shift = next + 1;
+                    for (int bit = rematch.nextSetBit(0); bit >= 0; bit = rematch.nextSetBit(bit + 1)) {
+                        matches[i].set(bit + shift);
+                        any.set(bit + shift);
+                    }
+                }
+            }
+            next = any.nextSetBit(next + 1);
+        }
+    }
+
+    // Matches the stored filters of the blocks between the given heights against each of the script lists, spread
+    // over the executor. Bit n of the set for a list is set if the filter at height from + n matches it.
+    private BitSet[] match(int from, int to, final List<List<byte[]>> scripts)
+            throws BlockStoreException, InterruptedException, ExecutionException {
+        final BitSet[] matches = new BitSet[scripts.size()];
+        for (int i = 0; i < matches.length; i++)
+            matches[i] = new BitSet();
+        for (int sliceStart = from; sliceStart <= to; sliceStart += MATCH_SLICE) {
+            int sliceEnd = Math.min(sliceStart + MATCH_SLICE - 1, to);
+            final BlockFilter[] filters = new BlockFilter[sliceEnd - sliceStart + 1];
+            for (int height = sliceStart; height <= sliceEnd; height++)
+                filters[height - sliceStart] = checkNotNull(filterStore.getFilter(height));
+            List<Callable<boolean[][]>> tasks = new ArrayList<>();
+            for (int taskStart = 0; taskStart < filters.length; taskStart += MATCH_TASK) {
+                final int start = taskStart;
+                final int end = Math.min(taskStart + MATCH_TASK, filters.length);
+                tasks.add(new Callable<boolean[][]>() {
+                    @Override
+                    public boolean[][] call() {
+                        boolean[][] result = new boolean[scripts.size()][end - start];
+                        for (int i = 0; i < scripts.size(); i++)
+                            if (!scripts.get(i).isEmpty())
+                                for (int f = start; f < end; f++)
+                                    result[i][f - start] = filters[f].matchAny(scripts.get(i));
+                        return result;
+                    }
+                });
+            }
+            List<Future<boolean[][]>> results = executor.invokeAll(tasks);
+            for (int t = 0; t < results.size(); t++) {
+                boolean[][] result = results.get(t).get();
+                int base = sliceStart - from + t * MATCH_TASK;
+                for (int i = 0; i < result.length; i++)
+                    for (int f = 0; f < result[i].length; f++)
+                        if (result[i][f])
+                            matches[i].set(base + f);
+            }
+        }
+        return matches;
+    }
+
+    // Blocks reach the wallet out of order and skipping most, so set the depth of its transactions from the height
+    // they appeared at rather than by counting blocks.
+    private static void fixDepths(Wallet wallet, int headHeight) {
+        for (Transaction tx : wallet.getTransactions(false)) {
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                confidence.setDepthInBlocks(headHeight - confidence.getAppearedAtChainHeight() + 1);
+        }
+    }
+}
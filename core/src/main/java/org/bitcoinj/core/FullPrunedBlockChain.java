@@ -149,7 +149,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * A job submitted to the executor which verifies signatures. Inputs that were already verified, for example when
+     * the transaction was first relayed to us, are skipped via the {@link org.bitcoinj.script.ScriptValidationCache}.
      */
     private static class Verifier implements Callable<VerificationException> {
         final Transaction tx;
@@ -0,0 +1,37 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+/**
+ * <p>Asks a peer for the filter hashes of a range of blocks, from the given height up to and including the block with
+ * the given stop hash, along with the filter header of the block before the range, as defined by
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP 157</a>. The peer answers with a
+ * {@link CFHeadersMessage}. At most {@link #MAX_HEADERS} can be asked for at once.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFHeadersMessage extends GetCFiltersMessage {
+    public static final int MAX_HEADERS = 2000;
+
+    public GetCFHeadersMessage(NetworkParameters params, byte filterType, long startHeight, Sha256Hash stopHash) {
+        super(params, filterType, startHeight, stopHash);
+    }
+
+    public GetCFHeadersMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes);
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.listeners.PeerConnectedEventListener;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Downloads the blocks of a known chain of headers from several peers at once and adds them to a block chain in
+ * order. This is meant for the initial download of full blocks, for example into a {@link FullPrunedBlockChain},
+ * where downloading from the single download peer of a {@link PeerGroup} is limited by that peer's bandwidth. The
+ * headers can be fetched first with {@link #downloadHeaders(Peer, StoredBlock, long, TimeUnit)}.</p>
+ *
+ * <p>Only blocks within a window after the next block to be added to the chain are requested, and each peer gets a
+ * range of at most a few blocks at a time. Blocks that arrive out of order are buffered, up to a limit on their total
+ * size. A request that isn't answered within the stall timeout is given to another peer; this happens sooner for the
+ * block everything else is waiting for when the window is full. Peers that stall repeatedly aren't used any more.</p>
+ *
+ * <p>Peers are added with {@link #addPeer(Peer)}, or taken from a peer group with {@link #usePeerGroup(PeerGroup)}.
+ * The peer group should not download the chain itself at the same time.</p>
+ */
+public class ParallelBlockFetcher {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockFetcher.class);
+
+    public static final int DEFAULT_WINDOW = 1024;
+    public static final int DEFAULT_BLOCKS_PER_PEER = 16;
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 20000;
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    // A peer that stalls this many times in a row is dropped.
+    private static final int MAX_STALLS = 3;
+
+    private static class Request {
+        final Peer peer;
+        final long time;
+
+        Request(Peer peer, long time) {
+            this.peer = peer;
+            this.time = time;
+        }
+    }
+
+    private static class PeerState {
+        int inFlight;
+        int stalls;
+    }
+
+    private final AbstractBlockChain chain;
+    private final List<Sha256Hash> hashes;
+    private final ReentrantLock lock = Threading.lock(ParallelBlockFetcher.class);
+    private final SettableFuture<Integer> future = SettableFuture.create();
+
+    private volatile int window = DEFAULT_WINDOW;
+    private volatile int blocksPerPeer = DEFAULT_BLOCKS_PER_PEER;
+    private volatile long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    private volatile long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+
+    // The outstanding request for each block, by index in hashes.
+    @GuardedBy("lock")
+    private final Map<Integer, Request> inFlight = new HashMap<>();
+    @GuardedBy("lock")
+    private final Map<Peer, PeerState> peers = new LinkedHashMap<>();
+    // Blocks to request again, and the peer that failed to deliver them.
+    @GuardedBy("lock")
+    private final TreeSet<Integer> toRetry = new TreeSet<>();
+    @GuardedBy("lock")
+    private final Map<Integer, Peer> failedPeers = new HashMap<>();
+    @GuardedBy("lock")
+    private final Map<Integer, Block> buffered = new HashMap<>();
+    @GuardedBy("lock")
+    private long bufferedBytes;
+    @GuardedBy("lock")
+    private int nextToRequest, nextToDeliver;
+    @GuardedBy("lock")
+    private boolean delivering;
+    @GuardedBy("lock")
+    @Nullable
+    private ScheduledExecutorService executor;
+    @GuardedBy("lock")
+    @Nullable
+    private PeerGroup peerGroup;
+
+    private final PeerConnectedEventListener connectedListener = new PeerConnectedEventListener() {
+        @Override
+        public void onPeerConnected(Peer peer, int peerCount) {
+            if ((peer.getPeerVersionMessage().localServices & VersionMessage.NODE_NETWORK) != 0)
+                addPeer(peer);
+        }
+    };
+
+    private final PeerDisconnectedEventListener disconnectedListener = new PeerDisconnectedEventListener() {
+        @Override
+        public void onPeerDisconnected(Peer peer, int peerCount) {
+            removePeer(peer);
+        }
+    };
+
+    /**
+     * Creates a fetcher for the blocks of the given hashes, which must form a chain that connects to the given block
+     * chain, in order.
+     */
+    public ParallelBlockFetcher(AbstractBlockChain chain, List<Sha256Hash> blockHashes) {
+        this.chain = checkNotNull(chain);
+        this.hashes = new ArrayList<>(blockHashes);
+    }
+
+    /**
+     * Creates a fetcher for the blocks of the given headers, for example as returned by
+     * {@link #downloadHeaders(Peer, StoredBlock, long, TimeUnit)}.
+     */
+    public static ParallelBlockFetcher forHeaders(AbstractBlockChain chain, List<Block> headers) {
+        List<Sha256Hash> hashes = new ArrayList<>(headers.size());
+        for (Block header : headers)
+            hashes.add(header.getHash());
+        return new ParallelBlockFetcher(chain, hashes);
+    }
+
+    /**
+     * Downloads the headers of the blocks that follow the given block from the given peer, until the peer has no more,
+     * and checks that they connect to each other and have valid proof of work. They are not added to any chain.
+     */
+    public static List<Block> downloadHeaders(Peer peer, StoredBlock from, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        List<Block> result = new ArrayList<>();
+        Sha256Hash prevHash = from.getHeader().getHash();
+        while (true) {
+            ListenableFuture<HeadersMessage> request = peer.getBlockHeaders(new BlockLocator().add(prevHash),
+                    Sha256Hash.ZERO_HASH);
+            List<Block> headers = request.get(timeout, unit).getBlockHeaders();
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(prevHash))
+                    throw new VerificationException("Header " + header.getHashAsString() + " does not connect to "
+                            + prevHash);
+                header.verifyHeader();
+                result.add(header);
+                prevHash = header.getHash();
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS)
+                return result;
+        }
+    }
+
+    /** Sets how many blocks after the next one to be added to the chain may be requested. */
+    public void setWindow(int window) {
+        checkArgument(window > 0);
+        this.window = window;
+    }
+
+    /** Sets how many blocks may be requested from a peer at once. */
+    public void setBlocksPerPeer(int blocksPerPeer) {
+        checkArgument(blocksPerPeer > 0);
+        this.blocksPerPeer = blocksPerPeer;
+    }
+
+    /** Sets the total size of the blocks that may be held waiting for the blocks before them. */
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        checkArgument(maxBufferedBytes > 0);
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /** Sets how long a peer has to deliver a requested block before it is requested from another peer. */
+    public void setStallTimeout(long timeout, TimeUnit unit) {
+        checkArgument(timeout > 0);
+        this.stallTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Downloads from the peers of the given group that serve the full chain, including those connecting later. Must
+     * be called before {@link #start()}.
+     */
+    public void usePeerGroup(PeerGroup peerGroup) {
+        lock.lock();
+        try {
+            checkState(executor == null, "Already started");
+            this.peerGroup = checkNotNull(peerGroup);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts downloading. The returned future completes with the number of blocks added once the last block has been
+     * added to the chain, or fails if a block could not be added.
+     */
+    public ListenableFuture<Integer> start() {
+        PeerGroup group;
+        lock.lock();
+        try {
+            checkState(executor == null, "Already started");
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2,
+                    new ContextPropagatingThreadFactory("Block fetcher"));
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            this.executor = executor;
+            group = peerGroup;
+        } finally {
+            lock.unlock();
+        }
+        if (hashes.isEmpty()) {
+            finish(null);
+            return future;
+        }
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkStalls();
+                } catch (Throwable e) {
+                    log.error("Exception when checking for stalled block requests", e);
+                }
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (group != null) {
+            group.addConnectedEventListener(executor, connectedListener);
+            group.addDisconnectedEventListener(executor, disconnectedListener);
+            for (Peer peer : group.getConnectedPeers())
+                connectedListener.onPeerConnected(peer, 0);
+        }
+        return future;
+    }
+
+    /** Stops downloading, the future returned by {@link #start()} is cancelled. */
+    public void stop() {
+        future.cancel(false);
+        finish(null);
+    }
+
+    /** Returns the future returned by {@link #start()}. */
+    public ListenableFuture<Integer> getFuture() {
+        return future;
+    }
+
+    /** Starts requesting blocks from the given peer. */
+    public void addPeer(Peer peer) {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            if (future.isDone() || peers.containsKey(peer))
+                return;
+            peers.put(peer, new PeerState());
+            log.info("{}: Fetching blocks from peer, {} peers", peer, peers.size());
+            sends = fill();
+        } finally {
+            lock.unlock();
+        }
+        run(sends);
+    }
+
+    /** Stops requesting blocks from the given peer. Blocks requested from it are requested from other peers. */
+    public void removePeer(Peer peer) {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            for (Map.Entry<Integer, Request> entry : new ArrayList<>(inFlight.entrySet()))
+                if (entry.getValue().peer == peer)
+                    retry(entry.getKey());
+            sends = fill();
+        } finally {
+            lock.unlock();
+        }
+        run(sends);
+    }
+
+    /** Returns the number of blocks added to the chain so far. */
+    public int getBlocksDelivered() {
+        lock.lock();
+        try {
+            return nextToDeliver;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forgets the outstanding request for the given block, if any.
+    @GuardedBy("lock")
+    @Nullable
+    private Request release(int index) {
+        Request request = inFlight.remove(index);
+        if (request != null) {
+            PeerState state = peers.get(request.peer);
+            if (state != null)
+                state.inFlight--;
+        }
+        return request;
+    }
+
+    // Moves the request for the given block to the retry set.
+    @GuardedBy("lock")
+    private void retry(int index) {
+        Request request = release(index);
+        if (request != null)
+            failedPeers.put(index, request.peer);
+        toRetry.add(index);
+    }
+
+    @GuardedBy("lock")
+    private boolean isWindowFull() {
+        return nextToRequest >= Math.min(hashes.size(), nextToDeliver + window) || bufferedBytes >= maxBufferedBytes;
+    }
+
+    // Assigns blocks to peers with room for more, retries first, and returns the jobs that send the requests. They
+    // are sent after releasing the lock, as a block may arrive before getBlocks() returns.
+    @GuardedBy("lock")
+    private List<Runnable> fill() {
+        if (future.isDone() || peers.isEmpty())
+            return Collections.emptyList();
+        final Map<Peer, List<Integer>> batches = new LinkedHashMap<>();
+        List<Peer> byLoad = new ArrayList<>(peers.keySet());
+        Collections.sort(byLoad, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                return Integer.compare(peers.get(a).inFlight, peers.get(b).inFlight);
+            }
+        });
+        long now = Utils.currentTimeMillis();
+        for (Integer index : new ArrayList<>(toRetry)) {
+            Peer failed = failedPeers.get(index);
+            Peer chosen = null;
+            for (Peer peer : byLoad) {
+                if (peers.get(peer).inFlight < blocksPerPeer && (peer != failed || peers.size() == 1)) {
+                    chosen = peer;
+                    break;
+                }
+            }
+            if (chosen == null)
+                break;
+            toRetry.remove(index);
+            assign(batches, chosen, index, now);
+        }
+        for (Peer peer : byLoad) {
+            // Each peer gets a contiguous range.
+            while (peers.get(peer).inFlight < blocksPerPeer && !isWindowFull())
+                assign(batches, peer, nextToRequest++, now);
+        }
+        List<Runnable> sends = new ArrayList<>(batches.size());
+        for (final Map.Entry<Peer, List<Integer>> batch : batches.entrySet()) {
+            sends.add(new Runnable() {
+                @Override
+                public void run() {
+                    send(batch.getKey(), batch.getValue());
+                }
+            });
+        }
+        return sends;
+    }
+
+    @GuardedBy("lock")
+    private void assign(Map<Peer, List<Integer>> batches, Peer peer, int index, long now) {
+        List<Integer> batch = batches.get(peer);
+        if (batch == null) {
+            batch = new ArrayList<>();
+            batches.put(peer, batch);
+        }
+        batch.add(index);
+        inFlight.put(index, new Request(peer, now));
+        peers.get(peer).inFlight++;
+    }
+
+    private static void run(List<Runnable> jobs) {
+        for (Runnable job : jobs)
+            job.run();
+    }
+
+    private void send(final Peer peer, List<Integer> indices) {
+        List<Sha256Hash> batchHashes = new ArrayList<>(indices.size());
+        for (int index : indices)
+            batchHashes.add(hashes.get(index));
+        List<ListenableFuture<Block>> futures;
+        try {
+            futures = peer.getBlocks(batchHashes);
+        } catch (RuntimeException e) {
+            log.warn("{}: Could not request blocks: {}", peer, e.toString());
+            removePeer(peer);
+            return;
+        }
+        for (int i = 0; i < indices.size(); i++) {
+            final int index = indices.get(i);
+            Futures.addCallback(futures.get(i), new FutureCallback<Block>() {
+                @Override
+                public void onSuccess(Block block) {
+                    received(peer, index, block);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // The peer doesn't have the block.
+                    failed(peer, index);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    private void received(Peer peer, int index, Block block) {
+        List<Runnable> sends;
+        boolean startDelivery = false;
+        lock.lock();
+        try {
+            if (future.isDone() || index < nextToDeliver || buffered.containsKey(index))
+                return;
+            release(index);
+            toRetry.remove(index);
+            failedPeers.remove(index);
+            PeerState state = peers.get(peer);
+            if (state != null)
+                state.stalls = 0;
+            buffered.put(index, block);
+            bufferedBytes += sizeOf(block);
+            if (!delivering && index == nextToDeliver) {
+                delivering = true;
+                startDelivery = true;
+            }
+            sends = fill();
+        } finally {
+            lock.unlock();
+        }
+        run(sends);
+        if (startDelivery)
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+    }
+
+    private void failed(Peer peer, int index) {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            Request request = inFlight.get(index);
+            if (request == null || request.peer != peer)
+                return;
+            log.info("{}: Peer does not have block {}", peer, hashes.get(index));
+            retry(index);
+            sends = fill();
+        } finally {
+            lock.unlock();
+        }
+        run(sends);
+    }
+
+    // Adds the buffered blocks that are next in the chain, one at a time and outside the lock, so that downloading
+    // continues meanwhile.
+    private void deliver() {
+        while (true) {
+            Block block;
+            boolean last;
+            List<Runnable> sends;
+            lock.lock();
+            try {
+                block = future.isDone() ? null : buffered.remove(nextToDeliver);
+                if (block == null) {
+                    delivering = false;
+                    return;
+                }
+                bufferedBytes -= sizeOf(block);
+                nextToDeliver++;
+                last = nextToDeliver == hashes.size();
+                sends = fill();
+            } finally {
+                lock.unlock();
+            }
+            run(sends);
+            try {
+                if (!chain.add(block)) {
+                    finish(new VerificationException("Block " + block.getHashAsString()
+                            + " does not connect to the chain"));
+                    return;
+                }
+            } catch (PrunedException | RuntimeException e) {
+                finish(e);
+                return;
+            }
+            if (last) {
+                finish(null);
+                return;
+            }
+        }
+    }
+
+    private void checkStalls() {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            boolean windowFull = isWindowFull();
+            for (Map.Entry<Integer, Request> entry : new ArrayList<>(inFlight.entrySet())) {
+                int index = entry.getKey();
+                Request request = entry.getValue();
+                // Don't wait as long for the block everything else is waiting for.
+                long timeout = windowFull && index == nextToDeliver ? stallTimeoutMillis / 4 : stallTimeoutMillis;
+                if (now - request.time <= timeout)
+                    continue;
+                log.info("{}: Block {} stalled after {} ms, requesting it elsewhere", request.peer, hashes.get(index),
+                        now - request.time);
+                retry(index);
+                PeerState state = peers.get(request.peer);
+                if (state != null && ++state.stalls >= MAX_STALLS) {
+                    log.info("{}: Peer stalled {} times, not fetching blocks from it any more", request.peer,
+                            state.stalls);
+                    peers.remove(request.peer);
+                    for (Map.Entry<Integer, Request> other : new ArrayList<>(inFlight.entrySet()))
+                        if (other.getValue().peer == request.peer)
+                            retry(other.getKey());
+                }
+            }
+            sends = fill();
+        } finally {
+            lock.unlock();
+        }
+        run(sends);
+    }
+
+    private void execute(Runnable job) {
+        lock.lock();
+        try {
+            if (executor != null && !executor.isShutdown())
+                executor.execute(job);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish(@Nullable Throwable error) {
+        PeerGroup group;
+        int delivered;
+        lock.lock();
+        try {
+            if (executor != null)
+                executor.shutdown();
+            group = peerGroup;
+            delivered = nextToDeliver;
+            buffered.clear();
+            bufferedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+        if (group != null) {
+            group.removeConnectedEventListener(connectedListener);
+            group.removeDisconnectedEventListener(disconnectedListener);
+        }
+        if (error != null) {
+            log.warn("Block download failed after {} blocks", delivered, error);
+            future.setException(error);
+        } else {
+            future.set(delivered);
+        }
+    }
+
+    private static int sizeOf(Block block) {
+        return block.length != Message.UNKNOWN_LENGTH ? block.length : block.bitcoinSerialize().length;
+    }
+}
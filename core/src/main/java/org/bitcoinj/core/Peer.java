@@ -153,6 +153,26 @@ public class Peer extends PeerSocketHandler {
     @Nullable
     @GuardedBy("lock")
     private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
+    @Nullable
+    @GuardedBy("lock")
+    private LinkedList<SettableFuture<CFHeadersMessage>> getcfheadersFutures;
+    @Nullable
+    @GuardedBy("lock")
+    private LinkedList<SettableFuture<HeadersMessage>> getheadersFutures;
+    @Nullable
+    @GuardedBy("lock")
+    private LinkedList<GetFiltersRequest> getcfiltersRequests;
+
+    // The filters of a getcfilters request come in one message per block, so they are collected until the last one.
+    private static class GetFiltersRequest {
+        final Sha256Hash stopHash;
+        final List<BlockFilter> filters = new ArrayList<>();
+        final SettableFuture<List<BlockFilter>> future = SettableFuture.create();
+
+        GetFiltersRequest(Sha256Hash stopHash) {
+            this.stopHash = stopHash;
+        }
+    }
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -163,6 +183,12 @@ public class Peer extends PeerSocketHandler {
     private static final int PENDING_PINGS_LIMIT = 50;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
 
+    // When the oldest unanswered chain download request was sent, or zero. Together with the averages below this is
+    // what PeerGroup uses to pick a fast download peer.
+    private volatile long chainRequestTimeMillis;
+    private volatile long responseLatencyMillis = Long.MAX_VALUE;
+    private volatile long downloadSpeed = -1;
+
     private volatile VersionMessage vPeerVersionMessage;
 
     // A settable future which completes (with this) when the connection is open
@@ -478,12 +504,16 @@ public class Peer extends PeerSocketHandler {
             currentFilteredBlock = null;
         }
 
-        // No further communication is possible until version handshake is complete.
-        if (!(m instanceof VersionMessage || m instanceof VersionAck
+        // No further communication is possible until version handshake is complete, except for sendaddrv2, which
+        // BIP155 has peers send before their verack.
+        if (!(m instanceof VersionMessage || m instanceof VersionAck || m instanceof SendAddrV2Message
                 || (versionHandshakeFuture.isDone() && !versionHandshakeFuture.isCancelled())))
             throw new ProtocolException(
                     "Received " + m.getClass().getSimpleName() + " before version handshake is complete.");
 
+        if (isChainResponse(m))
+            chainResponseReceived();
+
         if (m instanceof Ping) {
             processPing((Ping) m);
         } else if (m instanceof Pong) {
@@ -503,9 +533,7 @@ public class Peer extends PeerSocketHandler {
         } else if (m instanceof GetDataMessage) {
             processGetData((GetDataMessage) m);
         } else if (m instanceof AddressMessage) {
-            // We don't care about addresses of the network right now. But in future,
-            // we should save them in the wallet so we don't put too much load on the seed nodes and can
-            // properly explore the network.
+            // Either addr or addrv2, see PeerGroup#setAddressDatabase(PeerAddressDatabase).
             processAddressMessage((AddressMessage) m);
         } else if (m instanceof HeadersMessage) {
             processHeaders((HeadersMessage) m);
@@ -515,10 +543,16 @@ public class Peer extends PeerSocketHandler {
             processVersionAck((VersionAck) m);
         } else if (m instanceof UTXOsMessage) {
             processUTXOMessage((UTXOsMessage) m);
+        } else if (m instanceof CFHeadersMessage) {
+            processCFHeaders((CFHeadersMessage) m);
+        } else if (m instanceof BlockFilter) {
+            processBlockFilter((BlockFilter) m);
         } else if (m instanceof RejectMessage) {
             log.error("{} {}: Received {}", this, getPeerVersionMessage().subVer, m);
         } else if (m instanceof SendHeadersMessage) {
             // We ignore this message, because we don't announce new blocks.
+        } else if (m instanceof SendAddrV2Message) {
+            // We ignore this message, because we don't relay addresses.
         } else if(m instanceof DSProofMessage) {
             processDsProof((DSProofMessage) m);
         } else {
@@ -539,6 +573,38 @@ public class Peer extends PeerSocketHandler {
             future.set(m);
     }
 
+    protected void processCFHeaders(CFHeadersMessage m) {
+        SettableFuture<CFHeadersMessage> future = null;
+        lock.lock();
+        try {
+            if (getcfheadersFutures != null)
+                future = getcfheadersFutures.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+        if (future != null)
+            future.set(m);
+    }
+
+    protected void processBlockFilter(BlockFilter m) {
+        GetFiltersRequest request = null;
+        lock.lock();
+        try {
+            if (getcfiltersRequests == null || getcfiltersRequests.isEmpty()) {
+                log.debug("{}: Received filter we did not ask for: {}", getAddress(), m.getBlockHash());
+                return;
+            }
+            GetFiltersRequest first = getcfiltersRequests.getFirst();
+            first.filters.add(m);
+            if (m.getBlockHash().equals(first.stopHash))
+                request = getcfiltersRequests.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+        if (request != null)
+            request.future.set(request.filters);
+    }
+
     private void processAddressMessage(AddressMessage m) {
         SettableFuture<AddressMessage> future;
         synchronized (getAddrFutures) {
@@ -600,6 +666,9 @@ public class Peer extends PeerSocketHandler {
             // In this case, it's a protocol violation.
             throw new ProtocolException("Peer reports invalid best height: " + peerVersionMessage.bestHeight);
         // Now it's our turn ...
+        // Ask for addrv2 rather than addr, so that we learn about Tor v3 peers too. BIP155 requires this to be sent
+        // before the verack, nodes that don't know it ignore it.
+        sendMessage(new SendAddrV2Message(params));
         // Send an ACK message stating we accept the peers protocol version.
         sendMessage(new VersionAck());
         if (log.isDebugEnabled())
@@ -677,10 +746,14 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        SettableFuture<HeadersMessage> future = null;
 
         lock.lock();
         try {
-            if (blockChain == null) {
+            // Was this requested by getBlockHeaders()?
+            if (getheadersFutures != null)
+                future = getheadersFutures.pollFirst();
+            if (future == null && blockChain == null) {
                 // Can happen if we are receiving unrequested data, or due to programmer error.
                 log.warn("Received headers when Peer is not configured with a chain.");
                 return;
@@ -690,6 +763,10 @@ public class Peer extends PeerSocketHandler {
         } finally {
             lock.unlock();
         }
+        if (future != null) {
+            future.set(m);
+            return;
+        }
 
         try {
             checkState(!downloadBlockBodies, toString());
@@ -1270,6 +1347,7 @@ public class Peer extends PeerSocketHandler {
         // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
+        boolean requestedBlocks = false;
 
         lock.lock();
         try {
@@ -1304,6 +1382,7 @@ public class Peer extends PeerSocketHandler {
                                 getdata.addBlock(item.hash);
                             }
                             pendingBlockDownloads.add(item.hash);
+                            requestedBlocks = true;
                         }
                     }
                 }
@@ -1319,6 +1398,8 @@ public class Peer extends PeerSocketHandler {
 
         if (!getdata.getItems().isEmpty()) {
             // This will cause us to receive a bunch of block or tx messages.
+            if (requestedBlocks)
+                chainRequestSent();
             sendMessage(getdata);
         }
 
@@ -1343,6 +1424,45 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for the blocks of the given hashes in a single getdata message, and returns a future for
+     * each of them, in the same order. A future is cancelled if the peer replies that it doesn't have the block.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        GetDataMessage getdata = new GetDataMessage(params);
+        List<ListenableFuture<Block>> futures = new ArrayList<>(blockHashes.size());
+        for (Sha256Hash hash : blockHashes) {
+            getdata.addBlock(hash);
+            GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
+            getDataFutures.add(req);
+            futures.add(req.future);
+        }
+        sendMessage(getdata);
+        return futures;
+    }
+
+    /**
+     * Asks the connected peer for the headers of the blocks following the first hash of the locator that is in its
+     * best chain, up to the given stop hash or {@link HeadersMessage#MAX_HEADERS} of them. The headers are not added
+     * to the block chain. Don't use this on the download peer while it is downloading headers for fast catchup, as
+     * the answers could be mixed up.
+     */
+    public ListenableFuture<HeadersMessage> getBlockHeaders(BlockLocator locator, Sha256Hash stopHash) {
+        lock.lock();
+        try {
+            SettableFuture<HeadersMessage> future = SettableFuture.create();
+            if (getheadersFutures == null)
+                getheadersFutures = new LinkedList<>();
+            getheadersFutures.add(future);
+            sendMessage(new GetHeadersMessage(params, locator, stopHash));
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1511,6 +1631,7 @@ public class Peer extends PeerSocketHandler {
         lastGetBlocksBegin = chainHeadHash;
         lastGetBlocksEnd = toHash;
 
+        chainRequestSent();
         if (downloadBlockBodies) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
             sendMessage(message);
@@ -1654,6 +1775,58 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Returns a moving average of how long the peer took to start answering chain download requests (getblocks,
+     * getheaders and getdata for blocks), in milliseconds. Returns {@link Long#MAX_VALUE} if no request was answered
+     * yet.
+     */
+    public long getResponseLatency() {
+        return responseLatencyMillis;
+    }
+
+    /**
+     * Returns a moving average of the bytes of block data per second that this peer sent while it was the download
+     * peer of a {@link PeerGroup}, or -1 if it was never measured.
+     */
+    public long getDownloadSpeed() {
+        return downloadSpeed;
+    }
+
+    /**
+     * Adds a sample of the bytes of block data received from this peer in the last second. Only called by the peer
+     * group while this peer is the download peer.
+     */
+    void addDownloadSpeedSample(long bytesPerSecond) {
+        long average = downloadSpeed;
+        downloadSpeed = average < 0 ? bytesPerSecond : (average * 4 + bytesPerSecond) / 5;
+    }
+
+    private void chainRequestSent() {
+        if (chainRequestTimeMillis == 0)
+            chainRequestTimeMillis = Utils.currentTimeMillis();
+    }
+
+    private void chainResponseReceived() {
+        long sent = chainRequestTimeMillis;
+        if (sent == 0)
+            return;
+        chainRequestTimeMillis = 0;
+        long sample = Math.max(0, Utils.currentTimeMillis() - sent);
+        long average = responseLatencyMillis;
+        responseLatencyMillis = average == Long.MAX_VALUE ? sample : (average * 4 + sample) / 5;
+    }
+
+    private static boolean isChainResponse(Message m) {
+        if (m instanceof Block || m instanceof FilteredBlock || m instanceof HeadersMessage)
+            return true;
+        if (m instanceof InventoryMessage && !(m instanceof NotFoundMessage)) {
+            for (InventoryItem item : ((InventoryMessage) m).getItems())
+                if (item.type == InventoryItem.Type.BLOCK)
+                    return true;
+        }
+        return false;
+    }
+
     private void processPing(Ping m) {
         if (m.hasNonce())
             sendMessage(new Pong(m.getNonce()));
@@ -1882,6 +2055,57 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Asks the remote peer for the hashes of the basic {@link BlockFilter}s of the blocks from the given height up to
+     * and including the block with the given hash, along with the filter header of the block before them. At most
+     * {@link GetCFHeadersMessage#MAX_HEADERS} blocks can be asked for. The answer is not verified in any way: the
+     * headers it implies must be checked against the ones of other peers or ones already known.
+     *
+     * @throws ProtocolException if this peer doesn't serve compact block filters.
+     */
+    public ListenableFuture<CFHeadersMessage> getFilterHeaders(int startHeight, Sha256Hash stopHash) {
+        lock.lock();
+        try {
+            checkServesFilters();
+            SettableFuture<CFHeadersMessage> future = SettableFuture.create();
+            if (getcfheadersFutures == null)
+                getcfheadersFutures = new LinkedList<>();
+            getcfheadersFutures.add(future);
+            sendMessage(new GetCFHeadersMessage(params, BlockFilter.BASIC, startHeight, stopHash));
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks the remote peer for the basic {@link BlockFilter}s of the blocks from the given height up to and including
+     * the block with the given hash. The future completes once the filter of that last block has arrived, with all of
+     * the filters in block order. At most {@link GetCFiltersMessage#MAX_FILTERS} blocks can be asked for. The filters
+     * must be checked against their filter headers before being relied upon.
+     *
+     * @throws ProtocolException if this peer doesn't serve compact block filters.
+     */
+    public ListenableFuture<List<BlockFilter>> getFilters(int startHeight, Sha256Hash stopHash) {
+        lock.lock();
+        try {
+            checkServesFilters();
+            GetFiltersRequest request = new GetFiltersRequest(stopHash);
+            if (getcfiltersRequests == null)
+                getcfiltersRequests = new LinkedList<>();
+            getcfiltersRequests.add(request);
+            sendMessage(new GetCFiltersMessage(params, BlockFilter.BASIC, startHeight, stopHash));
+            return request.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkServesFilters() throws ProtocolException {
+        if ((getPeerVersionMessage().localServices & VersionMessage.NODE_COMPACT_FILTERS) == 0)
+            throw new ProtocolException("Peer does not serve compact block filters");
+    }
+
     /**
      * Returns true if this peer will use getdata/notfound messages to walk backwards through transaction dependencies
      * before handing the transaction off to the wallet. The wallet can do risk analysis on pending/recent transactions
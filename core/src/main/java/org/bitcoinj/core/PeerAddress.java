@@ -17,15 +17,22 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.io.BaseEncoding;
+import org.bouncycastle.crypto.digests.SHA3Digest;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Objects;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -38,6 +45,12 @@ public class PeerAddress extends ChildMessage {
 
     static final int MESSAGE_SIZE = 30;
 
+    // Network IDs of BIP155 (addrv2).
+    static final int NETWORK_IPV4 = 1;
+    static final int NETWORK_IPV6 = 2;
+    static final int NETWORK_TORV3 = 4;
+    private static final BaseEncoding BASE32 = BaseEncoding.base32().lowerCase().omitPadding();
+
     private InetAddress addr;
     private String hostname; // Used for .onion addresses
     private int port;
@@ -111,6 +124,21 @@ public class PeerAddress extends ChildMessage {
         this.services = BigInteger.ZERO;
     }
 
+    /**
+     * Constructs a peer address as announced in an addrv2 message, either with an IP address or, for a Tor .onion
+     * address, with its hostname.
+     */
+    PeerAddress(NetworkParameters params, @Nullable InetAddress addr, @Nullable String hostname, int port,
+                BigInteger services, long time) {
+        super(params);
+        checkArgument((addr == null) != (hostname == null), "Either an IP address or a hostname is needed");
+        this.addr = addr;
+        this.hostname = hostname;
+        this.port = port;
+        this.services = checkNotNull(services);
+        this.time = time;
+    }
+
     public static PeerAddress localhost(NetworkParameters params) {
         return new PeerAddress(params, InetAddress.getLoopbackAddress(), params.getPort());
     }
@@ -204,12 +232,13 @@ public class PeerAddress extends ChildMessage {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         PeerAddress other = (PeerAddress) o;
-        return other.addr.equals(addr) && other.port == port && other.time == time && other.services.equals(services);
+        return Objects.equals(other.addr, addr) && Objects.equals(other.hostname, hostname) && other.port == port
+                && other.time == time && other.services.equals(services);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(addr, port, time, services);
+        return Objects.hash(addr, hostname, port, time, services);
     }
 
     public InetSocketAddress toSocketAddress() {
@@ -220,4 +249,40 @@ public class PeerAddress extends ChildMessage {
             return new InetSocketAddress(addr, port);
         }
     }
+
+    // A Tor v3 address is the base32 of the 32 byte public key, a two byte checksum and the version 3.
+    @Nullable
+    static byte[] decodeOnion(String hostname) {
+        String lower = hostname.toLowerCase(Locale.US);
+        if (!lower.endsWith(".onion"))
+            return null;
+        byte[] decoded;
+        try {
+            decoded = BASE32.decode(lower.substring(0, lower.length() - ".onion".length()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (decoded.length != 35 || decoded[34] != 3)
+            return null;
+        byte[] pubKey = Arrays.copyOf(decoded, 32);
+        return Arrays.equals(onionChecksum(pubKey), Arrays.copyOfRange(decoded, 32, 34)) ? pubKey : null;
+    }
+
+    static String encodeOnion(byte[] pubKey) {
+        byte[] bytes = Arrays.copyOf(pubKey, 35);
+        System.arraycopy(onionChecksum(pubKey), 0, bytes, 32, 2);
+        bytes[34] = 3;
+        return BASE32.encode(bytes) + ".onion";
+    }
+
+    private static byte[] onionChecksum(byte[] pubKey) {
+        SHA3Digest digest = new SHA3Digest(256);
+        byte[] prefix = ".onion checksum".getBytes(StandardCharsets.US_ASCII);
+        digest.update(prefix, 0, prefix.length);
+        digest.update(pubKey, 0, pubKey.length);
+        digest.update((byte) 3);
+        byte[] hash = new byte[32];
+        digest.doFinal(hash, 0);
+        return Arrays.copyOf(hash, 2);
+    }
 }
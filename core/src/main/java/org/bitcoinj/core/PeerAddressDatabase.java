@@ -0,0 +1,384 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the addresses of peers across restarts, together with how connecting to them went, so that a
+ * {@link PeerGroup} can reconnect to the best known peers right away instead of waiting for DNS seeds. See
+ * {@link PeerGroup#setAddressDatabase(PeerAddressDatabase)}.</p>
+ *
+ * <p>For every address it records the services it was last seen with, when it was last seen, attempted and
+ * successfully connected, how many attempts there were and how many succeeded, and a moving average of the time from
+ * connecting to a complete version handshake. Addresses are ranked by a score combining the success rate, the
+ * handshake latency and how recently the peer was seen.</p>
+ *
+ * <p>The file starts with the magic "PEERS1", an int32 count and then one record per address, followed by a CRC32 of
+ * everything after the magic. Addresses use the network IDs of BIP155 (addrv2), so that IPv4, IPv6 and Tor v3 onion
+ * addresses can all be stored: a byte for the network ID, a byte for the length of the address, the address bytes
+ * and a uint16 port. Then come the services as an int64, the last seen, last attempt and last success times in
+ * seconds, the attempt, success and consecutive failure counts and the handshake latency in milliseconds (or -1), all as int32. The
+ * integers are big endian. The file is written to a temporary file that is then renamed over it.</p>
+ */
+public class PeerAddressDatabase {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressDatabase.class);
+
+    private static final byte[] MAGIC = "PEERS1".getBytes(StandardCharsets.US_ASCII);
+    public static final int DEFAULT_MAX_ADDRESSES = 4096;
+
+    private static final long RECENT_SECS = 7 * 24 * 60 * 60;
+
+    private static class Entry {
+        final int network;
+        final byte[] addr;
+        final int port;
+        long services;
+        long lastSeen, lastAttempt, lastSuccess;
+        int attempts, successes, consecutiveFailures;
+        int latencyMillis = -1;
+
+        Entry(int network, byte[] addr, int port) {
+            this.network = network;
+            this.addr = addr;
+            this.port = port;
+        }
+
+        double score(long now) {
+            // The success rate with one success and one failure assumed, so that untried addresses are in between.
+            double score = (successes + 1.0) / (attempts + 2.0) / (1 + consecutiveFailures);
+            score *= latencyMillis >= 0 ? 1000.0 / (1000 + latencyMillis) : 0.5;
+            if (now - lastSuccess < RECENT_SECS)
+                return score;
+            else if (now - lastSeen < RECENT_SECS)
+                return score * 0.75;
+            else
+                return score * 0.5;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File file;
+    private final int maxAddresses;
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<>();
+
+    /**
+     * Opens the database in the given file, or starts an empty one if the file does not exist yet or can't be read.
+     */
+    public PeerAddressDatabase(NetworkParameters params, File file) {
+        this(params, file, DEFAULT_MAX_ADDRESSES);
+    }
+
+    /**
+     * Opens the database in the given file, keeping at most the given number of addresses. When there are more, the
+     * ones with the lowest score are forgotten.
+     */
+    public PeerAddressDatabase(NetworkParameters params, File file, int maxAddresses) {
+        checkArgument(maxAddresses > 0);
+        this.params = checkNotNull(params);
+        this.file = checkNotNull(file);
+        this.maxAddresses = maxAddresses;
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                log.warn("Could not read peer addresses from {}, starting afresh: {}", file, e.getMessage());
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Adds addresses that peers told us about, for example in reply to {@link Peer#getAddr()}, using the services and
+     * time they were announced with. Addresses that are already known only get those updated.
+     */
+    public synchronized void addAddresses(List<PeerAddress> addresses) {
+        long now = Utils.currentTimeSeconds();
+        for (PeerAddress address : addresses) {
+            Entry entry = getOrCreate(address);
+            if (entry == null)
+                continue;
+            // Don't trust times from the future.
+            long time = Math.min(address.getTime(), now);
+            if (time > entry.lastSeen) {
+                entry.lastSeen = time;
+                entry.services = address.getServices().longValue();
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Records that we are about to connect to the given address.
+     */
+    public synchronized void recordAttempt(PeerAddress address) {
+        Entry entry = getOrCreate(address);
+        if (entry == null)
+            return;
+        entry.attempts++;
+        entry.lastAttempt = Utils.currentTimeSeconds();
+        trim();
+    }
+
+    /**
+     * Records a completed version handshake with the given address, how long it took since the attempt to connect
+     * (or -1 if not known), and the services the peer announced.
+     */
+    public synchronized void recordSuccess(PeerAddress address, long services, long handshakeMillis) {
+        Entry entry = getOrCreate(address);
+        if (entry == null)
+            return;
+        long now = Utils.currentTimeSeconds();
+        entry.successes = Math.min(entry.successes + 1, Math.max(entry.attempts, 1));
+        entry.attempts = Math.max(entry.attempts, entry.successes);
+        entry.consecutiveFailures = 0;
+        entry.lastSuccess = entry.lastSeen = now;
+        entry.services = services;
+        if (handshakeMillis >= 0) {
+            int sample = (int) Math.min(handshakeMillis, Integer.MAX_VALUE);
+            entry.latencyMillis = entry.latencyMillis < 0 ? sample : (entry.latencyMillis * 3 + sample) / 4;
+        }
+        trim();
+    }
+
+    /**
+     * Records that connecting to the given address or the version handshake with it failed.
+     */
+    public synchronized void recordFailure(PeerAddress address) {
+        Entry entry = getOrCreate(address);
+        if (entry == null)
+            return;
+        entry.consecutiveFailures++;
+    }
+
+    /**
+     * Returns up to the given number of addresses that have all the given services, or whose services are not known
+     * yet, best first.
+     */
+    public synchronized List<PeerAddress> getBestAddresses(int count, long requiredServices) {
+        final long now = Utils.currentTimeSeconds();
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry entry : entries.values())
+            if (entry.services == 0 || (entry.services & requiredServices) == requiredServices)
+                candidates.add(entry);
+        Collections.sort(candidates, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Double.compare(b.score(now), a.score(now));
+            }
+        });
+        List<PeerAddress> result = new ArrayList<>(Math.min(count, candidates.size()));
+        for (Entry entry : candidates) {
+            if (result.size() >= count)
+                break;
+            PeerAddress address = toPeerAddress(entry);
+            if (address != null)
+                result.add(address);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the score of the given address, higher is better, or -1 if it is not known.
+     */
+    public synchronized double getScore(PeerAddress address) {
+        Entry entry = entries.get(address.toSocketAddress());
+        return entry != null ? entry.score(Utils.currentTimeSeconds()) : -1;
+    }
+
+    /**
+     * Returns the number of known addresses.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the database to its file.
+     */
+    public synchronized void save() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("peers", null, directory);
+        try {
+            try (FileOutputStream fileStream = new FileOutputStream(temp)) {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileStream), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.write(MAGIC);
+                checked.getChecksum().reset();
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeByte(entry.network);
+                    out.writeByte(entry.addr.length);
+                    out.write(entry.addr);
+                    out.writeShort(entry.port);
+                    out.writeLong(entry.services);
+                    out.writeInt((int) entry.lastSeen);
+                    out.writeInt((int) entry.lastAttempt);
+                    out.writeInt((int) entry.lastSuccess);
+                    out.writeInt(entry.attempts);
+                    out.writeInt(entry.successes);
+                    out.writeInt(entry.consecutiveFailures);
+                    out.writeInt(entry.latencyMillis);
+                }
+                out.writeInt((int) checked.getChecksum().getValue());
+                out.flush();
+                fileStream.getFD().sync();
+            }
+            if (Utils.isWindows() && file.exists() && !file.delete())
+                throw new IOException("Failed to delete " + file + " for replacement");
+            if (!temp.renameTo(file))
+                throw new IOException("Failed to rename " + temp + " to " + file);
+        } finally {
+            if (temp.exists())
+                temp.delete();
+        }
+    }
+
+    private void load() throws IOException {
+        try (InputStream fileStream = new BufferedInputStream(new FileInputStream(file))) {
+            CheckedInputStream checked = new CheckedInputStream(fileStream, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a peer address file");
+            checked.getChecksum().reset();
+            int count = in.readInt();
+            if (count < 0)
+                throw new IOException("Bad count " + count);
+            for (int i = 0; i < count; i++) {
+                int network = in.readUnsignedByte();
+                byte[] addr = new byte[in.readUnsignedByte()];
+                in.readFully(addr);
+                Entry entry = new Entry(network, addr, in.readUnsignedShort());
+                entry.services = in.readLong();
+                entry.lastSeen = in.readInt() & 0xFFFFFFFFL;
+                entry.lastAttempt = in.readInt() & 0xFFFFFFFFL;
+                entry.lastSuccess = in.readInt() & 0xFFFFFFFFL;
+                entry.attempts = in.readInt();
+                entry.successes = in.readInt();
+                entry.consecutiveFailures = in.readInt();
+                entry.latencyMillis = in.readInt();
+                InetSocketAddress key = toSocketAddress(entry);
+                if (key != null)
+                    entries.put(key, entry);
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected)
+                throw new IOException("Checksum mismatch");
+        }
+        log.info("Read {} peer addresses from {}", entries.size(), file);
+    }
+
+    @Nullable
+    private Entry getOrCreate(PeerAddress address) {
+        InetSocketAddress key = address.toSocketAddress();
+        Entry entry = entries.get(key);
+        if (entry != null)
+            return entry;
+        int network;
+        byte[] addr;
+        if (address.getHostname() != null) {
+            addr = PeerAddress.decodeOnion(address.getHostname());
+            if (addr == null)
+                return null;
+            network = PeerAddress.NETWORK_TORV3;
+        } else if (address.getAddr() instanceof Inet4Address) {
+            network = PeerAddress.NETWORK_IPV4;
+            addr = address.getAddr().getAddress();
+        } else if (address.getAddr() instanceof Inet6Address) {
+            network = PeerAddress.NETWORK_IPV6;
+            addr = address.getAddr().getAddress();
+        } else {
+            return null;
+        }
+        entry = new Entry(network, addr, address.getPort());
+        entries.put(key, entry);
+        return entry;
+    }
+
+    // Forgets the addresses with the lowest scores while there are too many.
+    private void trim() {
+        if (entries.size() <= maxAddresses)
+            return;
+        final long now = Utils.currentTimeSeconds();
+        List<Map.Entry<InetSocketAddress, Entry>> all = new ArrayList<>(entries.entrySet());
+        Collections.sort(all, new Comparator<Map.Entry<InetSocketAddress, Entry>>() {
+            @Override
+            public int compare(Map.Entry<InetSocketAddress, Entry> a, Map.Entry<InetSocketAddress, Entry> b) {
+                return Double.compare(a.getValue().score(now), b.getValue().score(now));
+            }
+        });
+        Iterator<Map.Entry<InetSocketAddress, Entry>> it = all.iterator();
+        while (entries.size() > maxAddresses && it.hasNext())
+            entries.remove(it.next().getKey());
+    }
+
+    @Nullable
+    private PeerAddress toPeerAddress(Entry entry) {
+        try {
+            switch (entry.network) {
+                case PeerAddress.NETWORK_IPV4:
+                case PeerAddress.NETWORK_IPV6:
+                    return new PeerAddress(params, InetAddress.getByAddress(entry.addr), entry.port,
+                            params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.CURRENT),
+                            BigInteger.valueOf(entry.services));
+                case PeerAddress.NETWORK_TORV3:
+                    return new PeerAddress(params, PeerAddress.encodeOnion(entry.addr), entry.port);
+                default:
+                    return null;
+            }
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private InetSocketAddress toSocketAddress(Entry entry) {
+        if ((entry.network == PeerAddress.NETWORK_IPV4 && entry.addr.length != 4)
+                || (entry.network == PeerAddress.NETWORK_IPV6 && entry.addr.length != 16)
+                || (entry.network == PeerAddress.NETWORK_TORV3 && entry.addr.length != 32))
+            return null;
+        PeerAddress address = toPeerAddress(entry);
+        return address != null ? address.toSocketAddress() : null;
+    }
+}
@@ -119,6 +119,14 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock")
     private final Map<PeerAddress, Integer> priorityMap;
 
+    // Remembers peers across restarts, if set. See setAddressDatabase().
+    @Nullable
+    private volatile PeerAddressDatabase vAddressDatabase;
+    // When the connection attempt to each pending peer started, to measure how long the handshake took.
+    @GuardedBy("lock")
+    private final Map<Peer, Long> connectStartTimes = new HashMap<>();
+    private static final long ADDRESS_DATABASE_SAVE_INTERVAL_MINUTES = 5;
+
     // Currently active peers. This is an ordered list rather than a set to make unit tests predictable.
     private final CopyOnWriteArrayList<Peer> peers;
     // Currently connecting peers.
@@ -1025,6 +1033,58 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>Sets a database that remembers the addresses of peers across restarts, and how well connecting to them
+     * went. When set before the group is started, the best addresses in it are tried right away at startup, before
+     * falling back to peer discovery. Every connection attempt, its outcome and the handshake latency are recorded,
+     * and connected peers are asked for more addresses.</p>
+     *
+     * <p>The database is saved every few minutes and when the group is stopped.</p>
+     */
+    public void setAddressDatabase(@Nullable PeerAddressDatabase addressDatabase) {
+        this.vAddressDatabase = addressDatabase;
+    }
+
+    @Nullable
+    public PeerAddressDatabase getAddressDatabase() {
+        return vAddressDatabase;
+    }
+
+    // Queues the best stored addresses in front of anything discovered, and schedules saving the database.
+    private void addStoredAddresses() {
+        PeerAddressDatabase database = vAddressDatabase;
+        if (database == null)
+            return;
+        lock.lock();
+        try {
+            // Take a few more than needed, so that ones that went away are quickly replaced.
+            List<PeerAddress> addresses = database.getBestAddresses(getMaxConnections() * 3, requiredServices);
+            // A lower priority is tried first, so the stored order is kept.
+            for (int i = 0; i < addresses.size(); i++)
+                addInactive(addresses.get(i), i - addresses.size());
+            log.info("Trying {} stored peer addresses", addresses.size());
+        } finally {
+            lock.unlock();
+        }
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                saveAddressDatabase();
+            }
+        }, ADDRESS_DATABASE_SAVE_INTERVAL_MINUTES, ADDRESS_DATABASE_SAVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private void saveAddressDatabase() {
+        PeerAddressDatabase database = vAddressDatabase;
+        if (database == null)
+            return;
+        try {
+            database.save();
+        } catch (IOException e) {
+            log.warn("Could not save peer addresses", e);
+        }
+    }
+
     /**
      * Convenience method for {@link #addAddress(PeerAddress)}.
      */
@@ -1158,6 +1218,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     log.info("Starting ...");
                     channels.startAsync();
                     channels.awaitRunning();
+                    addStoredAddresses();
                     triggerConnections();
                     setupPinging();
                 } catch (Throwable e) {
@@ -1191,6 +1252,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     for (PeerDiscovery peerDiscovery : peerDiscoverers) {
                         peerDiscovery.shutdown();
                     }
+                    saveAddressDatabase();
                     vRunning = false;
                     log.info("Stopped, took {}.", watch);
                 } catch (Throwable e) {
@@ -1505,6 +1567,11 @@ public class PeerGroup implements TransactionBroadcaster {
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
         pendingPeers.add(peer);
+        PeerAddressDatabase database = vAddressDatabase;
+        if (database != null) {
+            database.recordAttempt(address);
+            connectStartTimes.put(peer, Utils.currentTimeMillis());
+        }
 
         try {
             log.info("Attempting connection to {}     ({} connected, {} pending, {} max)", address,
@@ -1620,6 +1687,24 @@ public class PeerGroup implements TransactionBroadcaster {
             // Sets up the newly connected peer so it can do everything it needs to.
             pendingPeers.remove(peer);
             peers.add(peer);
+            Long connectStartTime = connectStartTimes.remove(peer);
+            final PeerAddressDatabase database = vAddressDatabase;
+            if (database != null) {
+                long services = peer.getPeerVersionMessage().localServices;
+                long latency = connectStartTime != null ? Utils.currentTimeMillis() - connectStartTime : -1;
+                database.recordSuccess(peer.getAddress(), services, latency);
+                Futures.addCallback(peer.getAddr(), new FutureCallback<AddressMessage>() {
+                    @Override
+                    public void onSuccess(AddressMessage result) {
+                        database.addAddresses(result.getAddresses());
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        // The peer went away before replying, nothing to do.
+                    }
+                }, MoreExecutors.directExecutor());
+            }
             newSize = peers.size();
             log.info("{}: New peer      ({} connected, {} pending, {} max)", peer, newSize, pendingPeers.size(), maxConnections);
             // Give the peer a filter that can be used to probabilistically drop transactions that
@@ -1786,10 +1871,14 @@ public class PeerGroup implements TransactionBroadcaster {
         int numConnectedPeers = 0;
         lock.lock();
         try {
-            pendingPeers.remove(peer);
+            boolean wasPending = pendingPeers.remove(peer);
             peers.remove(peer);
+            connectStartTimes.remove(peer);
 
             PeerAddress address = peer.getAddress();
+            PeerAddressDatabase database = vAddressDatabase;
+            if (wasPending && database != null)
+                database.recordFailure(address);
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
             if (peer == downloadPeer) {
@@ -1860,6 +1949,8 @@ public class PeerGroup implements TransactionBroadcaster {
     private int stallPeriodSeconds = 10;
     @GuardedBy("lock")
     private int stallMinSpeedBytesSec = Block.HEADER_SIZE * 10;
+    @GuardedBy("lock")
+    private double slowDownloadPeerFraction = 0.25;
 
     /**
      * Configures the stall speed: the speed at which a peer is considered to be serving us the block chain
@@ -1882,9 +1973,30 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * Configures when the chain download moves away from a slow download peer that is not slow enough to count as
+     * stalled. Every peer that served the chain has its download speed measured, see {@link Peer#getDownloadSpeed()}.
+     * If the download peer's speed drops below the given fraction of the median speed of the other connected peers
+     * that were measured, or of its own best speed if none of them were, the download continues from the peer
+     * {@link #selectDownloadPeer(List)} picks instead. The slow peer stays connected. Defaults to 0.25, zero disables
+     * switching.
+     */
+    public void setSlowDownloadPeerFraction(double fraction) {
+        checkArgument(fraction >= 0 && fraction < 1, "fraction must be in [0, 1)");
+        lock.lock();
+        try {
+            slowDownloadPeerFraction = fraction;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private class ChainDownloadSpeedCalculator implements BlocksDownloadedEventListener, Runnable {
         private int blocksInLastSecond, txnsInLastSecond, origTxnsInLastSecond;
         private long bytesInLastSecond;
+        // Bytes from the peer that was the download peer when the last second started, to measure its speed.
+        private long peerBytesInLastSecond;
+        @Nullable private Peer measuredPeer;
 
         // If we take more stalls than this, we assume we're on some kind of terminally slow network and the
         // stall threshold just isn't set properly. We give up on stall disconnects after that.
@@ -1903,6 +2015,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
         @Override
         public synchronized void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+            long bytesBefore = bytesInLastSecond;
             blocksInLastSecond++;
             bytesInLastSecond += Block.HEADER_SIZE;
             List<Transaction> blockTransactions = block.getTransactions();
@@ -1912,6 +2025,8 @@ public class PeerGroup implements TransactionBroadcaster {
             txnsInLastSecond = txnsInLastSecond + txCount;
             if (filteredBlock != null)
                 origTxnsInLastSecond += filteredBlock.getTransactionCount();
+            if (peer == measuredPeer)
+                peerBytesInLastSecond += bytesInLastSecond - bytesBefore;
         }
 
         private int countAndMeasureSize(Collection<Transaction> transactions) {
@@ -1932,11 +2047,15 @@ public class PeerGroup implements TransactionBroadcaster {
         private void calculate() {
             int minSpeedBytesPerSec;
             int period;
+            double slowFraction;
+            Peer currentPeer;
 
             lock.lock();
             try {
                 minSpeedBytesPerSec = stallMinSpeedBytesSec;
                 period = stallPeriodSeconds;
+                slowFraction = slowDownloadPeerFraction;
+                currentPeer = downloadPeer;
             } finally {
                 lock.unlock();
             }
@@ -2001,16 +2120,81 @@ public class PeerGroup implements TransactionBroadcaster {
                         }
                     } else {
                         log.info(statsString + ", not stalled " + thresholdString);
+                        if (currentPeer != null && currentPeer == measuredPeer) {
+                            currentPeer.addDownloadSpeedSample(peerBytesInLastSecond);
+                            if (slowFraction > 0 && maybeSwitchDownloadPeer(currentPeer, slowFraction)) {
+                                // Give the next peer time to get going.
+                                samples = null;
+                                warmupSeconds = period;
+                            }
+                        }
                     }
                 }
                 blocksInLastSecond = 0;
                 txnsInLastSecond = 0;
                 origTxnsInLastSecond = 0;
                 bytesInLastSecond = 0;
+                peerBytesInLastSecond = 0;
+                measuredPeer = getDownloadPeer();
+            }
+        }
+
+        // Moves the download to another peer if the given download peer is much slower than it should be.
+        private boolean maybeSwitchDownloadPeer(Peer slowPeer, double slowFraction) {
+            lock.lock();
+            try {
+                if (downloadPeer != slowPeer)
+                    return false;
+                Peer newPeer = selectFasterDownloadPeer(slowPeer, peers, slowFraction);
+                if (newPeer == null)
+                    return false;
+                startBlockChainDownloadFromPeer(newPeer);
+                return true;
+            } finally {
+                lock.unlock();
             }
         }
     }
 
+    /**
+     * Returns the peer the chain download should move to if the given download peer serves less than the given
+     * fraction of the median speed of the other peers, or null if it should stay. The speeds count filtered block
+     * data, which depends on the blocks and the Bloom filter as much as on the peer, so they are only comparable
+     * between peers. The download peer stays as long as none of the others were measured, e.g. during the first sync.
+     */
+    @VisibleForTesting
+    @Nullable
+    Peer selectFasterDownloadPeer(Peer downloadPeer, List<Peer> peers, double slowFraction) {
+        List<Peer> others = new ArrayList<>(peers);
+        others.remove(downloadPeer);
+        long reference = getMedianDownloadSpeed(others);
+        long speed = downloadPeer.getDownloadSpeed();
+        if (reference <= 0 || speed < 0 || speed >= reference * slowFraction)
+            return null;
+        Peer newPeer = selectDownloadPeer(others);
+        if (newPeer != null)
+            log.warn("Download peer {} is serving {} bytes/sec, expected at least {} of {}, switching to {}",
+                    downloadPeer, speed, slowFraction, reference, newPeer);
+        return newPeer;
+    }
+
+    /**
+     * Returns the median of the measured download speeds of the given peers, see {@link Peer#getDownloadSpeed()}, or
+     * -1 if none of them was measured.
+     */
+    private static long getMedianDownloadSpeed(List<Peer> peers) {
+        List<Long> speeds = new ArrayList<>(peers.size());
+        for (Peer peer : peers) {
+            long speed = peer.getDownloadSpeed();
+            if (speed >= 0)
+                speeds.add(speed);
+        }
+        if (speeds.isEmpty())
+            return -1;
+        Collections.sort(speeds);
+        return speeds.get(speeds.size() / 2);
+    }
+
     @Nullable
     private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
 
@@ -2376,6 +2560,7 @@ public class PeerGroup implements TransactionBroadcaster {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
+        //  - Fastest download speed measured before, or quickest to respond
         //  - Randomly, to try and spread the load.
         if (peers.isEmpty())
             return null;
@@ -2402,8 +2587,31 @@ public class PeerGroup implements TransactionBroadcaster {
                 candidates2.add(peer);
             }
         }
-        int index = (int) (Math.random() * candidates2.size());
-        return candidates2.get(index);
+        // Peers that never served the chain are assumed to be as fast as the median, so that they get a chance to
+        // replace peers which turned out slower than that. Shuffling first keeps the choice random among equals.
+        if (candidates2.isEmpty())
+            return null;
+        final long medianSpeed = getMedianDownloadSpeed(candidates2);
+        Collections.shuffle(candidates2);
+        return Collections.min(candidates2, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                int bySpeed = Long.compare(expectedSpeed(b), expectedSpeed(a));
+                if (bySpeed != 0)
+                    return bySpeed;
+                return Long.compare(latency(a), latency(b));
+            }
+
+            private long expectedSpeed(Peer peer) {
+                long speed = peer.getDownloadSpeed();
+                return speed >= 0 ? speed : medianSpeed;
+            }
+
+            private long latency(Peer peer) {
+                long latency = peer.getResponseLatency();
+                return latency != Long.MAX_VALUE ? latency : peer.getPingTime();
+            }
+        });
     }
 
     /**
@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Ints;
+import org.bitcoinj.crypto.Sha256Engine;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,6 +31,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * A Sha256Hash just wraps a byte[] so that equals and hashcode work correctly, allowing it to be used as keys in a
@@ -39,6 +41,8 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    private static volatile Sha256Engine engine = Sha256Engine.jvm();
+
     private final byte[] bytes;
 
     private Sha256Hash(byte[] rawHashBytes) {
@@ -126,6 +130,21 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         }
     }
 
+    /**
+     * Sets the engine all hashing in this class goes through, and with it block, transaction and Merkle tree hashing.
+     * The default is {@link Sha256Engine#jvm()}.
+     */
+    public static void setEngine(Sha256Engine engine) {
+        Sha256Hash.engine = checkNotNull(engine);
+    }
+
+    /**
+     * Returns the engine all hashing in this class goes through.
+     */
+    public static Sha256Engine getEngine() {
+        return engine;
+    }
+
     /**
      * Returns a new SHA-256 MessageDigest instance.
      * <p>
@@ -161,9 +180,9 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
-        digest.update(input, offset, length);
-        return digest.digest();
+        byte[] result = new byte[LENGTH];
+        engine.hash(input, offset, length, result, 0);
+        return result;
     }
 
     /**
@@ -182,10 +201,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * chunks and then passing the result to {@link #hashTwice(byte[])}.
      */
     public static byte[] hashTwice(byte[] input1, byte[] input2) {
-        MessageDigest digest = newDigest();
-        digest.update(input1);
-        digest.update(input2);
-        return digest.digest(digest.digest());
+        return hashTwice(input1, 0, input1.length, input2, 0, input2.length);
     }
 
     /**
@@ -198,9 +214,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
-        digest.update(input, offset, length);
-        return digest.digest(digest.digest());
+        return hashTwice(input, offset, length, input, 0, 0);
     }
 
     /**
@@ -209,10 +223,9 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
-        digest.update(input1, offset1, length1);
-        digest.update(input2, offset2, length2);
-        return digest.digest(digest.digest());
+        byte[] result = new byte[LENGTH];
+        engine.hashTwice(input1, offset1, length1, input2, offset2, length2, result, 0);
+        return result;
     }
 
     @Override
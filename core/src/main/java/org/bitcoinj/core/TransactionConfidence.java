@@ -261,6 +261,17 @@ public class TransactionConfidence {
         return removed;
     }
 
+    /**
+     * Returns the event listeners that were added with {@link #addEventListener(Executor, Listener)} and not removed
+     * yet.
+     */
+    public List<Listener> getEventListeners() {
+        List<Listener> result = new ArrayList<>(listeners.size());
+        for (ListenerRegistration<Listener> registration : listeners)
+            result.add(registration.listener);
+        return result;
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      *
@@ -29,6 +29,7 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -381,6 +382,22 @@ public class TransactionInput extends ChildMessage {
      */
     public void connect(TransactionOutput out) {
         outpoint.fromTx = out.getParentTransaction();
+        // Replaces a detached connection, see connectDetached().
+        if (outpoint.fromTx != null)
+            outpoint.connectedOutput = null;
+        out.markAsSpent(this);
+        value = out.getValue();
+    }
+
+    /**
+     * Connects this input to an output that isn't part of a transaction, such as a copy holding just the value and
+     * script of an output whose transaction isn't kept in memory. {@link #getConnectedOutput()} returns the given
+     * output, while {@link #getConnectedTransaction()} returns null. Connecting to the real output later replaces it.
+     */
+    public void connectDetached(TransactionOutput out) {
+        checkArgument(out.getParentTransaction() == null, "Output is part of a transaction");
+        outpoint.fromTx = null;
+        outpoint.connectedOutput = out;
         out.markAsSpent(this);
         value = out.getValue();
     }
@@ -76,6 +76,11 @@ public class VersionMessage extends Message {
      * A service bit that denotes whether the peer supports Graphene blocks.
      */
     public static final int NODE_GRAPHENE = 1 << 6;
+    /**
+     * A service bit that denotes whether the peer serves BIP157 compact block filters. This is the same bit as
+     * {@link #NODE_GRAPHENE}; it was assigned to compact filters by BIP157 and is used that way by bchd.
+     */
+    public static final int NODE_COMPACT_FILTERS = 1 << 6;
     /**
      * A service bit used by Bitcoin Cash Node to announce Bitcoin Cash nodes.
      */
@@ -5,32 +5,30 @@
 
 package org.bitcoinj.core.bip47;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.kits.BIP47AppKit;
-import org.bitcoinj.kits.SlpBIP47AppKit;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.wallet.bip47.NotSecp256k1Exception;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.spec.InvalidKeySpecException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static org.bitcoinj.utils.BIP47Util.getReceiveAddress;
-
 public class BIP47Channel {
     private static final String TAG = "BIP47Channel";
 
     private static final int STATUS_NOT_SENT = -1;
     private static final int STATUS_SENT_CFM = 1;
 
-    private static final int LOOKAHEAD = 20;
+    /** The number of incoming addresses generated when a channel is created. */
+    public static final int LOOKAHEAD = 20;
 
     private String paymentCode = null;
     private String notificationAddress = null;
@@ -83,26 +81,28 @@ public class BIP47Channel {
         return currentIncomingIndex;
     }
 
-    public void generateKeys(BIP47AppKit wallet) throws NotSecp256k1Exception, NoSuchProviderException, NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
-        for (int i = 0; i < LOOKAHEAD; i++) {
-            ECKey key = getReceiveAddress(wallet, paymentCode, i).getReceiveECKey();
-            Address address = wallet.getAddressOfKey(key);
-            wallet.importKey(key);
+    /**
+     * Derives the keys of the first {@link #LOOKAHEAD} incoming addresses, imports them into the wallet in one batch
+     * and adds the addresses to this channel.
+     */
+    public void generateKeys(BIP47AppKit wallet) throws NotSecp256k1Exception {
+        List<ECKey> keys = wallet.getReceiveKeyDeriver().deriveKeys(paymentCode, 0, LOOKAHEAD);
+        wallet.importKeys(keys);
+        addLookaheadKeys(wallet, keys);
+    }
+
+    /**
+     * Adds the incoming addresses of the given keys, which must be the keys at the first indexes derived for this
+     * channel and already imported into the wallet. This is used to generate the keys of many channels at once, see
+     * {@link BIP47ReceiveKeyDeriver#deriveKeys(java.util.Collection, int, int)}.
+     */
+    public void addLookaheadKeys(BIP47AppKit wallet, List<ECKey> keys) {
+        for (int i = 0; i < keys.size(); i++) {
+            Address address = wallet.getAddressOfKey(keys.get(i));
             incomingAddresses.add(i, new BIP47Address(address.toString(), i));
         }
 
-        currentIncomingIndex = LOOKAHEAD - 1;
-    }
-
-    public void generateKeys(SlpBIP47AppKit wallet) throws NotSecp256k1Exception, NoSuchProviderException, NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
-        for (int i = 0; i < LOOKAHEAD; i++) {
-            ECKey key = getReceiveAddress(wallet, paymentCode, i).getReceiveECKey();
-            Address address = wallet.getAddressOfKey(key);
-            wallet.importKey(key);
-            incomingAddresses.add(i, new BIP47Address(address.toString(), i));
-        }
-
-        currentIncomingIndex = LOOKAHEAD - 1;
+        currentIncomingIndex = keys.size() - 1;
     }
 
     public BIP47Address getIncomingAddress(String address) {
@@ -114,9 +114,11 @@ public class BIP47Channel {
         return null;
     }
 
-    public void addNewIncomingAddress(String newAddress, int nextIndex) {
-        incomingAddresses.add(nextIndex, new BIP47Address(newAddress, nextIndex));
+    public BIP47Address addNewIncomingAddress(String newAddress, int nextIndex) {
+        BIP47Address address = new BIP47Address(newAddress, nextIndex);
+        incomingAddresses.add(nextIndex, address);
         currentIncomingIndex = nextIndex;
+        return address;
     }
 
     public boolean isNotificationTransactionSent() {
@@ -146,4 +148,68 @@ public class BIP47Channel {
     public void setNtxHash(Sha256Hash ntxHash) {
         this.ntxHash = ntxHash;
     }
+
+    /**
+     * Writes the fields of this channel as a protocol buffer message, see {@link BIP47ChannelStore} for the layout.
+     */
+    void writeTo(CodedOutputStream out) throws IOException {
+        out.writeString(1, notificationAddress);
+        if (paymentCode != null)
+            out.writeString(2, paymentCode);
+        out.writeSInt32(3, status);
+        out.writeInt32(4, currentOutgoingIndex);
+        out.writeSInt32(5, currentIncomingIndex);
+        if (ntxHash != null)
+            out.writeByteArray(6, ntxHash.getBytes());
+        for (BIP47Address address : incomingAddresses) {
+            out.writeTag(7, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeUInt32NoTag(CodedOutputStream.computeStringSize(1, address.getAddress())
+                    + CodedOutputStream.computeInt32Size(2, address.getIndex())
+                    + CodedOutputStream.computeBoolSize(3, address.isSeen()));
+            out.writeString(1, address.getAddress());
+            out.writeInt32(2, address.getIndex());
+            out.writeBool(3, address.isSeen());
+        }
+    }
+
+    /**
+     * Reads a channel written by {@link #writeTo(CodedOutputStream)}. Unknown fields are skipped.
+     */
+    static BIP47Channel readFrom(CodedInputStream in) throws IOException {
+        BIP47Channel channel = new BIP47Channel();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1: channel.notificationAddress = in.readString(); break;
+                case 2: channel.paymentCode = in.readString(); break;
+                case 3: channel.status = in.readSInt32(); break;
+                case 4: channel.currentOutgoingIndex = in.readInt32(); break;
+                case 5: channel.currentIncomingIndex = in.readSInt32(); break;
+                case 6: channel.ntxHash = Sha256Hash.wrap(in.readByteArray()); break;
+                case 7: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    String address = null;
+                    int index = 0;
+                    boolean seen = false;
+                    while ((tag = in.readTag()) != 0) {
+                        switch (WireFormat.getTagFieldNumber(tag)) {
+                            case 1: address = in.readString(); break;
+                            case 2: index = in.readInt32(); break;
+                            case 3: seen = in.readBool(); break;
+                            default: in.skipField(tag);
+                        }
+                    }
+                    in.popLimit(limit);
+                    if (address == null)
+                        throw new IOException("Incoming address without an address");
+                    channel.incomingAddresses.add(new BIP47Address(address, index, seen));
+                    break;
+                }
+                default: in.skipField(tag);
+            }
+        }
+        if (channel.notificationAddress == null)
+            throw new IOException("Channel without a notification address");
+        return channel;
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core.bip47;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletExtension;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps the BIP47 channels of a wallet as a {@link WalletExtension}, so that they are written into the wallet file
+ * by the wallet's auto-save instead of into a separate file after every change. A channel is encoded when it is
+ * reported through {@link #channelChanged(BIP47Channel)} and the encoding is kept, so saving the wallet only
+ * concatenates the encoded channels rather than serializing all of them again.</p>
+ *
+ * <p>The data is a protocol buffer with the following layout, which is encoded by hand as it's private to this
+ * extension:</p>
+ *
+ * <pre>
+ * message Channels {
+ *     repeated Channel channel = 1;
+ * }
+ * message Channel {
+ *     required string notification_address = 1;
+ *     optional string payment_code = 2;
+ *     optional sint32 status = 3;
+ *     optional int32 current_outgoing_index = 4;
+ *     optional sint32 current_incoming_index = 5;
+ *     optional bytes ntx_hash = 6;
+ *     repeated IncomingAddress incoming_address = 7;
+ * }
+ * message IncomingAddress {
+ *     required string address = 1;
+ *     optional int32 index = 2;
+ *     optional bool seen = 3;
+ * }
+ * </pre>
+ */
+public class BIP47ChannelStore implements WalletExtension {
+    public static final String EXTENSION_ID = "org.bitcoinj.core.bip47.BIP47ChannelStore";
+
+    private final ReentrantLock lock = Threading.lock(BIP47ChannelStore.class);
+    // Encoded Channel messages by notification address.
+    @GuardedBy("lock") private final Map<String, byte[]> encodedChannels = new LinkedHashMap<>();
+
+    /**
+     * Encodes the given channel, replacing the previous state of the channel with the same notification address. The
+     * caller is responsible for asking the wallet to save, see {@link Wallet#extensionChanged(WalletExtension)}.
+     */
+    public void channelChanged(BIP47Channel channel) {
+        String notificationAddress = checkNotNull(channel.getNotificationAddress());
+        byte[] encoded;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+            channel.writeTo(out);
+            out.flush();
+            encoded = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen when writing to memory.
+        }
+        lock.lock();
+        try {
+            encodedChannels.put(notificationAddress, encoded);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decodes and returns all stored channels.
+     */
+    public List<BIP47Channel> getChannels() {
+        lock.lock();
+        try {
+            List<BIP47Channel> channels = new ArrayList<>(encodedChannels.size());
+            for (byte[] encoded : encodedChannels.values())
+                channels.add(BIP47Channel.readFrom(CodedInputStream.newInstance(encoded)));
+            return channels;
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Checked when the channels were read.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of stored channels. */
+    public int size() {
+        lock.lock();
+        try {
+            return encodedChannels.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getWalletExtensionID() {
+        return EXTENSION_ID;
+    }
+
+    @Override
+    public boolean isWalletExtensionMandatory() {
+        return false;
+    }
+
+    @Override
+    public byte[] serializeWalletExtension() {
+        lock.lock();
+        try {
+            int size = 0;
+            for (byte[] encoded : encodedChannels.values())
+                size += CodedOutputStream.computeByteArraySize(1, encoded);
+            byte[] data = new byte[size];
+            CodedOutputStream out = CodedOutputStream.newInstance(data);
+            for (byte[] encoded : encodedChannels.values())
+                out.writeByteArray(1, encoded);
+            out.checkNoSpaceLeft();
+            return data;
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen when writing to memory.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception {
+        Map<String, byte[]> channels = new LinkedHashMap<>();
+        CodedInputStream in = CodedInputStream.newInstance(data);
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) != 1) {
+                in.skipField(tag);
+                continue;
+            }
+            byte[] encoded = in.readByteArray();
+            // Decode once to validate the channel and learn its notification address.
+            BIP47Channel channel = BIP47Channel.readFrom(CodedInputStream.newInstance(encoded));
+            channels.put(channel.getNotificationAddress(), encoded);
+        }
+        lock.lock();
+        try {
+            encodedChannels.clear();
+            encodedChannels.putAll(channels);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BIP47ChannelStore with " + size() + " channels";
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core.bip47;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.bitcoinj.wallet.bip47.NotSecp256k1Exception;
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Derives the keys of the addresses on which a {@link BIP47Account} receives payments from other payment codes. The
+ * keys are the same as {@link BIP47PaymentAddress#getReceiveECKey()} returns, but the shared secret is computed with
+ * the curve directly rather than through JCA, and the parts that don't depend on both sides are cached: the public
+ * key of each sender's payment code, and the private keys of the account, which are shared by all channels.</p>
+ *
+ * <p>{@link #deriveKeys(Collection, int, int)} derives a window of keys for many payment codes at once, spread across
+ * a pool of threads, so that all of them can be imported into the wallet in a single batch.</p>
+ */
+public class BIP47ReceiveKeyDeriver {
+    // Below this many keys, deriving them on the calling thread is faster than splitting up the work.
+    private static final int PARALLEL_THRESHOLD = 32;
+    private static ExecutorService executor;
+
+    private final NetworkParameters params;
+    private final BIP47Account account;
+    // The point of the notification key of each sender's payment code, which every receive key is derived from.
+    private final ConcurrentHashMap<String, ECPoint> senderPoints = new ConcurrentHashMap<>();
+    // The private keys of the account by index.
+    private final ConcurrentHashMap<Integer, BigInteger> privateKeys = new ConcurrentHashMap<>();
+
+    public BIP47ReceiveKeyDeriver(NetworkParameters params, BIP47Account account) {
+        this.params = checkNotNull(params);
+        this.account = checkNotNull(account);
+    }
+
+    /** Returns the account the keys are derived for. */
+    public BIP47Account getAccount() {
+        return account;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new DaemonThreadFactory("BIP47 key derivation"));
+        return executor;
+    }
+
+    /**
+     * Derives the key receiving the payment at the given index from the owner of the given payment code.
+     *
+     * @throws org.bitcoinj.core.AddressFormatException if the payment code is invalid
+     */
+    public ECKey deriveKey(String senderPaymentCode, int index) throws NotSecp256k1Exception {
+        checkArgument(index >= 0);
+        BigInteger privateKey = getPrivateKey(index);
+        ECPoint shared = getSenderPoint(senderPaymentCode).multiply(privateKey).normalize();
+        BigInteger s = new BigInteger(1, Sha256Hash.hash(shared.getAffineXCoord().getEncoded()));
+        if (s.compareTo(BigInteger.ONE) <= 0 || s.bitLength() > ECKey.CURVE.getN().bitLength())
+            throw new NotSecp256k1Exception("secret point not on Secp256k1 curve");
+        BigInteger sum = privateKey.add(s);
+        if (sum.bitLength() > ECKey.CURVE.getN().bitLength())
+            sum = sum.mod(ECKey.CURVE.getN());
+        return ECKey.fromPrivate(sum);
+    }
+
+    /**
+     * Derives the keys receiving payments at indexes {@code from} to {@code from + count - 1} from the owner of the
+     * given payment code.
+     */
+    public List<ECKey> deriveKeys(String senderPaymentCode, int from, int count) throws NotSecp256k1Exception {
+        List<String> codes = new ArrayList<>(1);
+        codes.add(senderPaymentCode);
+        return deriveKeys(codes, from, count).get(senderPaymentCode);
+    }
+
+    /**
+     * Derives the keys receiving payments at indexes {@code from} to {@code from + count - 1} from the owner of each
+     * of the given payment codes. Returns the keys in index order, by payment code in the order given.
+     */
+    public Map<String, List<ECKey>> deriveKeys(Collection<String> senderPaymentCodes, final int from, final int count)
+            throws NotSecp256k1Exception {
+        checkArgument(from >= 0 && count >= 0);
+        Map<String, List<ECKey>> result = new LinkedHashMap<>();
+        if (senderPaymentCodes.size() * count < PARALLEL_THRESHOLD) {
+            for (String code : senderPaymentCodes) {
+                List<ECKey> keys = new ArrayList<>(count);
+                for (int i = from; i < from + count; i++)
+                    keys.add(deriveKey(code, i));
+                result.put(code, keys);
+            }
+            return result;
+        }
+        // One task per payment code and index, as each key takes about the same time to derive.
+        Map<String, List<Future<ECKey>>> futures = new LinkedHashMap<>();
+        ExecutorService executor = getExecutor();
+        try {
+            for (final String code : senderPaymentCodes) {
+                List<Future<ECKey>> keys = new ArrayList<>(count);
+                for (int i = from; i < from + count; i++) {
+                    final int index = i;
+                    keys.add(executor.submit(new Callable<ECKey>() {
+                        @Override
+                        public ECKey call() throws NotSecp256k1Exception {
+                            return deriveKey(code, index);
+                        }
+                    }));
+                }
+                futures.put(code, keys);
+            }
+            for (Map.Entry<String, List<Future<ECKey>>> entry : futures.entrySet()) {
+                List<ECKey> keys = new ArrayList<>(count);
+                for (Future<ECKey> future : entry.getValue())
+                    keys.add(future.get());
+                result.put(entry.getKey(), keys);
+            }
+            return result;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NotSecp256k1Exception)
+                throw (NotSecp256k1Exception) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while deriving keys", e);
+        } finally {
+            for (List<Future<ECKey>> keys : futures.values())
+                for (Future<ECKey> future : keys)
+                    future.cancel(true);
+        }
+    }
+
+    private ECPoint getSenderPoint(String senderPaymentCode) {
+        ECPoint point = senderPoints.get(senderPaymentCode);
+        if (point == null) {
+            byte[] pubKey = new BIP47PaymentCode(senderPaymentCode).derivePubKeyAt(params, 0);
+            point = ECKey.CURVE.getCurve().decodePoint(pubKey);
+            senderPoints.put(senderPaymentCode, point);
+        }
+        return point;
+    }
+
+    private BigInteger getPrivateKey(int index) {
+        BigInteger privateKey = privateKeys.get(index);
+        if (privateKey == null) {
+            privateKey = account.keyAt(index).getPrivKey();
+            privateKeys.put(index, privateKey);
+        }
+        return privateKey;
+    }
+}
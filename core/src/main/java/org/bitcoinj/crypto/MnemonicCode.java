@@ -20,6 +20,7 @@ package org.bitcoinj.crypto;
 import com.google.common.base.Stopwatch;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.DaemonThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,7 +30,13 @@ import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.bitcoinj.core.Utils.HEX;
 
@@ -54,6 +61,8 @@ public class MnemonicCode {
 
     private static final int PBKDF2_ROUNDS = 2048;
 
+    private static ExecutorService seedExecutor;
+
     public static MnemonicCode INSTANCE;
 
     static {
@@ -129,16 +138,75 @@ public class MnemonicCode {
         // used as a pseudo-random function. Desired length of the
         // derived key is 512 bits (= 64 bytes).
         //
-        String pass = Utils.SPACE_JOINER.join(words);
-        String salt = "mnemonic" + passphrase;
-
         final Stopwatch watch = Stopwatch.createStarted();
-        byte[] seed = PBKDF2SHA512.derive(pass, salt, PBKDF2_ROUNDS, 64);
+        byte[] seed = deriveSeed(words, passphrase);
         watch.stop();
         log.info("PBKDF2 took {}", watch);
         return seed;
     }
 
+    /**
+     * Converts many mnemonic word lists to seeds, each with the passphrase at the same index, as
+     * {@link #toSeed(List, String)} would. The derivations are spread across one thread per processor, and the seeds
+     * are returned in the order of the word lists.
+     */
+    public static List<byte[]> toSeeds(List<? extends List<String>> wordLists, List<String> passphrases) {
+        checkArgument(wordLists.size() == passphrases.size(), "Need one passphrase per word list.");
+        for (String passphrase : passphrases)
+            checkNotNull(passphrase, "A null passphrase is not allowed.");
+        final Stopwatch watch = Stopwatch.createStarted();
+        List<byte[]> seeds = new ArrayList<>(wordLists.size());
+        if (wordLists.size() == 1) {
+            seeds.add(deriveSeed(wordLists.get(0), passphrases.get(0)));
+            return seeds;
+        }
+        List<Future<byte[]>> futures = new ArrayList<>(wordLists.size());
+        ExecutorService executor = getSeedExecutor();
+        try {
+            for (int i = 0; i < wordLists.size(); i++) {
+                final List<String> words = wordLists.get(i);
+                final String passphrase = passphrases.get(i);
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return deriveSeed(words, passphrase);
+                    }
+                }));
+            }
+            for (Future<byte[]> future : futures)
+                seeds.add(future.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while deriving seeds", e);
+        } finally {
+            for (Future<byte[]> future : futures)
+                future.cancel(true);
+        }
+        watch.stop();
+        log.info("PBKDF2 of {} seeds took {}", seeds.size(), watch);
+        return seeds;
+    }
+
+    private static synchronized ExecutorService getSeedExecutor() {
+        if (seedExecutor == null)
+            seedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new DaemonThreadFactory("Seed derivation"));
+        return seedExecutor;
+    }
+
+    private static byte[] deriveSeed(List<String> words, String passphrase) {
+        String pass = Utils.SPACE_JOINER.join(words);
+        String salt = "mnemonic" + passphrase;
+        return PBKDF2SHA512.derive(pass, salt, PBKDF2_ROUNDS, 64);
+    }
+
     /**
      * Convert mnemonic word list to original entropy value.
      */
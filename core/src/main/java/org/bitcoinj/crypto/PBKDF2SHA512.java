@@ -23,13 +23,14 @@
 
 package org.bitcoinj.crypto;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
 import java.nio.charset.StandardCharsets;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * <p>This is a clean-room implementation of PBKDF2 using RFC 2898 as a reference.</p>
  *
@@ -39,75 +40,49 @@ import java.nio.charset.StandardCharsets;
  *
  * <p>http://cryptofreek.org/2012/11/29/pbkdf2-pure-java-implementation/<br>
  * Modified to use SHA-512 - Ken Sedgwick ken@bonsai.com</p>
+ *
+ * <p>The HMAC is keyed once per derivation, so each iteration only hashes the previous block, and all iterations
+ * work in the same buffers.</p>
  */
 public class PBKDF2SHA512 {
-    public static byte[] derive(String P, String S, int c, int dkLen) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        try {
-            int hLen = 20;
+    // Length of an HMAC-SHA512 output in bytes.
+    private static final int H_LEN = 64;
 
-            if (dkLen > ((Math.pow(2, 32)) - 1) * hLen) {
-                throw new IllegalArgumentException("derived key too long");
-            } else {
-                int l = (int) Math.ceil((double) dkLen / (double) hLen);
-                // int r = dkLen - (l-1)*hLen;
-
-                for (int i = 1; i <= l; i++) {
-                    byte[] T = F(P, S, c, i);
-                    baos.write(T);
-                }
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-
-        byte[] baDerived = new byte[dkLen];
-        System.arraycopy(baos.toByteArray(), 0, baDerived, 0, baDerived.length);
-
-        return baDerived;
+    public static byte[] derive(String P, String S, int c, int dkLen) {
+        return derive(P.getBytes(StandardCharsets.UTF_8), S.getBytes(StandardCharsets.UTF_8), c, dkLen);
     }
 
-    private static byte[] F(String P, String S, int c, int i) throws Exception {
-        byte[] U_LAST = null;
-        byte[] U_XOR = null;
-
-        SecretKeySpec key = new SecretKeySpec(P.getBytes(StandardCharsets.UTF_8), "HmacSHA512");
-        Mac mac = Mac.getInstance(key.getAlgorithm());
-        mac.init(key);
-
-        for (int j = 0; j < c; j++) {
-            if (j == 0) {
-                byte[] baS = S.getBytes(StandardCharsets.UTF_8);
-                byte[] baI = INT(i);
-                byte[] baU = new byte[baS.length + baI.length];
-
-                System.arraycopy(baS, 0, baU, 0, baS.length);
-                System.arraycopy(baI, 0, baU, baS.length, baI.length);
-
-                U_XOR = mac.doFinal(baU);
-                U_LAST = U_XOR;
-                mac.reset();
-            } else {
-                byte[] baU = mac.doFinal(U_LAST);
-                mac.reset();
-
-                for (int k = 0; k < U_XOR.length; k++) {
-                    U_XOR[k] = (byte) (U_XOR[k] ^ baU[k]);
-                }
-
-                U_LAST = baU;
-            }
+    public static byte[] derive(byte[] P, byte[] S, int c, int dkLen) {
+        checkArgument(c > 0, "iteration count must be positive");
+        checkArgument(dkLen > 0, "derived key length must be positive");
+        // The limit of (2^32 - 1) * hLen from the RFC is beyond the largest array.
+        HMac mac = new HMac(new SHA512Digest());
+        mac.init(new KeyParameter(P));
+        byte[] derived = new byte[dkLen];
+        byte[] u = new byte[H_LEN];
+        byte[] t = new byte[H_LEN];
+        int l = (dkLen + H_LEN - 1) / H_LEN;
+        for (int i = 1; i <= l; i++) {
+            F(mac, S, c, i, u, t);
+            System.arraycopy(t, 0, derived, (i - 1) * H_LEN, Math.min(H_LEN, dkLen - (i - 1) * H_LEN));
         }
-
-        return U_XOR;
+        return derived;
     }
 
-    private static byte[] INT(int i) {
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        bb.putInt(i);
-
-        return bb.array();
+    // Computes block i into t, using u for the intermediate values.
+    private static void F(HMac mac, byte[] S, int c, int i, byte[] u, byte[] t) {
+        mac.update(S, 0, S.length);
+        mac.update((byte) (i >>> 24));
+        mac.update((byte) (i >>> 16));
+        mac.update((byte) (i >>> 8));
+        mac.update((byte) i);
+        mac.doFinal(u, 0);
+        System.arraycopy(u, 0, t, 0, H_LEN);
+        for (int j = 1; j < c; j++) {
+            mac.update(u, 0, H_LEN);
+            mac.doFinal(u, 0);
+            for (int k = 0; k < H_LEN; k++)
+                t[k] ^= u[k];
+        }
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Computes SHA-256 hashes for {@link org.bitcoinj.core.Sha256Hash}, block and transaction hashing and Merkle
+ * trees. The engine in use is set with {@link org.bitcoinj.core.Sha256Hash#setEngine(Sha256Engine)}; the default one
+ * uses the SHA-256 implementation of the JVM, with one reused digest per thread.</p>
+ *
+ * <p>Results are written into arrays given by the caller, so hashing doesn't have to allocate. Besides single
+ * messages, an engine can hash many messages of the same length at once, which a vectorised or native engine can do
+ * faster than one by one, and it can continue from a {@link Midstate}, the state after the leading 64 byte blocks of
+ * messages that share them, such as block headers that only differ in their nonce.</p>
+ *
+ * <p>Engines must be safe for use by multiple threads.</p>
+ */
+public abstract class Sha256Engine {
+    /** The length of a hash. */
+    public static final int HASH_LENGTH = 32;
+    /** The length of the blocks SHA-256 processes, which a midstate must cover a multiple of. */
+    public static final int BLOCK_LENGTH = 64;
+
+    /**
+     * The state of a SHA-256 computation after some leading bytes, to be continued with different suffixes. Instances
+     * are created by {@link #midstate(byte[], int, int)} and may only be used with the engine that created them. They
+     * may be used by several threads at once.
+     */
+    public interface Midstate {
+    }
+
+    /** Writes the hash of the given range to the output. */
+    public abstract void hash(byte[] input, int offset, int length, byte[] output, int outputOffset);
+
+    /**
+     * Writes the hash of the hash of the concatenation of the given ranges to the output. The second range may be
+     * empty.
+     */
+    public abstract void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                                   byte[] output, int outputOffset);
+
+    /**
+     * Returns the state after hashing the given range, which must be a multiple of {@link #BLOCK_LENGTH} long.
+     */
+    public abstract Midstate midstate(byte[] input, int offset, int length);
+
+    /**
+     * Writes the hash of the hash of the bytes the midstate was created from followed by the given range to the
+     * output.
+     */
+    public abstract void hashTwice(Midstate midstate, byte[] input, int offset, int length, byte[] output,
+                                   int outputOffset);
+
+    /**
+     * Double hashes the given number of messages of the given length, which follow each other in the input starting
+     * at the offset, and writes the hashes one after the other to the output. This implementation hashes them one by
+     * one; engines that can hash several messages in parallel should override it.
+     */
+    public void hashTwiceMany(byte[] input, int offset, int messageLength, int count, byte[] output,
+                              int outputOffset) {
+        checkArgument(count >= 0);
+        for (int i = 0; i < count; i++)
+            hashTwice(input, offset + i * messageLength, messageLength, input, 0, 0, output,
+                    outputOffset + i * HASH_LENGTH);
+    }
+
+    /** Returns the engine using the SHA-256 implementation of the JVM. */
+    public static Sha256Engine jvm() {
+        return JvmEngine.INSTANCE;
+    }
+
+    private static class JvmEngine extends Sha256Engine {
+        static final JvmEngine INSTANCE = new JvmEngine();
+
+        // MessageDigest.getInstance() looks up the provider every time, so each thread keeps one.
+        private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                return newDigest();
+            }
+        };
+        private static final ThreadLocal<byte[]> FIRST_HASH = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[HASH_LENGTH];
+            }
+        };
+
+        private static class JvmMidstate implements Midstate {
+            final MessageDigest digest;
+
+            JvmMidstate(MessageDigest digest) {
+                this.digest = digest;
+            }
+        }
+
+        static MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
+        }
+
+        @Override
+        public void hash(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+            MessageDigest digest = DIGEST.get();
+            digest.reset();
+            digest.update(input, offset, length);
+            finish(digest, output, outputOffset);
+        }
+
+        @Override
+        public void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                              byte[] output, int outputOffset) {
+            MessageDigest digest = DIGEST.get();
+            digest.reset();
+            digest.update(input1, offset1, length1);
+            digest.update(input2, offset2, length2);
+            finishTwice(digest, output, outputOffset);
+        }
+
+        @Override
+        public Midstate midstate(byte[] input, int offset, int length) {
+            checkArgument(length % BLOCK_LENGTH == 0, "Midstate must cover whole blocks: %s", length);
+            MessageDigest digest = newDigest();
+            digest.update(input, offset, length);
+            return new JvmMidstate(digest);
+        }
+
+        @Override
+        public void hashTwice(Midstate midstate, byte[] input, int offset, int length, byte[] output,
+                              int outputOffset) {
+            MessageDigest digest;
+            try {
+                // Cloning only copies the state, the leading blocks are not hashed again.
+                digest = (MessageDigest) ((JvmMidstate) midstate).digest.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);  // The JVM's SHA-256 digests can be cloned.
+            }
+            digest.update(input, offset, length);
+            finishTwice(digest, output, outputOffset);
+        }
+
+        private static void finish(MessageDigest digest, byte[] output, int outputOffset) {
+            try {
+                digest.digest(output, outputOffset, HASH_LENGTH);
+            } catch (DigestException e) {
+                throw new IllegalArgumentException(e);  // Not enough room in the output.
+            }
+        }
+
+        private static void finishTwice(MessageDigest digest, byte[] output, int outputOffset) {
+            byte[] first = FIRST_HASH.get();
+            finish(digest, first, 0);
+            digest.update(first);
+            finish(digest, output, outputOffset);
+        }
+    }
+}
@@ -17,22 +17,32 @@
 
 package org.bitcoinj.kits;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
+import com.google.protobuf.ByteString;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.bitcoinj.core.*;
 import org.bitcoinj.core.bip47.BIP47Account;
 import org.bitcoinj.core.bip47.BIP47Address;
 import org.bitcoinj.core.bip47.BIP47Channel;
+import org.bitcoinj.core.bip47.BIP47ChannelStore;
 import org.bitcoinj.core.bip47.BIP47PaymentCode;
+import org.bitcoinj.core.bip47.BIP47ReceiveKeyDeriver;
 import org.bitcoinj.crypto.BIP47SecretPoint;
 import org.bitcoinj.crypto.ChildNumber;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.net.RestClient;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptException;
@@ -40,10 +50,12 @@ import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.BIP47Util;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.KeyChainGroupStructure;
 import org.bitcoinj.wallet.RedeemData;
 import org.bitcoinj.wallet.SendRequest;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletExtension;
 import org.bitcoinj.wallet.bip47.listeners.BlockchainDownloadProgressTracker;
 import org.bitcoinj.wallet.bip47.listeners.TransactionEventListener;
 import org.bouncycastle.util.encoders.Hex;
@@ -54,17 +66,21 @@ import org.json.JSONObject;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.lang.reflect.Type;
-import java.net.URL;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static org.bitcoinj.utils.BIP47Util.getReceiveAddress;
+import static com.google.common.base.Preconditions.checkState;
 import static org.bitcoinj.utils.BIP47Util.getSendAddress;
 
 /**
@@ -90,6 +106,9 @@ import static org.bitcoinj.utils.BIP47Util.getSendAddress;
  * out what went wrong more precisely. Same thing if you just use the {@link #startAsync()} method.</p>
  */
 public class BIP47AppKit extends WalletKitCore {
+    /** The REST API the notification transactions are looked up with by default. */
+    public static final String DEFAULT_NOTIFICATION_API_URL = "https://insomnia.fountainhead.cash/v1/";
+
     // Support for BIP47-type accounts. Only one account is currently handled in this wallet.
     protected List<BIP47Account> mAccounts = new ArrayList<BIP47Account>(1);
 
@@ -109,7 +128,29 @@ public class BIP47AppKit extends WalletKitCore {
     // It doesn't check if the notification transactions are mined before adding a payment code.
     // If you want to know a transaction's confidence, see #{@link Transaction.getConfidence()}
     private ConcurrentHashMap<String, BIP47Channel> bip47MetaData = new ConcurrentHashMap<String, BIP47Channel>();
+    // The incoming addresses of all channels indexed by their hash160, so that a received output finds its channel
+    // without scanning every channel. Entries are added as channels are stored and as lookahead addresses are created.
+    private final ConcurrentHashMap<ByteString, IncomingAddress> bip47IncomingAddresses = new ConcurrentHashMap<ByteString, IncomingAddress>();
+    // Persists the channels in the wallet file. Channels are re-encoded as they change, see #channelChanged.
+    private final BIP47ChannelStore channelStore = new BIP47ChannelStore();
+    // Caches key material of the current account, see #getReceiveKeyDeriver.
+    private volatile BIP47ReceiveKeyDeriver receiveKeyDeriver;
     private Runnable onReceiveRunnable;
+    // Where the notification transactions received while the wallet wasn't running are looked up, see
+    // #grabNotificationAddressUtxos.
+    private String notificationApiUrl = DEFAULT_NOTIFICATION_API_URL;
+    private RestClient restClient = RestClient.get();
+
+    // An incoming address together with the channel it was derived for.
+    private static class IncomingAddress {
+        final BIP47Channel channel;
+        final BIP47Address address;
+
+        IncomingAddress(BIP47Channel channel, BIP47Address address) {
+            this.channel = channel;
+            this.address = address;
+        }
+    }
 
     /**
      * Creates a new WalletAppKit, with a newly created {@link Context}. Files will be stored in the given directory.
@@ -156,88 +197,100 @@ public class BIP47AppKit extends WalletKitCore {
         this.addTransactionsListener(null);
     }
 
-    private void grabNotificationAddressUtxos(final String cashAddr) {
-        new Thread() {
-            @Override
-            public void run() {
-                ArrayList<String> txids = new ArrayList<String>();
-                String apiUrl = "https://insomnia.fountainhead.cash/v1/address/utxos/" + cashAddr;
-                JSONObject utxosJson = getJSONObject(apiUrl);
-                try {
-                    JSONArray utxos = utxosJson.getJSONArray("utxos");
-                    for (int x = 0; x < utxos.length(); x++) {
-                        JSONObject utxo = utxos.getJSONObject(x);
-                        String txid = utxo.getString("tx_hash");
-                        txids.add(txid);
-                    }
+    /**
+     * Sets the REST API used to find the notification transactions received while this wallet wasn't running, eg. a
+     * local stand-in server in tests. It must serve {@code address/utxos/<address>} and {@code tx/data/<txid>} in the
+     * format of {@link #DEFAULT_NOTIFICATION_API_URL}. Must be called before the kit is started.
+     */
+    public BIP47AppKit setNotificationApiUrl(String notificationApiUrl) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.notificationApiUrl = notificationApiUrl.endsWith("/") ? notificationApiUrl : notificationApiUrl + "/";
+        return this;
+    }
 
-                    for (String txid : txids) {
-                        grabTransactionAndProcessNotificationTransaction(txid);
+    /**
+     * Sets the client the notification API is queried with. By default the shared {@link RestClient#get()} is used.
+     * Must be called before the kit is started.
+     */
+    public BIP47AppKit setRestClient(RestClient restClient) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        this.restClient = checkNotNull(restClient);
+        return this;
+    }
+
+    // Looks up the unspent outputs of the notification address and fetches their transactions in parallel. The
+    // payment codes found are saved together once all lookups are done, the returned future completes with the
+    // channels that were created or completed.
+    @VisibleForTesting
+    ListenableFuture<List<BIP47Channel>> grabNotificationAddressUtxos(final String cashAddr) {
+        final RestClient client = restClient;
+        final String apiUrl = notificationApiUrl;
+        // The unspent outputs change with every payment, so they are never cached.
+        ListenableFuture<JSONObject> utxosFuture = client.getJson(apiUrl + "address/utxos/" + cashAddr, false);
+        ListenableFuture<List<BIP47PaymentCode>> paymentCodesFuture = Futures.transformAsync(utxosFuture,
+                new AsyncFunction<JSONObject, List<BIP47PaymentCode>>() {
+                    @Override
+                    public ListenableFuture<List<BIP47PaymentCode>> apply(JSONObject utxosJson) throws JSONException {
+                        // Several outputs may come from the same transaction.
+                        Set<String> txids = new LinkedHashSet<>();
+                        JSONArray utxos = utxosJson.getJSONArray("utxos");
+                        for (int x = 0; x < utxos.length(); x++)
+                            txids.add(utxos.getJSONObject(x).getString("tx_hash"));
+
+                        List<ListenableFuture<BIP47PaymentCode>> futures = new ArrayList<>(txids.size());
+                        for (String txid : txids)
+                            futures.add(grabNotificationTransactionPaymentCode(client, apiUrl, txid));
+                        // A transaction that fails to download is skipped rather than failing the others.
+                        return Futures.successfulAsList(futures);
                     }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
+                }, MoreExecutors.directExecutor());
+        ListenableFuture<List<BIP47Channel>> channelsFuture = Futures.transform(paymentCodesFuture,
+                new Function<List<BIP47PaymentCode>, List<BIP47Channel>>() {
+                    @Override
+                    public List<BIP47Channel> apply(List<BIP47PaymentCode> result) {
+                        List<BIP47PaymentCode> paymentCodes = new ArrayList<>(result.size());
+                        for (BIP47PaymentCode paymentCode : result)
+                            if (paymentCode != null)
+                                paymentCodes.add(paymentCode);
+                        // Channels found this way, e.g. after restoring the wallet, get their keys in one batch.
+                        return savePaymentCodes(paymentCodes);
+                    }
+                }, Threading.USER_THREAD);
+        Futures.addCallback(channelsFuture, new FutureCallback<List<BIP47Channel>>() {
+            @Override
+            public void onSuccess(List<BIP47Channel> result) {
             }
-        }.start();
-    }
-
-    private void grabTransactionAndProcessNotificationTransaction(String txid) {
-        String url = "https://insomnia.fountainhead.cash/v1/tx/data/" + txid + "?verbose=false";
 
-        JSONObject txJson = getJSONObject(url);
-        if (txJson != null) {
-            try {
-                String txHexVariable = "tx";
-                String txHex = txJson.getString(txHexVariable);
-                Transaction tx = new Transaction(this.params, Hex.decode(txHex));
-                if (isNotificationTransaction(tx)) {
-                    BIP47PaymentCode BIP47PaymentCode = getPaymentCodeInNotificationTransaction(tx);
-                    if (BIP47PaymentCode != null) {
-                        boolean needsSaving = savePaymentCode(BIP47PaymentCode);
-                        if (needsSaving) {
-                            saveBip47MetaData();
-                        }
-                    }
-                }
-            } catch (JSONException e) {
-                e.printStackTrace();
+            @Override
+            public void onFailure(Throwable t) {
+                log.warn("Failed to look up the notification transactions of " + cashAddr, t);
             }
-        }
+        }, MoreExecutors.directExecutor());
+        return channelsFuture;
     }
 
-    private JSONObject getJSONObject(String url) {
-        InputStream is = null;
-        try {
-            is = new URL(url).openStream();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
-            String jsonText = "{}";
-            BufferedReader rd = null;
-            if (is != null) {
-                rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                StringBuilder sb = new StringBuilder();
-                int cp;
-                while ((cp = rd.read()) != -1) {
-                    sb.append((char) cp);
-                }
-                jsonText = sb.toString();
-            }
-            return new JSONObject(jsonText);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (is != null) {
-                    is.close();
+    // Completes with the payment code of the given transaction, or null if it isn't a notification transaction.
+    private ListenableFuture<BIP47PaymentCode> grabNotificationTransactionPaymentCode(RestClient client, String apiUrl,
+                                                                                      final String txid) {
+        // A transaction never changes, so its lookup can be cached.
+        String url = apiUrl + "tx/data/" + txid + "?verbose=false";
+        return Futures.transform(client.getJson(url, true), new Function<JSONObject, BIP47PaymentCode>() {
+            @Nullable
+            @Override
+            public BIP47PaymentCode apply(JSONObject txJson) {
+                try {
+                    String txHexVariable = "tx";
+                    String txHex = txJson.getString(txHexVariable);
+                    Transaction tx = new Transaction(params, Hex.decode(txHex));
+                    if (isNotificationTransaction(tx)) {
+                        return getPaymentCodeInNotificationTransaction(tx);
+                    }
+                } catch (JSONException e) {
+                    log.warn("Unexpected response for transaction " + txid, e);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                return null;
             }
-        }
-
-        return null;
+        }, MoreExecutors.directExecutor());
     }
 
     // BIP47-specific listener
@@ -261,14 +314,12 @@ public class BIP47AppKit extends WalletKitCore {
                             } catch (BlockStoreException e) {
                                 e.printStackTrace();
                             }
-                            saveBip47MetaData();
                         }
                     }
-                } else if (isToBIP47Address(transaction)) {
-                    boolean needsSaving = generateNewBip47IncomingAddress(getAddressOfReceived(transaction).toString());
-                    if (needsSaving) {
-                        saveBip47MetaData();
-                    }
+                } else {
+                    IncomingAddress incomingAddress = findIncomingAddress(transaction);
+                    if (incomingAddress != null)
+                        generateNewBip47IncomingAddress(incomingAddress);
                 }
 
                 if (runnable != null)
@@ -288,8 +339,6 @@ public class BIP47AppKit extends WalletKitCore {
                             } catch (BlockStoreException e) {
                                 e.printStackTrace();
                             }
-
-                            saveBip47MetaData();
                         }
                     }
                 }
@@ -322,9 +371,27 @@ public class BIP47AppKit extends WalletKitCore {
     }
 
     /**
-     * <p>Reads the channels from .bip47 file. Return true if any payment code was loaded. </p>
+     * <p>BIP47 channels are stored in the wallet file by a {@link BIP47ChannelStore}. Subclasses overriding this must
+     * include the extensions returned here.</p>
+     */
+    @Override
+    protected List<WalletExtension> provideWalletExtensions() throws Exception {
+        return ImmutableList.<WalletExtension>of(channelStore);
+    }
+
+    /**
+     * <p>Reads the channels from the wallet, or from the .bip47 file of older versions if the wallet has none yet.
+     * Return true if any payment code was loaded. </p>
      */
     public boolean loadBip47MetaData() {
+        // Wallets written before the channels were kept in the wallet don't have the extension yet.
+        vWallet.addOrGetExistingExtension(channelStore);
+        if (channelStore.size() > 0) {
+            for (BIP47Channel channel : channelStore.getChannels())
+                putChannel(channel.getNotificationAddress(), channel);
+            return true;
+        }
+
         String jsonString = readBip47MetaDataFile();
 
         if (StringUtils.isEmpty(jsonString)) {
@@ -335,21 +402,19 @@ public class BIP47AppKit extends WalletKitCore {
     }
 
     /**
-     * <p>Reads the channels from .bip47 file. Return true if any payment code was loaded. </p>
+     * <p>Reads the channels from the .bip47 file written by older versions, or returns null if there is none. </p>
      */
+    @Nullable
     public String readBip47MetaDataFile() {
         File file = new File(directory, this.filePrefix.concat(".bip47"));
-        String jsonString;
+        if (!file.exists())
+            return null;
         try {
-            jsonString = FileUtils.readFileToString(file, Charset.defaultCharset());
+            return FileUtils.readFileToString(file, Charset.defaultCharset());
         } catch (IOException e) {
-            System.out.println("Creating BIP47 wallet file at " + file.getAbsolutePath() + "  ...");
-            saveBip47MetaData();
-            loadBip47MetaData();
+            log.error("Failed to read " + file, e);
             return null;
         }
-
-        return jsonString;
     }
 
     /**
@@ -367,7 +432,8 @@ public class BIP47AppKit extends WalletKitCore {
                         BIP47Account bip47Account = new BIP47Account(params(), channel.getPaymentCode());
                         channel.setNotificationAddress(bip47Account.getNotificationAddress().toString());
                     }
-                    bip47MetaData.put(channel.getNotificationAddress(), channel);
+                    putChannel(channel.getNotificationAddress(), channel);
+                    channelChanged(channel);
                 }
             }
         } catch (JsonSyntaxException e) {
@@ -377,25 +443,26 @@ public class BIP47AppKit extends WalletKitCore {
     }
 
     /**
-     * <p>Persists the .bip47 file with the channels. </p>
+     * <p>Re-encodes all channels and writes the wallet file, which contains them, right away. Changes made through
+     * this class are saved by the wallet's auto-save without calling this; it's only needed after modifying a
+     * {@link BIP47Channel} directly, or when auto-saving is disabled. </p>
      */
-    public synchronized void saveBip47MetaData() {
+    public void saveBip47MetaData() {
+        for (BIP47Channel channel : bip47MetaData.values())
+            channelStore.channelChanged(channel);
         try {
             vWallet.saveToFile(vWalletFile);
         } catch (IOException io) {
             log.error("Failed to save wallet file", io);
         }
+    }
 
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        String json = gson.toJson(bip47MetaData.values());
-
-        File file = new File(directory, this.filePrefix.concat(".bip47"));
-
-        try {
-            FileUtils.writeStringToFile(file, json, Charset.defaultCharset(), false);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    // Re-encodes a channel after it changed, and lets the wallet save it together with any other pending changes.
+    private void channelChanged(BIP47Channel channel) {
+        channelStore.channelChanged(channel);
+        Wallet wallet = vWallet;
+        if (wallet != null)
+            wallet.extensionChanged(channelStore);
     }
 
     /**
@@ -444,22 +511,27 @@ public class BIP47AppKit extends WalletKitCore {
     }
 
     /**
-     * <p> Retrieve the relevant address (P2PKH or P2PSH), return true if any key in this wallet translates to it. </p>
+     * <p> Return true if any P2PKH output of the transaction pays to an incoming address of one of the channels. </p>
      */
-    // TODO: return true if and only if it is a channel address.
     public boolean isToBIP47Address(Transaction transaction) {
-        List<ECKey> keys = vWallet.getImportedKeys();
-        for (ECKey key : keys) {
-            Address address = key.toAddress(params());
-            if (address == null) {
-                continue;
-            }
-            Address addressOfReceived = getAddressOfReceived(transaction);
-            if (addressOfReceived != null && address.toString().equals(addressOfReceived.toString())) {
-                return true;
+        return findIncomingAddress(transaction) != null;
+    }
+
+    @Nullable
+    private IncomingAddress findIncomingAddress(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                Script script = output.getScriptPubKey();
+                if (!ScriptPattern.isP2PKH(script))
+                    continue;
+                IncomingAddress incomingAddress = bip47IncomingAddresses.get(ByteString.copyFrom(ScriptPattern.extractHashFromP2PKH(script)));
+                if (incomingAddress != null)
+                    return incomingAddress;
+            } catch (ScriptException x) {
+                // swallow
             }
         }
-        return false;
+        return null;
     }
 
     /**
@@ -496,63 +568,63 @@ public class BIP47AppKit extends WalletKitCore {
 
     // <p> Receives a payment code and returns true iff there is already an incoming address generated for the channel</p>
     public boolean savePaymentCode(BIP47PaymentCode bip47PaymentCode) {
-        boolean save = true;
-        BIP47Account bip47Account = new BIP47Account(params(), bip47PaymentCode.toString());
-        String notificationAddress = bip47Account.getNotificationAddress().toString();
-        for (BIP47Channel channel : bip47MetaData.values()) {
-            if (channel.getNotificationAddress().equals(notificationAddress) && channel.getPaymentCode() != null && channel.getIncomingAddresses().size() != 0) {
-                save = false;
-                break;
-            }
-        }
-
-        if (bip47MetaData.containsKey(notificationAddress)) {
-            BIP47Channel bip47Channel = bip47MetaData.get(notificationAddress);
-            if (bip47Channel.getIncomingAddresses().size() != 0) {
-                save = false;
-            } else {
-                try {
-                    if (bip47Channel.getPaymentCode() == null)
-                        bip47Channel.setPaymentCode(bip47PaymentCode.toString());
-
-                    bip47Channel.generateKeys(this);
-                    save = true;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    save = false;
-                }
-            }
-        }
+        return !savePaymentCodes(Collections.singletonList(bip47PaymentCode)).isEmpty();
+    }
 
-        if (save) {
+    /**
+     * <p>Creates the channels of the given payment codes, or completes channels that don't have incoming addresses
+     * yet. The lookahead keys of all these channels are derived in parallel and imported into the wallet in a single
+     * batch, so that the Bloom filter is only recalculated once. Returns the channels that were created or
+     * completed.</p>
+     */
+    public List<BIP47Channel> savePaymentCodes(Collection<BIP47PaymentCode> bip47PaymentCodes) {
+        // The channels to generate keys for and their notification addresses, by payment code.
+        Map<String, BIP47Channel> channels = new LinkedHashMap<String, BIP47Channel>();
+        Map<String, String> notificationAddresses = new HashMap<String, String>();
+        for (BIP47PaymentCode bip47PaymentCode : bip47PaymentCodes) {
+            String paymentCode = bip47PaymentCode.toString();
+            if (channels.containsKey(paymentCode))
+                continue;
+            BIP47Account bip47Account = new BIP47Account(params(), paymentCode);
+            String notificationAddress = bip47Account.getNotificationAddress().toString();
             BIP47Channel bip47Channel = bip47MetaData.get(notificationAddress);
             if (bip47Channel == null) {
-                bip47Channel = new BIP47Channel(bip47PaymentCode.toString());
-            } else {
-                if (bip47Channel.getPaymentCode() == null)
-                    bip47Channel.setPaymentCode(bip47PaymentCode.toString());
-            }
-
-            try {
-                bip47Channel.generateKeys(this);
-                bip47MetaData.put(notificationAddress, bip47Channel);
-            } catch (Exception e) {
-                e.printStackTrace();
-                save = false;
+                bip47Channel = new BIP47Channel(paymentCode);
+            } else if (bip47Channel.getIncomingAddresses().size() != 0) {
+                continue;
+            } else if (bip47Channel.getPaymentCode() == null) {
+                bip47Channel.setPaymentCode(paymentCode);
             }
+            channels.put(paymentCode, bip47Channel);
+            notificationAddresses.put(paymentCode, notificationAddress);
         }
+        if (channels.isEmpty())
+            return Collections.emptyList();
 
-        return save;
+        Map<String, List<ECKey>> keys;
+        try {
+            keys = getReceiveKeyDeriver().deriveKeys(channels.keySet(), 0, BIP47Channel.LOOKAHEAD);
+        } catch (Exception e) {
+            log.error("Failed to derive the keys of " + channels.size() + " channels", e);
+            return Collections.emptyList();
+        }
+        List<ECKey> allKeys = new ArrayList<ECKey>(channels.size() * BIP47Channel.LOOKAHEAD);
+        for (List<ECKey> channelKeys : keys.values())
+            allKeys.addAll(channelKeys);
+        importKeys(allKeys);
+
+        for (Map.Entry<String, BIP47Channel> entry : channels.entrySet()) {
+            BIP47Channel bip47Channel = entry.getValue();
+            bip47Channel.addLookaheadKeys(this, keys.get(entry.getKey()));
+            putChannel(notificationAddresses.get(entry.getKey()), bip47Channel);
+            channelChanged(bip47Channel);
+        }
+        return new ArrayList<BIP47Channel>(channels.values());
     }
 
     public boolean saveOutgoingChannel(String notificationAddress, Transaction ntx) {
-        boolean save = true;
-        for (BIP47Channel channel : bip47MetaData.values()) {
-            if (channel.getNotificationAddress().equals(notificationAddress) && channel.isNotificationTransactionSent()) {
-                save = false;
-                break;
-            }
-        }
+        BIP47Channel existing = bip47MetaData.get(notificationAddress);
+        boolean save = existing == null || !existing.isNotificationTransactionSent();
 
         if (save) {
             BIP47Channel bip47Channel = bip47MetaData.get(notificationAddress);
@@ -564,7 +636,8 @@ public class BIP47AppKit extends WalletKitCore {
             bip47Channel.setStatusSent();
 
             try {
-                bip47MetaData.put(notificationAddress, bip47Channel);
+                putChannel(notificationAddress, bip47Channel);
+                channelChanged(bip47Channel);
             } catch (Exception e) {
                 e.printStackTrace();
                 return false;
@@ -599,56 +672,96 @@ public class BIP47AppKit extends WalletKitCore {
         vWallet.importKey(key);
     }
 
+    /**
+     * Imports the keys into the wallet in one batch, see {@link Wallet#importKeys(List)}.
+     */
+    public void importKeys(List<ECKey> keys) {
+        vWallet.importKeys(keys);
+    }
+
+    /**
+     * Returns the deriver of the keys on which the account of this wallet receives payments through its channels.
+     */
+    public BIP47ReceiveKeyDeriver getReceiveKeyDeriver() {
+        BIP47Account account = getAccount(0);
+        BIP47ReceiveKeyDeriver deriver = receiveKeyDeriver;
+        if (deriver == null || deriver.getAccount() != account) {
+            deriver = new BIP47ReceiveKeyDeriver(params(), account);
+            receiveKeyDeriver = deriver;
+        }
+        return deriver;
+    }
+
     /**
      * Return true if this is the first time the address is seen used
      */
     public boolean generateNewBip47IncomingAddress(String address) {
-        for (BIP47Channel BIP47Channel : bip47MetaData.values()) {
-            for (BIP47Address bip47Address : BIP47Channel.getIncomingAddresses()) {
-                if (!bip47Address.getAddress().equals(address)) {
-                    continue;
-                }
-                if (bip47Address.isSeen()) {
-                    return false;
-                }
+        IncomingAddress incomingAddress = getIncomingAddress(address);
+        return incomingAddress != null && generateNewBip47IncomingAddress(incomingAddress);
+    }
 
-                int nextIndex = BIP47Channel.getCurrentIncomingIndex() + 1;
-                try {
-                    ECKey key = getReceiveAddress(this, BIP47Channel.getPaymentCode(), nextIndex).getReceiveECKey();
-                    vWallet.importKey(key);
-                    Address newAddress = getAddressOfKey(key);
-                    BIP47Channel.addNewIncomingAddress(newAddress.toString(), nextIndex);
-                    bip47Address.setSeen(true);
-                    return true;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                return false;
-            }
+    private boolean generateNewBip47IncomingAddress(IncomingAddress incomingAddress) {
+        BIP47Channel channel = incomingAddress.channel;
+        if (incomingAddress.address.isSeen()) {
+            return false;
+        }
+
+        int nextIndex = channel.getCurrentIncomingIndex() + 1;
+        try {
+            ECKey key = getReceiveKeyDeriver().deriveKey(channel.getPaymentCode(), nextIndex);
+            vWallet.importKey(key);
+            Address newAddress = getAddressOfKey(key);
+            BIP47Address bip47Address = channel.addNewIncomingAddress(newAddress.toString(), nextIndex);
+            bip47IncomingAddresses.put(ByteString.copyFrom(newAddress.getHash160()), new IncomingAddress(channel, bip47Address));
+            incomingAddress.address.setSeen(true);
+            channelChanged(channel);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
         }
         return false;
     }
 
     public BIP47Channel getBip47MetaForAddress(String address) {
-        for (BIP47Channel BIP47Channel : bip47MetaData.values()) {
-            for (BIP47Address bip47Address : BIP47Channel.getIncomingAddresses()) {
-                if (bip47Address.getAddress().equals(address)) {
-                    return BIP47Channel;
-                }
-            }
-        }
-        return null;
+        IncomingAddress incomingAddress = getIncomingAddress(address);
+        return incomingAddress != null ? incomingAddress.channel : null;
     }
 
     public String getPaymentCodeForAddress(String address) {
-        for (BIP47Channel BIP47Channel : bip47MetaData.values()) {
-            for (BIP47Address bip47Address : BIP47Channel.getIncomingAddresses()) {
-                if (bip47Address.getAddress().equals(address)) {
-                    return BIP47Channel.getPaymentCode();
-                }
-            }
+        IncomingAddress incomingAddress = getIncomingAddress(address);
+        return incomingAddress != null ? incomingAddress.channel.getPaymentCode() : null;
+    }
+
+    @Nullable
+    private IncomingAddress getIncomingAddress(String address) {
+        ByteString hash = hashOfAddress(address);
+        return hash != null ? bip47IncomingAddresses.get(hash) : null;
+    }
+
+    // Stores a channel under its notification address and indexes the incoming addresses it already has.
+    private void putChannel(String notificationAddress, BIP47Channel channel) {
+        bip47MetaData.put(notificationAddress, channel);
+        indexIncomingAddresses(channel);
+    }
+
+    private void indexIncomingAddresses(BIP47Channel channel) {
+        for (BIP47Address bip47Address : channel.getIncomingAddresses()) {
+            ByteString hash = hashOfAddress(bip47Address.getAddress());
+            if (hash != null)
+                bip47IncomingAddresses.put(hash, new IncomingAddress(channel, bip47Address));
+        }
+    }
+
+    // Channel addresses are stored as strings in either the legacy or the cash address format.
+    @Nullable
+    private ByteString hashOfAddress(String address) {
+        try {
+            if (Address.isValidCashAddr(params(), address))
+                return ByteString.copyFrom(CashAddressFactory.create().getFromFormattedAddress(params(), address).getHash160());
+            return ByteString.copyFrom(Address.fromBase58(params(), address).getHash160());
+        } catch (AddressFormatException e) {
+            return null;
         }
-        return null;
     }
 
     public BIP47Channel getBip47MetaForPaymentCode(String paymentCode) {
@@ -657,12 +770,7 @@ public class BIP47AppKit extends WalletKitCore {
     }
 
     public BIP47Channel getBip47MetaForNotificationAddress(String notificationAddress) {
-        for (BIP47Channel BIP47Channel : bip47MetaData.values()) {
-            if (BIP47Channel.getNotificationAddress().equals(notificationAddress)) {
-                return BIP47Channel;
-            }
-        }
-        return null;
+        return bip47MetaData.get(notificationAddress);
     }
 
     /*If true, it means we have the ntx stored, and can freely get a receiving address.
@@ -674,7 +782,7 @@ public class BIP47AppKit extends WalletKitCore {
             BIP47Channel bip47Channel = getBip47MetaForNotificationAddress(notificationAddress);
             if (bip47Channel != null && bip47Channel.getPaymentCode() == null) {
                 bip47Channel.setPaymentCode(paymentCode);
-                saveBip47MetaData();
+                channelChanged(bip47Channel);
             }
 
             if (bip47Channel != null) {
@@ -784,12 +892,16 @@ public class BIP47AppKit extends WalletKitCore {
     public boolean putBip47Meta(String notificationAddress, String paymentCode, @Nullable Transaction ntx) {
         if (bip47MetaData.containsKey(notificationAddress)) {
             BIP47Channel BIP47Channel = bip47MetaData.get(notificationAddress);
-            if (ntx != null)
+            if (ntx != null) {
                 BIP47Channel.setNtxHash(ntx.getHash());
+                channelChanged(BIP47Channel);
+            }
         } else {
-            bip47MetaData.put(notificationAddress, new BIP47Channel(paymentCode));
+            BIP47Channel BIP47Channel = new BIP47Channel(paymentCode);
+            bip47MetaData.put(notificationAddress, BIP47Channel);
             if (ntx != null)
-                bip47MetaData.get(notificationAddress).setNtxHash(ntx.getHash());
+                BIP47Channel.setNtxHash(ntx.getHash());
+            channelChanged(BIP47Channel);
             return true;
         }
         return false;
@@ -803,6 +915,7 @@ public class BIP47AppKit extends WalletKitCore {
             BIP47Channel bip47Channel = bip47MetaData.get(notificationAddress);
             bip47Channel.setNtxHash(ntx.getTxId());
             bip47Channel.setStatusSent();
+            channelChanged(bip47Channel);
         } else {
             putBip47Meta(notificationAddress, paymentCode, ntx);
             putPaymenCodeStatusSent(paymentCode, ntx);
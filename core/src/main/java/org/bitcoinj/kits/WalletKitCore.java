@@ -1,6 +1,9 @@
 package org.bitcoinj.kits;
 
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Closeables;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.*;
@@ -13,12 +16,14 @@ import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.net.*;
 import org.bitcoinj.net.discovery.DnsDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscovery;
+import org.bitcoinj.net.discovery.PrefetchingDiscovery;
 import org.bitcoinj.net.discovery.SeedPeers;
 import org.bitcoinj.protocols.payments.slp.SlpPaymentSession;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.SPVBlockStore;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.wallet.*;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.json.JSONArray;
@@ -34,8 +39,15 @@ import java.net.UnknownHostException;
 import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -62,6 +74,8 @@ public class WalletKitCore extends AbstractIdleService {
     protected boolean blockingStartup = true;
     protected boolean autoStop = true;
     protected InputStream checkpoints;
+    @Nullable
+    protected File checkpointsFile;
     protected String userAgent, version;
     protected PeerAddress[] peerAddresses;
     protected volatile BlockChain vChain;
@@ -92,6 +106,9 @@ public class WalletKitCore extends AbstractIdleService {
     protected boolean recalculatingTokens = false;
     protected boolean recalculatingNfts = false;
 
+    // How long each phase of the last startup took, in milliseconds.
+    private final Map<String, Long> startupTimings = new LinkedHashMap<>();
+
     /**
      * Sets a wallet factory which will be used when the kit creates a new wallet.
      */
@@ -302,8 +319,22 @@ public class WalletKitCore extends AbstractIdleService {
      */
     public WalletKitCore setCheckpoints(InputStream checkpoints) {
         if (this.checkpoints != null)
-            Closeables.closeQuietly(checkpoints);
+            Closeables.closeQuietly(this.checkpoints);
         this.checkpoints = checkNotNull(checkpoints);
+        this.checkpointsFile = null;
+        return this;
+    }
+
+    /**
+     * Like {@link #setCheckpoints(InputStream)}, but for a file. A file in the binary format, as written by
+     * BuildCheckpoints or {@link CheckpointManager#writeBinary(OutputStream)}, is memory mapped and only the one
+     * checkpoint needed is read from it, rather than parsing all of them.
+     */
+    public WalletKitCore setCheckpoints(File checkpointsFile) {
+        if (this.checkpoints != null)
+            Closeables.closeQuietly(this.checkpoints);
+        this.checkpoints = null;
+        this.checkpointsFile = checkNotNull(checkpointsFile);
         return this;
     }
 
@@ -373,47 +404,104 @@ public class WalletKitCore extends AbstractIdleService {
             }
         }
         log.info("Starting up with directory = {}", directory);
+        synchronized (startupTimings) {
+            startupTimings.clear();
+        }
+        Stopwatch setupWatch = Stopwatch.createStarted();
+        // Loading the wallet, mapping the block store, parsing the checkpoints and querying the DNS seeds don't depend
+        // on each other, so they run in parallel. Everything after them needs their results.
+        ExecutorService executor = Executors.newFixedThreadPool(4, new ContextPropagatingThreadFactory("Kit startup"));
         try {
-            File chainFile = new File(directory, filePrefix + ".spvchain");
+            final File chainFile = new File(directory, filePrefix + ".spvchain");
             boolean chainFileExists = chainFile.exists();
             vWalletFile = new File(directory, filePrefix + ".wallet");
-            boolean shouldReplayWallet = (vWalletFile.exists() && !chainFileExists) || restoreFromSeed != null || restoreFromKey != null;
-            vWallet = createOrLoadWallet(shouldReplayWallet);
+            boolean restoring = restoreFromSeed != null || restoreFromKey != null;
+            final boolean shouldReplayWallet = (vWalletFile.exists() && !chainFileExists) || restoring;
+            boolean shouldCheckpoint = !chainFileExists || restoring;
+
+            PrefetchingDiscovery dnsDiscovery = null;
+            if (peerAddresses == null && discovery == null && !params.getId().equals(NetworkParameters.ID_REGTEST)) {
+                final PrefetchingDiscovery prefetching = new PrefetchingDiscovery(new DnsDiscovery(params));
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Stopwatch watch = Stopwatch.createStarted();
+                        // Uses the default discovery timeout of the peer group.
+                        prefetching.prefetch(0, 5, TimeUnit.SECONDS, MoreExecutors.directExecutor());
+                        recordStartupPhase("discovery", watch);
+                    }
+                });
+                dnsDiscovery = prefetching;
+            }
 
-            // Initiate Bitcoin network objects (block store, blockchain and peer group)
-            vStore = new SPVBlockStore(params, chainFile);
-            if (!chainFileExists || restoreFromSeed != null || restoreFromKey != null) {
+            Future<CheckpointManager> checkpointsFuture = null;
+            if (shouldCheckpoint && checkpointsFile == null) {
                 if (checkpoints == null && !Utils.isAndroidRuntime()) {
                     checkpoints = CheckpointManager.openStream(params);
                 }
-
                 if (checkpoints != null) {
+                    final InputStream stream = checkpoints;
+                    checkpointsFuture = executor.submit(new Callable<CheckpointManager>() {
+                        @Override
+                        public CheckpointManager call() throws Exception {
+                            Stopwatch watch = Stopwatch.createStarted();
+                            CheckpointManager manager = new CheckpointManager(params, stream);
+                            recordStartupPhase("checkpoints", watch);
+                            return manager;
+                        }
+                    });
+                }
+            }
+
+            // Initiate Bitcoin network objects (block store, blockchain and peer group)
+            Future<SPVBlockStore> storeFuture = executor.submit(new Callable<SPVBlockStore>() {
+                @Override
+                public SPVBlockStore call() throws Exception {
+                    Stopwatch watch = Stopwatch.createStarted();
+                    SPVBlockStore store = new SPVBlockStore(params, chainFile);
+                    recordStartupPhase("block store", watch);
+                    return store;
+                }
+            });
+            Future<Wallet> walletFuture = executor.submit(new Callable<Wallet>() {
+                @Override
+                public Wallet call() throws Exception {
+                    Stopwatch watch = Stopwatch.createStarted();
+                    Wallet wallet = createOrLoadWallet(shouldReplayWallet);
+                    recordStartupPhase("wallet", watch);
+                    return wallet;
+                }
+            });
+            vStore = getStartupResult(storeFuture);
+            vWallet = getStartupResult(walletFuture);
+
+            if (shouldCheckpoint) {
+                Stopwatch watch = Stopwatch.createStarted();
+                if (chainFileExists) {
+                    log.info("Clearing the chain file in preparation for restore.");
+                    vStore.clear();
+                }
+                if (checkpointsFile != null || checkpointsFuture != null) {
                     // Initialize the chain file with a checkpoint to speed up first-run sync.
                     long time;
-                    if (restoreFromSeed != null) {
+                    if (restoreFromSeed != null)
                         time = restoreFromSeed.getCreationTimeSeconds();
-                        if (chainFileExists) {
-                            log.info("Clearing the chain file in preparation for restore.");
-                            vStore.clear();
-                        }
-                    } else if (restoreFromKey != null) {
+                    else if (restoreFromKey != null)
                         time = restoreFromKey.getCreationTimeSeconds();
-                        if (chainFileExists) {
-                            log.info("Clearing the chain file in preparation for restore.");
-                            vStore.clear();
-                        }
-                    } else {
-                        time = vWallet.getEarliestKeyCreationTime();
-                    }
-                    if (time > 0)
-                        CheckpointManager.checkpoint(params, checkpoints, vStore, time);
                     else
+                        time = vWallet.getEarliestKeyCreationTime();
+                    if (time <= 0)
                         log.warn("Creating a new uncheckpointed block store due to a wallet with a creation time of zero: this will result in a very slow chain sync");
-                } else if (chainFileExists) {
-                    log.info("Clearing the chain file in preparation for restore.");
-                    vStore.clear();
+                    else if (checkpointsFile != null)
+                        CheckpointManager.checkpoint(params, checkpointsFile, vStore, time);
+                    else
+                        getStartupResult(checkpointsFuture).checkpoint(vStore, time);
                 }
+                recordStartupPhase("checkpointing", watch);
             }
+            executor.shutdown();
+
+            Stopwatch networkWatch = Stopwatch.createStarted();
             vChain = new BlockChain(params, vStore);
             vPeerGroup = createPeerGroup();
             if (this.userAgent != null)
@@ -429,13 +517,17 @@ public class WalletKitCore extends AbstractIdleService {
                 if(discovery != null) {
                     vPeerGroup.addPeerDiscovery(discovery);
                 } else {
-                    vPeerGroup.addPeerDiscovery(new DnsDiscovery(params));
+                    vPeerGroup.addPeerDiscovery(checkNotNull(dnsDiscovery));
                     vPeerGroup.addPeerDiscovery(new SeedPeers(params));
                 }
+                vPeerGroup.setAddressDatabase(new PeerAddressDatabase(params, new File(directory, filePrefix + ".peers")));
             }
             vChain.addWallet(vWallet);
             vPeerGroup.addWallet(vWallet);
+            recordStartupPhase("network", networkWatch);
             onSetupCompleted();
+            recordStartupPhase("setup", setupWatch);
+            log.info("Startup phases took {}", getStartupTimings());
 
             if (blockingStartup) {
                 vPeerGroup.start();
@@ -463,6 +555,45 @@ public class WalletKitCore extends AbstractIdleService {
             }
         } catch (BlockStoreException e) {
             throw new IOException(e);
+        } finally {
+            executor.shutdown();
+            // The block store holds a lock on its file, so it must not be left open if the wallet failed to load.
+            if (vWallet == null && vStore != null) {
+                try {
+                    vStore.close();
+                } catch (BlockStoreException e) {
+                    log.warn("Could not close the block store", e);
+                }
+                vStore = null;
+            }
+        }
+    }
+
+    /**
+     * Returns how long each phase of the last startup took, in milliseconds, in the order they completed. The
+     * wallet, block store, checkpoints and discovery phases run in parallel, so their times add up to more than
+     * the setup phase, which covers everything up to and including {@link #onSetupCompleted()}.
+     */
+    public Map<String, Long> getStartupTimings() {
+        synchronized (startupTimings) {
+            return ImmutableMap.copyOf(startupTimings);
+        }
+    }
+
+    private void recordStartupPhase(String phase, Stopwatch watch) {
+        long millis = watch.elapsed(TimeUnit.MILLISECONDS);
+        synchronized (startupTimings) {
+            startupTimings.put(phase, millis);
+        }
+    }
+
+    private static <T> T getStartupResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
         }
     }
 
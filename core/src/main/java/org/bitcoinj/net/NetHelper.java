@@ -3,38 +3,55 @@ package org.bitcoinj.net;
 import org.bitcoinj.core.*;
 import org.bitcoinj.core.bip47.BIP47PaymentCode;
 import org.bitcoinj.crypto.HashHelper;
-import org.bitcoinj.utils.JSONHelper;
 import org.bouncycastle.util.encoders.Hex;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.annotation.Nullable;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.Proxy;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 public class NetHelper {
-    private String[] cashAcctServers = new String[]{
+    private static final String[] DEFAULT_CASH_ACCT_SERVERS = new String[]{
             "https://cashacct.imaginary.cash",
             "https://cashacct.electroncash.dk"
     };
 
-    private String[] blockExplorers = new String[]{
-            "rest.bitcoin.com"
-    };
-
-    private String[] blockExplorerAPIURL = new String[]{
+    // Explorers answering in the format of rest.bitcoin.com, given as the URL to append a transaction id to.
+    private static final String[] DEFAULT_BLOCK_EXPLORER_API_URLS = new String[]{
             "https://rest.bitcoin.com/v2/transaction/details/"
     };
 
+    private final RestClient client;
+    private final String[] cashAcctServers;
+    private final String[] blockExplorerAPIURL;
+
+    public NetHelper() {
+        this(RestClient.get());
+    }
+
+    public NetHelper(RestClient client) {
+        this(client, DEFAULT_CASH_ACCT_SERVERS, DEFAULT_BLOCK_EXPLORER_API_URLS);
+    }
+
+    /**
+     * Creates a helper querying the given Cash Account lookup servers and block explorers, eg. a local stand-in server
+     * in tests. The explorers must answer in the format of rest.bitcoin.com.
+     */
+    public NetHelper(RestClient client, String[] cashAcctServers, String[] blockExplorerAPIURLs) {
+        checkArgument(cashAcctServers.length > 0 && blockExplorerAPIURLs.length > 0);
+        this.client = checkNotNull(client);
+        this.cashAcctServers = cashAcctServers.clone();
+        this.blockExplorerAPIURL = blockExplorerAPIURLs.clone();
+    }
+
     public String getCashAccountAddress(NetworkParameters params, String cashAccount) {
         return this.getCashAccountAddress(params, cashAccount, false, null);
     }
@@ -58,40 +75,23 @@ public class NetHelper {
         } else {
             block = splitAccount[1];
         }
-        String txHex;
-        if (proxy != null) {
-            txHex = getTxHexFromCashAcct(cashAccount, proxy);
-        } else {
-            txHex = getTxHexFromCashAcct(cashAccount);
-        }
+        RestClient client = this.client.withProxy(proxy);
+        String txHex = getTxHexFromCashAcct(client, cashAccount);
 
         if (txHex != null) {
             Transaction decodedTx = new Transaction(params, Hex.decode(txHex));
 
             String txid = decodedTx.getHashAsString();
-            int txHeight;
-            if (proxy != null) {
-                txHeight = getTransactionHeight(txid, proxy);
-            } else {
-                txHeight = getTransactionHeight(txid);
-            }
+            // The height and the block hash come from the same response.
+            JSONObject details = getTransactionDetails(client, txid);
+            int txHeight = getTransactionHeight(details);
             int blockInt = Integer.parseInt(block);
             int cashAccountGenesis = 563620;
             if (blockInt == (txHeight - cashAccountGenesis)) {
                 String address = "";
-                String blockHash;
-                if (proxy != null) {
-                    blockHash = getTransactionsBlockHash(txid, proxy);
-                } else {
-                    blockHash = getTransactionsBlockHash(txid);
-                }
+                String blockHash = getTransactionsBlockHash(details);
                 String collision = new HashHelper().getCashAccountCollision(blockHash, txid);
-                ArrayList<String> expectedAddresses;
-                if (proxy != null) {
-                    expectedAddresses = getExpectedCashAccountAddresses(username + "#" + block + "." + collision, proxy);
-                } else {
-                    expectedAddresses = getExpectedCashAccountAddresses(username + "#" + block + "." + collision);
-                }
+                ArrayList<String> expectedAddresses = getExpectedCashAccountAddresses(client, username + "#" + block + "." + collision);
                 ArrayList<String> addresses = getAddressesFromOpReturn(decodedTx);
                 for (String s : addresses) {
                     byte[] hash160 = Hex.decode(s.substring(2));
@@ -131,38 +131,19 @@ public class NetHelper {
         }
     }
 
-    private String getTransactionsBlockHash(String transactionHash) {
-        int randExplorer = new Random().nextInt(blockExplorers.length);
-        String blockExplorer = blockExplorers[randExplorer];
-        String blockExplorerURL = blockExplorerAPIURL[randExplorer];
+    @Nullable
+    private JSONObject getTransactionDetails(RestClient client, String transactionHash) {
+        String blockExplorerURL = blockExplorerAPIURL[new Random().nextInt(blockExplorerAPIURL.length)];
+        return client.getJsonOrNull(blockExplorerURL + transactionHash.toLowerCase(), false);
+    }
 
+    private String getTransactionsBlockHash(@Nullable JSONObject details) {
         String block = "";
-        String txHash = transactionHash.toLowerCase();
-        InputStream is = null;
-        try {
-            is = new URL(blockExplorerURL + txHash).openStream();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-            String jsonText = JSONHelper.readJSONFile(rd);
-            JSONObject json = new JSONObject(jsonText);
-            if (blockExplorer.equals("rest.bitcoin.com")) {
-                block = json.getString("blockhash");
-            }
-
-        } catch (JSONException e) {
-            block = "???";
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
+        if (details != null) {
             try {
-                if (is != null) {
-                    is.close();
-                }
-            } catch (IOException e) {
+                block = details.getString("blockhash");
+            } catch (JSONException e) {
+                block = "???";
                 e.printStackTrace();
             }
         }
@@ -170,185 +151,48 @@ public class NetHelper {
         return block.equals("-1") ? "???" : block;
     }
 
-    private String getTransactionsBlockHash(String transactionHash, Proxy proxy) {
-        int randExplorer = new Random().nextInt(blockExplorers.length);
-        String blockExplorer = blockExplorers[randExplorer];
-        String blockExplorerURL = blockExplorerAPIURL[randExplorer];
-
-        String block = "";
-        String txHash = transactionHash.toLowerCase();
-        InputStream is = null;
-        try {
-            is = new URL(blockExplorerURL + txHash).openConnection(proxy).getInputStream();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-            String jsonText = JSONHelper.readJSONFile(rd);
-            JSONObject json = new JSONObject(jsonText);
-            if (blockExplorer.equals("rest.bitcoin.com")) {
-                block = json.getString("blockhash");
-            }
-
-        } catch (JSONException e) {
-            block = "???";
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
+    private int getTransactionHeight(@Nullable JSONObject details) {
+        int height = 0;
+        if (details != null) {
             try {
-                if (is != null) {
-                    is.close();
-                }
-            } catch (IOException e) {
+                height = details.getInt("blockheight");
+            } catch (JSONException e) {
                 e.printStackTrace();
             }
         }
 
-        return block.equals("-1") ? "???" : block;
+        return height;
     }
 
-    private String getTxHexFromCashAcct(String cashAccount) {
-        int randExplorer = (new Random()).nextInt(cashAcctServers.length);
-        String lookupServer = cashAcctServers[randExplorer];
-        String txHex = "";
+    // Returns the path of a Cash Account on the lookup servers, eg. "66149/cyberpunk" or "66149/cyberpunk/123".
+    private static String getCashAccountPath(String cashAccount) {
         String[] splitAccount = cashAccount.split("#");
         String name = splitAccount[0];
         String block = splitAccount[1];
 
-        if (!lookupServer.contains("rest.bitcoin.com")) {
-            if (!block.contains(".")) {
-                InputStream is = null;
-
-                try {
-                    is = (new URL(lookupServer + "/lookup/" + block + "/" + name)).openStream();
-                } catch (IOException var56) {
-                    var56.printStackTrace();
-                }
-
-                try {
-                    BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                    String jsonText = org.bitcoinj.utils.JSONHelper.readJSONFile(rd);
-                    JSONObject json = new JSONObject(jsonText);
-                    txHex = json.getJSONArray("results").getJSONObject(0).getString("transaction");
-                } catch (JSONException | IOException | NullPointerException var53) {
-                    var53.printStackTrace();
-                    txHex = null;
-                } finally {
-                    try {
-                        if (is != null) {
-                            is.close();
-                        }
-                    } catch (IOException var47) {
-                        var47.printStackTrace();
-                    }
-
-                }
-            } else {
-                String[] splitBlock = block.split("\\.");
-                String mainBlock = splitBlock[0];
-                String collision = splitBlock[1];
-                InputStream is = null;
-
-                try {
-                    is = (new URL(lookupServer + "/lookup/" + mainBlock + "/" + name + "/" + collision)).openStream();
-                } catch (IOException var52) {
-                    var52.printStackTrace();
-                }
-
-                try {
-                    BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                    String jsonText = org.bitcoinj.utils.JSONHelper.readJSONFile(rd);
-                    JSONObject json = new JSONObject(jsonText);
-                    txHex = json.getJSONArray("results").getJSONObject(0).getString("transaction");
-                } catch (JSONException | IOException | NullPointerException var49) {
-                    var49.printStackTrace();
-                    txHex = null;
-                } finally {
-                    try {
-                        if (is != null) {
-                            is.close();
-                        }
-                    } catch (IOException var48) {
-                        var48.printStackTrace();
-                    }
-
-                }
-            }
+        if (!block.contains(".")) {
+            return block + "/" + name;
+        } else {
+            String[] splitBlock = block.split("\\.");
+            String mainBlock = splitBlock[0];
+            String collision = splitBlock[1];
+            return mainBlock + "/" + name + "/" + collision;
         }
-
-        return txHex;
     }
 
-    private String getTxHexFromCashAcct(String cashAccount, Proxy proxy) {
-        int randExplorer = (new Random()).nextInt(cashAcctServers.length);
-        String lookupServer = cashAcctServers[randExplorer];
-        String txHex = "";
-        String[] splitAccount = cashAccount.split("#");
-        String name = splitAccount[0];
-        String block = splitAccount[1];
-
-        if (!lookupServer.contains("rest.bitcoin.com")) {
-            if (!block.contains(".")) {
-                InputStream is = null;
-
-                try {
-                    is = (new URL(lookupServer + "/lookup/" + block + "/" + name)).openConnection(proxy).getInputStream();
-                } catch (IOException var56) {
-                    var56.printStackTrace();
-                }
-
-                try {
-                    BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                    String jsonText = org.bitcoinj.utils.JSONHelper.readJSONFile(rd);
-                    JSONObject json = new JSONObject(jsonText);
-                    txHex = json.getJSONArray("results").getJSONObject(0).getString("transaction");
-                } catch (JSONException | IOException var53) {
-                    var53.printStackTrace();
-                } finally {
-                    try {
-                        if (is != null) {
-                            is.close();
-                        }
-                    } catch (IOException var47) {
-                        var47.printStackTrace();
-                    }
-
-                }
-            } else {
-                String[] splitBlock = block.split("\\.");
-                String mainBlock = splitBlock[0];
-                String collision = splitBlock[1];
-                InputStream is = null;
-
-                try {
-                    is = (new URL(lookupServer + "/lookup/" + mainBlock + "/" + name + "/" + collision)).openConnection(proxy).getInputStream();
-                } catch (IOException var52) {
-                    var52.printStackTrace();
-                }
-
-                try {
-                    BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                    String jsonText = org.bitcoinj.utils.JSONHelper.readJSONFile(rd);
-                    JSONObject json = new JSONObject(jsonText);
-                    txHex = json.getJSONArray("results").getJSONObject(0).getString("transaction");
-                } catch (JSONException | IOException var49) {
-                    var49.printStackTrace();
-                } finally {
-                    try {
-                        if (is != null) {
-                            is.close();
-                        }
-                    } catch (IOException var48) {
-                        var48.printStackTrace();
-                    }
-
-                }
-            }
+    @Nullable
+    private String getTxHexFromCashAcct(RestClient client, String cashAccount) {
+        String lookupServer = cashAcctServers[new Random().nextInt(cashAcctServers.length)];
+        // A registration never changes once it's found.
+        JSONObject json = client.getJsonOrNull(lookupServer + "/lookup/" + getCashAccountPath(cashAccount), true);
+        if (json == null)
+            return null;
+        try {
+            return json.getJSONArray("results").getJSONObject(0).getString("transaction");
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
         }
-
-        return txHex;
     }
 
     private ArrayList<String> getAddressesFromOpReturn(Transaction tx) {
@@ -375,227 +219,21 @@ public class NetHelper {
         return addresses;
     }
 
-    private int getTransactionHeight(String transactionHash) {
-        int randExplorer = new Random().nextInt(blockExplorers.length);
-        String blockExplorer = blockExplorers[randExplorer];
-        String blockExplorerURL = blockExplorerAPIURL[randExplorer];
-
-        int height = 0;
-        String txHash = transactionHash.toLowerCase();
-        InputStream is = null;
-        try {
-            is = new URL(blockExplorerURL + txHash).openStream();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-            String jsonText = JSONHelper.readJSONFile(rd);
-            JSONObject json = new JSONObject(jsonText);
-            if (blockExplorer.equals("rest.bitcoin.com")) {
-                height = json.getInt("blockheight");
-            }
-
-        } catch (JSONException | IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (is != null) {
-                    is.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        return height;
-    }
-
-    private int getTransactionHeight(String transactionHash, Proxy proxy) {
-        int randExplorer = new Random().nextInt(blockExplorers.length);
-        String blockExplorer = blockExplorers[randExplorer];
-        String blockExplorerURL = blockExplorerAPIURL[randExplorer];
-
-        int height = 0;
-        String txHash = transactionHash.toLowerCase();
-        InputStream is = null;
-        try {
-            is = new URL(blockExplorerURL + txHash).openConnection(proxy).getInputStream();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        try {
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-            String jsonText = JSONHelper.readJSONFile(rd);
-            JSONObject json = new JSONObject(jsonText);
-            if (blockExplorer.equals("rest.bitcoin.com")) {
-                height = json.getInt("blockheight");
-            }
-
-        } catch (JSONException | IOException e) {
-            e.printStackTrace();
-        } finally {
+    private ArrayList<String> getExpectedCashAccountAddresses(RestClient client, String cashAccount) {
+        String lookupServer = cashAcctServers[new Random().nextInt(cashAcctServers.length)];
+        ArrayList<String> addresses = new ArrayList<String>();
+        JSONObject json = client.getJsonOrNull(lookupServer + "/account/" + getCashAccountPath(cashAccount), true);
+        if (json != null) {
             try {
-                if (is != null) {
-                    is.close();
+                int paymentsLength = json.getJSONObject("information").getJSONArray("payment").length();
+                for (int x = 0; x < paymentsLength; x++) {
+                    addresses.add(json.getJSONObject("information").getJSONArray("payment").getJSONObject(x).getString("address"));
                 }
-            } catch (IOException e) {
+            } catch (JSONException e) {
                 e.printStackTrace();
             }
         }
 
-        return height;
-    }
-
-    private ArrayList<String> getExpectedCashAccountAddresses(String cashAccount) {
-        int randExplorer = (new Random()).nextInt(cashAcctServers.length);
-        String lookupServer = cashAcctServers[randExplorer];
-        ArrayList<String> addresses = new ArrayList<String>();
-        String[] splitAccount = cashAccount.split("#");
-        String name = splitAccount[0];
-        String block = splitAccount[1];
-
-        if (!lookupServer.contains("rest.bitcoin.com")) {
-            if (!block.contains(".")) {
-                InputStream is = null;
-
-                try {
-                    is = (new URL(lookupServer + "/account/" + block + "/" + name)).openStream();
-                } catch (IOException var56) {
-                    var56.printStackTrace();
-                }
-
-                try {
-                    BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                    String jsonText = org.bitcoinj.utils.JSONHelper.readJSONFile(rd);
-                    JSONObject json = new JSONObject(jsonText);
-                    int paymentsLength = json.getJSONObject("information").getJSONArray("payment").length();
-                    for (int x = 0; x < paymentsLength; x++) {
-                        addresses.add(json.getJSONObject("information").getJSONArray("payment").getJSONObject(x).getString("address"));
-                    }
-                } catch (JSONException | IOException var53) {
-                    var53.printStackTrace();
-                } finally {
-                    try {
-                        if (is != null) {
-                            is.close();
-                        }
-                    } catch (IOException var48) {
-                        var48.printStackTrace();
-                    }
-
-                }
-            } else {
-                String[] splitBlock = block.split("\\.");
-                String mainBlock = splitBlock[0];
-                String collision = splitBlock[1];
-                InputStream is = null;
-
-                try {
-                    is = (new URL(lookupServer + "/account/" + mainBlock + "/" + name + "/" + collision)).openStream();
-                } catch (IOException var52) {
-                    var52.printStackTrace();
-                }
-
-                try {
-                    BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                    String jsonText = org.bitcoinj.utils.JSONHelper.readJSONFile(rd);
-                    JSONObject json = new JSONObject(jsonText);
-                    int paymentsLength = json.getJSONObject("information").getJSONArray("payment").length();
-                    for (int x = 0; x < paymentsLength; x++) {
-                        addresses.add(json.getJSONObject("information").getJSONArray("payment").getJSONObject(x).getString("address"));
-                    }
-                } catch (JSONException | IOException var49) {
-                    var49.printStackTrace();
-                } finally {
-                    try {
-                        if (is != null) {
-                            is.close();
-                        }
-                    } catch (IOException var47) {
-                        var47.printStackTrace();
-                    }
-
-                }
-            }
-        }
-
-        return addresses;
-    }
-
-    private ArrayList<String> getExpectedCashAccountAddresses(String cashAccount, Proxy proxy) {
-        int randExplorer = (new Random()).nextInt(cashAcctServers.length);
-        String lookupServer = cashAcctServers[randExplorer];
-        ArrayList<String> addresses = new ArrayList<String>();
-        String[] splitAccount = cashAccount.split("#");
-        String name = splitAccount[0];
-        String block = splitAccount[1];
-
-        if (!lookupServer.contains("rest.bitcoin.com")) {
-            if (!block.contains(".")) {
-                InputStream is = null;
-
-                try {
-                    is = (new URL(lookupServer + "/account/" + block + "/" + name)).openConnection(proxy).getInputStream();
-                } catch (IOException var56) {
-                    var56.printStackTrace();
-                }
-
-                try {
-                    BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                    String jsonText = org.bitcoinj.utils.JSONHelper.readJSONFile(rd);
-                    JSONObject json = new JSONObject(jsonText);
-                    int paymentsLength = json.getJSONObject("information").getJSONArray("payment").length();
-                    for (int x = 0; x < paymentsLength; x++) {
-                        addresses.add(json.getJSONObject("information").getJSONArray("payment").getJSONObject(x).getString("address"));
-                    }
-                } catch (JSONException | IOException var53) {
-                    var53.printStackTrace();
-                } finally {
-                    try {
-                        if (is != null) {
-                            is.close();
-                        }
-                    } catch (IOException var48) {
-                        var48.printStackTrace();
-                    }
-
-                }
-            } else {
-                String[] splitBlock = block.split("\\.");
-                String mainBlock = splitBlock[0];
-                String collision = splitBlock[1];
-                InputStream is = null;
-
-                try {
-                    is = (new URL(lookupServer + "/account/" + mainBlock + "/" + name + "/" + collision)).openConnection(proxy).getInputStream();
-                } catch (IOException var52) {
-                    var52.printStackTrace();
-                }
-
-                try {
-                    BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                    String jsonText = org.bitcoinj.utils.JSONHelper.readJSONFile(rd);
-                    JSONObject json = new JSONObject(jsonText);
-                    int paymentsLength = json.getJSONObject("information").getJSONArray("payment").length();
-                    for (int x = 0; x < paymentsLength; x++) {
-                        addresses.add(json.getJSONObject("information").getJSONArray("payment").getJSONObject(x).getString("address"));
-                    }
-                } catch (JSONException | IOException var49) {
-                    var49.printStackTrace();
-                } finally {
-                    try {
-                        if (is != null) {
-                            is.close();
-                        }
-                    } catch (IOException var47) {
-                        var47.printStackTrace();
-                    }
-
-                }
-            }
-        }
-
         return addresses;
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.bitcoinj.core.VersionMessage;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An asynchronous HTTP client for the REST APIs that the wallet kits and {@link NetHelper} query, such as block
+ * explorers and Cash Account lookup servers. Requests run on the {@link OkHttpClient}'s dispatcher, which limits how
+ * many are in flight at once, reuse pooled connections and time out instead of hanging. Responses for resources that
+ * never change, like the data of a transaction, can be cached in memory.</p>
+ *
+ * <p>{@link #get()} returns an instance shared by the library. Clients made with {@link #withProxy(Proxy)} share the
+ * connection pool, the dispatcher and the cache of the client they were made from.</p>
+ */
+public class RestClient {
+    private static final Logger log = LoggerFactory.getLogger(RestClient.class);
+
+    /** The default maximum number of requests in flight at once. */
+    public static final int DEFAULT_MAX_REQUESTS = 16;
+    /** The default maximum number of requests to the same host in flight at once. */
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long READ_TIMEOUT_SECONDS = 20;
+    private static final long CALL_TIMEOUT_SECONDS = 60;
+    // The number of cacheable responses kept in memory.
+    private static final int CACHE_SIZE = 1000;
+
+    private static RestClient defaultClient;
+
+    private final OkHttpClient client;
+    private final Cache<String, String> cache;
+
+    /**
+     * Creates a client with its own connection pool and the default limits and timeouts.
+     */
+    public RestClient() {
+        this(createHttpClient(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST));
+    }
+
+    /**
+     * Creates a client that makes its requests with the given {@link OkHttpClient}.
+     */
+    public RestClient(OkHttpClient client) {
+        this(client, CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).<String, String>build());
+    }
+
+    private RestClient(OkHttpClient client, Cache<String, String> cache) {
+        this.client = checkNotNull(client);
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the client shared by the library.
+     */
+    public static synchronized RestClient get() {
+        if (defaultClient == null)
+            defaultClient = new RestClient();
+        return defaultClient;
+    }
+
+    /**
+     * Creates an {@link OkHttpClient} with the given limits on requests in flight and the default timeouts.
+     */
+    public static OkHttpClient createHttpClient(int maxRequests, int maxRequestsPerHost) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(maxRequestsPerHost, 5, TimeUnit.MINUTES))
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .callTimeout(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Returns a client that makes its requests through the given proxy, or this client if the proxy is null.
+     */
+    public RestClient withProxy(@Nullable Proxy proxy) {
+        if (proxy == null)
+            return this;
+        return new RestClient(client.newBuilder().proxy(proxy).build(), cache);
+    }
+
+    /**
+     * Fetches the body of the given URL. The future fails with an {@link IOException} if the request fails or the
+     * response isn't successful. Cancelling the future cancels the request.
+     *
+     * @param cacheable true if the resource never changes, so that its response can be served from the cache
+     */
+    public ListenableFuture<String> get(final String url, final boolean cacheable) {
+        if (cacheable) {
+            String cached = cache.getIfPresent(url);
+            if (cached != null)
+                return Futures.immediateFuture(cached);
+        }
+        Request request = new Request.Builder()
+                .url(url)
+                .addHeader("User-Agent", VersionMessage.LIBRARY_SUBVER)
+                .build();
+        final Call call = client.newCall(request);
+        final SettableFuture<String> future = SettableFuture.create();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.setException(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response r = response) {
+                    if (!r.isSuccessful()) {
+                        future.setException(new IOException("HTTP request to " + url + " failed: " + r.code() + " " +
+                                r.message()));
+                        return;
+                    }
+                    String body = r.body().string();
+                    if (cacheable)
+                        cache.put(url, body);
+                    future.set(body);
+                } catch (IOException e) {
+                    future.setException(e);
+                }
+            }
+        });
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled())
+                    call.cancel();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /**
+     * Fetches the given URL and parses its body as a JSON object. The future fails with a
+     * {@link org.json.JSONException} if the body isn't one.
+     *
+     * @param cacheable true if the resource never changes, so that its response can be served from the cache
+     */
+    public ListenableFuture<JSONObject> getJson(String url, boolean cacheable) {
+        return Futures.transform(get(url, cacheable), new Function<String, JSONObject>() {
+            @Override
+            public JSONObject apply(String body) {
+                return new JSONObject(body);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Fetches the given URL and parses its body as a JSON object, blocking until it's done. Returns null if the request
+     * or parsing failed, which is logged.
+     */
+    @Nullable
+    public JSONObject getJsonOrNull(String url, boolean cacheable) {
+        try {
+            return getJson(url, cacheable).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            log.warn("Request to {} failed: {}", url, e.getCause().toString());
+            return null;
+        }
+    }
+
+    /**
+     * Removes all responses from the cache.
+     */
+    public void clearCache() {
+        cache.invalidateAll();
+    }
+}
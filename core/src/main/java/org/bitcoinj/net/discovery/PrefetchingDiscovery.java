@@ -0,0 +1,113 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Wraps another {@link PeerDiscovery} so that a query can be started before anything asks for peers, for example
+ * while a wallet and its block store are still loading. The first call to {@link #getPeers(long, long, TimeUnit)} with
+ * the same services then gets the result of that query, waiting for it if it is still running. Later calls, and calls
+ * for other services, are passed through to the wrapped discovery, as is the query after a failed prefetch.</p>
+ */
+public class PrefetchingDiscovery implements PeerDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(PrefetchingDiscovery.class);
+
+    private final PeerDiscovery discovery;
+    @Nullable private FutureTask<List<InetSocketAddress>> prefetch;
+    private long prefetchServices;
+
+    public PrefetchingDiscovery(PeerDiscovery discovery) {
+        this.discovery = checkNotNull(discovery);
+    }
+
+    /**
+     * Starts querying the wrapped discovery on the given executor. Does nothing if a prefetched result is already
+     * waiting to be used.
+     */
+    public void prefetch(final long services, final long timeoutValue, final TimeUnit timeoutUnit, Executor executor) {
+        FutureTask<List<InetSocketAddress>> task = new FutureTask<>(new Callable<List<InetSocketAddress>>() {
+            @Override
+            public List<InetSocketAddress> call() throws Exception {
+                return discovery.getPeers(services, timeoutValue, timeoutUnit);
+            }
+        });
+        synchronized (this) {
+            if (prefetch != null)
+                return;
+            prefetch = task;
+            prefetchServices = services;
+        }
+        executor.execute(task);
+    }
+
+    @Override
+    public List<InetSocketAddress> getPeers(long services, long timeoutValue, TimeUnit timeoutUnit)
+            throws PeerDiscoveryException {
+        FutureTask<List<InetSocketAddress>> task;
+        synchronized (this) {
+            task = prefetch;
+            prefetch = null;
+            if (task != null && prefetchServices != services) {
+                task.cancel(true);
+                task = null;
+            }
+        }
+        if (task != null) {
+            try {
+                return task.get(timeoutValue, timeoutUnit);
+            } catch (InterruptedException e) {
+                throw new PeerDiscoveryException(e);
+            } catch (TimeoutException e) {
+                // The prefetch has had longer than the caller was willing to wait already.
+                task.cancel(true);
+                throw new PeerDiscoveryException("Prefetched discovery timed out");
+            } catch (ExecutionException e) {
+                log.info("Prefetched discovery failed, querying again: {}", e.getCause().toString());
+            }
+        }
+        return discovery.getPeers(services, timeoutValue, timeoutUnit);
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (prefetch != null)
+                prefetch.cancel(true);
+            prefetch = null;
+        }
+        discovery.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "prefetching " + discovery;
+    }
+}
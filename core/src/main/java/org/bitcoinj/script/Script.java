@@ -780,20 +780,45 @@ public class Script {
     }
 
     /**
-     * Cast a script chunk to a BigInteger.
+     * Cast a script chunk to a number.
      *
      * @throws ScriptException if the chunk is longer than 4 bytes.
-     * @see #castToBigInteger(byte[], int, boolean) for values with different maximum
+     * @see #castToLong(byte[], int, boolean) for values with different maximum
      * sizes.
      */
-    private static BigInteger castToBigInteger(byte[] chunk, final boolean requireMinimal) throws ScriptException {
-        return castToBigInteger(chunk, 4, requireMinimal);
+    private static long castToLong(byte[] chunk, final boolean requireMinimal) throws ScriptException {
+        return castToLong(chunk, DEFAULT_MAX_NUM_ELEMENT_SIZE, requireMinimal);
     }
 
     /**
-     * Cast a script chunk to a BigInteger. Normally you would want
-     * {@link #castToBigInteger(byte[], boolean)} instead, this is only for cases where
+     * Cast a script chunk to a number. Normally you would want
+     * {@link #castToLong(byte[], boolean)} instead, this is only for cases where
      * the normal maximum length does not apply (i.e. CHECKLOCKTIMEVERIFY, CHECKSEQUENCEVERIFY).
+     * Numbers are little endian with the sign in the most significant bit, so up to 8 bytes fit into a long.
+     *
+     * @param maxLength      the maximum length in bytes, at most 8.
+     * @param requireMinimal check if the number is encoded with the minimum possible number of bytes
+     * @throws ScriptException if the chunk is longer than the specified maximum.
+     */
+    /* package private */
+    static long castToLong(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+        checkArgument(maxLength <= 8);
+        checkNumber(chunk, maxLength, requireMinimal);
+        int length = chunk.length;
+        if (length == 0)
+            return 0;
+        long result = 0;
+        for (int i = 0; i < length; i++)
+            result |= (long) (chunk[i] & 0xff) << (8 * i);
+        long signBit = 0x80L << (8 * (length - 1));
+        if ((result & signBit) != 0)
+            return -(result & ~signBit);
+        return result;
+    }
+
+    /**
+     * Cast a script chunk to a BigInteger. Normally you would want
+     * {@link #castToLong(byte[], boolean)} instead, this is only for numbers that don't fit into a long.
      *
      * @param maxLength      the maximum length in bytes.
      * @param requireMinimal check if the number is encoded with the minimum possible number of bytes
@@ -801,6 +826,11 @@ public class Script {
      */
     /* package private */
     static BigInteger castToBigInteger(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+        checkNumber(chunk, maxLength, requireMinimal);
+        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+    }
+
+    private static void checkNumber(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
         if (chunk.length > maxLength)
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script attempted to use an integer larger than " + maxLength + " bytes");
 
@@ -822,8 +852,31 @@ public class Script {
                 }
             }
         }
+    }
 
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+    /**
+     * Encodes a number the way the script interpreter pushes it: minimal little endian with the sign in the most
+     * significant bit, and zero as the empty array. This gives the same bytes as
+     * {@code Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false))}.
+     */
+    /* package private */
+    static byte[] encodeNumber(long value) {
+        if (value == 0)
+            return new byte[]{};
+        boolean negative = value < 0;
+        long magnitude = negative ? -value : value;
+        byte[] result = new byte[9];
+        int length = 0;
+        while (magnitude != 0) {
+            result[length++] = (byte) magnitude;
+            magnitude >>>= 8;
+        }
+        // If the most significant byte already uses the sign bit, the sign needs a byte of its own.
+        if ((result[length - 1] & 0x80) != 0)
+            result[length++] = negative ? (byte) 0x80 : 0;
+        else if (negative)
+            result[length - 1] |= 0x80;
+        return Arrays.copyOf(result, length);
     }
 
     /**
@@ -858,7 +911,6 @@ public class Script {
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         executeScript(txContainingThis, index, script, stack, Coin.ZERO, verifyFlags);
     }
-
     /**
      * Exposes the script interpreter. Normally you should not use this directly, instead use
      * {@link TransactionInput#verify(TransactionOutput)} or
@@ -867,15 +919,72 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Coin value, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ScriptStack scriptStack = new ScriptStack(stack);
+        try {
+            executeScript(txContainingThis, index, script, scriptStack, value, verifyFlags);
+        } finally {
+            stack.clear();
+            scriptStack.copyTo(stack);
+        }
+    }
+
+    // Opcodes that fail the script even when they are not executed, indexed by opcode.
+    private static final boolean[] DISABLED_OPCODES = new boolean[256];
+    static {
+        for (int opcode : new int[] { OP_CAT, OP_SPLIT, OP_NUM2BIN, OP_BIN2NUM, OP_INVERT, OP_AND, OP_OR, OP_XOR,
+                OP_2MUL, OP_2DIV, OP_MUL, OP_DIV, OP_MOD, OP_LSHIFT, OP_RSHIFT })
+            DISABLED_OPCODES[opcode] = true;
+    }
+
+    /**
+     * The nesting of OP_IF/OP_NOTIF branches. Instead of scanning for a false branch before every opcode, it counts the
+     * false entries so that whether to execute is a single comparison.
+     */
+    private static final class ConditionStack {
+        private boolean[] conditions = new boolean[8];
+        private int size;
+        private int falseCount;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean allTrue() {
+            return falseCount == 0;
+        }
+
+        void push(boolean condition) {
+            if (size == conditions.length)
+                conditions = Arrays.copyOf(conditions, size * 2);
+            conditions[size++] = condition;
+            if (!condition)
+                falseCount++;
+        }
+
+        void pop() {
+            if (!conditions[--size])
+                falseCount--;
+        }
+
+        void toggleTop() {
+            boolean condition = !conditions[size - 1];
+            conditions[size - 1] = condition;
+            falseCount += condition ? -1 : 1;
+        }
+    }
+
+    private static void executeScript(@Nullable Transaction txContainingThis, long index,
+                                      Script script, ScriptStack stack, Coin value, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
         int opCount = 0;
         int lastCodeSepLocation = 0;
 
-        LinkedList<byte[]> altstack = new LinkedList<>();
-        LinkedList<Boolean> ifStack = new LinkedList<>();
+        ScriptStack altstack = new ScriptStack();
+        ConditionStack ifStack = new ConditionStack();
 
         int nextLocationInScript = 0;
         for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+            boolean shouldExecute = ifStack.allTrue();
             int opcode = chunk.opcode;
             nextLocationInScript += chunk.size();
 
@@ -891,56 +1000,53 @@ public class Script {
             }
 
             // Disabled opcodes.
-            if (opcode == OP_CAT || opcode == OP_SPLIT || opcode == OP_NUM2BIN || opcode == OP_BIN2NUM ||
-                    opcode == OP_INVERT || opcode == OP_AND || opcode == OP_OR || opcode == OP_XOR ||
-                    opcode == OP_2MUL || opcode == OP_2DIV || opcode == OP_MUL || opcode == OP_DIV ||
-                    opcode == OP_MOD || opcode == OP_LSHIFT || opcode == OP_RSHIFT)
+            if (DISABLED_OPCODES[opcode & 0xff])
                 throw new ScriptException(ScriptError.SCRIPT_ERR_DISABLED_OPCODE, "Script included a disabled Script Op.");
 
             if (shouldExecute && OP_0 <= opcode && opcode <= OP_PUSHDATA4) {
                 // Check minimal push
-                if (verifyFlags.contains(VerifyFlag.MINIMALDATA) && !chunk.isShortestPossiblePushData())
+                if (requireMinimal && !chunk.isShortestPossiblePushData())
                     throw new ScriptException(ScriptError.SCRIPT_ERR_MINIMALDATA, "Script included a not minimal push operation.");
 
                 if (opcode == OP_0)
-                    stack.add(new byte[]{});
+                    stack.push(new byte[]{});
                 else
-                    stack.add(chunk.data);
+                    stack.push(chunk.data);
             } else if (shouldExecute || (OP_IF <= opcode && opcode <= OP_ENDIF)) {
 
                 switch (opcode) {
                     case OP_IF:
                         if (!shouldExecute) {
-                            ifStack.add(false);
+                            ifStack.push(false);
                             continue;
                         }
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_IF on an empty stack");
-                        ifStack.add(castToBool(stack.pollLast()));
+                        ifStack.push(castToBool(stack.pop()));
                         continue;
                     case OP_NOTIF:
                         if (!shouldExecute) {
-                            ifStack.add(false);
+                            ifStack.push(false);
                             continue;
                         }
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_NOTIF on an empty stack");
-                        ifStack.add(!castToBool(stack.pollLast()));
+                        ifStack.push(!castToBool(stack.pop()));
                         continue;
                     case OP_ELSE:
                         if (ifStack.isEmpty())
                             throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ELSE without OP_IF/NOTIF");
-                        ifStack.add(!ifStack.pollLast());
+                        ifStack.toggleTop();
                         continue;
                     case OP_ENDIF:
                         if (ifStack.isEmpty())
                             throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ENDIF without OP_IF/NOTIF");
-                        ifStack.pollLast();
+                        ifStack.pop();
                         continue;
 
                         // OP_0 is no opcode
                     case OP_1NEGATE:
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                        stack.push(encodeNumber(-1));
                         break;
                     case OP_1:
                     case OP_2:
@@ -958,14 +1064,14 @@ public class Script {
                     case OP_14:
                     case OP_15:
                     case OP_16:
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                        stack.push(encodeNumber(decodeFromOpN(opcode)));
                         break;
                     case OP_NOP:
                         break;
                     case OP_VERIFY:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_VERIFY on an empty stack");
-                        if (!castToBool(stack.pollLast()))
+                        if (!castToBool(stack.pop()))
                             throw new ScriptException(ScriptError.SCRIPT_ERR_VERIFY, "OP_VERIFY failed");
                         break;
                     case OP_RETURN:
@@ -973,158 +1079,115 @@ public class Script {
                     case OP_TOALTSTACK:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_TOALTSTACK on an empty stack");
-                        altstack.add(stack.pollLast());
+                        altstack.push(stack.pop());
                         break;
                     case OP_FROMALTSTACK:
                         if (altstack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_ALTSTACK_OPERATION, "Attempted OP_FROMALTSTACK on an empty altstack");
-                        stack.add(altstack.pollLast());
+                        stack.push(altstack.pop());
                         break;
                     case OP_2DROP:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DROP on a stack with size < 2");
-                        stack.pollLast();
-                        stack.pollLast();
+                        stack.pop();
+                        stack.pop();
                         break;
                     case OP_2DUP:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DUP on a stack with size < 2");
-                        Iterator<byte[]> it2DUP = stack.descendingIterator();
-                        byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                        stack.add(it2DUP.next());
-                        stack.add(OP2DUPtmpChunk2);
+                        stack.push(stack.peek(1));
+                        stack.push(stack.peek(1));
                         break;
                     case OP_3DUP:
                         if (stack.size() < 3)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_3DUP on a stack with size < 3");
-                        Iterator<byte[]> it3DUP = stack.descendingIterator();
-                        byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                        byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                        stack.add(it3DUP.next());
-                        stack.add(OP3DUPtmpChunk2);
-                        stack.add(OP3DUPtmpChunk3);
+                        stack.push(stack.peek(2));
+                        stack.push(stack.peek(2));
+                        stack.push(stack.peek(2));
                         break;
                     case OP_2OVER:
                         if (stack.size() < 4)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2OVER on a stack with size < 4");
-                        Iterator<byte[]> it2OVER = stack.descendingIterator();
-                        it2OVER.next();
-                        it2OVER.next();
-                        byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                        stack.add(it2OVER.next());
-                        stack.add(OP2OVERtmpChunk2);
+                        stack.push(stack.peek(3));
+                        stack.push(stack.peek(3));
                         break;
                     case OP_2ROT:
                         if (stack.size() < 6)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2ROT on a stack with size < 6");
-                        byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                        byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                        byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                        byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                        byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                        byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                        stack.add(OP2ROTtmpChunk3);
-                        stack.add(OP2ROTtmpChunk4);
-                        stack.add(OP2ROTtmpChunk5);
-                        stack.add(OP2ROTtmpChunk6);
-                        stack.add(OP2ROTtmpChunk1);
-                        stack.add(OP2ROTtmpChunk2);
+                        stack.push(stack.remove(5));
+                        stack.push(stack.remove(5));
                         break;
                     case OP_2SWAP:
                         if (stack.size() < 4)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2SWAP on a stack with size < 4");
-                        byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                        byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                        byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                        byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                        stack.add(OP2SWAPtmpChunk3);
-                        stack.add(OP2SWAPtmpChunk4);
-                        stack.add(OP2SWAPtmpChunk1);
-                        stack.add(OP2SWAPtmpChunk2);
+                        stack.swap(3, 1);
+                        stack.swap(2, 0);
                         break;
                     case OP_IFDUP:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_IFDUP on an empty stack");
-                        if (castToBool(stack.getLast()))
-                            stack.add(stack.getLast());
+                        if (castToBool(stack.peek()))
+                            stack.push(stack.peek());
                         break;
                     case OP_DEPTH:
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                        stack.push(encodeNumber(stack.size()));
                         break;
                     case OP_DROP:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DROP on an empty stack");
-                        stack.pollLast();
+                        stack.pop();
                         break;
                     case OP_DUP:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DUP on an empty stack");
-                        stack.add(stack.getLast());
+                        stack.push(stack.peek());
                         break;
                     case OP_NIP:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NIP on a stack with size < 2");
-                        byte[] OPNIPtmpChunk = stack.pollLast();
-                        stack.pollLast();
-                        stack.add(OPNIPtmpChunk);
+                        stack.remove(1);
                         break;
                     case OP_OVER:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_OVER on a stack with size < 2");
-                        Iterator<byte[]> itOVER = stack.descendingIterator();
-                        itOVER.next();
-                        stack.add(itOVER.next());
+                        stack.push(stack.peek(1));
                         break;
                     case OP_PICK:
                     case OP_ROLL:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_PICK/OP_ROLL on an empty stack");
-                        long val = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+                        long val = castToLong(stack.pop(), requireMinimal);
                         if (val < 0 || val >= stack.size())
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                        Iterator<byte[]> itPICK = stack.descendingIterator();
-                        for (long i = 0; i < val; i++)
-                            itPICK.next();
-                        byte[] OPROLLtmpChunk = itPICK.next();
-                        if (opcode == OP_ROLL)
-                            itPICK.remove();
-                        stack.add(OPROLLtmpChunk);
+                        stack.push(opcode == OP_ROLL ? stack.remove((int) val) : stack.peek((int) val));
                         break;
                     case OP_ROT:
                         if (stack.size() < 3)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_ROT on a stack with size < 3");
-                        byte[] OPROTtmpChunk3 = stack.pollLast();
-                        byte[] OPROTtmpChunk2 = stack.pollLast();
-                        byte[] OPROTtmpChunk1 = stack.pollLast();
-                        stack.add(OPROTtmpChunk2);
-                        stack.add(OPROTtmpChunk3);
-                        stack.add(OPROTtmpChunk1);
+                        stack.push(stack.remove(2));
                         break;
                     case OP_SWAP:
                     case OP_TUCK:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SWAP on a stack with size < 2");
-                        byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                        byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                        stack.add(OPSWAPtmpChunk2);
-                        stack.add(OPSWAPtmpChunk1);
+                        stack.swap(0, 1);
                         if (opcode == OP_TUCK)
-                            stack.add(OPSWAPtmpChunk2);
+                            stack.push(stack.peek(1));
                         break;
                     case OP_SIZE:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SIZE on an empty stack");
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                        stack.push(encodeNumber(stack.peek().length));
                         break;
                     case OP_EQUAL:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUAL on a stack with size < 2");
-                        stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[]{1} : new byte[]{});
+                        stack.push(Arrays.equals(stack.pop(), stack.pop()) ? new byte[]{1} : new byte[]{});
                         break;
                     case OP_EQUALVERIFY:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUALVERIFY on a stack with size < 2");
-                        if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                        if (!Arrays.equals(stack.pop(), stack.pop()))
                             throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
                         break;
                     case OP_1ADD:
@@ -1135,39 +1198,33 @@ public class Script {
                     case OP_0NOTEQUAL:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on an empty stack");
-                        BigInteger numericOPnum = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                        long numericOPnum = castToLong(stack.pop(), requireMinimal);
 
                         switch (opcode) {
                             case OP_1ADD:
-                                numericOPnum = numericOPnum.add(BigInteger.ONE);
+                                numericOPnum = numericOPnum + 1;
                                 break;
                             case OP_1SUB:
-                                numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                                numericOPnum = numericOPnum - 1;
                                 break;
                             case OP_NEGATE:
-                                numericOPnum = numericOPnum.negate();
+                                numericOPnum = -numericOPnum;
                                 break;
                             case OP_ABS:
-                                if (numericOPnum.signum() < 0)
-                                    numericOPnum = numericOPnum.negate();
+                                if (numericOPnum < 0)
+                                    numericOPnum = -numericOPnum;
                                 break;
                             case OP_NOT:
-                                if (numericOPnum.equals(BigInteger.ZERO))
-                                    numericOPnum = BigInteger.ONE;
-                                else
-                                    numericOPnum = BigInteger.ZERO;
+                                numericOPnum = numericOPnum == 0 ? 1 : 0;
                                 break;
                             case OP_0NOTEQUAL:
-                                if (numericOPnum.equals(BigInteger.ZERO))
-                                    numericOPnum = BigInteger.ZERO;
-                                else
-                                    numericOPnum = BigInteger.ONE;
+                                numericOPnum = numericOPnum == 0 ? 0 : 1;
                                 break;
                             default:
                                 throw new AssertionError("Unreachable");
                         }
 
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                        stack.push(encodeNumber(numericOPnum));
                         break;
                     case OP_ADD:
                     case OP_SUB:
@@ -1183,118 +1240,85 @@ public class Script {
                     case OP_MAX:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on a stack with size < 2");
-                        BigInteger numericOPnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                        BigInteger numericOPnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                        long numericOPnum2 = castToLong(stack.pop(), requireMinimal);
+                        long numericOPnum1 = castToLong(stack.pop(), requireMinimal);
 
-                        BigInteger numericOPresult;
+                        long numericOPresult;
                         switch (opcode) {
                             case OP_ADD:
-                                numericOPresult = numericOPnum1.add(numericOPnum2);
+                                numericOPresult = numericOPnum1 + numericOPnum2;
                                 break;
                             case OP_SUB:
-                                numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                                numericOPresult = numericOPnum1 - numericOPnum2;
                                 break;
                             case OP_BOOLAND:
-                                if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                                    numericOPresult = BigInteger.ONE;
-                                else
-                                    numericOPresult = BigInteger.ZERO;
+                                numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                                 break;
                             case OP_BOOLOR:
-                                if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                                    numericOPresult = BigInteger.ONE;
-                                else
-                                    numericOPresult = BigInteger.ZERO;
+                                numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                                 break;
                             case OP_NUMEQUAL:
-                                if (numericOPnum1.equals(numericOPnum2))
-                                    numericOPresult = BigInteger.ONE;
-                                else
-                                    numericOPresult = BigInteger.ZERO;
+                                numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                                 break;
                             case OP_NUMNOTEQUAL:
-                                if (!numericOPnum1.equals(numericOPnum2))
-                                    numericOPresult = BigInteger.ONE;
-                                else
-                                    numericOPresult = BigInteger.ZERO;
+                                numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                                 break;
                             case OP_LESSTHAN:
-                                if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                                    numericOPresult = BigInteger.ONE;
-                                else
-                                    numericOPresult = BigInteger.ZERO;
+                                numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                                 break;
                             case OP_GREATERTHAN:
-                                if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                                    numericOPresult = BigInteger.ONE;
-                                else
-                                    numericOPresult = BigInteger.ZERO;
+                                numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                                 break;
                             case OP_LESSTHANOREQUAL:
-                                if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                                    numericOPresult = BigInteger.ONE;
-                                else
-                                    numericOPresult = BigInteger.ZERO;
+                                numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                                 break;
                             case OP_GREATERTHANOREQUAL:
-                                if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                                    numericOPresult = BigInteger.ONE;
-                                else
-                                    numericOPresult = BigInteger.ZERO;
+                                numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                                 break;
                             case OP_MIN:
-                                if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                                    numericOPresult = numericOPnum1;
-                                else
-                                    numericOPresult = numericOPnum2;
+                                numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                                 break;
                             case OP_MAX:
-                                if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                                    numericOPresult = numericOPnum1;
-                                else
-                                    numericOPresult = numericOPnum2;
+                                numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                                 break;
                             default:
                                 throw new RuntimeException("Opcode switched at runtime?");
                         }
 
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                        stack.push(encodeNumber(numericOPresult));
                         break;
                     case OP_NUMEQUALVERIFY:
                         if (stack.size() < 2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                        BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                        BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                        long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop(), requireMinimal);
+                        long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop(), requireMinimal);
 
-                        if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                        if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_NUMEQUALVERIFY, "OP_NUMEQUALVERIFY failed");
                         break;
                     case OP_WITHIN:
                         if (stack.size() < 3)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_WITHIN on a stack with size < 3");
-                        BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                        BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                        BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                        if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                            stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                        else
-                            stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                        long OPWITHINnum3 = castToLong(stack.pop(), requireMinimal);
+                        long OPWITHINnum2 = castToLong(stack.pop(), requireMinimal);
+                        long OPWITHINnum1 = castToLong(stack.pop(), requireMinimal);
+                        stack.push(encodeNumber(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? 1 : 0));
                         break;
                     case OP_RIPEMD160:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_RIPEMD160 on an empty stack");
                         RIPEMD160Digest digest = new RIPEMD160Digest();
-                        byte[] dataToHash = stack.pollLast();
+                        byte[] dataToHash = stack.pop();
                         digest.update(dataToHash, 0, dataToHash.length);
                         byte[] ripmemdHash = new byte[20];
                         digest.doFinal(ripmemdHash, 0);
-                        stack.add(ripmemdHash);
+                        stack.push(ripmemdHash);
                         break;
                     case OP_SHA1:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA1 on an empty stack");
                         try {
-                            stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                            stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                         } catch (NoSuchAlgorithmException e) {
                             throw new RuntimeException(e);  // Cannot happen.
                         }
@@ -1302,17 +1326,17 @@ public class Script {
                     case OP_SHA256:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                        stack.add(Sha256Hash.hash(stack.pollLast()));
+                        stack.push(Sha256Hash.hash(stack.pop()));
                         break;
                     case OP_HASH160:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_HASH160 on an empty stack");
-                        stack.add(Utils.sha256hash160(stack.pollLast()));
+                        stack.push(Utils.sha256hash160(stack.pop()));
                         break;
                     case OP_HASH256:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                        stack.add(Sha256Hash.hashTwice(stack.pollLast()));
+                        stack.push(Sha256Hash.hashTwice(stack.pop()));
                         break;
                     case OP_CODESEPARATOR:
                         lastCodeSepLocation = nextLocationInScript;
@@ -1361,7 +1385,7 @@ public class Script {
                     case OP_REVERSEBYTES:
                         if (stack.size() < 1)
                             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_REVERSEBYTES on an empty stack");
-                        stack.add(Utils.reverseBytes(stack.pollLast()));
+                        stack.push(Utils.reverseBytes(stack.pop()));
                         break;
                     case OP_NOP1:
                     case OP_NOP4:
@@ -1390,27 +1414,27 @@ public class Script {
     }
 
     // This is more or less a direct translation of the code in Bitcoin Core
-    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKLOCKTIMEVERIFY on a stack with size < 1");
 
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums to avoid year 2038 issue.
-        final BigInteger nLockTime = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
+        final long nLockTime = castToLong(stack.peek(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
-        if (nLockTime.compareTo(BigInteger.ZERO) < 0)
+        if (nLockTime < 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative locktime");
 
         // There are two kinds of nLockTime, need to ensure we're comparing apples-to-apples
         if (!(
-                ((txContainingThis.getLockTime() < Transaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(Transaction.LOCKTIME_THRESHOLD_BIG)) < 0) ||
-                        ((txContainingThis.getLockTime() >= Transaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(Transaction.LOCKTIME_THRESHOLD_BIG)) >= 0))
+                ((txContainingThis.getLockTime() < Transaction.LOCKTIME_THRESHOLD) && (nLockTime < Transaction.LOCKTIME_THRESHOLD)) ||
+                        ((txContainingThis.getLockTime() >= Transaction.LOCKTIME_THRESHOLD) && (nLockTime >= Transaction.LOCKTIME_THRESHOLD)))
         )
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement type mismatch");
 
         // Now that we know we're comparing apples-to-apples, the
         // comparison is a simple numeric one.
-        if (nLockTime.compareTo(BigInteger.valueOf(txContainingThis.getLockTime())) > 0)
+        if (nLockTime > txContainingThis.getLockTime())
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement not satisfied");
 
         // Finally the nLockTime feature can be disabled and thus
@@ -1427,7 +1451,7 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSEQUENCEVERIFY on a stack with size < 1");
 
@@ -1440,7 +1464,7 @@ public class Script {
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums, which are good until 2**39-1, well
         // beyond the 2**32-1 limit of the nSequence field itself.
-        final long nSequence = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+        final long nSequence = castToLong(stack.peek(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
         // In the rare event that the argument may be < 0 due to
         // some arithmetic being done first, you can always use
@@ -1500,7 +1524,7 @@ public class Script {
     }
 
     // https://github.com/bitcoincashorg/bitcoincash.org/blob/master/spec/op_checkdatasig.md
-    private static void executeCheckDataSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckDataSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                             int lastCodeSepLocation, int opcode,
                                             Set<VerifyFlag> verifyFlags) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1508,9 +1532,9 @@ public class Script {
                 || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 3)
             throw new ScriptException(ScriptError.SCRIPT_ERR_STACK_SIZE, "Attempted OP_DATACHECKSIG(VERIFY) on a stack with size < 3");
-        byte[] pubKey = stack.pollLast();
-        byte[] messageByte = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] messageByte = stack.pop();
+        byte[] sigBytes = stack.pop();
 
         boolean sigValid = false;
 
@@ -1520,14 +1544,14 @@ public class Script {
 
             Sha256Hash hash = Sha256Hash.of(messageByte);
 
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash, sigBytes, sig, pubKey);
         } catch (VerificationException.NoncanonicalSignature e1) {
             try {
                 SchnorrSignature sig = SchnorrSignature.decodeFromBitcoin(sigBytes);
 
                 Sha256Hash hash = Sha256Hash.of(messageByte);
 
-                sigValid = ECKey.verifySchnorr(hash.getBytes(), sig, pubKey);
+                sigValid = verifySchnorrSignature(hash, sigBytes, sig, pubKey);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -1542,13 +1566,13 @@ public class Script {
         }
 
         if (opcode == OP_CHECKDATASIG)
-            stack.add(sigValid ? new byte[]{1} : new byte[]{});
+            stack.push(sigValid ? new byte[]{1} : new byte[]{});
         else if (opcode == OP_CHECKDATASIGVERIFY)
             if (!sigValid)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode, Coin value,
                                         Set<VerifyFlag> verifyFlags) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1556,8 +1580,8 @@ public class Script {
                 || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
@@ -1580,7 +1604,7 @@ public class Script {
             Sha256Hash hash = sig.useForkId() ?
                     txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
                     txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash, sigBytes, sig, pubKey);
         } catch (VerificationException.NoncanonicalSignature e) {
             //try Schnorr sig
             try {
@@ -1590,7 +1614,7 @@ public class Script {
                 Sha256Hash hash = sig.useForkId() ?
                         txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
                         txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                sigValid = ECKey.verifySchnorr(hash.getBytes(), sig, pubKey);
+                sigValid = verifySchnorrSignature(hash, sigBytes, sig, pubKey);
             } catch (Exception e1) {
                 e1.printStackTrace();
             }
@@ -1607,13 +1631,13 @@ public class Script {
         }
 
         if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[]{1} : new byte[]{});
+            stack.push(sigValid ? new byte[]{1} : new byte[]{});
         else if (opcode == OP_CHECKSIGVERIFY)
             if (!sigValid)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode, Coin value,
                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
         boolean usingSchnorr = false;
@@ -1623,7 +1647,7 @@ public class Script {
                 || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (pubKeyCount < 0 || pubKeyCount > MAX_PUBKEYS_PER_MULTISIG)
             throw new ScriptException(ScriptError.SCRIPT_ERR_PUBKEY_COUNT, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1634,11 +1658,11 @@ public class Script {
 
         LinkedList<byte[]> pubkeys = new LinkedList<>();
         for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
+            byte[] pubKey = stack.pop();
             pubkeys.add(pubKey);
         }
 
-        int sigCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int sigCount = (int) castToLong(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_COUNT, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
@@ -1646,7 +1670,7 @@ public class Script {
 
         LinkedList<byte[]> sigs = new LinkedList<>();
         for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
+            byte[] sig = stack.pop();
             sigs.add(sig);
         }
 
@@ -1674,7 +1698,7 @@ public class Script {
                         txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
                         txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
 
-                if (ECKey.verify(hash.getBytes(), sig, pubKey)) {
+                if (verifySignature(hash, sigs.getFirst(), sig, pubKey)) {
                     usingSchnorr = false;
                     sigs.pollFirst();
                 }
@@ -1685,7 +1709,7 @@ public class Script {
                             txContainingThis.hashForSignatureWitness(index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
                             txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
 
-                    if (ECKey.verifySchnorr(hash.getBytes(), sig, pubKey)) {
+                    if (verifySchnorrSignature(hash, sigs.getFirst(), sig, pubKey)) {
                         usingSchnorr = true;
                         sigs.pollFirst();
                     }
@@ -1707,13 +1731,13 @@ public class Script {
         // We uselessly remove a stack object to emulate a Bitcoin Core bug.
         // This only applies to non-Schnorr multisig inputs
         if(!usingSchnorr) {
-            byte[] nullDummy = stack.pollLast();
+            byte[] nullDummy = stack.pop();
             if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
         }
 
         if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[]{1} : new byte[]{});
+            stack.push(valid ? new byte[]{1} : new byte[]{});
         } else if (opcode == OP_CHECKMULTISIGVERIFY) {
             if (!valid)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "Script failed OP_CHECKMULTISIGVERIFY");
@@ -1721,6 +1745,29 @@ public class Script {
         return opCount;
     }
 
+    // Signature checks go through the ScriptValidationCache, so that a signature is only verified once.
+    private static boolean verifySignature(Sha256Hash hash, byte[] sigBytes, ECKey.ECDSASignature sig, byte[] pubKey) {
+        ScriptValidationCache cache = ScriptValidationCache.get();
+        Sha256Hash cacheKey = cache.signatureKey(hash, pubKey, sigBytes, false);
+        if (cacheKey != null && cache.containsSignature(cacheKey))
+            return true;
+        boolean valid = ECKey.verify(hash.getBytes(), sig, pubKey);
+        if (valid && cacheKey != null)
+            cache.addSignature(cacheKey);
+        return valid;
+    }
+
+    private static boolean verifySchnorrSignature(Sha256Hash hash, byte[] sigBytes, SchnorrSignature sig, byte[] pubKey) {
+        ScriptValidationCache cache = ScriptValidationCache.get();
+        Sha256Hash cacheKey = cache.signatureKey(hash, pubKey, sigBytes, true);
+        if (cacheKey != null && cache.containsSignature(cacheKey))
+            return true;
+        boolean valid = ECKey.verifySchnorr(hash.getBytes(), sig, pubKey);
+        if (valid && cacheKey != null)
+            cache.addSignature(cacheKey);
+        return valid;
+    }
+
     /**
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, enabling all
      * validation rules.
@@ -1752,6 +1799,19 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
+        // Spends that were verified before, e.g. when the transaction was first seen and again now that it is in a
+        // block, are only verified once.
+        ScriptValidationCache cache = ScriptValidationCache.get();
+        Sha256Hash cacheKey = cache.scriptKey(txContainingThis, scriptSigIndex, this, scriptPubKey, value, verifyFlags);
+        if (cacheKey != null && cache.containsScript(cacheKey))
+            return;
+        verifySpend(txContainingThis, scriptSigIndex, scriptPubKey, value, verifyFlags);
+        if (cacheKey != null)
+            cache.addScript(cacheKey);
+    }
+
+    private void verifySpend(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey, Coin value,
+                             Set<VerifyFlag> verifyFlags) throws ScriptException {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
         // the tx half broken (also it's not so thread safe to work on it directly.
         try {
@@ -1762,21 +1822,23 @@ public class Script {
         if (getProgram().length > MAX_SCRIPT_SIZE || scriptPubKey.getProgram().length > MAX_SCRIPT_SIZE)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
 
-        LinkedList<byte[]> stack = new LinkedList<>();
-        LinkedList<byte[]> p2shStack = null;
+        if (correctlySpendsStandardTemplate(txContainingThis, (int) scriptSigIndex, scriptPubKey, value, verifyFlags))
+            return;
+
+        ScriptStack stack = new ScriptStack();
+        ScriptStack p2shStack = null;
 
         executeScript(txContainingThis, scriptSigIndex, this, stack, value, verifyFlags);
         if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<>(stack);
+            p2shStack = new ScriptStack(stack);
         executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, value, verifyFlags);
 
         if (stack.size() == 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
 
-        List<byte[]> stackCopy = new LinkedList<>(stack);
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.peek()))
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
-                    "Script resulted in a non-true stack: " + Utils.toString(stackCopy));
+                    "Script resulted in a non-true stack: " + Utils.toString(stack.toList()));
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
         // program but it has "useless" form that if evaluated as a normal program always returns true.
@@ -1796,7 +1858,7 @@ public class Script {
                 if (!chunk.isPushData())
                     throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained the script op " + chunk);
 
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
 
             executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, value, verifyFlags);
@@ -1804,13 +1866,99 @@ public class Script {
             if (p2shStack.size() == 0)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
 
-            List<byte[]> p2shStackCopy = new LinkedList<>(p2shStack);
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.peek()))
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
-                        "P2SH script execution resulted in a non-true stack: " + Utils.toString(p2shStackCopy));
+                        "P2SH script execution resulted in a non-true stack: " + Utils.toString(p2shStack.toList()));
         }
     }
 
+    /**
+     * Verifies the common standard templates without going through the generic interpreter: P2PKH, P2PK and P2SH
+     * wrapping a bare multisig redeem script. The pushes are taken straight from the chunks and the signatures are
+     * checked by the same code the interpreter uses, so the outcome and any error are the same as interpreting both
+     * scripts. Returns false if the scripts don't match one of the templates exactly, in which case nothing has been
+     * verified and the generic path has to be used.
+     */
+    private boolean correctlySpendsStandardTemplate(Transaction txContainingThis, int scriptSigIndex, Script scriptPubKey,
+                                                    Coin value, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
+        // A redeem script can take at most 16 signatures plus the dummy element.
+        if (chunks.isEmpty() || chunks.size() > 18)
+            return false;
+        for (ScriptChunk chunk : chunks)
+            if (!isPlainPush(chunk, requireMinimal))
+                return false;
+
+        if (ScriptPattern.isP2PKH(scriptPubKey)) {
+            if (chunks.size() != 2 || !isPlainPush(scriptPubKey.chunks.get(2), requireMinimal))
+                return false;
+            byte[] pubKey = pushedData(chunks.get(1));
+            if (!Arrays.equals(Utils.sha256hash160(pubKey), ScriptPattern.extractHashFromP2PKH(scriptPubKey)))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
+            ScriptStack stack = new ScriptStack();
+            stack.push(pushedData(chunks.get(0)));
+            stack.push(pubKey);
+            executeCheckSig(txContainingThis, scriptSigIndex, scriptPubKey, stack, 0, OP_CHECKSIG, value, verifyFlags);
+            if (!castToBool(stack.peek()))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Script resulted in a non-true stack: []");
+            return true;
+        }
+
+        if (ScriptPattern.isP2PK(scriptPubKey)) {
+            if (chunks.size() != 1 || !isPlainPush(scriptPubKey.chunks.get(0), requireMinimal))
+                return false;
+            ScriptStack stack = new ScriptStack();
+            stack.push(pushedData(chunks.get(0)));
+            stack.push(pushedData(scriptPubKey.chunks.get(0)));
+            executeCheckSig(txContainingThis, scriptSigIndex, scriptPubKey, stack, 0, OP_CHECKSIG, value, verifyFlags);
+            if (!castToBool(stack.peek()))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Script resulted in a non-true stack: []");
+            return true;
+        }
+
+        if (verifyFlags.contains(VerifyFlag.P2SH) && ScriptPattern.isP2SH(scriptPubKey)) {
+            byte[] redeemScriptBytes = pushedData(chunks.get(chunks.size() - 1));
+            if (!Arrays.equals(Utils.sha256hash160(redeemScriptBytes), ScriptPattern.extractHashFromP2SH(scriptPubKey)))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Script resulted in a non-true stack: []");
+            Script redeemScript = new Script(redeemScriptBytes);
+            List<ScriptChunk> redeemChunks = redeemScript.chunks;
+            if (!ScriptPattern.isSentToMultisig(redeemScript)
+                    || !redeemChunks.get(redeemChunks.size() - 1).equalsOpCode(OP_CHECKMULTISIG))
+                return false;
+            for (int i = 1; i < redeemChunks.size() - 2; i++)
+                if (!isPlainPush(redeemChunks.get(i), requireMinimal))
+                    return false;
+
+            ScriptStack stack = new ScriptStack();
+            for (int i = 0; i < chunks.size() - 1; i++)
+                stack.push(pushedData(chunks.get(i)));
+            for (int i = 0; i < redeemChunks.size() - 1; i++) {
+                ScriptChunk chunk = redeemChunks.get(i);
+                stack.push(chunk.isOpCode() ? encodeNumber(decodeFromOpN(chunk.opcode)) : pushedData(chunk));
+            }
+            // The OP_CHECKMULTISIG itself counts as one operation.
+            executeMultiSig(txContainingThis, scriptSigIndex, redeemScript, stack, 1, 0, OP_CHECKMULTISIG, value, verifyFlags);
+            if (!castToBool(stack.peek()))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
+                        "P2SH script execution resulted in a non-true stack: " + Utils.toString(stack.toList()));
+            return true;
+        }
+        return false;
+    }
+
+    // Whether the chunk is a data push (not OP_1NEGATE or OP_N) that the interpreter would accept.
+    private static boolean isPlainPush(ScriptChunk chunk, boolean requireMinimal) {
+        if (chunk.opcode > OP_PUSHDATA4)
+            return false;
+        if (chunk.data != null && chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+            return false;
+        return !requireMinimal || chunk.isShortestPossiblePushData();
+    }
+
+    private static byte[] pushedData(ScriptChunk chunk) {
+        return chunk.opcode == OP_0 ? new byte[]{} : chunk.data;
+    }
+
     // Utility that doesn't copy for internal use
     private byte[] getQuickProgram() {
         if (program != null)
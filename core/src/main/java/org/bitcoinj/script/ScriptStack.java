@@ -0,0 +1,105 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An array backed stack of script elements as used by the script interpreter. Elements are addressed by their depth,
+ * where depth 0 is the top of the stack. Bounds are checked by the interpreter before each operation, so none are
+ * checked here beyond what the array itself does.
+ */
+final class ScriptStack {
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        elements = new byte[16][];
+    }
+
+    ScriptStack(Collection<byte[]> initial) {
+        elements = initial.toArray(new byte[Math.max(16, initial.size())][]);
+        size = initial.size();
+    }
+
+    ScriptStack(ScriptStack other) {
+        elements = Arrays.copyOf(other.elements, Math.max(16, other.size));
+        size = other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    byte[] peek() {
+        return elements[size - 1];
+    }
+
+    /** Returns the element at the given depth without removing it. */
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes and returns the element at the given depth. */
+    byte[] remove(int depth) {
+        int index = size - 1 - depth;
+        byte[] element = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /** Swaps the elements at the two given depths. */
+    void swap(int depth1, int depth2) {
+        int index1 = size - 1 - depth1, index2 = size - 1 - depth2;
+        byte[] element = elements[index1];
+        elements[index1] = elements[index2];
+        elements[index2] = element;
+    }
+
+    /** Copies the elements from bottom to top into the given collection. */
+    void copyTo(Collection<byte[]> target) {
+        for (int i = 0; i < size; i++)
+            target.add(elements[i]);
+    }
+
+    /** Returns the elements from bottom to top. */
+    List<byte[]> toList() {
+        List<byte[]> list = new ArrayList<>(size);
+        copyTo(list);
+        return list;
+    }
+}
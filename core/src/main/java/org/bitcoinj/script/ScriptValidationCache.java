@@ -0,0 +1,200 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script.VerifyFlag;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which script executions and signatures have already been verified successfully, so that a transaction
+ * which was verified when it was first seen isn't verified again when it later shows up in a block. Only successes
+ * are remembered, keyed by a hash of everything the outcome depends on, so a hit can never accept something that
+ * would have failed.</p>
+ *
+ * <p>Script executions are keyed by transaction id, input index, scriptSig, scriptPubKey, spent value and verify flags.
+ * Signatures are keyed by the hash that was signed, the public key and the signature. The signature cache also helps
+ * when the same signature is checked in a different transaction, for example while a multisig spend is being
+ * completed.</p>
+ *
+ * <p>Both caches are bounded and safe to use from multiple threads. {@link Script#correctlySpends} uses the instance
+ * returned by {@link #get()}, which is therefore shared by the wallet, peers and the block chain.</p>
+ */
+public class ScriptValidationCache {
+    public static final int DEFAULT_MAX_SCRIPT_ENTRIES = 100000;
+    public static final int DEFAULT_MAX_SIGNATURE_ENTRIES = 100000;
+
+    private static final ScriptValidationCache INSTANCE = new ScriptValidationCache(DEFAULT_MAX_SCRIPT_ENTRIES,
+            DEFAULT_MAX_SIGNATURE_ENTRIES);
+
+    /** Returns the cache used by the script interpreter. */
+    public static ScriptValidationCache get() {
+        return INSTANCE;
+    }
+
+    private static final byte SIGNATURE_ECDSA = 0;
+    private static final byte SIGNATURE_SCHNORR = 1;
+
+    private final Cache<Sha256Hash, Boolean> scripts;
+    private final Cache<Sha256Hash, Boolean> signatures;
+    private volatile boolean enabled = true;
+
+    private final AtomicLong scriptHits = new AtomicLong();
+    private final AtomicLong scriptMisses = new AtomicLong();
+    private final AtomicLong signatureHits = new AtomicLong();
+    private final AtomicLong signatureMisses = new AtomicLong();
+
+    public ScriptValidationCache(int maxScriptEntries, int maxSignatureEntries) {
+        checkArgument(maxScriptEntries >= 0 && maxSignatureEntries >= 0);
+        int concurrencyLevel = Math.max(4, Runtime.getRuntime().availableProcessors());
+        scripts = CacheBuilder.newBuilder().maximumSize(maxScriptEntries).concurrencyLevel(concurrencyLevel).build();
+        signatures = CacheBuilder.newBuilder().maximumSize(maxSignatureEntries).concurrencyLevel(concurrencyLevel).build();
+    }
+
+    /**
+     * Enables or disables the cache. While disabled nothing is looked up or added, which is useful for benchmarking
+     * script verification itself.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Forgets all entries and resets the statistics. */
+    public void clear() {
+        scripts.invalidateAll();
+        signatures.invalidateAll();
+        scriptHits.set(0);
+        scriptMisses.set(0);
+        signatureHits.set(0);
+        signatureMisses.set(0);
+    }
+
+    /**
+     * Returns the key of a script execution, or null if the cache is disabled.
+     */
+    @Nullable
+    Sha256Hash scriptKey(Transaction tx, long index, Script scriptSig, Script scriptPubKey, Coin value,
+                         Set<VerifyFlag> verifyFlags) {
+        if (!enabled)
+            return null;
+        int flags = 0;
+        for (VerifyFlag flag : verifyFlags)
+            flags |= 1 << flag.ordinal();
+        byte[] header = new byte[4 + 4 + 8];
+        Utils.uint32ToByteArrayLE(index, header, 0);
+        Utils.uint32ToByteArrayLE(flags, header, 4);
+        Utils.int64ToByteArrayLE(value.value, header, 8);
+        byte[] scriptSigBytes = scriptSig.getProgram();
+        byte[] lengths = new byte[4];
+        Utils.uint32ToByteArrayLE(scriptSigBytes.length, lengths, 0);
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(tx.getTxId().getBytes());
+        digest.update(header);
+        digest.update(lengths);
+        digest.update(scriptSigBytes);
+        digest.update(scriptPubKey.getProgram());
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    boolean containsScript(Sha256Hash key) {
+        boolean hit = scripts.getIfPresent(key) != null;
+        (hit ? scriptHits : scriptMisses).incrementAndGet();
+        return hit;
+    }
+
+    void addScript(Sha256Hash key) {
+        scripts.put(key, Boolean.TRUE);
+    }
+
+    /**
+     * Returns the key of a signature check, or null if the cache is disabled.
+     */
+    @Nullable
+    Sha256Hash signatureKey(Sha256Hash hash, byte[] pubKey, byte[] signature, boolean schnorr) {
+        if (!enabled)
+            return null;
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(schnorr ? SIGNATURE_SCHNORR : SIGNATURE_ECDSA);
+        digest.update(hash.getBytes());
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        digest.update(signature);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    boolean containsSignature(Sha256Hash key) {
+        boolean hit = signatures.getIfPresent(key) != null;
+        (hit ? signatureHits : signatureMisses).incrementAndGet();
+        return hit;
+    }
+
+    void addSignature(Sha256Hash key) {
+        signatures.put(key, Boolean.TRUE);
+    }
+
+    public long getScriptHits() {
+        return scriptHits.get();
+    }
+
+    public long getScriptMisses() {
+        return scriptMisses.get();
+    }
+
+    /** Returns the fraction of script execution lookups that were hits, or 0 if there were none. */
+    public double getScriptHitRate() {
+        return hitRate(scriptHits.get(), scriptMisses.get());
+    }
+
+    public long getSignatureHits() {
+        return signatureHits.get();
+    }
+
+    public long getSignatureMisses() {
+        return signatureMisses.get();
+    }
+
+    /** Returns the fraction of signature lookups that were hits, or 0 if there were none. */
+    public double getSignatureHitRate() {
+        return hitRate(signatureHits.get(), signatureMisses.get());
+    }
+
+    private static double hitRate(long hits, long misses) {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scripts: %d entries, %.1f%% hits; signatures: %d entries, %.1f%% hits",
+                scripts.size(), getScriptHitRate() * 100, signatures.size(), getSignatureHitRate() * 100);
+    }
+}
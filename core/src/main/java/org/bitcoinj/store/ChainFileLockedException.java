@@ -17,7 +17,8 @@
 package org.bitcoinj.store;
 
 /**
- * Thrown by {@link SPVBlockStore} when the process cannot gain exclusive access to the chain file.
+ * Thrown by {@link SPVBlockStore} and {@link MappedFullPrunedBlockStore} when the process cannot gain exclusive access
+ * to the chain file or directory.
  */
 public class ChainFileLockedException extends BlockStoreException {
     public ChainFileLockedException(String message) {
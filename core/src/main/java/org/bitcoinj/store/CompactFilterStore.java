@@ -0,0 +1,346 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.BlockFilter;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Keeps the BIP157 filter headers of a stretch of the best chain and the {@link BlockFilter}s downloaded for it, so
+ * that wallets can be rescanned without asking the network for the filters again. Used by
+ * {@link org.bitcoinj.core.CompactFilterSync}.</p>
+ *
+ * <p>The headers are kept in one file as fixed size records of the block hash and the filter header, one per height
+ * from the base height on. The header at the base height is the anchor the others were checked against and has no
+ * filter. The filters are appended to a second file, together with a checksum so that a record torn by a crash is
+ * dropped when the store is opened; their positions are kept in memory. Both files are only ever cut back by
+ * {@link #truncate(int)}, when the chain reorganizes.</p>
+ */
+public class CompactFilterStore {
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterStore.class);
+
+    private static final String HEADERS_FILE = "cfheaders.dat";
+    private static final String FILTERS_FILE = "cfilters.dat";
+
+    // base height, then block hash and filter header per height
+    private static final int HEADERS_START = 4;
+    private static final int HEADER_RECORD_SIZE = 32 + 32;
+    // height, block hash, filter length, filter, checksum
+    private static final int FILTER_RECORD_OVERHEAD = 4 + 32 + 4 + 4;
+
+    private final ReentrantLock lock = Threading.lock(CompactFilterStore.class);
+    private final NetworkParameters params;
+    private final RandomAccessFile headersFile;
+    private final RandomAccessFile filtersFile;
+    // -1 if there are no headers.
+    private int baseHeight = -1;
+    private int headerCount;
+    private final TreeMap<Integer, Long> filterOffsets = new TreeMap<>();
+
+    /** Opens the store in the given directory, creating it if needed. */
+    public CompactFilterStore(NetworkParameters params, File directory) throws BlockStoreException {
+        this.params = params;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        try {
+            headersFile = new RandomAccessFile(new File(directory, HEADERS_FILE), "rw");
+            filtersFile = new RandomAccessFile(new File(directory, FILTERS_FILE), "rw");
+            load();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void load() throws IOException {
+        long length = headersFile.length();
+        if (length >= HEADERS_START + HEADER_RECORD_SIZE) {
+            headersFile.seek(0);
+            baseHeight = headersFile.readInt();
+            headerCount = (int) ((length - HEADERS_START) / HEADER_RECORD_SIZE);
+            headersFile.setLength(HEADERS_START + (long) headerCount * HEADER_RECORD_SIZE);
+        } else {
+            headersFile.setLength(0);
+        }
+
+        // Replay the filters, stopping at the first record that is incomplete or damaged.
+        long end = filtersFile.length();
+        long offset = 0;
+        byte[] fixed = new byte[4 + 32 + 4];
+        while (offset + FILTER_RECORD_OVERHEAD <= end) {
+            filtersFile.seek(offset);
+            filtersFile.readFully(fixed);
+            ByteBuffer buf = ByteBuffer.wrap(fixed);
+            int height = buf.getInt();
+            buf.position(4 + 32);
+            int size = buf.getInt();
+            if (size < 0 || offset + FILTER_RECORD_OVERHEAD + size > end)
+                break;
+            byte[] filter = new byte[size];
+            filtersFile.readFully(filter);
+            if (filtersFile.readInt() != checksum(fixed, filter))
+                break;
+            if (height > getHeaderHeightLocked())
+                break;
+            filterOffsets.put(height, offset);
+            offset += FILTER_RECORD_OVERHEAD + size;
+        }
+        if (offset != end) {
+            log.info("Dropping {} bytes from the end of the filter log", end - offset);
+            filtersFile.setLength(offset);
+        }
+        log.info("Opened compact filter store with {} headers and {} filters", headerCount, filterOffsets.size());
+    }
+
+    private static int checksum(byte[] fixed, byte[] filter) {
+        CRC32 crc = new CRC32();
+        crc.update(fixed);
+        crc.update(filter);
+        return (int) crc.getValue();
+    }
+
+    /** Returns the height of the anchor header, or -1 if the store is empty. */
+    public int getBaseHeight() {
+        lock.lock();
+        try {
+            return baseHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height of the last filter header, or -1 if the store is empty. */
+    public int getHeaderHeight() {
+        lock.lock();
+        try {
+            return getHeaderHeightLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getHeaderHeightLocked() {
+        return baseHeight < 0 ? -1 : baseHeight + headerCount - 1;
+    }
+
+    /** Returns the filter header at the given height, or null if the store doesn't have it. */
+    @Nullable
+    public Sha256Hash getFilterHeader(int height) throws BlockStoreException {
+        return readHeaderRecord(height, 32);
+    }
+
+    /** Returns the hash of the block the filter header at the given height is for, or null if there is none. */
+    @Nullable
+    public Sha256Hash getBlockHash(int height) throws BlockStoreException {
+        return readHeaderRecord(height, 0);
+    }
+
+    @Nullable
+    private Sha256Hash readHeaderRecord(int height, int field) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (baseHeight < 0 || height < baseHeight || height > getHeaderHeightLocked())
+                return null;
+            byte[] bytes = new byte[32];
+            headersFile.seek(HEADERS_START + (long) (height - baseHeight) * HEADER_RECORD_SIZE + field);
+            headersFile.readFully(bytes);
+            return Sha256Hash.wrap(bytes);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the filter headers of the blocks from the given height on, which must follow on the header before them.
+     * If the store is empty, that previous header becomes the anchor; otherwise it must be the one stored at that
+     * height, and any headers above it are replaced.
+     *
+     * @param startHeight height of the first of the headers
+     * @param previousBlockHash hash of the block before the first one
+     * @param previousHeader filter header of the block before the first one
+     * @param blockHashes hashes of the blocks the headers are for
+     * @param headers the filter headers
+     */
+    public void putFilterHeaders(int startHeight, Sha256Hash previousBlockHash, Sha256Hash previousHeader,
+                                 List<Sha256Hash> blockHashes, List<Sha256Hash> headers) throws BlockStoreException {
+        checkArgument(blockHashes.size() == headers.size());
+        checkArgument(startHeight > 0);
+        lock.lock();
+        try {
+            if (baseHeight < 0) {
+                headersFile.setLength(0);
+                headersFile.writeInt(startHeight - 1);
+                baseHeight = startHeight - 1;
+                writeHeaderRecord(previousBlockHash, previousHeader);
+                headerCount = 1;
+            } else {
+                checkArgument(startHeight - 1 >= baseHeight && startHeight - 1 <= getHeaderHeightLocked(),
+                        "Headers from %s don't follow on the store", startHeight);
+                checkArgument(previousHeader.equals(getFilterHeader(startHeight - 1)),
+                        "Headers from %s don't follow on the stored header", startHeight);
+                truncateLocked(startHeight - 1);
+            }
+            headersFile.seek(HEADERS_START + (long) headerCount * HEADER_RECORD_SIZE);
+            for (int i = 0; i < headers.size(); i++)
+                writeHeaderRecord(blockHashes.get(i), headers.get(i));
+            headerCount += headers.size();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeHeaderRecord(Sha256Hash blockHash, Sha256Hash header) throws IOException {
+        headersFile.write(blockHash.getBytes());
+        headersFile.write(header.getBytes());
+    }
+
+    /** Returns true if the filter of the block at the given height is stored. */
+    public boolean hasFilter(int height) {
+        lock.lock();
+        try {
+            return filterOffsets.containsKey(height);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the filter of the block at the given height. The store must have the filter header of that height; the
+     * filter is expected to have been checked against it.
+     */
+    public void putFilter(int height, BlockFilter filter) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkArgument(height > baseHeight && height <= getHeaderHeightLocked(), "No filter header at %s", height);
+            if (filterOffsets.containsKey(height))
+                return;
+            byte[] bytes = filter.getFilterBytes();
+            ByteBuffer fixed = ByteBuffer.allocate(4 + 32 + 4);
+            fixed.putInt(height).put(filter.getBlockHash().getBytes()).putInt(bytes.length);
+            long offset = filtersFile.length();
+            filtersFile.seek(offset);
+            filtersFile.write(fixed.array());
+            filtersFile.write(bytes);
+            filtersFile.writeInt(checksum(fixed.array(), bytes));
+            filterOffsets.put(height, offset);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the filter of the block at the given height, or null if it isn't stored. */
+    @Nullable
+    public BlockFilter getFilter(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            Long offset = filterOffsets.get(height);
+            if (offset == null)
+                return null;
+            filtersFile.seek(offset + 4);
+            byte[] hash = new byte[32];
+            filtersFile.readFully(hash);
+            byte[] bytes = new byte[filtersFile.readInt()];
+            filtersFile.readFully(bytes);
+            return new BlockFilter(params, BlockFilter.BASIC, Sha256Hash.wrap(hash), bytes);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the headers and filters of all blocks above the given height, for when they left the best chain. If the
+     * height is below the anchor, the store is emptied.
+     */
+    public void truncate(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            truncateLocked(height);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void truncateLocked(int height) throws IOException {
+        checkState(lock.isHeldByCurrentThread());
+        if (baseHeight < 0 || height >= getHeaderHeightLocked())
+            return;
+        if (height < baseHeight) {
+            baseHeight = -1;
+            headerCount = 0;
+            headersFile.setLength(0);
+        } else {
+            headerCount = height - baseHeight + 1;
+            headersFile.setLength(HEADERS_START + (long) headerCount * HEADER_RECORD_SIZE);
+        }
+        // Filters are appended in no particular order, so cut the log at the first one that goes and forget
+        // everything after it, even the ones that could stay.
+        Map<Integer, Long> dropped = filterOffsets.tailMap(height, false);
+        if (dropped.isEmpty())
+            return;
+        long cut = Long.MAX_VALUE;
+        for (long offset : dropped.values())
+            cut = Math.min(cut, offset);
+        dropped.clear();
+        for (Iterator<Long> it = filterOffsets.values().iterator(); it.hasNext(); )
+            if (it.next() >= cut)
+                it.remove();
+        filtersFile.setLength(cut);
+    }
+
+    /** Writes everything to disk and closes the files. */
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            headersFile.getChannel().force(true);
+            filtersFile.getChannel().force(true);
+            headersFile.close();
+            filtersFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
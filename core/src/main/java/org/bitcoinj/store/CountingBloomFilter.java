@@ -0,0 +1,227 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A counting Bloom filter over 32 byte hashes, kept in a memory mapped file so that it lives off the heap and
+ * survives restarts. Unlike a plain Bloom filter, entries can be removed again, so the false positive rate stays
+ * the same as long as the number of entries does not outgrow the capacity the filter was created for.</p>
+ *
+ * <p>Each position is a four bit counter. A counter that reaches 15 sticks there, because after an overflow it is
+ * unknown how many entries share it. That only costs false positives: {@link #mightContain(byte[])} never returns
+ * false for an entry that was added and not removed.</p>
+ *
+ * <p>The file carries a clean flag and a tag chosen by the caller, typically the chain head the filter matches. The
+ * flag is cleared as soon as the filter is opened and only set again by {@link #close(byte[])}, so a filter that was
+ * not closed properly, e.g. because of a crash, is never trusted. This class is not thread safe.</p>
+ */
+class CountingBloomFilter {
+    private static final int MAGIC = 0x43424631; // "CBF1"
+    private static final int NUM_HASHES = 4;
+    // Counters per expected entry. With four hashes this gives a false positive rate of about 1% at capacity.
+    private static final int COUNTERS_PER_ENTRY = 10;
+    private static final long MIN_COUNTERS = 1 << 16;
+    // A single mapping is limited to 2GB.
+    private static final long MAX_COUNTERS = (Integer.MAX_VALUE - 64L) * 2;
+
+    // Header layout.
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CLEAN_OFFSET = 4;
+    private static final int COUNTERS_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int ENTRIES_OFFSET = 24;
+    private static final int TAG_OFFSET = 32;
+    private static final int TAG_LENGTH = 32;
+    private static final int HEADER_SIZE = TAG_OFFSET + TAG_LENGTH;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final long numCounters;
+    private final long capacity;
+    private long entries;
+
+    private CountingBloomFilter(RandomAccessFile file, MappedByteBuffer buffer, long numCounters, long capacity,
+                                long entries) {
+        this.file = file;
+        this.buffer = buffer;
+        this.numCounters = numCounters;
+        this.capacity = capacity;
+        this.entries = entries;
+    }
+
+    /**
+     * Creates an empty filter for the given number of entries, replacing the file if it exists.
+     */
+    static CountingBloomFilter create(File path, long capacity) throws IOException {
+        checkArgument(capacity >= 0);
+        long numCounters = Math.min(MAX_COUNTERS, Math.max(MIN_COUNTERS, capacity * COUNTERS_PER_ENTRY));
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            // Truncating first makes the OS hand out zeroed pages for the counters.
+            file.setLength(0);
+            long size = HEADER_SIZE + (numCounters + 1) / 2;
+            file.setLength(size);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(CLEAN_OFFSET, 0);
+            buffer.putLong(COUNTERS_OFFSET, numCounters);
+            buffer.putLong(CAPACITY_OFFSET, capacity);
+            buffer.putLong(ENTRIES_OFFSET, 0);
+            return new CountingBloomFilter(file, buffer, numCounters, capacity, 0);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a filter that was closed with the given tag. Returns null if there is no such filter, in which case the
+     * caller has to create and fill a new one.
+     */
+    @Nullable
+    static CountingBloomFilter open(File path, byte[] tag) throws IOException {
+        checkArgument(tag.length == TAG_LENGTH);
+        if (!path.isFile() || path.length() < HEADER_SIZE)
+            return null;
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            long size = file.length();
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            long numCounters = buffer.getLong(COUNTERS_OFFSET);
+            byte[] storedTag = new byte[TAG_LENGTH];
+            for (int i = 0; i < TAG_LENGTH; i++)
+                storedTag[i] = buffer.get(TAG_OFFSET + i);
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(CLEAN_OFFSET) != 1
+                    || numCounters <= 0 || size != HEADER_SIZE + (numCounters + 1) / 2
+                    || !Arrays.equals(tag, storedTag)) {
+                file.close();
+                return null;
+            }
+            // From now on the counters will change, so the file no longer matches the tag until it is closed.
+            buffer.putInt(CLEAN_OFFSET, 0);
+            buffer.force();
+            return new CountingBloomFilter(file, buffer, numCounters, buffer.getLong(CAPACITY_OFFSET),
+                    buffer.getLong(ENTRIES_OFFSET));
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** Adds an entry. Adding the same hash twice requires removing it twice. */
+    void add(byte[] hash) {
+        long h1 = readLong(hash, 0), h2 = readLong(hash, 8);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            long counter = index(h1, h2, i);
+            int value = getCounter(counter);
+            if (value < 15)
+                setCounter(counter, value + 1);
+        }
+        entries++;
+    }
+
+    /** Removes an entry that was added before. */
+    void remove(byte[] hash) {
+        long h1 = readLong(hash, 0), h2 = readLong(hash, 8);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            long counter = index(h1, h2, i);
+            int value = getCounter(counter);
+            if (value > 0 && value < 15)
+                setCounter(counter, value - 1);
+        }
+        entries--;
+    }
+
+    /**
+     * Returns false if the hash is certainly not in the filter, and true if it might be.
+     */
+    boolean mightContain(byte[] hash) {
+        long h1 = readLong(hash, 0), h2 = readLong(hash, 8);
+        for (int i = 0; i < NUM_HASHES; i++)
+            if (getCounter(index(h1, h2, i)) == 0)
+                return false;
+        return true;
+    }
+
+    /** Number of entries currently in the filter. */
+    long getEntries() {
+        return entries;
+    }
+
+    /** Number of entries the filter was sized for. */
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes the filter to disk and marks it as matching the given tag, so that {@link #open(File, byte[])} accepts it.
+     * The filter can't be used afterwards.
+     */
+    void close(byte[] tag) throws IOException {
+        checkArgument(tag.length == TAG_LENGTH);
+        try {
+            buffer.putLong(ENTRIES_OFFSET, entries);
+            for (int i = 0; i < TAG_LENGTH; i++)
+                buffer.put(TAG_OFFSET + i, tag[i]);
+            // The counters must be on disk before the flag says they are valid.
+            buffer.force();
+            buffer.putInt(CLEAN_OFFSET, 1);
+            buffer.force();
+        } finally {
+            file.close();
+        }
+    }
+
+    // Kirsch-Mitzenmacher double hashing. The hashes stored here are transaction ids, which are already uniformly
+    // distributed, so their bytes are used directly.
+    private long index(long h1, long h2, int i) {
+        long combined = h1 + i * h2;
+        return (combined & Long.MAX_VALUE) % numCounters;
+    }
+
+    private int getCounter(long counter) {
+        int b = buffer.get(HEADER_SIZE + (int) (counter >>> 1));
+        return (counter & 1) == 0 ? b & 0x0f : (b >>> 4) & 0x0f;
+    }
+
+    private void setCounter(long counter, int value) {
+        int position = HEADER_SIZE + (int) (counter >>> 1);
+        int b = buffer.get(position);
+        if ((counter & 1) == 0)
+            b = (b & 0xf0) | value;
+        else
+            b = (b & 0x0f) | (value << 4);
+        buffer.put(position, (byte) b);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xff);
+        return result;
+    }
+}
@@ -116,6 +116,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_DUMP_OPENOUTPUTS_SQL = "SELECT value, scriptbytes FROM openoutputs";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_ALL_TRANSACTION_OUTPUTS_SQL = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress FROM openoutputs";
 
     // Select the balance of an address SQL.
     private static final String SELECT_BALANCE_SQL = "select sum(value) from openoutputs where toaddress = ?";
@@ -259,6 +260,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select all transaction outputs.
+     *
+     * @return The SQL select statement.
+     */
+    protected String getAllTransactionOutputsSelectSQL() {
+        return SELECT_ALL_TRANSACTION_OUTPUTS_SQL;
+    }
+
     /**
      * Get the SQL to drop all the tables (DDL).
      *
@@ -677,8 +687,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
 
     @Override
-    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+    public void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
+        if (undoableBlock == null) {
+            try {
+                putUpdateStoredBlock(storedBlock, true);
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+            return;
+        }
         // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
         System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
@@ -1200,6 +1218,42 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public void visitUnspentOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        maybeConnect();
+        Statement s = null;
+        try {
+            s = conn.get().createStatement();
+            ResultSet rs = s.executeQuery(getAllTransactionOutputsSelectSQL());
+            while (rs.next()) {
+                Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                Coin amount = Coin.valueOf(rs.getLong(2));
+                byte[] scriptBytes = rs.getBytes(3);
+                int height = rs.getInt(4);
+                int index = rs.getInt(5);
+                boolean coinbase = rs.getBoolean(6);
+                String toAddress = rs.getString(7);
+                visitor.visit(new UTXO(hash,
+                        index,
+                        amount,
+                        height,
+                        coinbase,
+                        new Script(scriptBytes),
+                        toAddress));
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Failed to close Statement");
+                }
+            }
+        }
+    }
+
     /**
      * Dumps information about the size of actual data in the database to standard output
      * The only truly useless data counted is printed in the form "N in id indexes"
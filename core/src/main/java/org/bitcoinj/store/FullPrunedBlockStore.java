@@ -18,6 +18,8 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import javax.annotation.Nullable;
+
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -54,9 +56,14 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * that a StoredUndoableBlock for each block up to the fully verified chain head has been added to this block store using
      * this function (not put(StoredBlock)), so that the ability to perform reorgs is maintained.</p>
      *
+     * <p>The undoableBlock may be null if the undo data of the block isn't available, as for the base block of a
+     * {@link UTXOSnapshot}. The block is then returned by {@link #getOnceUndoableStoredBlock(Sha256Hash)} so that
+     * the chain can be extended from it, but {@link #getUndoBlock(Sha256Hash)} returns null as if it had been
+     * pruned.</p>
+     *
      * @throws BlockStoreException if there is a problem with the underlying storage layer, such as running out of disk space.
      */
-    void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException;
+    void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException;
 
     /**
      * Returns the StoredBlock that was added as a StoredUndoableBlock given a hash. The returned values block.getHash()
@@ -89,6 +96,17 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      */
     void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException;
 
+    /**
+     * Passes every unspent output in the store to the visitor, in no particular order. The store must not be
+     * modified until this returns, which some implementations enforce by blocking writers.
+     */
+    void visitUnspentOutputs(UnspentOutputVisitor visitor) throws BlockStoreException;
+
+    /** Receives the unspent outputs of a store, see {@link #visitUnspentOutputs(UnspentOutputVisitor)}. */
+    interface UnspentOutputVisitor {
+        void visit(UTXO output) throws BlockStoreException;
+    }
+
     /**
      * True if this store has any unspent outputs from a transaction with a hash equal to the first parameter
      *
@@ -24,6 +24,7 @@ import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -105,6 +106,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
+    // Outputs the bloomfilter is sized for when the store is new
+    static final long BLOOM_CAPACITY_DEFAULT = 100000;
+    static final String BLOOM_FILE_NAME = "utxo-bloom.dat";
 
     // LRUCache
     public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
@@ -122,70 +126,110 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
-    // Simple bloomfilter. We take advantage of fact that a Transaction Hash
-    // can be split into 3 30bit numbers that are all random and uncorrelated
-    // so ideal to use as the input to a 3 function bloomfilter. No has function
-    // needed.
+    // Counting bloomfilter over the transaction hash of every unspent output,
+    // so hasUnspentOutputs can usually answer without a database seek. A
+    // transaction hash is already random so no hash function is needed.
+    // The counters live in a memory mapped file in the database folder rather
+    // than on the heap. If the store was closed cleanly the file is reused on
+    // the next start, otherwise it is rebuilt by scanning the database.
     private class BloomFilter {
-        private byte[] cache;
+        private CountingBloomFilter filter;
+        // Removals are only applied when the batch they are part of is
+        // committed. Applying them earlier would leave outputs the filter
+        // claims are absent if the batch is aborted.
+        private List<byte[]> pendingRemovals = new ArrayList<>();
         public long returnedTrue;
         public long returnedFalse;
-        public long added;
-
-        public BloomFilter() {
-            // 2^27 so since 8 bits in a byte this is
-            // 1,073,741,824 bits
-            cache = new byte[134217728];
-            // This size chosen as with 3 functions we should only get 4% errors
-            // with 150m entries.
+
+        // Opens the filter left by the last clean shutdown, or builds a new one.
+        public void load() {
+            try {
+                filter = CountingBloomFilter.open(getFile(), verifiedChainHeadHash.getBytes());
+            } catch (IOException e) {
+                log.warn("Could not open Bloom Filter, rebuilding it", e);
+            }
+            if (filter == null) {
+                reloadCache(db);
+            } else {
+                log.info("Opened Bloom Filter");
+                printStat();
+            }
         }
 
-        // Called to prime cache.
-        // Might be idea to call periodically to flush out removed keys.
-        // Would need to benchmark 1st though.
+        // Builds the filter from the database. Sized for twice the current
+        // number of outputs so it doesn't need rebuilding again soon.
         public void reloadCache(DB db) {
             // LevelDB is great at scanning consecutive keys.
             // This take seconds even with 20m keys to add.
             log.info("Loading Bloom Filter");
+            closeFilter();
+            long outputs = scanOutputs(db, null);
+            try {
+                filter = CountingBloomFilter.create(getFile(), Math.max(BLOOM_CAPACITY_DEFAULT, outputs * 2));
+            } catch (IOException e) {
+                throw new RuntimeException("Can not create Bloom Filter", e);
+            }
+            scanOutputs(db, filter);
+            printStat();
+        }
+
+        // Counts the unspent outputs and adds them to the given filter, if any.
+        private long scanOutputs(DB db, CountingBloomFilter target) {
+            long count = 0;
             DBIterator iterator = db.iterator();
             byte[] key = getKey(KeyType.OPENOUT_ALL);
+            byte[] hash = new byte[32];
             for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                byte firstByte = bbKey.get(); // remove the KeyType.OPENOUT_ALL
-                // byte.
-                if (key[0] != firstByte) {
-                    printStat();
-                    return;
+                byte[] entryKey = iterator.peekNext().getKey();
+                if (entryKey[0] != key[0])
+                    break;
+                if (target != null) {
+                    System.arraycopy(entryKey, 1, hash, 0, 32);
+                    target.add(hash);
                 }
-
-                byte[] hash = new byte[32];
-                bbKey.get(hash);
-                add(hash);
+                count++;
             }
             try {
                 iterator.close();
             } catch (IOException e) {
                 log.error("Error closing iterator", e);
             }
-            printStat();
+            return count;
         }
 
         public void printStat() {
-            log.info("Bloom Added: " + added + " T: " + returnedTrue + " F: " + returnedFalse);
+            log.info("Bloom Added: " + filter.getEntries() + " Capacity: " + filter.getCapacity() + " T: "
+                    + returnedTrue + " F: " + returnedFalse);
         }
 
-        // Add a txhash to the filter.
-        public void add(byte[] hash) {
-            byte[] firstHash = new byte[4];
-            added++;
-            for (int i = 0; i < 3; i++) {
-                System.arraycopy(hash, i * 4, firstHash, 0, 4);
-                setBit(firstHash);
-            }
+        // Add a txhash to the filter, once for every output.
+        public void add(Sha256Hash hash) {
+            filter.add(hash.getBytes());
         }
 
-        public void add(Sha256Hash hash) {
-            add(hash.getBytes());
+        // Remove a txhash that was added for an output that is now spent.
+        public void remove(Sha256Hash hash) {
+            if (autoCommit)
+                filter.remove(hash.getBytes());
+            else
+                pendingRemovals.add(hash.getBytes());
+        }
+
+        public void commit() {
+            // Not loaded yet while a new store is being created.
+            if (filter == null)
+                return;
+            for (byte[] hash : pendingRemovals)
+                filter.remove(hash);
+            pendingRemovals.clear();
+            // The false positive rate climbs once the filter holds more than
+            // it was sized for.
+            if (filter.getEntries() > filter.getCapacity() * 2)
+                reloadCache(db);
+        }
+
+        public void abort() {
+            pendingRemovals.clear();
         }
 
         // check if hash was added.
@@ -193,38 +237,34 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // if returns true need to check what state is in DB as can
         // not be 100% sure.
         public boolean wasAdded(Sha256Hash hash) {
-
-            byte[] firstHash = new byte[4];
-            for (int i = 0; i < 3; i++) {
-                System.arraycopy(hash.getBytes(), i * 4, firstHash, 0, 4);
-                boolean result = getBit(firstHash);
-                if (!result) {
-                    returnedFalse++;
-                    return false;
-                }
+            if (!filter.mightContain(hash.getBytes())) {
+                returnedFalse++;
+                return false;
             }
             returnedTrue++;
             return true;
         }
 
-        private void setBit(byte[] entry) {
-            int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
-                    | (entry[3] & 0xFF) >> 3;
-            int bit = (entry[3] & 0x07);
-            int orBit = (0x1 << bit);
-            byte newEntry = (byte) ((int) cache[arrayIndex] | orBit);
-            cache[arrayIndex] = newEntry;
+        // Writes the filter out so it can be reused on the next start.
+        public void close() throws IOException {
+            pendingRemovals.clear();
+            if (filter != null) {
+                CountingBloomFilter f = filter;
+                filter = null;
+                f.close(verifiedChainHeadHash.getBytes());
+            }
         }
 
-        private boolean getBit(byte[] entry) {
-            int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
-                    | (entry[3] & 0xFF) >> 3;
-            int bit = (entry[3] & 0x07);
-            int orBit = (0x1 << bit);
-            byte arrayEntry = cache[arrayIndex];
+        private void closeFilter() {
+            try {
+                close();
+            } catch (IOException e) {
+                log.error("Error closing Bloom Filter", e);
+            }
+        }
 
-            int result = arrayEntry & orBit;
-            return result != 0;
+        private File getFile() {
+            return new File(filename, BLOOM_FILE_NAME);
         }
     }
 
@@ -250,7 +290,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         bloom = new BloomFilter();
         totalStopwatch = Stopwatch.createStarted();
         openDB();
-        bloom.reloadCache(db);
+        bloom.load();
 
         // Reset after bloom filter loaded
         totalStopwatch = Stopwatch.createStarted();
@@ -386,6 +426,11 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void close() throws BlockStoreException {
+        try {
+            bloom.close();
+        } catch (IOException e) {
+            log.error("Error closing Bloom Filter", e);
+        }
         try {
             db.close();
         } catch (IOException e) {
@@ -480,9 +525,16 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     @Override
-    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+    public void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException {
         if (instrument)
             beginMethod("put");
+        if (undoableBlock == null) {
+            // No undo data, so there is nothing to prune later on either.
+            if (instrument)
+                endMethod("put");
+            putUpdateStoredBlock(storedBlock, true);
+            return;
+        }
         int height = storedBlock.getHeight();
         byte[] transactions = null;
         byte[] txOutChanges = null;
@@ -841,6 +893,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
 
+        // Only outputs that were added may be removed from the bloom filter,
+        // otherwise it could claim other outputs are absent. Usually this is
+        // a cache hit as the output was just looked up to be spent.
+        if (getTransactionOutput(out.getHash(), out.getIndex()) != null)
+            bloom.remove(out.getHash());
+
         if (autoCommit) {
             utxoCache.remove(ByteBuffer.wrap(key));
         } else {
@@ -881,6 +939,33 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             endMethod("removeUnspentTransactionOutput");
     }
 
+    @Override
+    public void visitUnspentOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        // Reading from a snapshot gives a consistent view even if the store is written to meanwhile.
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        byte[] key = getKey(KeyType.OPENOUT_ALL);
+        try {
+            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != key[0])
+                    break;
+                visitor.visit(new UTXO(new ByteArrayInputStream(entry.getValue())));
+            }
+        } catch (DBException | IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                iterator.close();
+                sn.close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot/iterator?", e);
+            }
+        }
+    }
+
     // Instrumentation of bloom filter to check theory
     // matches reality. Without this initial chain sync takes
     // 50-75% longer.
@@ -1037,6 +1122,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         utxoUncommittedDeletedCache = null;
 
         autoCommit = true;
+        bloom.commit();
 
         try {
             batch.close();
@@ -1067,6 +1153,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             utxoUncommittedCache = null;
             utxoUncommittedDeletedCache = null;
             autoCommit = true;
+            bloom.abort();
             if (batch != null) {
                 batch.close();
                 batch = null;
@@ -1080,6 +1167,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // only used in unit tests.
         // bit dangerous and deletes files!
         try {
+            bloom.close();
             db.close();
             uncommited = null;
             uncommitedDeletes = null;
@@ -1096,5 +1184,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 c.delete();
         }
         openDB();
+        bloom.load();
     }
 }
@@ -0,0 +1,834 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps everything in memory mapped files in a directory, using nothing but the
+ * JDK. Unlike {@link MemoryFullPrunedBlockStore} it is persistent and not limited by the heap, and unlike
+ * {@link LevelDBFullPrunedBlockStore} and the JDBC stores it needs no native library or database.</p>
+ *
+ * <p>All data is written to an append-only log of segment files ({@link MappedRecordLog}), and a hash index in a
+ * memory mapped file ({@link MappedHashIndex}) points at the current record of every block header, undo block and
+ * unspent output. The writes between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()},
+ * which {@link org.bitcoinj.core.FullPrunedBlockChain} does once per block, are kept in memory and appended together
+ * with a single commit record, so a block is either stored completely or not at all.</p>
+ *
+ * <p>Spent outputs and pruned undo blocks leave dead records behind. Once at least half of the oldest segment or of
+ * all full segments is dead, a background thread copies the remaining records of the oldest segment to the end of the
+ * log and deletes it, so the log stays within about twice the size of the live data.</p>
+ *
+ * <p>Nothing is synced to disk until {@link #close()}. If the process dies the operating system still writes out the
+ * mapped pages, and if the machine dies the log is replayed up to the last block that made it to disk intact. Either
+ * way the index is rebuilt from the log on the next start, which takes a while for a large UTXO set.</p>
+ */
+public class MappedFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedFullPrunedBlockStore.class);
+
+    /** Default size of each segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String LOCK_FILE_NAME = "lock";
+    private static final String INDEX_FILE_NAME = "index.dat";
+    private static final String STATE_FILE_NAME = "state.dat";
+    private static final int STATE_MAGIC = 0x4d465031; // "MFP1"
+
+    // Compact the oldest segment once less than this fraction of it, or of all full segments, is still in use.
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    // The first byte of every key says what kind of record it is.
+    private static final byte KEY_SETTING = 0;
+    private static final byte KEY_BLOCK = 1;
+    private static final byte KEY_UNDO_BLOCK = 2;
+    private static final byte KEY_UNDO_HEIGHT = 3;
+    private static final byte KEY_UTXO = 4;
+
+    private static final byte SETTING_CHAIN_HEAD = 0;
+    private static final byte SETTING_VERIFIED_CHAIN_HEAD = 1;
+
+    private static final byte UNDO_OUTPUT_CHANGES = 0;
+    private static final byte UNDO_TRANSACTIONS = 1;
+
+    // Marks a key deleted in the current batch.
+    private static final byte[] DELETED = new byte[0];
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final RandomAccessFile lockFile;
+    private final FileLock fileLock;
+    private final ExecutorService compactionExecutor;
+    private boolean compactionScheduled;
+
+    private MappedRecordLog recordLog;
+    private MappedHashIndex index;
+    private long generation;
+
+    // Writes of the open batch and the thread that opened it, which is the only one that may see them.
+    @Nullable
+    private Map<ByteBuffer, byte[]> batch;
+    @Nullable
+    private Thread batchThread;
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     *
+     * @param params         the network parameters of this block store, used to get the genesis block
+     * @param directory      the directory holding the store's files
+     * @param fullStoreDepth the number of blocks for which undo data is kept
+     * @throws BlockStoreException if the store can't be opened, or is in use by another process
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     *
+     * @param params         the network parameters of this block store, used to get the genesis block
+     * @param directory      the directory holding the store's files
+     * @param fullStoreDepth the number of blocks for which undo data is kept
+     * @param segmentSize    size of each segment file in bytes; larger records get a segment of their own size
+     * @throws BlockStoreException if the store can't be opened, or is in use by another process
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentSize)
+            throws BlockStoreException {
+        this.params = params;
+        this.directory = directory;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        try {
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        compactionExecutor = Executors.newSingleThreadExecutor(
+                new DaemonThreadFactory("MappedFullPrunedBlockStore compaction"));
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store directory is already locked by another process");
+            recordLog = new MappedRecordLog(directory, segmentSize);
+            if (!openIndex())
+                rebuildIndex();
+            if (get(settingKey(SETTING_CHAIN_HEAD)) == null) {
+                createNewStore();
+            } else {
+                chainHead = get(Sha256Hash.wrap(get(settingKey(SETTING_CHAIN_HEAD))));
+                verifiedChainHead = get(Sha256Hash.wrap(get(settingKey(SETTING_VERIFIED_CHAIN_HEAD))));
+                if (chainHead == null || verifiedChainHead == null)
+                    throw new BlockStoreException("Corrupt block store - chain head block not found");
+            }
+        } catch (Exception e) {
+            compactionExecutor.shutdownNow();
+            try {
+                if (index != null)
+                    index.discard();
+                if (recordLog != null)
+                    recordLog.close();
+                lockFile.close();
+            } catch (IOException e2) {
+                log.error("Error closing store after failing to open it", e2);
+            }
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Reuses the index if the store was closed cleanly.
+    private boolean openIndex() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(directory, STATE_FILE_NAME)));
+        } catch (IOException e) {
+            return false;
+        }
+        long head, nextSequence;
+        long[][] segments;
+        try {
+            if (in.readInt() != STATE_MAGIC)
+                return false;
+            generation = in.readLong();
+            nextSequence = in.readLong();
+            head = in.readLong();
+            segments = new long[in.readInt()][];
+            for (int i = 0; i < segments.length; i++)
+                segments[i] = new long[] { in.readInt(), in.readLong() };
+        } catch (IOException e) {
+            log.warn("Could not read store state, rebuilding index", e);
+            return false;
+        } finally {
+            in.close();
+        }
+        index = MappedHashIndex.open(new File(directory, INDEX_FILE_NAME), generation, recordLog);
+        if (index == null)
+            return false;
+        try {
+            if (!recordLog.setSegmentState(segments))
+                throw new IOException("Segments don't match the saved state");
+            recordLog.setHead(head, nextSequence);
+            log.info("Opened {} with {} records", directory, index.size());
+            return true;
+        } catch (IOException e) {
+            log.warn("Could not reuse index, rebuilding it", e);
+            index.discard();
+            index = null;
+            return false;
+        }
+    }
+
+    // Rebuilds the index, and the number of live bytes in each segment, by replaying the log.
+    private void rebuildIndex() throws IOException {
+        log.info("Rebuilding index of {}", directory);
+        index = MappedHashIndex.create(new File(directory, INDEX_FILE_NAME), 0, recordLog);
+        for (MappedRecordLog.Segment segment : recordLog.getSegments())
+            segment.liveBytes = 0;
+        recordLog.replay(new MappedRecordLog.Replayer() {
+            @Override
+            public void record(byte type, byte[] key, long location, int size) throws IOException {
+                if (type == MappedRecordLog.PUT) {
+                    release(index.put(key, hash(key), location));
+                    recordLog.getSegment(location).liveBytes += size;
+                } else {
+                    release(index.remove(key, hash(key)));
+                }
+            }
+        });
+        log.info("Rebuilt index of {} with {} records", directory, index.size());
+    }
+
+    // Records that the record at the location, if any, is no longer current.
+    private void release(long location) {
+        if (location != MappedHashIndex.NOT_FOUND)
+            recordLog.getSegment(location).liveBytes -= recordLog.readSize(location);
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // The coinbase in the genesis block is not spendable, so there are no outputs to add.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            List<Transaction> genesisTransactions = new LinkedList<>();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                    genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private static byte[] settingKey(byte setting) {
+        return new byte[] { KEY_SETTING, setting };
+    }
+
+    private static byte[] hashKey(byte type, Sha256Hash hash) {
+        byte[] key = new byte[33];
+        key[0] = type;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        return key;
+    }
+
+    private static byte[] heightKey(int height) {
+        return ByteBuffer.allocate(5).put(KEY_UNDO_HEIGHT).putInt(height).array();
+    }
+
+    private static byte[] utxoKey(Sha256Hash hash, long index) {
+        return ByteBuffer.allocate(37).put(KEY_UTXO).put(hash.getBytes()).putInt((int) index).array();
+    }
+
+    // FNV-1a followed by the MurmurHash3 finalizer, which spreads keys that only differ in their last bytes, like the
+    // outputs of one transaction, over the whole index.
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void checkOpen() {
+        checkState(index != null, "MappedFullPrunedBlockStore is closed");
+    }
+
+    private boolean inBatch() {
+        return batch != null && batchThread == Thread.currentThread();
+    }
+
+    // Returns the current value of a key, including writes of the calling thread's open batch.
+    @Nullable
+    private byte[] get(byte[] key) throws BlockStoreException {
+        checkOpen();
+        if (inBatch()) {
+            byte[] value = batch.get(ByteBuffer.wrap(key));
+            if (value != null)
+                return value == DELETED ? null : value;
+        }
+        try {
+            long location = index.get(key, hash(key));
+            return location == MappedHashIndex.NOT_FOUND ? null : recordLog.readValue(location);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private boolean contains(byte[] key) throws BlockStoreException {
+        checkOpen();
+        if (inBatch()) {
+            byte[] value = batch.get(ByteBuffer.wrap(key));
+            if (value != null)
+                return value != DELETED;
+        }
+        try {
+            return index.get(key, hash(key)) != MappedHashIndex.NOT_FOUND;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Writes or, if the value is null, deletes a key. Outside of a batch the write is committed right away.
+    private void write(byte[] key, @Nullable byte[] value) throws BlockStoreException {
+        checkOpen();
+        if (inBatch()) {
+            batch.put(ByteBuffer.wrap(key), value == null ? DELETED : value);
+        } else {
+            Map<ByteBuffer, byte[]> single = new HashMap<>();
+            single.put(ByteBuffer.wrap(key), value == null ? DELETED : value);
+            writeBatch(single);
+        }
+    }
+
+    // Appends the writes as one batch and points the index at them.
+    private void writeBatch(Map<ByteBuffer, byte[]> writes) throws BlockStoreException {
+        try {
+            List<byte[]> keys = new ArrayList<>(writes.size());
+            long[] locations = new long[writes.size()];
+            int count = 0;
+            for (Map.Entry<ByteBuffer, byte[]> entry : writes.entrySet()) {
+                byte[] key = entry.getKey().array();
+                byte[] value = entry.getValue();
+                if (value == DELETED) {
+                    // Nothing to delete if the key was only added within the batch.
+                    if (index.get(key, hash(key)) == MappedHashIndex.NOT_FOUND)
+                        continue;
+                    recordLog.append(MappedRecordLog.DELETE, key, value);
+                    locations[count] = MappedHashIndex.NOT_FOUND;
+                } else {
+                    locations[count] = recordLog.append(MappedRecordLog.PUT, key, value);
+                }
+                keys.add(key);
+                count++;
+            }
+            if (count == 0)
+                return;
+            recordLog.commit();
+            for (int i = 0; i < count; i++) {
+                byte[] key = keys.get(i);
+                if (locations[i] == MappedHashIndex.NOT_FOUND) {
+                    release(index.remove(key, hash(key)));
+                } else {
+                    release(index.put(key, hash(key), locations[i]));
+                    recordLog.getSegment(locations[i]).liveBytes += recordLog.readSize(locations[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        if (!compactionScheduled && getCompactionCandidate() != null) {
+            compactionScheduled = true;
+            compactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactInBackground();
+                }
+            });
+        }
+    }
+
+    // Returns the oldest segment if it should be compacted.
+    @Nullable
+    private MappedRecordLog.Segment getCompactionCandidate() {
+        MappedRecordLog.Segment oldest = null;
+        long capacity = 0, live = 0;
+        for (MappedRecordLog.Segment segment : recordLog.getSegments()) {
+            if (recordLog.isHead(segment))
+                break;
+            if (oldest == null)
+                oldest = segment;
+            capacity += segment.capacity;
+            live += segment.liveBytes;
+        }
+        if (oldest == null)
+            return null;
+        if (oldest.liveBytes < oldest.capacity * COMPACTION_THRESHOLD || live < capacity * COMPACTION_THRESHOLD)
+            return oldest;
+        return null;
+    }
+
+    private synchronized void compactInBackground() {
+        compactionScheduled = false;
+        if (index == null)
+            return; // Closed in the meantime.
+        try {
+            compact();
+        } catch (BlockStoreException e) {
+            log.error("Compaction of " + directory + " failed", e);
+        }
+    }
+
+    /**
+     * Compacts the log until the oldest segment no longer qualifies. This happens in the background after writes,
+     * so it only needs to be called to reclaim space right away.
+     */
+    public synchronized void compact() throws BlockStoreException {
+        checkOpen();
+        MappedRecordLog.Segment segment;
+        while ((segment = getCompactionCandidate()) != null)
+            compact(segment);
+    }
+
+    // Copies the current records of the segment to the end of the log and deletes it.
+    private void compact(MappedRecordLog.Segment segment) throws BlockStoreException {
+        try {
+            final List<byte[]> keys = new ArrayList<>();
+            final List<Long> locations = new ArrayList<>();
+            recordLog.scan(segment.id, new MappedRecordLog.Replayer() {
+                @Override
+                public void record(byte type, byte[] key, long location, int size) throws IOException {
+                    if (index.get(key, hash(key)) == location) {
+                        locations.add(recordLog.append(MappedRecordLog.PUT, key, recordLog.readValue(location)));
+                        keys.add(key);
+                    }
+                }
+            });
+            recordLog.commit();
+            for (int i = 0; i < keys.size(); i++) {
+                long location = locations.get(i);
+                release(index.put(keys.get(i), hash(keys.get(i)), location));
+                recordLog.getSegment(location).liveBytes += recordLog.readSize(location);
+            }
+            // The copies must be on disk before the originals are gone.
+            recordLog.force();
+            recordLog.delete(segment);
+            log.info("Compacted {}, moved {} records", segment.file, keys.size());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        putBlock(block, false);
+    }
+
+    private void putBlock(StoredBlock block, boolean wasUndoable) throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + StoredBlock.COMPACT_SERIALIZED_SIZE);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompact(buffer);
+        write(hashKey(KEY_BLOCK, block.getHeader().getHash()), buffer.array());
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        if (undoableBlock == null) {
+            putBlock(storedBlock, true);
+            return;
+        }
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(UNDO_OUTPUT_CHANGES);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(UNDO_TRANSACTIONS);
+                Utils.uint32ToByteStreamLE(undoableBlock.getTransactions().size(), bos);
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        write(hashKey(KEY_UNDO_BLOCK, hash), bos.toByteArray());
+
+        // Remember which undo blocks were added at each height, so they can be pruned later on.
+        byte[] heightKey = heightKey(storedBlock.getHeight());
+        byte[] hashes = get(heightKey);
+        if (hashes == null) {
+            write(heightKey, hash.getBytes());
+        } else if (!containsHash(hashes, hash)) {
+            byte[] extended = Arrays.copyOf(hashes, hashes.length + 32);
+            System.arraycopy(hash.getBytes(), 0, extended, hashes.length, 32);
+            write(heightKey, extended);
+        }
+        putBlock(storedBlock, true);
+    }
+
+    private static boolean containsHash(byte[] hashes, Sha256Hash hash) {
+        for (int offset = 0; offset < hashes.length; offset += 32)
+            if (Arrays.equals(Arrays.copyOfRange(hashes, offset, offset + 32), hash.getBytes()))
+                return true;
+        return false;
+    }
+
+    @Nullable
+    private StoredBlock getBlock(Sha256Hash hash, boolean wasUndoable) throws BlockStoreException {
+        byte[] value = get(hashKey(KEY_BLOCK, hash));
+        if (value == null || (wasUndoable && value[0] == 0))
+            return null;
+        try {
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(value, 1, value.length - 1));
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return getBlock(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return getBlock(hash, true);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = get(hashKey(KEY_UNDO_BLOCK, hash));
+        if (value == null)
+            return null;
+        try {
+            if (value[0] == UNDO_OUTPUT_CHANGES) {
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(
+                        new ByteArrayInputStream(value, 1, value.length - 1)));
+            }
+            int numTransactions = (int) Utils.readUint32(value, 1);
+            int offset = 5;
+            List<Transaction> transactions = new ArrayList<>(numTransactions);
+            for (int i = 0; i < numTransactions; i++) {
+                Transaction tx = new Transaction(params, value, offset);
+                transactions.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactions);
+        } catch (IOException | ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        write(settingKey(SETTING_CHAIN_HEAD), chainHead.getHeader().getHash().getBytes());
+        this.chainHead = chainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        write(settingKey(SETTING_VERIFIED_CHAIN_HEAD), chainHead.getHeader().getHash().getBytes());
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead == null || this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // Prune the undo blocks that have fallen out of the window.
+        int height = chainHead.getHeight() - fullStoreDepth;
+        if (height < 0)
+            return;
+        byte[] heightKey = heightKey(height);
+        byte[] hashes = get(heightKey);
+        if (hashes == null)
+            return;
+        for (int offset = 0; offset < hashes.length; offset += 32)
+            write(hashKey(KEY_UNDO_BLOCK, Sha256Hash.wrap(Arrays.copyOfRange(hashes, offset, offset + 32))), null);
+        write(heightKey, null);
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] value = get(utxoKey(hash, index));
+        if (value == null)
+            return null;
+        try {
+            return new UTXO(new ByteArrayInputStream(value));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            out.serializeToStream(bos);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        write(utxoKey(out.getHash(), out.getIndex()), bos.toByteArray());
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        byte[] key = utxoKey(out.getHash(), out.getIndex());
+        if (!contains(key))
+            throw new BlockStoreException("Tried to remove a UTXO from MappedFullPrunedBlockStore that it didn't have!");
+        write(key, null);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (contains(utxoKey(hash, i)))
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        // Repeated calls are treated as one.
+        if (inBatch())
+            return;
+        checkState(batch == null, "Another thread has a batch open");
+        batch = new LinkedHashMap<>();
+        batchThread = Thread.currentThread();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (!inBatch())
+            return;
+        Map<ByteBuffer, byte[]> writes = batch;
+        batch = null;
+        batchThread = null;
+        writeBatch(writes);
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (!inBatch())
+            return;
+        batch = null;
+        batchThread = null;
+        // The chain heads may have been set within the batch.
+        chainHead = get(Sha256Hash.wrap(get(settingKey(SETTING_CHAIN_HEAD))));
+        verifiedChainHead = get(Sha256Hash.wrap(get(settingKey(SETTING_VERIFIED_CHAIN_HEAD))));
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public synchronized void visitUnspentOutputs(final UnspentOutputVisitor visitor) throws BlockStoreException {
+        checkOpen();
+        // Scanning can only fail with an IOException, so a failure of the visitor is passed out through this.
+        final BlockStoreException[] visitorFailure = new BlockStoreException[1];
+        try {
+            List<Integer> segmentIds = new ArrayList<>();
+            for (MappedRecordLog.Segment segment : recordLog.getSegments())
+                segmentIds.add(segment.id);
+            for (int segmentId : segmentIds) {
+                recordLog.scan(segmentId, new MappedRecordLog.Replayer() {
+                    @Override
+                    public void record(byte type, byte[] key, long location, int size) throws IOException {
+                        // Records that were overwritten or deleted later on are not in the index.
+                        if (key[0] != KEY_UTXO || index.get(key, hash(key)) != location)
+                            return;
+                        try {
+                            visitor.visit(new UTXO(new ByteArrayInputStream(recordLog.readValue(location))));
+                        } catch (BlockStoreException e) {
+                            visitorFailure[0] = e;
+                            throw new IOException(e);
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (visitorFailure[0] != null)
+                throw visitorFailure[0];
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>There is no index by address, so this reads all unspent outputs in the store.</p>
+     */
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        final Set<String> addresses = new HashSet<>();
+        for (ECKey key : keys)
+            addresses.add(Address.fromKey(params, key).toString());
+        final List<UTXO> foundOutputs = new ArrayList<>();
+        try {
+            visitUnspentOutputs(new UnspentOutputVisitor() {
+                @Override
+                public void visit(UTXO txout) {
+                    // The address isn't serialized with the output, so it is derived from the script.
+                    String address;
+                    try {
+                        address = txout.getScript().getToAddress(params, true).toString();
+                    } catch (ScriptException e) {
+                        return;
+                    }
+                    if (addresses.contains(address))
+                        foundOutputs.add(new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(),
+                                txout.getHeight(), txout.isCoinbase(), txout.getScript(), address));
+                }
+            });
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+        return foundOutputs;
+    }
+
+    /**
+     * Writes everything to disk and closes the store. If this isn't called, the index has to be rebuilt from the log
+     * the next time the store is opened.
+     */
+    @Override
+    public void close() throws BlockStoreException {
+        compactionExecutor.shutdown();
+        try {
+            while (!compactionExecutor.awaitTermination(1, TimeUnit.SECONDS))
+                log.info("Waiting for compaction to finish");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (index == null)
+                return;
+            // An open batch is discarded.
+            batch = null;
+            batchThread = null;
+            try {
+                recordLog.force();
+                generation++;
+                writeState();
+                index.close(generation);
+                recordLog.close();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            } finally {
+                index = null;
+                recordLog = null;
+                try {
+                    fileLock.release();
+                    lockFile.close();
+                } catch (IOException e) {
+                    log.error("Error releasing lock of " + directory, e);
+                }
+            }
+        }
+    }
+
+    private void writeState() throws IOException {
+        FileOutputStream file = new FileOutputStream(new File(directory, STATE_FILE_NAME));
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(STATE_MAGIC);
+            out.writeLong(generation);
+            out.writeLong(recordLog.getNextSequence());
+            out.writeLong(recordLog.getHead());
+            long[][] segments = recordLog.getSegmentState();
+            out.writeInt(segments.length);
+            for (long[] segment : segments) {
+                out.writeInt((int) segment[0]);
+                out.writeLong(segment[1]);
+            }
+            out.flush();
+            // Must be on disk before the index is marked as clean.
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFullPrunedBlockStore " + directory;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An open addressing hash table in a memory mapped file, mapping keys to the location of their record in a
+ * {@link MappedRecordLog}. Only a 64 bit hash of each key is kept in the table; a candidate is confirmed by comparing
+ * the key stored in the record it points to, so a lookup usually costs one probe into the table and one read from the
+ * log.</p>
+ *
+ * <p>The table doubles in size once it is 70% full. Like {@link CountingBloomFilter} the file carries a clean flag
+ * that is cleared while the index is open, so an index that was not closed properly is rebuilt from the log rather
+ * than trusted. This class is not thread safe.</p>
+ */
+class MappedHashIndex {
+    /** Returned by lookups if the key is not in the index. */
+    static final long NOT_FOUND = -1;
+
+    /** Confirms that the record at a location has a given key. */
+    interface KeySource {
+        boolean keyEquals(long location, byte[] key) throws IOException;
+    }
+
+    private static final int MAGIC = 0x4d484931; // "MHI1"
+    private static final long MIN_SLOTS = 1 << 16;
+    private static final double MAX_LOAD = 0.7;
+
+    // Header layout.
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CLEAN_OFFSET = 4;
+    private static final int SLOTS_OFFSET = 8;
+    private static final int USED_OFFSET = 16;
+    private static final int TOMBSTONES_OFFSET = 24;
+    private static final int GENERATION_OFFSET = 32;
+    private static final int HEADER_SIZE = 64;
+
+    // Each slot holds the hash of the key and the location of its record. A zero hash marks an empty slot, a
+    // removed entry keeps its hash and has its location set to TOMBSTONE so that probing continues past it.
+    private static final int SLOT_SIZE = 16;
+    private static final long TOMBSTONE = -1;
+    // Slots never straddle chunks because both the header and the chunks are multiples of the slot size.
+    private static final int CHUNK_BITS = 30;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private final File path;
+    private final KeySource keys;
+    private RandomAccessFile file;
+    private MappedByteBuffer[] chunks;
+    private long slots;
+    private long used;
+    private long tombstones;
+
+    private MappedHashIndex(File path, KeySource keys) {
+        this.path = path;
+        this.keys = keys;
+    }
+
+    /**
+     * Creates an empty index with room for the given number of entries, replacing the file if it exists.
+     */
+    static MappedHashIndex create(File path, long expectedEntries, KeySource keys) throws IOException {
+        MappedHashIndex index = new MappedHashIndex(path, keys);
+        index.init(path, slotsFor(expectedEntries));
+        return index;
+    }
+
+    /**
+     * Opens an index that was closed with the given generation. Returns null if there is no such index, in which
+     * case it has to be rebuilt.
+     */
+    @Nullable
+    static MappedHashIndex open(File path, long generation, KeySource keys) throws IOException {
+        if (!path.isFile() || path.length() < HEADER_SIZE)
+            return null;
+        MappedHashIndex index = new MappedHashIndex(path, keys);
+        index.file = new RandomAccessFile(path, "rw");
+        try {
+            long size = index.file.length();
+            index.map(size);
+            MappedByteBuffer header = index.chunks[0];
+            index.slots = header.getLong(SLOTS_OFFSET);
+            if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(CLEAN_OFFSET) != 1
+                    || header.getLong(GENERATION_OFFSET) != generation
+                    || index.slots < MIN_SLOTS || size != HEADER_SIZE + index.slots * SLOT_SIZE) {
+                index.file.close();
+                return null;
+            }
+            index.used = header.getLong(USED_OFFSET);
+            index.tombstones = header.getLong(TOMBSTONES_OFFSET);
+            header.putInt(CLEAN_OFFSET, 0);
+            header.force();
+            return index;
+        } catch (IOException | RuntimeException e) {
+            index.file.close();
+            throw e;
+        }
+    }
+
+    private static long slotsFor(long entries) {
+        long slots = MIN_SLOTS;
+        while (slots * MAX_LOAD < entries)
+            slots *= 2;
+        return slots;
+    }
+
+    private void init(File target, long slots) throws IOException {
+        file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(0);
+            long size = HEADER_SIZE + slots * SLOT_SIZE;
+            file.setLength(size);
+            map(size);
+            chunks[0].putInt(MAGIC_OFFSET, MAGIC);
+            chunks[0].putInt(CLEAN_OFFSET, 0);
+            chunks[0].putLong(SLOTS_OFFSET, slots);
+            this.slots = slots;
+            this.used = 0;
+            this.tombstones = 0;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void map(long size) throws IOException {
+        int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+        chunks = new MappedByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            long position = (long) i << CHUNK_BITS;
+            chunks[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, position,
+                    Math.min(size - position, 1L << CHUNK_BITS));
+        }
+    }
+
+    /** Number of keys in the index. */
+    long size() {
+        return used;
+    }
+
+    /** Returns the location stored for the key, or {@link #NOT_FOUND}. */
+    long get(byte[] key, long hash) throws IOException {
+        hash = nonZero(hash);
+        for (long slot = firstSlot(hash); ; slot = nextSlot(slot)) {
+            long slotHash = getHash(slot);
+            if (slotHash == 0)
+                return NOT_FOUND;
+            if (slotHash == hash) {
+                long location = getLocation(slot);
+                if (location != TOMBSTONE && keys.keyEquals(location, key))
+                    return location;
+            }
+        }
+    }
+
+    /**
+     * Stores the location for the key, returning the location it replaces or {@link #NOT_FOUND}.
+     */
+    long put(byte[] key, long hash, long location) throws IOException {
+        checkArgument(location >= 0);
+        hash = nonZero(hash);
+        long free = -1;
+        long slot;
+        for (slot = firstSlot(hash); ; slot = nextSlot(slot)) {
+            long slotHash = getHash(slot);
+            if (slotHash == 0)
+                break;
+            long slotLocation = getLocation(slot);
+            if (slotLocation == TOMBSTONE) {
+                if (free == -1)
+                    free = slot;
+            } else if (slotHash == hash && keys.keyEquals(slotLocation, key)) {
+                setLocation(slot, location);
+                return slotLocation;
+            }
+        }
+        if (free != -1) {
+            tombstones--;
+        } else {
+            free = slot;
+        }
+        setSlot(free, hash, location);
+        used++;
+        if (used + tombstones > slots * MAX_LOAD)
+            rehash();
+        return NOT_FOUND;
+    }
+
+    /**
+     * Removes the key, returning its location or {@link #NOT_FOUND} if it wasn't in the index.
+     */
+    long remove(byte[] key, long hash) throws IOException {
+        hash = nonZero(hash);
+        for (long slot = firstSlot(hash); ; slot = nextSlot(slot)) {
+            long slotHash = getHash(slot);
+            if (slotHash == 0)
+                return NOT_FOUND;
+            if (slotHash == hash) {
+                long location = getLocation(slot);
+                if (location != TOMBSTONE && keys.keyEquals(location, key)) {
+                    setLocation(slot, TOMBSTONE);
+                    used--;
+                    tombstones++;
+                    return location;
+                }
+            }
+        }
+    }
+
+    // Copies all entries into a fresh table, which also drops the tombstones. The table only grows if it is the
+    // live entries rather than the tombstones that fill it.
+    private void rehash() throws IOException {
+        long newSlots = used > slots * MAX_LOAD / 2 ? slots * 2 : slots;
+        File tmp = new File(path.getPath() + ".tmp");
+        MappedHashIndex target = new MappedHashIndex(tmp, keys);
+        target.init(tmp, newSlots);
+        try {
+            for (long slot = 0; slot < slots; slot++) {
+                long hash = getHash(slot);
+                long location = getLocation(slot);
+                if (hash != 0 && location != TOMBSTONE)
+                    target.insertUnique(hash, location);
+            }
+        } catch (RuntimeException e) {
+            target.file.close();
+            throw e;
+        }
+        file.close();
+        target.file.close();
+        if (!tmp.renameTo(path)) {
+            // Renaming over an existing file fails on some platforms.
+            if (!path.delete() || !tmp.renameTo(path))
+                throw new IOException("Could not replace " + path);
+        }
+        file = new RandomAccessFile(path, "rw");
+        map(file.length());
+        slots = target.slots;
+        used = target.used;
+        tombstones = 0;
+    }
+
+    private void insertUnique(long hash, long location) {
+        long slot = firstSlot(hash);
+        while (getHash(slot) != 0)
+            slot = nextSlot(slot);
+        setSlot(slot, hash, location);
+        used++;
+    }
+
+    /**
+     * Writes the index to disk and marks it as clean for the given generation, so that
+     * {@link #open(File, long, KeySource)} accepts it. The index can't be used afterwards.
+     */
+    void close(long generation) throws IOException {
+        try {
+            MappedByteBuffer header = chunks[0];
+            header.putLong(USED_OFFSET, used);
+            header.putLong(TOMBSTONES_OFFSET, tombstones);
+            header.putLong(GENERATION_OFFSET, generation);
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+            header.putInt(CLEAN_OFFSET, 1);
+            header.force();
+        } finally {
+            file.close();
+            chunks = null;
+        }
+    }
+
+    /** Closes the index without marking it as clean, e.g. because it is going to be deleted. */
+    void discard() throws IOException {
+        file.close();
+        chunks = null;
+    }
+
+    private static long nonZero(long hash) {
+        return hash == 0 ? 1 : hash;
+    }
+
+    private long firstSlot(long hash) {
+        return (hash & Long.MAX_VALUE) % slots;
+    }
+
+    private long nextSlot(long slot) {
+        return slot + 1 == slots ? 0 : slot + 1;
+    }
+
+    private long getHash(long slot) {
+        long position = HEADER_SIZE + slot * SLOT_SIZE;
+        return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & CHUNK_MASK));
+    }
+
+    private long getLocation(long slot) {
+        long position = HEADER_SIZE + slot * SLOT_SIZE + 8;
+        return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & CHUNK_MASK));
+    }
+
+    private void setLocation(long slot, long location) {
+        long position = HEADER_SIZE + slot * SLOT_SIZE + 8;
+        chunks[(int) (position >>> CHUNK_BITS)].putLong((int) (position & CHUNK_MASK), location);
+    }
+
+    private void setSlot(long slot, long hash, long location) {
+        long position = HEADER_SIZE + slot * SLOT_SIZE;
+        MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_BITS)];
+        chunk.putLong((int) (position & CHUNK_MASK), hash);
+        chunk.putLong((int) (position & CHUNK_MASK) + 8, location);
+    }
+}
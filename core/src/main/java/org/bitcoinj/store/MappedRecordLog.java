@@ -0,0 +1,463 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only log of key/value records, kept in memory mapped segment files of a fixed size. A record is either
+ * a put or a delete of a key. Records are written in batches, each closed by a commit record, and only committed
+ * batches count: when the log is replayed after a crash, a batch that is missing its commit record or has a damaged
+ * record is dropped together with everything after it.</p>
+ *
+ * <p>Records are addressed by their location, the segment number in the upper and the offset in the lower 32 bits.
+ * The log itself doesn't know which records are current; {@link MappedFullPrunedBlockStore} keeps track of that in a
+ * {@link MappedHashIndex} and of how many bytes of each segment are still in use, so that it can copy the current
+ * records out of the oldest segment and delete it. Only the oldest segment may be deleted that way, since a delete
+ * record in it might otherwise be lost while an older put of the same key survives. This class is not thread safe.</p>
+ */
+class MappedRecordLog implements MappedHashIndex.KeySource {
+    private static final Logger log = LoggerFactory.getLogger(MappedRecordLog.class);
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte COMMIT = 3;
+
+    // type, key length, value length, key, value, checksum
+    private static final int RECORD_HEADER_SIZE = 1 + 1 + 4;
+    private static final int RECORD_OVERHEAD = RECORD_HEADER_SIZE + 4;
+    static final int MAX_KEY_LENGTH = 255;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    /** Receives the records of committed batches during {@link #replay(Replayer)} and {@link #scan(int, Replayer)}. */
+    interface Replayer {
+        void record(byte type, byte[] key, long location, int size) throws IOException;
+    }
+
+    static class Segment {
+        final int id;
+        final File file;
+        final int capacity;
+        private final MappedByteBuffer buffer;
+        // Bytes taken by records that are still current, as maintained by the store.
+        long liveBytes;
+
+        private Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment head;
+    private int headOffset;
+    private long nextSequence;
+    private int uncommittedRecords;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens the segments found in the directory without replaying them. Either {@link #replay(Replayer)} or
+     * {@link #setHead(long, long)} must be called before appending.
+     */
+    MappedRecordLog(File directory, int segmentSize) throws IOException {
+        checkArgument(segmentSize > RECORD_OVERHEAD * 2);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        try {
+            for (int id : listSegmentIds(directory))
+                segments.put(id, openSegment(id, 0));
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    static List<Integer> listSegmentIds(File directory) {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Integer> ids = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException x) {
+                    // Not one of ours.
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private Segment openSegment(int id, int minCapacity) throws IOException {
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        // The mapping stays valid after the file is closed, so there is no need to keep a file handle per segment.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length == 0) {
+                length = Math.max(segmentSize, minCapacity);
+                raf.setLength(length);
+            }
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("Segment too large: " + file);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            return new Segment(id, file, buffer);
+        }
+    }
+
+    static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xffffffffL);
+    }
+
+    static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /** Size of a record with the given key and value length. */
+    static int recordSize(int keyLength, int valueLength) {
+        return RECORD_OVERHEAD + keyLength + valueLength;
+    }
+
+    /** Location just past the last committed record. */
+    long getHead() {
+        return location(head.id, headOffset);
+    }
+
+    /** Sequence number the next commit record will get. */
+    long getNextSequence() {
+        return nextSequence;
+    }
+
+    /** Segments from oldest to newest. */
+    Iterable<Segment> getSegments() {
+        return segments.values();
+    }
+
+    Segment getSegment(long location) {
+        return segments.get(segmentOf(location));
+    }
+
+    boolean isHead(Segment segment) {
+        return segment == head;
+    }
+
+    /**
+     * Continues appending at a position that is known to be just past the last committed record, because the log was
+     * closed cleanly there.
+     */
+    void setHead(long location, long nextSequence) throws IOException {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment == null || segments.lastKey() != segment.id || offsetOf(location) > segment.capacity)
+            throw new IOException("Head " + Long.toHexString(location) + " doesn't match the segments");
+        this.head = segment;
+        this.headOffset = offsetOf(location);
+        this.nextSequence = nextSequence;
+    }
+
+    /**
+     * Replays all committed batches in order, passing each put and delete record to the replayer once the commit
+     * record of its batch has been read. Whatever follows the last committed batch is erased, and appending continues
+     * from there.
+     */
+    void replay(Replayer replayer) throws IOException {
+        List<long[]> batch = new ArrayList<>();
+        List<byte[]> batchKeys = new ArrayList<>();
+        long expectedSequence = -1;
+        boolean first = true;
+        Segment lastSegment = null;
+        int lastOffset = 0;
+        Integer previousId = null;
+        replay:
+        for (Segment segment : segments.values()) {
+            // Segments are only ever deleted from the front, so a gap means data is missing.
+            if (previousId != null && segment.id != previousId + 1)
+                break;
+            previousId = segment.id;
+            if (lastSegment == null) {
+                lastSegment = segment;
+                lastOffset = 0;
+            }
+            int offset = 0;
+            while (offset + RECORD_OVERHEAD <= segment.capacity) {
+                ByteBuffer buffer = segment.buffer;
+                byte type = buffer.get(offset);
+                if (type == 0)
+                    break; // Rest of the segment is unused.
+                int size = checkedRecordSize(segment, offset);
+                if (size < 0)
+                    break replay;
+                int keyLength = buffer.get(offset + 1) & 0xff;
+                if (type == COMMIT) {
+                    ByteBuffer value = slice(segment, offset + RECORD_HEADER_SIZE, 12);
+                    long sequence = value.getLong();
+                    int count = value.getInt();
+                    if (expectedSequence != -1 && sequence != expectedSequence)
+                        break replay;
+                    // The start of the first batch may have been in a segment that was compacted away.
+                    if (count != batch.size() && !(first && count > batch.size()))
+                        break replay;
+                    for (int i = 0; i < batch.size(); i++) {
+                        long[] record = batch.get(i);
+                        replayer.record((byte) record[0], batchKeys.get(i), record[1], (int) record[2]);
+                    }
+                    batch.clear();
+                    batchKeys.clear();
+                    expectedSequence = sequence + 1;
+                    first = false;
+                    lastSegment = segment;
+                    lastOffset = offset + size;
+                } else if (type == PUT || type == DELETE) {
+                    byte[] key = new byte[keyLength];
+                    slice(segment, offset + RECORD_HEADER_SIZE, keyLength).get(key);
+                    batch.add(new long[] { type, location(segment.id, offset), size });
+                    batchKeys.add(key);
+                } else {
+                    break replay;
+                }
+                offset += size;
+            }
+        }
+
+        nextSequence = expectedSequence == -1 ? 0 : expectedSequence;
+        if (lastSegment == null) {
+            head = openSegment(0, 0);
+            segments.put(head.id, head);
+            headOffset = 0;
+            return;
+        }
+        // Erase the partial batch, if any, so that it can't be mistaken for records written later.
+        head = lastSegment;
+        headOffset = lastOffset;
+        zero(head, headOffset);
+        while (segments.lastKey() != head.id) {
+            Segment segment = segments.remove(segments.lastKey());
+            log.warn("Dropping segment {} which has no committed data", segment.file);
+            if (!segment.file.delete())
+                throw new IOException("Could not delete " + segment.file);
+        }
+    }
+
+    /**
+     * Passes every put record of a segment to the replayer, whether it is current or not.
+     */
+    void scan(int segmentId, Replayer replayer) throws IOException {
+        Segment segment = segments.get(segmentId);
+        int end = segment == head ? headOffset : segment.capacity;
+        int offset = 0;
+        while (offset + RECORD_OVERHEAD <= end) {
+            byte type = segment.buffer.get(offset);
+            if (type == 0)
+                break;
+            int size = checkedRecordSize(segment, offset);
+            if (size < 0)
+                throw new IOException("Damaged record in " + segment.file + " at " + offset);
+            if (type == PUT) {
+                byte[] key = new byte[segment.buffer.get(offset + 1) & 0xff];
+                slice(segment, offset + RECORD_HEADER_SIZE, key.length).get(key);
+                replayer.record(type, key, location(segment.id, offset), size);
+            }
+            offset += size;
+        }
+    }
+
+    // Returns the size of the record at the offset, or -1 if it is damaged.
+    private int checkedRecordSize(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer;
+        int keyLength = buffer.get(offset + 1) & 0xff;
+        int valueLength = buffer.getInt(offset + 2);
+        if (valueLength < 0 || valueLength > segment.capacity - offset - RECORD_OVERHEAD - keyLength)
+            return -1;
+        int size = recordSize(keyLength, valueLength);
+        crc.reset();
+        crc.update(slice(segment, offset, size - 4));
+        if ((int) crc.getValue() != buffer.getInt(offset + size - 4))
+            return -1;
+        return size;
+    }
+
+    private static ByteBuffer slice(Segment segment, int offset, int length) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.limit(offset + length);
+        buffer.position(offset);
+        return buffer;
+    }
+
+    private static void zero(Segment segment, int from) {
+        byte[] zeros = new byte[64 * 1024];
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(from);
+        while (buffer.hasRemaining())
+            buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+    }
+
+    /**
+     * Appends a put or delete record and returns its location. The record only takes effect once
+     * {@link #commit()} has been called.
+     */
+    long append(byte type, byte[] key, byte[] value) throws IOException {
+        checkArgument(type == PUT || type == DELETE);
+        checkArgument(key.length <= MAX_KEY_LENGTH);
+        long location = write(type, key, value);
+        uncommittedRecords++;
+        return location;
+    }
+
+    /** Appends the commit record for all records appended since the last commit. */
+    void commit() throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(12);
+        value.putLong(nextSequence);
+        value.putInt(uncommittedRecords);
+        write(COMMIT, new byte[0], value.array());
+        nextSequence++;
+        uncommittedRecords = 0;
+    }
+
+    private long write(byte type, byte[] key, byte[] value) throws IOException {
+        checkState(head != null, "Log has not been replayed");
+        int size = recordSize(key.length, value.length);
+        if (headOffset + size > head.capacity) {
+            head = openSegment(head.id + 1, size);
+            segments.put(head.id, head);
+            headOffset = 0;
+        }
+        ByteBuffer buffer = slice(head, headOffset, size);
+        buffer.put(type);
+        buffer.put((byte) key.length);
+        buffer.putInt(value.length);
+        buffer.put(key);
+        buffer.put(value);
+        crc.reset();
+        crc.update(slice(head, headOffset, size - 4));
+        buffer.putInt((int) crc.getValue());
+        long location = location(head.id, headOffset);
+        headOffset += size;
+        return location;
+    }
+
+    /** Returns the value of the record at the location. */
+    byte[] readValue(long location) throws IOException {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment == null)
+            throw new IOException("No segment for location " + Long.toHexString(location));
+        int offset = offsetOf(location);
+        int keyLength = segment.buffer.get(offset + 1) & 0xff;
+        byte[] value = new byte[segment.buffer.getInt(offset + 2)];
+        slice(segment, offset + RECORD_HEADER_SIZE + keyLength, value.length).get(value);
+        return value;
+    }
+
+    /** Returns the size of the record at the location. */
+    int readSize(long location) {
+        Segment segment = segments.get(segmentOf(location));
+        int offset = offsetOf(location);
+        return recordSize(segment.buffer.get(offset + 1) & 0xff, segment.buffer.getInt(offset + 2));
+    }
+
+    @Override
+    public boolean keyEquals(long location, byte[] key) throws IOException {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment == null)
+            throw new IOException("No segment for location " + Long.toHexString(location));
+        int offset = offsetOf(location);
+        if ((segment.buffer.get(offset + 1) & 0xff) != key.length)
+            return false;
+        for (int i = 0; i < key.length; i++)
+            if (segment.buffer.get(offset + RECORD_HEADER_SIZE + i) != key[i])
+                return false;
+        return true;
+    }
+
+    /** Writes all segments to disk. */
+    void force() {
+        for (Segment segment : segments.values())
+            segment.buffer.force();
+    }
+
+    /** Deletes a segment whose records are no longer needed. The head segment can't be deleted. */
+    void delete(Segment segment) throws IOException {
+        checkArgument(segment != head && segments.get(segment.id) == segment);
+        segments.remove(segment.id);
+        if (!segment.file.delete())
+            log.warn("Could not delete {}", segment.file);
+    }
+
+    void close() {
+        segments.clear();
+        head = null;
+    }
+
+    /** Returns the ids and live byte counts of all segments, for saving on a clean close. */
+    long[][] getSegmentState() {
+        long[][] state = new long[segments.size()][];
+        int i = 0;
+        for (Map.Entry<Integer, Segment> entry : segments.entrySet())
+            state[i++] = new long[] { entry.getKey(), entry.getValue().liveBytes };
+        return state;
+    }
+
+    /** Restores the state returned by {@link #getSegmentState()}. Returns false if it doesn't match the segments. */
+    boolean setSegmentState(long[][] state) {
+        if (state.length != segments.size())
+            return false;
+        for (long[] entry : state) {
+            Segment segment = segments.get((int) entry[0]);
+            if (segment == null)
+                return false;
+            segment.liveBytes = entry[1];
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedRecordLog " + directory + " segments " + Arrays.toString(segments.keySet().toArray());
+    }
+}
@@ -289,10 +289,11 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     @Override
-    public synchronized final void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+    public synchronized final void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
         Sha256Hash hash = storedBlock.getHeader().getHash();
-        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        if (undoableBlock != null)
+            fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
     }
 
@@ -375,6 +376,14 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException("Tried to remove a UTXO from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
+    @Override
+    public synchronized void visitUnspentOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        for (UTXO output : transactionOutputMap.values())
+            if (output != null)
+                visitor.visit(output);
+    }
+
     @Override
     public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
         blockMap.beginDatabaseBatchWrite();
@@ -83,6 +83,7 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String DELETE_OPENOUTPUTS_SQL = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_ALL_TRANSACTION_OUTPUTS_SQL = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress FROM openoutputs";
 
     /**
      * Creates a new MySQLFullPrunedBlockStore.
@@ -125,6 +126,11 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    @Override
+    protected String getAllTransactionOutputsSelectSQL() {
+        return SELECT_ALL_TRANSACTION_OUTPUTS_SQL;
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<>();
@@ -166,7 +166,11 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     }
 
     @Override
-    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+    public void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        if (undoableBlock == null) {
+            super.put(storedBlock, null);
+            return;
+        }
         maybeConnect();
         // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
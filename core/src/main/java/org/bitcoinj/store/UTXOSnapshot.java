@@ -0,0 +1,390 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptException;
+import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A snapshot of the unspent outputs of a {@link FullPrunedBlockStore} at its verified chain head. Loading a
+ * snapshot into an empty store lets a {@link FullPrunedBlockChain} continue from that height rather than verifying
+ * the whole chain from the genesis block. Snapshots are meant to be produced by a node you trust, usually your own;
+ * nothing in the file proves that the outputs are the result of valid blocks.</p>
+ *
+ * <p>The file format starts with the ASCII magic string "UTXO SNAPSHOT 2" and the id of the network as written by
+ * {@link DataOutputStream#writeUTF(String)}. Then comes an int32 with the number of block headers and the headers
+ * themselves, oldest first, in the 96 byte format of {@link StoredBlock#serializeCompact(ByteBuffer)}. The last
+ * header is the base block, the block the outputs are the result of. The headers before it give the difficulty
+ * rules enough history to check the blocks that follow.</p>
+ *
+ * <p>Each output follows as an int32 length and the output as written by {@link UTXO#serializeToStream(OutputStream)}.
+ * A zero length ends the list. After it come the number of outputs as an int64, the {@link #getHash() hash} of the
+ * set and finally the SHA-256 hash of all preceding bytes of the file.</p>
+ *
+ * <p>The hash of the set is the SHA-256 hash of the base block hash, the number of outputs as an int64 and the
+ * MuHash3072 of the serialized outputs, the multiset hash Bitcoin Core uses for its UTXO set hash. MuHash3072 maps
+ * each output to a number modulo the prime 2^3072 - 1103717, using the SHA-256 hash of the output as the key of a
+ * ChaCha20 keystream, and multiplies these numbers. The product doesn't depend on the order of the outputs, and
+ * crafting a different set with the same product is not feasible, so a hash obtained from a trusted node commits to
+ * the exact set of outputs.</p>
+ */
+public class UTXOSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UTXOSnapshot.class);
+
+    /** Number of headers before the base block that are written by default. */
+    public static final int DEFAULT_HEADERS = 2016;
+
+    private static final String MAGIC = "UTXO SNAPSHOT 2";
+    // Larger batches don't load much faster but take more memory in stores that buffer them.
+    private static final int BATCH_SIZE = 10000;
+    private static final int MAX_OUTPUT_SIZE = Message.MAX_SIZE;
+
+    private final StoredBlock baseBlock;
+    private final long outputCount;
+    private final Sha256Hash hash;
+
+    private UTXOSnapshot(StoredBlock baseBlock, long outputCount, Sha256Hash hash) {
+        this.baseBlock = baseBlock;
+        this.outputCount = outputCount;
+        this.hash = hash;
+    }
+
+    /** The block at which the snapshot was taken. */
+    public StoredBlock getBaseBlock() {
+        return baseBlock;
+    }
+
+    /** The number of unspent outputs in the snapshot. */
+    public long getOutputCount() {
+        return outputCount;
+    }
+
+    /**
+     * A hash committing to the base block and the set of outputs, see the class documentation. It doesn't depend on
+     * the order the outputs were written in, so two stores with the same outputs at the same block give the same hash.
+     */
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "UTXO snapshot at height " + baseBlock.getHeight() + " (" + baseBlock.getHeader().getHashAsString()
+                + "): " + outputCount + " outputs, hash " + hash;
+    }
+
+    /**
+     * Writes the unspent outputs of the store at its verified chain head. The store must not be written to until
+     * this returns.
+     *
+     * @param headers number of headers before the base block to include, if the store has them
+     */
+    public static UTXOSnapshot write(FullPrunedBlockStore store, int headers, OutputStream stream)
+            throws BlockStoreException, IOException {
+        checkArgument(headers >= 0);
+        NetworkParameters params = store.getParams();
+        StoredBlock baseBlock = store.getVerifiedChainHead();
+        List<StoredBlock> blocks = new ArrayList<>();
+        blocks.add(baseBlock);
+        StoredBlock cursor = baseBlock;
+        while (blocks.size() <= headers && cursor.getHeight() > 0 && (cursor = cursor.getPrev(store)) != null)
+            blocks.add(cursor);
+        Collections.reverse(blocks);
+
+        long start = System.currentTimeMillis();
+        MessageDigest fileDigest = Sha256Hash.newDigest();
+        final DataOutputStream out = new DataOutputStream(new DigestOutputStream(stream, fileDigest));
+        out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        out.writeUTF(params.getId());
+        out.writeInt(blocks.size());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock block : blocks) {
+            buffer.clear();
+            block.serializeCompact(buffer);
+            out.write(buffer.array());
+        }
+
+        final SetHasher hasher = new SetHasher();
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            store.visitUnspentOutputs(new FullPrunedBlockStore.UnspentOutputVisitor() {
+                @Override
+                public void visit(UTXO output) throws BlockStoreException {
+                    try {
+                        bos.reset();
+                        output.serializeToStream(bos);
+                        out.writeInt(bos.size());
+                        bos.writeTo(out);
+                        hasher.add(bos.toByteArray());
+                    } catch (IOException e) {
+                        throw new BlockStoreException(e);
+                    }
+                }
+            });
+        } catch (BlockStoreException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        out.writeInt(0);
+        Sha256Hash hash = hasher.finish(baseBlock);
+        out.writeLong(hasher.count);
+        out.write(hash.getBytes());
+        out.flush();
+        stream.write(fileDigest.digest());
+        stream.flush();
+
+        UTXOSnapshot snapshot = new UTXOSnapshot(baseBlock, hasher.count, hash);
+        log.info("Wrote {} in {} ms", snapshot, System.currentTimeMillis() - start);
+        return snapshot;
+    }
+
+    /**
+     * Loads a snapshot into a store that has nothing but the genesis block. The outputs are written in large
+     * batches, and the chain head of the store is moved to the base block only once the whole snapshot has been
+     * checked. If an exception is thrown, the store should be discarded.
+     */
+    public static UTXOSnapshot read(FullPrunedBlockStore store, InputStream stream)
+            throws BlockStoreException, IOException {
+        NetworkParameters params = store.getParams();
+        Sha256Hash genesisHash = params.getGenesisBlock().getHash();
+        checkArgument(store.getChainHead().getHeader().getHash().equals(genesisHash)
+                && store.getVerifiedChainHead().getHeader().getHash().equals(genesisHash),
+                "A snapshot can only be loaded into an empty store.");
+        return read(params, stream, checkNotNull(store));
+    }
+
+    /**
+     * Reads a snapshot and checks it without loading it anywhere.
+     */
+    public static UTXOSnapshot verify(NetworkParameters params, InputStream stream) throws IOException {
+        try {
+            return read(params, stream, null);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private static UTXOSnapshot read(NetworkParameters params, InputStream stream, @Nullable FullPrunedBlockStore store)
+            throws BlockStoreException, IOException {
+        long start = System.currentTimeMillis();
+        MessageDigest fileDigest = Sha256Hash.newDigest();
+        DigestInputStream digestStream = new DigestInputStream(stream, fileDigest);
+        DataInputStream in = new DataInputStream(digestStream);
+        byte[] magic = new byte[MAGIC.length()];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC.getBytes(StandardCharsets.US_ASCII)))
+            throw new IOException("Not a UTXO snapshot or unsupported version");
+        String id = in.readUTF();
+        if (!id.equals(params.getId()))
+            throw new IOException("Snapshot is for network " + id + ", not " + params.getId());
+
+        int numBlocks = in.readInt();
+        if (numBlocks < 1)
+            throw new IOException("Snapshot has no base block");
+        List<StoredBlock> blocks = new ArrayList<>();
+        byte[] blockBytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+        for (int i = 0; i < numBlocks; i++) {
+            in.readFully(blockBytes);
+            StoredBlock block = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(blockBytes));
+            if (i > 0) {
+                StoredBlock prev = blocks.get(i - 1);
+                if (!block.getHeader().getPrevBlockHash().equals(prev.getHeader().getHash())
+                        || block.getHeight() != prev.getHeight() + 1)
+                    throw new IOException("Headers in snapshot don't connect at height " + block.getHeight());
+            }
+            blocks.add(block);
+        }
+        StoredBlock baseBlock = blocks.get(numBlocks - 1);
+
+        if (store != null) {
+            store.beginDatabaseBatchWrite();
+            try {
+                for (StoredBlock block : blocks.subList(0, numBlocks - 1))
+                    store.put(block);
+                // There is no undo data for the base block, so the chain can't be reorganized below it.
+                store.put(baseBlock, null);
+                store.commitDatabaseBatchWrite();
+            } catch (BlockStoreException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            }
+        }
+
+        SetHasher hasher = new SetHasher();
+        byte[] outputBytes = new byte[0];
+        int inBatch = 0;
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length == 0)
+                    break;
+                if (length < 0 || length > MAX_OUTPUT_SIZE)
+                    throw new IOException("Output of " + length + " bytes in snapshot");
+                if (outputBytes.length < length)
+                    outputBytes = new byte[Math.max(length, outputBytes.length * 2)];
+                in.readFully(outputBytes, 0, length);
+                hasher.add(outputBytes, length);
+                if (store == null)
+                    continue;
+                UTXO output = new UTXO(new ByteArrayInputStream(outputBytes, 0, length));
+                if (inBatch == 0)
+                    store.beginDatabaseBatchWrite();
+                store.addUnspentTransactionOutput(new UTXO(output.getHash(), output.getIndex(), output.getValue(),
+                        output.getHeight(), output.isCoinbase(), output.getScript(), getAddress(params, output)));
+                if (++inBatch == BATCH_SIZE) {
+                    store.commitDatabaseBatchWrite();
+                    inBatch = 0;
+                }
+            }
+            if (inBatch > 0) {
+                store.commitDatabaseBatchWrite();
+                inBatch = 0;
+            }
+
+            long count = in.readLong();
+            byte[] hashBytes = new byte[32];
+            in.readFully(hashBytes);
+            Sha256Hash hash = hasher.finish(baseBlock);
+            if (count != hasher.count || !hash.equals(Sha256Hash.wrap(hashBytes)))
+                throw new IOException("Snapshot doesn't match its hash");
+            digestStream.on(false);
+            byte[] checksum = new byte[32];
+            in.readFully(checksum);
+            if (!Arrays.equals(checksum, fileDigest.digest()))
+                throw new IOException("Snapshot is corrupt");
+
+            if (store != null) {
+                store.beginDatabaseBatchWrite();
+                inBatch = 1;
+                store.setChainHead(baseBlock);
+                store.setVerifiedChainHead(baseBlock);
+                store.commitDatabaseBatchWrite();
+                inBatch = 0;
+            }
+            UTXOSnapshot snapshot = new UTXOSnapshot(baseBlock, count, hash);
+            log.info("Read {} in {} ms", snapshot, System.currentTimeMillis() - start);
+            return snapshot;
+        } catch (BlockStoreException | IOException | RuntimeException e) {
+            if (inBatch > 0)
+                store.abortDatabaseBatchWrite();
+            throw e;
+        }
+    }
+
+    // The same as FullPrunedBlockChain does for the outputs it adds, as the address isn't part of the snapshot.
+    private static String getAddress(NetworkParameters params, UTXO output) {
+        Script script = output.getScript();
+        try {
+            return script.getToAddress(params, true).toString();
+        } catch (ScriptException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Computes the hash of the set, see the class documentation. The first 384 bytes of the ChaCha20 keystream (with
+     * a zero nonce) are read as a little endian number, and MuHash3072 itself is the SHA-256 hash of the product as
+     * 384 little endian bytes, the same as in Bitcoin Core.
+     */
+    @VisibleForTesting
+    static class SetHasher {
+        private static final int BITS = 3072;
+        private static final BigInteger C = BigInteger.valueOf(1103717);
+        private static final BigInteger PRIME = BigInteger.ONE.shiftLeft(BITS).subtract(C);
+        private static final byte[] NONCE = new byte[8];
+
+        private final MessageDigest digest = Sha256Hash.newDigest();
+        private final ChaChaEngine chacha = new ChaChaEngine(20);
+        private final byte[] zeros = new byte[BITS / 8];
+        private final byte[] keystream = new byte[BITS / 8];
+        // Big endian with a leading zero byte, so that it's read as a positive number.
+        private final byte[] element = new byte[BITS / 8 + 1];
+        private BigInteger product = BigInteger.ONE;
+        private long count;
+
+        void add(byte[] output) {
+            add(output, output.length);
+        }
+
+        void add(byte[] output, int length) {
+            digest.update(output, 0, length);
+            chacha.init(true, new ParametersWithIV(new KeyParameter(digest.digest()), NONCE));
+            chacha.processBytes(zeros, 0, zeros.length, keystream, 0);
+            for (int i = 0; i < keystream.length; i++)
+                element[element.length - 1 - i] = keystream[i];
+            product = reduce(product.multiply(new BigInteger(element)));
+            count++;
+        }
+
+        // As 2^3072 = C modulo the prime, the bits above 3072 can be folded in multiplied by C, which is much
+        // cheaper than a division.
+        private static BigInteger reduce(BigInteger x) {
+            while (x.bitLength() > BITS) {
+                BigInteger high = x.shiftRight(BITS);
+                x = x.subtract(high.shiftLeft(BITS)).add(high.multiply(C));
+            }
+            return x.compareTo(PRIME) >= 0 ? x.subtract(PRIME) : x;
+        }
+
+        /** The MuHash3072 of the outputs added so far. */
+        Sha256Hash getMuHash() {
+            byte[] bigEndian = product.toByteArray();
+            byte[] littleEndian = new byte[BITS / 8];
+            for (int i = 0; i < littleEndian.length && i < bigEndian.length; i++)
+                littleEndian[i] = bigEndian[bigEndian.length - 1 - i];
+            return Sha256Hash.of(littleEndian);
+        }
+
+        Sha256Hash finish(StoredBlock baseBlock) {
+            ByteBuffer buffer = ByteBuffer.allocate(32 + 8 + 32);
+            buffer.put(baseBlock.getHeader().getHash().getBytes());
+            buffer.putLong(count);
+            buffer.put(getMuHash().getBytes());
+            return Sha256Hash.of(buffer.array());
+        }
+    }
+}
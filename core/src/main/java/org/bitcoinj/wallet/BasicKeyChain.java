@@ -23,6 +23,7 @@ import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.crypto.*;
+import org.bitcoinj.utils.DaemonThreadFactory;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
@@ -30,8 +31,13 @@ import org.bouncycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -45,8 +51,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock(BasicKeyChain.class);
 
     // Maps used to let us quickly look up a key given data we find in transactions or the block chain.
-    private final LinkedHashMap<ByteString, ECKey> hashToKeys;
-    private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
+    private final ByteArrayMap<ECKey> hashToKeys;
+    private final ByteArrayMap<ECKey> pubkeyToKeys;
     @Nullable
     private final KeyCrypter keyCrypter;
     private boolean isWatching;
@@ -59,8 +65,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
 
     public BasicKeyChain(@Nullable KeyCrypter crypter) {
         this.keyCrypter = crypter;
-        hashToKeys = new LinkedHashMap<>();
-        pubkeyToKeys = new LinkedHashMap<>();
+        hashToKeys = new ByteArrayMap<>();
+        pubkeyToKeys = new ByteArrayMap<>();
         listeners = new CopyOnWriteArrayList<>();
     }
 
@@ -182,8 +188,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (!key.isWatching() && isWatching)
                 throw new IllegalArgumentException("Key is not watching but chain is");
         }
-        ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
-        hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        ECKey previousKey = pubkeyToKeys.put(key.getPubKey(), key);
+        hashToKeys.put(key.getPubKeyHash(), key);
         checkState(previousKey == null);
     }
 
@@ -211,7 +217,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubHash(byte[] pubKeyHash) {
         lock.lock();
         try {
-            return hashToKeys.get(ByteString.copyFrom(pubKeyHash));
+            return hashToKeys.get(pubKeyHash);
         } finally {
             lock.unlock();
         }
@@ -220,7 +226,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public ECKey findKeyFromPubKey(byte[] pubKey) {
         lock.lock();
         try {
-            return pubkeyToKeys.get(ByteString.copyFrom(pubKey));
+            return pubkeyToKeys.get(pubKey);
         } finally {
             lock.unlock();
         }
@@ -269,8 +275,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
-            boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
+            boolean a = hashToKeys.remove(key.getPubKeyHash()) != null;
+            boolean b = pubkeyToKeys.remove(key.getPubKey()) != null;
             checkState(a == b);   // Should be in both maps or neither.
             return a;
         } finally {
@@ -471,23 +477,27 @@ public class BasicKeyChain implements EncryptableKeyChain {
      * @throws KeyCrypterException Thrown if the wallet encryption fails. If so, the wallet state is unchanged.
      */
     @Override
-    public BasicKeyChain toEncrypted(KeyCrypter keyCrypter, KeyParameter aesKey) {
+    public BasicKeyChain toEncrypted(final KeyCrypter keyCrypter, final KeyParameter aesKey) {
         lock.lock();
         try {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
-                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-                // Check that the encrypted key can be successfully decrypted.
-                // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                // (all bitcoin controlled by that private key is lost forever).
-                // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
-                // being as cautious as possible.
-                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
-                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
-                encrypted.importKeyLocked(encryptedKey);
-            }
+            List<ECKey> encryptedKeys = transformKeys(new ArrayList<>(hashToKeys.values()), new KeyTransform() {
+                @Override
+                public ECKey apply(ECKey key) {
+                    ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                    // Check that the encrypted key can be successfully decrypted.
+                    // This is done as it is a critical failure if the private key cannot be decrypted successfully
+                    // (all bitcoin controlled by that private key is lost forever).
+                    // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
+                    // being as cautious as possible.
+                    if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
+                        throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+                    return encryptedKey;
+                }
+            });
+            encrypted.importKeysLocked(encryptedKeys);
             for (ListenerRegistration<KeyChainEventListener> listener : listeners) {
                 encrypted.addEventListener(listener);
             }
@@ -497,6 +507,70 @@ public class BasicKeyChain implements EncryptableKeyChain {
         }
     }
 
+    // Below this many keys, encrypting or decrypting them on the calling thread is faster than splitting up the work.
+    private static final int PARALLEL_CRYPTO_THRESHOLD = 64;
+    private static ExecutorService cryptoExecutor;
+
+    private static synchronized ExecutorService getCryptoExecutor() {
+        if (cryptoExecutor == null)
+            cryptoExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new DaemonThreadFactory("Key encryption"));
+        return cryptoExecutor;
+    }
+
+    private interface KeyTransform {
+        ECKey apply(ECKey key);
+    }
+
+    /**
+     * Applies the transform to all keys, in batches spread across the key encryption threads. The result is in the
+     * same order as the given keys. If the transform throws for any key, that exception is rethrown.
+     */
+    private static List<ECKey> transformKeys(List<ECKey> keys, final KeyTransform transform) {
+        if (keys.size() < PARALLEL_CRYPTO_THRESHOLD) {
+            List<ECKey> result = new ArrayList<>(keys.size());
+            for (ECKey key : keys)
+                result.add(transform.apply(key));
+            return result;
+        }
+        // A few batches per thread, so that threads finishing early can pick up remaining work.
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = Math.max(1, (keys.size() + threads * 4 - 1) / (threads * 4));
+        List<Future<List<ECKey>>> futures = new ArrayList<>();
+        ExecutorService executor = getCryptoExecutor();
+        for (int from = 0; from < keys.size(); from += batchSize) {
+            final List<ECKey> batch = keys.subList(from, Math.min(keys.size(), from + batchSize));
+            futures.add(executor.submit(new Callable<List<ECKey>>() {
+                @Override
+                public List<ECKey> call() {
+                    List<ECKey> result = new ArrayList<>(batch.size());
+                    for (ECKey key : batch)
+                        result.add(transform.apply(key));
+                    return result;
+                }
+            }));
+        }
+        List<ECKey> result = new ArrayList<>(keys.size());
+        try {
+            for (Future<List<ECKey>> future : futures)
+                result.addAll(future.get());
+            return result;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new KeyCrypterException("Could not transform keys", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyCrypterException("Interrupted while transforming keys", e);
+        } finally {
+            for (Future<List<ECKey>> future : futures)
+                future.cancel(true);
+        }
+    }
+
     @Override
     public BasicKeyChain toDecrypted(CharSequence password) {
         checkNotNull(keyCrypter, "Wallet is already decrypted");
@@ -505,7 +579,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     @Override
-    public BasicKeyChain toDecrypted(KeyParameter aesKey) {
+    public BasicKeyChain toDecrypted(final KeyParameter aesKey) {
         lock.lock();
         try {
             checkState(keyCrypter != null, "Wallet is already decrypted");
@@ -513,9 +587,13 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
-                decrypted.importKeyLocked(key.decrypt(aesKey));
-            }
+            List<ECKey> decryptedKeys = transformKeys(new ArrayList<>(hashToKeys.values()), new KeyTransform() {
+                @Override
+                public ECKey apply(ECKey key) {
+                    return key.decrypt(aesKey);
+                }
+            });
+            decrypted.importKeysLocked(decryptedKeys);
             for (ListenerRegistration<KeyChainEventListener> listener : listeners) {
                 decrypted.addEventListener(listener);
             }
@@ -597,6 +675,19 @@ public class BasicKeyChain implements EncryptableKeyChain {
         return numKeys() * 2;
     }
 
+    /** Adds the data elements {@link #getFilter(int, double, long)} would insert to the given list. */
+    /* package */ void getBloomFilterElements(List<byte[]> elements) {
+        lock.lock();
+        try {
+            for (ECKey key : hashToKeys.values()) {
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
@@ -0,0 +1,456 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.BlockFileLoader;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Rebuilds the history of a wallet from block files in the Bitcoin Core format, such as those of a local Bitcoin
+ * Cash Node, instead of resetting the block store and downloading the chain again. This is what to do after keys have
+ * been imported or a wallet has been restored from its seed.</p>
+ *
+ * <p>Each file is read by its own {@link BlockFileLoader} on a pool of threads. Every transaction is matched against
+ * the output scripts of the wallet, the data its spends push (public keys and redeem scripts) and the outpoints it
+ * can only be spent from by reference, the same things {@link Wallet#getBloomFilter(double)} holds. The headers of all
+ * blocks are indexed along the way, since the files hold them roughly but not exactly in chain order, and once all
+ * files are read the best chain is linked up from them. The wallet is then {@link Wallet#reset()} and given the
+ * matching transactions of that chain in order.</p>
+ *
+ * <p>Receiving transactions can move the lookahead window of a deterministic wallet on, bringing in keys that weren't
+ * looked for. If that happens the files are read again for just the new keys, and the wallet is given everything
+ * found so far again, so that it always sees the chain in order. A larger lookahead saves these extra passes.</p>
+ *
+ * <p>The index costs about a hundred bytes per block in the files.</p>
+ */
+public class BlockFileRescan {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileRescan.class);
+
+    // Only pushes at least this long are matched against the wallet, as in Wallet.getBloomFilter().
+    private static final int MINIMUM_DATA_LENGTH = 8;
+
+    /** Receives progress of the file reading. */
+    public interface ProgressListener {
+        /**
+         * Called on a worker thread each time a block file has been read.
+         *
+         * @param pass the pass over the files, from 1
+         * @param filesDone the number of files read in this pass
+         * @param filesTotal the number of files
+         * @param blocks the number of blocks read in this pass
+         */
+        void onFileScanned(int pass, int filesDone, int filesTotal, long blocks);
+    }
+
+    private final NetworkParameters params;
+    private final List<File> files;
+    private final int threads;
+    @Nullable
+    private volatile ProgressListener progressListener;
+
+    // What the files are matched against.
+    private static class Criteria {
+        final ByteArrayMap<Boolean> scripts = new ByteArrayMap<>();
+        final ByteArrayMap<Boolean> data = new ByteArrayMap<>();
+        final Set<TransactionOutPoint> outPoints = new HashSet<>();
+
+        static Criteria of(Wallet wallet) {
+            Criteria criteria = new Criteria();
+            for (byte[] script : wallet.getFilterScripts())
+                criteria.scripts.put(script, Boolean.TRUE);
+            List<byte[]> data = new ArrayList<>();
+            List<TransactionOutPoint> outPoints = new ArrayList<>();
+            wallet.getBloomFilterElements(data, outPoints);
+            for (byte[] element : data)
+                if (element.length >= MINIMUM_DATA_LENGTH)
+                    criteria.data.put(element, Boolean.TRUE);
+            criteria.outPoints.addAll(outPoints);
+            return criteria;
+        }
+
+        // Returns what this has that the other hasn't.
+        Criteria minus(Criteria other) {
+            Criteria diff = new Criteria();
+            for (byte[] script : scripts.keys())
+                if (!other.scripts.containsKey(script))
+                    diff.scripts.put(script, Boolean.TRUE);
+            for (byte[] element : data.keys())
+                if (!other.data.containsKey(element))
+                    diff.data.put(element, Boolean.TRUE);
+            for (TransactionOutPoint outPoint : outPoints)
+                if (!other.outPoints.contains(outPoint))
+                    diff.outPoints.add(outPoint);
+            return diff;
+        }
+
+        boolean isEmpty() {
+            return scripts.isEmpty() && data.isEmpty() && outPoints.isEmpty();
+        }
+
+        // Read by all workers at once, which is safe as nothing changes then.
+        boolean matches(Transaction tx) {
+            for (TransactionOutput output : tx.getOutputs())
+                if (scripts.containsKey(output.getScriptBytes()))
+                    return true;
+            if (tx.isCoinBase())
+                return false;
+            for (TransactionInput input : tx.getInputs()) {
+                if (outPoints.contains(input.getOutpoint()))
+                    return true;
+                if (data.isEmpty())
+                    continue;
+                try {
+                    for (ScriptChunk chunk : input.getScriptSig().getChunks())
+                        if (chunk.data != null && chunk.data.length >= MINIMUM_DATA_LENGTH
+                                && data.containsKey(chunk.data))
+                            return true;
+                } catch (ScriptException e) {
+                    // Not parseable, so it can't be one of ours.
+                }
+            }
+            return false;
+        }
+    }
+
+    // A block header as indexed during the first pass.
+    private static class Header {
+        final Sha256Hash prev;
+        final long difficultyTarget;
+        final int file;
+        final int ordinal;
+        int height = -1;
+        BigInteger chainWork;
+
+        Header(Sha256Hash prev, long difficultyTarget, int file, int ordinal) {
+            this.prev = prev;
+            this.difficultyTarget = difficultyTarget;
+            this.file = file;
+            this.ordinal = ordinal;
+        }
+    }
+
+    // The matching transactions of a block, by their position in it.
+    private static class Match {
+        final Block header;
+        final TreeMap<Integer, Transaction> transactions = new TreeMap<>();
+
+        Match(Block header) {
+            this.header = header;
+        }
+    }
+
+    // What a worker found in one file.
+    private static class FileResult {
+        final Map<Sha256Hash, Header> headers = new HashMap<>();
+        final Map<Sha256Hash, Match> matches = new HashMap<>();
+    }
+
+    /** Creates a rescan of the given files, with as many threads as there are processors. */
+    public BlockFileRescan(NetworkParameters params, List<File> files) {
+        this(params, files, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockFileRescan(NetworkParameters params, List<File> files, int threads) {
+        checkArgument(threads > 0);
+        this.params = checkNotNull(params);
+        this.files = new ArrayList<>(files);
+        this.threads = threads;
+    }
+
+    /** Creates a rescan of the blk*.dat files in the given directory. */
+    public BlockFileRescan(NetworkParameters params, File blocksDir) {
+        this(params, BlockFileLoader.getReferenceClientBlockFileList(blocksDir));
+    }
+
+    public void setProgressListener(@Nullable ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Rebuilds the history of the wallet from the best chain in the files. Returns the last block of that chain,
+     * which the wallet has then seen.
+     */
+    public StoredBlock rescan(Wallet wallet) throws InterruptedException, ExecutionException {
+        return rescan(wallet, null);
+    }
+
+    /**
+     * Rebuilds the history of the wallet up to the given block, usually the head of the block chain the wallet
+     * follows so that it can carry on from there. If no block is given, the best chain in the files is used.
+     *
+     * @return the block the wallet has then seen
+     * @throws IllegalArgumentException if the given block is not in the files
+     */
+    public StoredBlock rescan(Wallet wallet, @Nullable Sha256Hash stopHash)
+            throws InterruptedException, ExecutionException {
+        checkArgument(wallet.getParams().equals(params), "Wallet is for another network");
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("Block file rescan"));
+        try {
+            Criteria criteria = Criteria.of(wallet);
+            Map<Sha256Hash, Header> headers = new HashMap<>();
+            Map<Sha256Hash, Match> found = new HashMap<>();
+            scan(executor, 1, criteria, headers, found);
+            Sha256Hash[] best = linkChain(headers, stopHash);
+            StoredBlock tip = storedBlock(headers, best[best.length - 1]);
+            List<Match> chain = onChain(found.values(), headers, best);
+            for (int pass = 2; ; pass++) {
+                deliver(wallet, chain, headers, tip);
+                Criteria updated = Criteria.of(wallet);
+                Criteria added = updated.minus(criteria);
+                criteria = updated;
+                if (added.isEmpty())
+                    break;
+                log.info("Wallet grew by {} scripts, {} data elements and {} outpoints, reading the files again",
+                        added.scripts.size(), added.data.size(), added.outPoints.size());
+                Map<Sha256Hash, Match> more = new HashMap<>();
+                scan(executor, pass, added, null, more);
+                List<Match> moreOnChain = onChain(more.values(), headers, best);
+                if (moreOnChain.isEmpty())
+                    break;
+                for (Match match : moreOnChain) {
+                    Match existing = found.get(match.header.getHash());
+                    if (existing != null) {
+                        existing.transactions.putAll(match.transactions);
+                    } else {
+                        found.put(match.header.getHash(), match);
+                        chain.add(match);
+                    }
+                }
+                sortByHeight(chain, headers);
+            }
+            return tip;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Reads all files in parallel, collecting the matching transactions, and the headers if a map is given for them.
+    private void scan(ExecutorService executor, final int pass, final Criteria criteria,
+                      @Nullable Map<Sha256Hash, Header> headers, Map<Sha256Hash, Match> matches)
+            throws InterruptedException, ExecutionException {
+        final boolean indexHeaders = headers != null;
+        final AtomicInteger filesDone = new AtomicInteger();
+        final AtomicLong blocks = new AtomicLong();
+        List<Callable<FileResult>> tasks = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            final int fileIndex = i;
+            tasks.add(new Callable<FileResult>() {
+                @Override
+                public FileResult call() {
+                    FileResult result = new FileResult();
+                    int ordinal = 0;
+                    for (Block block : new BlockFileLoader(params, Collections.singletonList(files.get(fileIndex)))) {
+                        Sha256Hash hash = block.getHash();
+                        if (indexHeaders)
+                            result.headers.put(hash, new Header(block.getPrevBlockHash(),
+                                    block.getDifficultyTarget(), fileIndex, ordinal));
+                        ordinal++;
+                        List<Transaction> transactions = block.getTransactions();
+                        for (int position = 0; position < transactions.size(); position++) {
+                            Transaction tx = transactions.get(position);
+                            if (!criteria.matches(tx))
+                                continue;
+                            Match match = result.matches.get(hash);
+                            if (match == null) {
+                                match = new Match(block.cloneAsHeader());
+                                result.matches.put(hash, match);
+                            }
+                            match.transactions.put(position, tx);
+                        }
+                    }
+                    blocks.addAndGet(ordinal);
+                    ProgressListener listener = progressListener;
+                    if (listener != null)
+                        listener.onFileScanned(pass, filesDone.incrementAndGet(), files.size(), blocks.get());
+                    return result;
+                }
+            });
+        }
+        int matched = 0;
+        for (Future<FileResult> future : executor.invokeAll(tasks)) {
+            FileResult result = future.get();
+            if (indexHeaders)
+                headers.putAll(result.headers);
+            for (Match match : result.matches.values()) {
+                matches.put(match.header.getHash(), match);
+                matched += match.transactions.size();
+            }
+        }
+        log.info("Pass {} read {} blocks from {} files, {} transactions match", pass, blocks.get(), files.size(),
+                matched);
+    }
+
+    // Works out the heights and chain work of the indexed blocks and returns the hashes of the best chain by height,
+    // up to the given block if there is one.
+    private Sha256Hash[] linkChain(Map<Sha256Hash, Header> headers, @Nullable Sha256Hash stopHash) {
+        Block genesis = params.getGenesisBlock();
+        Header genesisHeader = headers.get(genesis.getHash());
+        if (genesisHeader == null) {
+            genesisHeader = new Header(Sha256Hash.ZERO_HASH, genesis.getDifficultyTarget(), -1, -1);
+            headers.put(genesis.getHash(), genesisHeader);
+        }
+        genesisHeader.height = 0;
+        genesisHeader.chainWork = genesis.getWork();
+
+        Sha256Hash best = genesis.getHash();
+        Header bestHeader = genesisHeader;
+        List<Header> path = new ArrayList<>();
+        for (Map.Entry<Sha256Hash, Header> entry : headers.entrySet()) {
+            // Walk back to a block whose height is known, then work forwards again.
+            path.clear();
+            Header cursor = entry.getValue();
+            while (cursor != null && cursor.height < 0) {
+                path.add(cursor);
+                cursor = headers.get(cursor.prev);
+            }
+            if (cursor == null)
+                continue;  // Doesn't connect to the genesis block.
+            for (int i = path.size() - 1; i >= 0; i--) {
+                Header header = path.get(i);
+                header.height = cursor.height + 1;
+                header.chainWork = cursor.chainWork.add(work(header.difficultyTarget));
+                cursor = header;
+            }
+            Header header = entry.getValue();
+            if (header.chainWork.compareTo(bestHeader.chainWork) > 0) {
+                best = entry.getKey();
+                bestHeader = header;
+            }
+        }
+        if (stopHash != null) {
+            Header stop = headers.get(stopHash);
+            checkArgument(stop != null && stop.height >= 0, "Block %s is not in the block files", stopHash);
+            best = stopHash;
+            bestHeader = stop;
+        }
+
+        Sha256Hash[] chain = new Sha256Hash[bestHeader.height + 1];
+        Sha256Hash hash = best;
+        for (int height = bestHeader.height; height >= 0; height--) {
+            chain[height] = hash;
+            hash = headers.get(hash).prev;
+        }
+        log.info("Best chain in the block files ends at height {}: {}", bestHeader.height, best);
+        return chain;
+    }
+
+    private static BigInteger work(long difficultyTarget) {
+        BigInteger target = Utils.decodeCompactBits(difficultyTarget);
+        return BigInteger.ONE.shiftLeft(256).divide(target.add(BigInteger.ONE));
+    }
+
+    // Reads the header of the given block from its file again, the index only keeps what it needs for linking.
+    private StoredBlock storedBlock(Map<Sha256Hash, Header> headers, Sha256Hash hash) {
+        Header header = headers.get(hash);
+        if (header.file < 0)
+            return new StoredBlock(params.getGenesisBlock().cloneAsHeader(), header.chainWork, 0);
+        int ordinal = 0;
+        for (Block block : new BlockFileLoader(params, Collections.singletonList(files.get(header.file)))) {
+            if (ordinal++ == header.ordinal) {
+                checkArgument(block.getHash().equals(hash), "Block file %s changed", files.get(header.file));
+                return new StoredBlock(block.cloneAsHeader(), header.chainWork, header.height);
+            }
+        }
+        throw new IllegalArgumentException("Block file " + files.get(header.file) + " changed");
+    }
+
+    // Returns the matches in blocks of the best chain, by height.
+    private static List<Match> onChain(Collection<Match> matches, Map<Sha256Hash, Header> headers, Sha256Hash[] best) {
+        List<Match> chain = new ArrayList<>();
+        for (Match match : matches) {
+            Header header = headers.get(match.header.getHash());
+            if (header != null && header.height >= 0 && header.height < best.length
+                    && best[header.height].equals(match.header.getHash()))
+                chain.add(match);
+        }
+        sortByHeight(chain, headers);
+        return chain;
+    }
+
+    private static void sortByHeight(List<Match> chain, final Map<Sha256Hash, Header> headers) {
+        Collections.sort(chain, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return Integer.compare(headers.get(a.header.getHash()).height, headers.get(b.header.getHash()).height);
+            }
+        });
+    }
+
+    // Gives the wallet all transactions of the chain in order, starting from scratch.
+    private void deliver(Wallet wallet, List<Match> chain, Map<Sha256Hash, Header> headers, StoredBlock tip)
+            throws VerificationException {
+        wallet.reset();
+        for (Match match : chain) {
+            Header header = headers.get(match.header.getHash());
+            StoredBlock block = new StoredBlock(match.header, header.chainWork, header.height);
+            for (Map.Entry<Integer, Transaction> entry : match.transactions.entrySet()) {
+                // The wallet changes the transactions it gets, so it gets fresh ones on every pass.
+                Transaction tx = params.getDefaultSerializer().makeTransaction(entry.getValue().bitcoinSerialize());
+                wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, entry.getKey());
+            }
+            wallet.notifyNewBestBlock(block);
+        }
+        wallet.notifyNewBestBlock(tip);
+        // Only the blocks with transactions were passed to the wallet, so count the depths from the heights.
+        for (Transaction tx : wallet.getTransactions(false)) {
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                confidence.setDepthInBlocks(tip.getHeight() - confidence.getAppearedAtChainHeight() + 1);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import javax.annotation.Nullable;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A map from byte arrays such as public keys and their hashes to values, which looks up keys without allocating.
+ * It uses open addressing with linear probing, hashing the last eight bytes of the key. Those bytes are
+ * effectively random for the hashes and public keys stored here, unlike the first byte of a public key.</p>
+ *
+ * <p>Like a {@link java.util.LinkedHashMap}, {@link #values()} iterates in insertion order. This class is not thread
+ * safe.</p>
+ */
+class ByteArrayMap<V> {
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    // Hash table of entry index + 1, or EMPTY or REMOVED. Its length is a power of two.
+    private int[] table;
+    private int removedSlots;
+
+    // Entries in insertion order. Removed entries are null until the next rehash compacts them.
+    private byte[][] entryKeys;
+    private Object[] entryValues;
+    private long[] entryHashes;
+    private int entryCount;
+    private int size;
+
+    ByteArrayMap() {
+        this(16);
+    }
+
+    ByteArrayMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        table = new int[capacity];
+        entryKeys = new byte[capacity / 2][];
+        entryValues = new Object[capacity / 2];
+        entryHashes = new long[capacity / 2];
+    }
+
+    static long hash(byte[] key) {
+        long h = 0;
+        int start = Math.max(0, key.length - 8);
+        for (int i = start; i < key.length; i++)
+            h = (h << 8) | (key[i] & 0xff);
+        if (start > 0)
+            return h;
+        // Short keys are mixed so that they still spread across the table.
+        h ^= key.length;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int slot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (table.length - 1);
+    }
+
+    private int findSlot(byte[] key, long hash) {
+        int mask = table.length - 1;
+        for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+            int index = table[slot];
+            if (index == EMPTY)
+                return -1;
+            if (index != REMOVED) {
+                int entry = index - 1;
+                if (entryHashes[entry] == hash && Arrays.equals(entryKeys[entry], key))
+                    return slot;
+            }
+        }
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V get(byte[] key) {
+        int slot = findSlot(key, hash(key));
+        return slot < 0 ? null : (V) entryValues[table[slot] - 1];
+    }
+
+    boolean containsKey(byte[] key) {
+        return findSlot(key, hash(key)) >= 0;
+    }
+
+    /**
+     * Associates the value with a copy of the key. Replacing the value of an existing key keeps its position in the
+     * iteration order.
+     *
+     * @return the previous value of the key, or null if there was none
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V put(byte[] key, V value) {
+        checkNotNull(value);
+        long hash = hash(key);
+        int slot = findSlot(key, hash);
+        if (slot >= 0) {
+            int entry = table[slot] - 1;
+            V previous = (V) entryValues[entry];
+            entryValues[entry] = value;
+            return previous;
+        }
+        if ((entryCount + 1) * 2 > table.length || (entryCount + removedSlots + 1) * 4 > table.length * 3)
+            rehash();
+        int entry = entryCount++;
+        entryKeys[entry] = Arrays.copyOf(key, key.length);
+        entryValues[entry] = value;
+        entryHashes[entry] = hash;
+        insert(hash, entry);
+        size++;
+        return null;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V remove(byte[] key) {
+        int slot = findSlot(key, hash(key));
+        if (slot < 0)
+            return null;
+        int entry = table[slot] - 1;
+        V previous = (V) entryValues[entry];
+        table[slot] = REMOVED;
+        removedSlots++;
+        entryKeys[entry] = null;
+        entryValues[entry] = null;
+        size--;
+        return previous;
+    }
+
+    private void insert(long hash, int entry) {
+        int mask = table.length - 1;
+        int slot = slot(hash);
+        while (table[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+        table[slot] = entry + 1;
+    }
+
+    // Compacts the entries, dropping removed ones, and rebuilds the table at a size fitting the live entries.
+    private void rehash() {
+        int capacity = table.length;
+        while ((size + 1) * 2 > capacity)
+            capacity <<= 1;
+        while (capacity > 16 && (size + 1) * 8 < capacity)
+            capacity >>>= 1;
+        byte[][] keys = new byte[capacity / 2][];
+        Object[] values = new Object[capacity / 2];
+        long[] hashes = new long[capacity / 2];
+        int count = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (entryKeys[i] == null)
+                continue;
+            keys[count] = entryKeys[i];
+            values[count] = entryValues[i];
+            hashes[count] = entryHashes[i];
+            count++;
+        }
+        entryKeys = keys;
+        entryValues = values;
+        entryHashes = hashes;
+        entryCount = count;
+        table = new int[capacity];
+        removedSlots = 0;
+        for (int i = 0; i < count; i++)
+            insert(hashes[i], i);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        Arrays.fill(table, EMPTY);
+        Arrays.fill(entryKeys, 0, entryCount, null);
+        Arrays.fill(entryValues, 0, entryCount, null);
+        entryCount = 0;
+        removedSlots = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns a view of the keys in insertion order. The keys must not be modified, and the view must not be used
+     * after modifying the map.
+     */
+    Collection<byte[]> keys() {
+        return view(true);
+    }
+
+    /**
+     * Returns a view of the values in insertion order. The view must not be used after modifying the map.
+     */
+    Collection<V> values() {
+        return view(false);
+    }
+
+    private <T> Collection<T> view(final boolean keys) {
+        return new AbstractCollection<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new Iterator<T>() {
+                    private int next = advance(0);
+
+                    private int advance(int from) {
+                        while (from < entryCount && entryKeys[from] == null)
+                            from++;
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < entryCount;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public T next() {
+                        if (next >= entryCount)
+                            throw new NoSuchElementException();
+                        T result = (T) (keys ? entryKeys[next] : entryValues[next]);
+                        next = advance(next + 1);
+                        return result;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
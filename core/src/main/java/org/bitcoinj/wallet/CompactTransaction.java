@@ -0,0 +1,77 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutput;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A settled wallet transaction that is kept in the serialized form of the wallet file rather than as a
+ * {@link org.bitcoinj.core.Transaction}, see {@link Wallet#compactSettledTransactions(int)}. Its depth isn't updated
+ * as blocks arrive, but follows from the height it appeared at.
+ */
+class CompactTransaction {
+    private final byte[] txProto;
+    private final int appearedAtHeight;
+
+    CompactTransaction(Protos.Transaction txProto) {
+        Protos.TransactionConfidence confidence = txProto.getConfidence();
+        checkArgument(confidence.getType() == Protos.TransactionConfidence.Type.BUILDING && confidence.hasAppearedAtHeight(),
+                "Transaction isn't in the chain");
+        this.txProto = txProto.toByteArray();
+        this.appearedAtHeight = confidence.getAppearedAtHeight();
+    }
+
+    int getAppearedAtHeight() {
+        return appearedAtHeight;
+    }
+
+    /**
+     * Returns the transaction as it is stored in the wallet file, with its depth at the given chain height.
+     */
+    Protos.Transaction toProto(int chainHeight) {
+        Protos.Transaction tx = parse();
+        Protos.TransactionConfidence confidence = tx.getConfidence();
+        int depth = chainHeight - appearedAtHeight + 1;
+        if (depth <= 0 || depth == confidence.getDepth())
+            return tx;
+        return tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+    }
+
+    /**
+     * Returns a copy of the value and script of the given output that isn't part of a transaction, for the inputs
+     * spending it to connect to, see {@link org.bitcoinj.core.TransactionInput#connectDetached(TransactionOutput)}.
+     */
+    TransactionOutput getDetachedOutput(NetworkParameters params, int index) {
+        Protos.TransactionOutput output = parse().getTransactionOutput(index);
+        return new TransactionOutput(params, null, Coin.valueOf(output.getValue()),
+                output.getScriptBytes().toByteArray());
+    }
+
+    private Protos.Transaction parse() {
+        try {
+            return Protos.Transaction.parseFrom(txProto);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException(e);  // Cannot happen, it was serialized by us.
+        }
+    }
+}
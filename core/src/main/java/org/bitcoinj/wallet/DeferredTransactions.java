@@ -0,0 +1,55 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+
+import java.util.Collection;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Spent and dead wallet transactions that were left in their serialized form when the wallet was loaded, see
+ * {@link WalletProtobufSerializer#setDeferHistory(boolean)}.
+ */
+class DeferredTransactions {
+    private final NetworkParameters params;
+    private final List<ByteString> transactions;
+
+    DeferredTransactions(NetworkParameters params, List<ByteString> transactions) {
+        this.params = checkNotNull(params);
+        this.transactions = checkNotNull(transactions);
+    }
+
+    int size() {
+        return transactions.size();
+    }
+
+    List<ByteString> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Deserializes the transactions and connects them to the given, already loaded transactions of the wallet.
+     */
+    List<WalletTransaction> load(Collection<Transaction> loaded) throws UnreadableWalletException {
+        return new WalletProtobufSerializer().readDeferredTransactions(params, transactions, loaded);
+    }
+}
@@ -1134,6 +1134,17 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
     }
 
+    /** Adds the data elements {@link #getFilter(int, double, long)} would insert to the given list. */
+    /* package */ void getBloomFilterElements(List<byte[]> elements) {
+        lock.lock();
+        try {
+            maybeLookAhead();
+            basicKeyChain.getBloomFilterElements(elements);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * <p>The number of public keys we should pre-generate on each path before they are requested by the app. This is
      * required so that when scanning through the chain given only a seed, we can give enough keys to the remote node
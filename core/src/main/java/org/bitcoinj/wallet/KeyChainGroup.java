@@ -854,6 +854,14 @@ public class KeyChainGroup implements KeyBag {
         return filter;
     }
 
+    /** Adds the data elements {@link #getBloomFilter(int, double, long)} would insert to the given list. */
+    /* package */ void getBloomFilterElements(List<byte[]> elements) {
+        basic.getBloomFilterElements(elements);
+        if (chains != null)
+            for (DeterministicKeyChain chain : chains)
+                chain.getBloomFilterElements(elements);
+    }
+
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
     }
@@ -0,0 +1,106 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * The set of unspent outputs of a wallet, which additionally keeps them sorted by descending value. The sort order is
+ * maintained as outputs are added and removed, so coin selection doesn't have to sort the whole set for every
+ * transaction it creates.
+ */
+class UnspentOutputSet extends HashSet<TransactionOutput> {
+    private static final long serialVersionUID = -1716173309726409871L;
+
+    /** Orders by descending value, then by outpoint so that distinct outputs of the same value don't collide. */
+    static final Comparator<TransactionOutput> DESCENDING_VALUE = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            int c = Long.compare(b.getValue().value, a.getValue().value);
+            if (c != 0) return c;
+            if (a == b) return 0;
+            Sha256Hash aHash = a.getParentTransactionHash(), bHash = b.getParentTransactionHash();
+            if (aHash == null || bHash == null)
+                return aHash == null ? (bHash == null ? Integer.compare(System.identityHashCode(a),
+                        System.identityHashCode(b)) : -1) : 1;
+            c = aHash.compareTo(bHash);
+            if (c != 0) return c;
+            return Integer.compare(a.getIndex(), b.getIndex());
+        }
+    };
+
+    private final TreeSet<TransactionOutput> byValue = new TreeSet<>(DESCENDING_VALUE);
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (!super.add(output))
+            return false;
+        byValue.add(output);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!super.remove(o))
+            return false;
+        byValue.remove(o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        byValue.clear();
+    }
+
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        final Iterator<TransactionOutput> it = super.iterator();
+        return new Iterator<TransactionOutput>() {
+            private TransactionOutput last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                return last = it.next();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                byValue.remove(last);
+            }
+        };
+    }
+
+    /** Returns an unmodifiable view of the outputs, sorted by descending value. */
+    NavigableSet<TransactionOutput> byDescendingValue() {
+        return Collections.unmodifiableNavigableSet(byValue);
+    }
+}
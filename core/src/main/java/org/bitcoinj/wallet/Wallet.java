@@ -18,6 +18,7 @@
 package org.bitcoinj.wallet;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.*;
 import com.google.common.util.concurrent.*;
 import com.google.protobuf.ByteString;
@@ -40,6 +41,7 @@ import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.bitcoinj.wallet.WalletTransaction.Pool;
 import org.bitcoinj.wallet.listeners.*;
+import org.bitcoinj.wallet.selector.BranchAndBoundCoinSelector;
 import org.bitcoinj.wallet.selector.CoinSelector;
 import org.bitcoinj.wallet.selector.DefaultCoinSelector;
 import org.bitcoinj.wallet.selector.FilteringCoinSelector;
@@ -52,6 +54,7 @@ import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
@@ -136,9 +139,20 @@ public class Wallet extends BaseTaggableObject
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // Spent and dead transactions that haven't been deserialized yet, see WalletProtobufSerializer.setDeferHistory().
+    // They are loaded on first access to the spent, dead or all transactions maps.
+    @Nullable private volatile DeferredTransactions vDeferredTransactions;
+
+    // Settled transactions that are only kept in serialized form, see compactSettledTransactions(). They are still
+    // part of the spent and all transactions maps, which inflate them when they are accessed.
+    private final Map<Sha256Hash, CompactTransaction> compactedTransactions = new LinkedHashMap<>();
+    // If positive, settled transactions at least this deep are compacted as blocks arrive.
+    private int compactTransactionDepth;
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = new HashSet<>();
+    // Used to speed up various calculations. Also kept sorted by value, so candidates for coin selection are too.
+    private final UnspentOutputSet unspentOutputs = new UnspentOutputSet();
+    protected final HashSet<TransactionOutput> myUnspents = unspentOutputs;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -206,6 +220,8 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // The journal that changes are appended to when auto-saving with journaling enabled, otherwise null.
+    @Nullable private volatile WalletJournal vJournal;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -450,10 +466,10 @@ public class Wallet extends BaseTaggableObject
         this.keyChainGroup = checkNotNull(keyChainGroup);
         watchedScripts = new HashSet<>();
         unspent = new HashMap<>();
-        spent = new HashMap<>();
+        spent = new DeferredLoadingMap(true);
         pending = new HashMap<>();
-        dead = new HashMap<>();
-        transactions = new HashMap<>();
+        dead = new DeferredLoadingMap(false);
+        transactions = new DeferredLoadingMap(true);
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
@@ -479,6 +495,7 @@ public class Wallet extends BaseTaggableObject
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
                         queueOnTransactionConfidenceChanged(tx);
+                        journalTransactionChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
                         lock.unlock();
@@ -1252,6 +1269,9 @@ public class Wallet extends BaseTaggableObject
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     private void markKeysAsUsed(Transaction tx) {
+        WalletJournal journal = vJournal;
+        if (journal != null)
+            journal.keysChanged();
         keyChainGroupLock.lock();
         try {
             for (TransactionOutput o : tx.getOutputs()) {
@@ -1506,11 +1526,21 @@ public class Wallet extends BaseTaggableObject
      * Saves the wallet first to the given temp file, then renames to the dest file.
      */
     public void saveToFile(File temp, File destFile) throws IOException {
+        saveToFileAndHash(temp, destFile);
+    }
+
+    /**
+     * Like {@link #saveToFile(File, File)}, but also returns the hash of the written wallet file.
+     */
+    Sha256Hash saveToFileAndHash(File temp, File destFile) throws IOException {
         FileOutputStream stream = null;
         lock.lock();
         try {
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            DigestOutputStream digestStream = new DigestOutputStream(stream, Sha256Hash.newDigest());
+            saveToFileStream(digestStream);
+            digestStream.flush();
+            Sha256Hash hash = Sha256Hash.wrap(digestStream.getMessageDigest().digest());
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -1523,11 +1553,12 @@ public class Wallet extends BaseTaggableObject
                 if (canonical.exists() && !canonical.delete())
                     throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
                 if (temp.renameTo(canonical))
-                    return;  // else fall through.
+                    return hash;  // else fall through.
                 throw new IOException("Failed to rename " + temp + " to " + canonical);
             } else if (!temp.renameTo(destFile)) {
                 throw new IOException("Failed to rename " + temp + " to " + destFile);
             }
+            return hash;
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
@@ -1634,12 +1665,29 @@ public class Wallet extends BaseTaggableObject
      */
     public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
                                       @Nullable WalletFiles.Listener eventListener) {
+        return autosaveToFile(f, delayTime, timeUnit, eventListener, false);
+    }
+
+    /**
+     * <p>Like {@link #autosaveToFile(File, long, TimeUnit, WalletFiles.Listener)}, but optionally journaled. With
+     * journaling, saves append only the changes since the previous save to a {@link WalletJournal} next to the wallet
+     * file instead of rewriting the whole file, which is much cheaper for wallets with many transactions. The journal
+     * is compacted into the wallet file in the background once it grows large. The first save always writes the full
+     * wallet file.</p>
+     *
+     * <p>{@link #loadFromFile(File, WalletExtension...)} applies the journal when loading the wallet.</p>
+     *
+     * @param journaled whether to append changes to a journal rather than rewriting the whole wallet file
+     */
+    public WalletFiles autosaveToFile(File f, long delayTime, TimeUnit timeUnit,
+                                      @Nullable WalletFiles.Listener eventListener, boolean journaled) {
         lock.lock();
         try {
             checkState(vFileManager == null, "Already auto saving this wallet.");
-            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit);
+            WalletFiles manager = new WalletFiles(this, f, delayTime, timeUnit, journaled);
             if (eventListener != null)
                 manager.setListener(eventListener);
+            vJournal = manager.getJournal();
             vFileManager = manager;
             return manager;
         } finally {
@@ -1659,6 +1707,7 @@ public class Wallet extends BaseTaggableObject
         try {
             WalletFiles files = vFileManager;
             vFileManager = null;
+            vJournal = null;
             checkState(files != null, "Auto saving not enabled.");
             files.shutdownAndWait();
         } finally {
@@ -1681,6 +1730,10 @@ public class Wallet extends BaseTaggableObject
     protected void saveNow() {
         WalletFiles files = vFileManager;
         if (files != null) {
+            // Immediate saves are requested for changes to keys and watched scripts, so those have to be journaled.
+            WalletJournal journal = vJournal;
+            if (journal != null)
+                journal.keysChanged();
             try {
                 files.saveNow();  // This calls back into saveToFile().
             } catch (IOException e) {
@@ -1728,10 +1781,42 @@ public class Wallet extends BaseTaggableObject
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        return loadFromFile(file, false, walletExtensions);
+    }
+
+    /**
+     * Returns a wallet deserialized from the given file, like {@link #loadFromFile(File, WalletExtension...)}.
+     *
+     * @param file the wallet file to read
+     * @param deferHistory if true, spent and dead transactions are only deserialized when first needed, see
+     *                     {@link WalletProtobufSerializer#setDeferHistory(boolean)}
+     * @param walletExtensions extensions possibly added to the wallet.
+     */
+    public static Wallet loadFromFile(File file, boolean deferHistory, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
         try {
-            try (FileInputStream stream = new FileInputStream(file)) {
-                return loadFromFileStream(stream, walletExtensions);
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setDeferHistory(deferHistory);
+            Wallet wallet;
+            if (WalletJournal.getJournalFile(file).exists()) {
+                try {
+                    Protos.Wallet walletProto = WalletJournal.readWalletProto(file);
+                    if (deferHistory)
+                        wallet = serializer.readWallet(walletProto.toByteString().newInput(), false, walletExtensions);
+                    else
+                        wallet = serializer.readWallet(walletProto, false, walletExtensions);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    throw new UnreadableWalletException("Could not parse journaled wallet", e);
+                }
+            } else {
+                try (FileInputStream stream = new FileInputStream(file)) {
+                    wallet = serializer.readWallet(stream, walletExtensions);
+                }
             }
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            return wallet;
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not open file", e);
         }
@@ -1763,6 +1848,16 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
+            if (vDeferredTransactions != null || !compactedTransactions.isEmpty()) {
+                // Only check what is loaded, checking everything would defeat deferred loading and compaction.
+                for (Transaction tx : unspent.values()) {
+                    if (!isTxConsistent(tx, false)) {
+                        throw new IllegalStateException("Inconsistent unspent tx: " + tx.getTxId());
+                    }
+                }
+                return;
+            }
+
             Set<Transaction> transactions = getTransactions(true);
 
             Set<Sha256Hash> hashes = new HashSet<>();
@@ -2043,7 +2138,8 @@ public class Wallet extends BaseTaggableObject
         }
         // Now for each pending transaction, see if it shares any outpoints with this tx.
         Set<Transaction> doubleSpendTxns = new HashSet<>();
-        for (Transaction p : candidates.values()) {
+        // Compacted transactions are settled, their inputs spend our outputs which are checked separately.
+        for (Transaction p : inflated(candidates).values()) {
             if (p.equals(tx))
                 continue;
             for (TransactionInput input : p.getInputs()) {
@@ -2196,6 +2292,7 @@ public class Wallet extends BaseTaggableObject
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            journalTransactionChanged(tx);
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
@@ -2207,7 +2304,7 @@ public class Wallet extends BaseTaggableObject
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = new HashSet<>();
                 currentTxDependencies.add(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies, getInflatedTransactions(true));
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
@@ -2319,10 +2416,32 @@ public class Wallet extends BaseTaggableObject
             final Transaction tx = entry.getKey();
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
+            // Depth changes are implied by the last seen block height, see WalletJournal.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                journalTransactionChanged(tx);
         }
         confidenceChanged.clear();
     }
 
+    /**
+     * Records that the given transaction has to be written with the next journaled save, if journaling is enabled.
+     */
+    private void journalTransactionChanged(@Nullable Transaction tx) {
+        WalletJournal journal = vJournal;
+        if (journal != null && tx != null)
+            journal.transactionChanged(tx.getTxId());
+    }
+
+    /**
+     * Records that the wallet changed in a way the journal can't express, so the next save has to write the full
+     * wallet file.
+     */
+    private void journalRequireCompaction() {
+        WalletJournal journal = vJournal;
+        if (journal != null)
+            journal.compactionRequired();
+    }
+
     /**
      * <p>Called by the {@link BlockChain} when a new block on the best chain is seen, AFTER relevant wallet
      * transactions are extracted and sent to us UNLESS the new block caused a re-org, in which case this will
@@ -2345,7 +2464,8 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
+            // Compacted transactions don't track their depth, it follows from the height they appeared at.
+            Set<Transaction> transactions = getInflatedTransactions(true);
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getTxId())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -2370,6 +2490,8 @@ public class Wallet extends BaseTaggableObject
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
+            if (compactTransactionDepth > 0 && !insideReorg)
+                compactSettledTransactions(compactTransactionDepth);
 
             if (hardSaveOnNextBlock) {
                 saveNow();
@@ -2565,6 +2687,8 @@ public class Wallet extends BaseTaggableObject
             log.warn("TX {} killed{}", tx.getTxId(),
                     overridingTx != null ? " by " + overridingTx.getTxId() : "");
             log.warn("Disconnecting each input and moving connected transactions.");
+            // The inputs must be connected to the transactions they spend to release their outputs.
+            inflateSpentTransactions(tx);
             // TX could be pending (finney attack), or in unspent/spent (coinbase killed by reorg).
             pending.remove(tx.getTxId());
             unspent.remove(tx.getTxId());
@@ -2619,6 +2743,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        journalTransactionChanged(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getTxId()) != null) {
@@ -2691,7 +2816,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("->pending (IN_CONFLICT): {}", tx.getTxId());
                 addWalletTransaction(Pool.PENDING, tx);
                 doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
+                addTransactionsDependingOn(doubleSpendPendingTxns, getInflatedTransactions(true));
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
                     confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
@@ -3078,6 +3203,18 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // Like getTransactions(), but without the compacted transactions, which aren't inflated.
+    Set<Transaction> getInflatedTransactions(boolean includeDead) {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(unspent.values());
+        all.addAll(inflated(spent).values());
+        all.addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all;
+    }
+
     /**
      * Returns a set of all WalletTransactions in the wallet.
      */
@@ -3095,6 +3232,22 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // The wallet transactions that are neither compacted nor deferred, for writing the wallet, see
+    // getCompactedTransactionProtos() and getDeferredTransactionBytes().
+    Iterable<WalletTransaction> getInflatedWalletTransactions() {
+        lock.lock();
+        try {
+            Set<WalletTransaction> all = new HashSet<>();
+            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+            addWalletTransactionsToSet(all, Pool.SPENT, loaded(spent).values());
+            addWalletTransactionsToSet(all, Pool.DEAD, loaded(dead).values());
+            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -3120,6 +3273,11 @@ public class Wallet extends BaseTaggableObject
      * Adds the given transaction to the given pools and registers a confidence change listener on it.
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
+        addWalletTransactionUnjournaled(pool, tx);
+        journalTransactionChanged(tx);
+    }
+
+    private void addWalletTransactionUnjournaled(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getTxId(), tx);
         switch (pool) {
@@ -3149,6 +3307,370 @@ public class Wallet extends BaseTaggableObject
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
     }
 
+    /**
+     * A transaction pool map that loads the deferred transactions of the wallet before it is first accessed. The
+     * spent and all transactions maps also hold the compacted transactions: looking one up inflates it, while
+     * iterating the map inflates all of them.
+     */
+    private class DeferredLoadingMap extends ForwardingMap<Sha256Hash, Transaction> {
+        private final Map<Sha256Hash, Transaction> delegate = new HashMap<>();
+        private final boolean holdsCompacted;
+
+        DeferredLoadingMap(boolean holdsCompacted) {
+            this.holdsCompacted = holdsCompacted;
+        }
+
+        @Override
+        protected Map<Sha256Hash, Transaction> delegate() {
+            if (holdsCompacted && !compactedTransactions.isEmpty())
+                inflateCompactedTransactions(new ArrayList<>(compactedTransactions.keySet()));
+            return inflated();
+        }
+
+        // The transactions that aren't compacted, without inflating any.
+        Map<Sha256Hash, Transaction> inflated() {
+            if (vDeferredTransactions != null)
+                loadDeferredTransactions();
+            return delegate;
+        }
+
+        // The transactions that are neither compacted nor deferred, without inflating or loading any.
+        Map<Sha256Hash, Transaction> loaded() {
+            return delegate;
+        }
+
+        private boolean isCompacted(Object key) {
+            return holdsCompacted && compactedTransactions.containsKey(key);
+        }
+
+        @Override
+        public Transaction get(Object key) {
+            if (isCompacted(key))
+                inflateCompactedTransactions(Collections.singletonList((Sha256Hash) key));
+            return inflated().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return isCompacted(key) || inflated().containsKey(key);
+        }
+
+        @Override
+        public Transaction put(Sha256Hash key, Transaction value) {
+            if (isCompacted(key))
+                inflateCompactedTransactions(Collections.singletonList(key));
+            return inflated().put(key, value);
+        }
+
+        @Override
+        public Transaction remove(Object key) {
+            if (isCompacted(key))
+                inflateCompactedTransactions(Collections.singletonList((Sha256Hash) key));
+            return inflated().remove(key);
+        }
+
+        @Override
+        public int size() {
+            return inflated().size() + (holdsCompacted ? compactedTransactions.size() : 0);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public void clear() {
+            if (holdsCompacted)
+                compactedTransactions.clear();
+            inflated().clear();
+        }
+    }
+
+    // The transactions of the given pool that aren't compacted, without inflating any.
+    private Map<Sha256Hash, Transaction> inflated(Map<Sha256Hash, Transaction> pool) {
+        return pool instanceof DeferredLoadingMap ? ((DeferredLoadingMap) pool).inflated() : pool;
+    }
+
+    // The transactions of the given pool that are neither compacted nor deferred, without inflating or loading any.
+    private Map<Sha256Hash, Transaction> loaded(Map<Sha256Hash, Transaction> pool) {
+        return pool instanceof DeferredLoadingMap ? ((DeferredLoadingMap) pool).loaded() : pool;
+    }
+
+    // The deferred transactions as they were read from the wallet file, for writing the wallet.
+    List<ByteString> getDeferredTransactionBytes() {
+        DeferredTransactions deferred = vDeferredTransactions;
+        return deferred != null ? deferred.getTransactions() : Collections.<ByteString>emptyList();
+    }
+
+    void setDeferredTransactions(DeferredTransactions deferredTransactions) {
+        lock.lock();
+        try {
+            checkState(vDeferredTransactions == null);
+            vDeferredTransactions = checkNotNull(deferredTransactions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the wallet was loaded with deferred history (see
+     * {@link WalletProtobufSerializer#setDeferHistory(boolean)}) and the spent and dead transactions haven't been
+     * loaded yet.
+     */
+    public boolean hasDeferredTransactions() {
+        return vDeferredTransactions != null;
+    }
+
+    /**
+     * Deserializes the spent and dead transactions whose loading was deferred, see
+     * {@link WalletProtobufSerializer#setDeferHistory(boolean)}. This happens automatically when the wallet first
+     * needs them, but can be called to load them at a convenient time, e.g. on a background thread right after
+     * startup.
+     */
+    public void loadDeferredTransactions() {
+        lock.lock();
+        try {
+            DeferredTransactions deferred = vDeferredTransactions;
+            if (deferred == null)
+                return;
+            // Clear first, so the pool maps can be accessed below.
+            vDeferredTransactions = null;
+            Stopwatch watch = Stopwatch.createStarted();
+            List<WalletTransaction> wtxs;
+            try {
+                wtxs = deferred.load(transactions.values());
+            } catch (UnreadableWalletException | RuntimeException e) {
+                // Keep them, so they are still saved with the wallet.
+                vDeferredTransactions = deferred;
+                throw new IllegalStateException("Could not load deferred transactions", e);
+            }
+            for (WalletTransaction wtx : wtxs)
+                addWalletTransactionUnjournaled(wtx.getPool(), wtx.getTransaction());
+            log.info("Loaded {} deferred transactions in {}", wtxs.size(), watch.stop());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Compacts the settled transactions of the wallet to reduce its memory usage, which is dominated by the
+     * transaction history in large wallets. A transaction is settled if it is in the spent pool and both it and the
+     * transactions spending its outputs are in the chain, itself at least <code>minDepth</code> blocks deep.
+     * Compacted transactions are kept just in the serialized form of the wallet file, which takes a fraction of the
+     * memory of a {@link Transaction} with its inputs, outputs, scripts and confidence.</p>
+     *
+     * <p>Compacted transactions are still part of the wallet: they are counted by {@link #getPoolSize(Pool)} and
+     * saved with it, and are inflated back into {@link Transaction}s when they are accessed, e.g. by
+     * {@link #getTransaction(Sha256Hash)} or {@link #getTransactions(boolean)}, together with the compacted
+     * transactions spending their outputs. Receiving transactions and blocks, balances and creating spends don't need
+     * them. Their depth isn't tracked as blocks arrive, but recomputed on inflation, so they don't fire depth events.
+     * Transaction objects obtained before compaction are no longer updated by the wallet.</p>
+     *
+     * <p>A transaction is only compacted together with the wallet transactions its inputs spend, and not if listeners
+     * other than the wallet's are registered on its confidence, as they would no longer be called.</p>
+     *
+     * @param minDepth the depth transactions must have to be compacted, which should be beyond the reach of re-orgs
+     * @return the number of transactions that were compacted
+     */
+    public int compactSettledTransactions(int minDepth) {
+        checkArgument(minDepth > 0, "minDepth must be positive");
+        lock.lock();
+        try {
+            checkState(!insideReorg, "Cannot compact transactions during a re-org");
+            Map<Sha256Hash, Transaction> settled = new LinkedHashMap<>();
+            for (Transaction tx : inflated(spent).values())
+                if (isSettled(tx, minDepth))
+                    settled.put(tx.getTxId(), tx);
+            // A compacted transaction can't be connected to the transactions it spends, so those must go too.
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Iterator<Transaction> it = settled.values().iterator(); it.hasNext(); ) {
+                    Transaction tx = it.next();
+                    for (TransactionInput input : tx.getInputs()) {
+                        Transaction from = input.getConnectedTransaction();
+                        if (from != null && !settled.containsKey(from.getTxId())) {
+                            it.remove();
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (settled.isEmpty())
+                return 0;
+            Stopwatch watch = Stopwatch.createStarted();
+            for (Transaction tx : settled.values()) {
+                Protos.Transaction txProto = WalletProtobufSerializer.makeTxProto(new WalletTransaction(Pool.SPENT, tx));
+                // Spenders that stay inflated keep a copy of the outputs they spend.
+                for (TransactionOutput output : tx.getOutputs()) {
+                    TransactionInput spentBy = output.getSpentBy();
+                    if (spentBy != null && !settled.containsKey(spentBy.getParentTransaction().getTxId()))
+                        spentBy.connectDetached(new TransactionOutput(params, null, output.getValue(),
+                                output.getScriptBytes()));
+                }
+                tx.getConfidence().removeEventListener(txConfidenceListener);
+                inflated(spent).remove(tx.getTxId());
+                inflated(transactions).remove(tx.getTxId());
+                compactedTransactions.put(tx.getTxId(), new CompactTransaction(txProto));
+            }
+            log.info("Compacted {} settled transactions in {}, {} are compacted now", settled.size(), watch.stop(),
+                    compactedTransactions.size());
+            return settled.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isSettled(Transaction tx, int minDepth) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING || confidence.getAppearedAtChainHeight() < 0
+                || confidence.getDepthInBlocks() < minDepth || ignoreNextNewBlock.contains(tx.getTxId()))
+            return false;
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            // Outputs that aren't spent can't be ours, as the transaction is in the spent pool.
+            if (spentBy != null && spentBy.getParentTransaction().getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+                return false;
+        }
+        for (TransactionConfidence.Listener listener : confidence.getEventListeners())
+            if (listener != txConfidenceListener)
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the number of transactions that are compacted, see {@link #compactSettledTransactions(int)}.
+     */
+    public int getCompactedTransactionCount() {
+        lock.lock();
+        try {
+            return compactedTransactions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the wallet compact its settled transactions as blocks arrive, see {@link #compactSettledTransactions(int)}.
+     * Zero, the default, turns this off, but doesn't inflate the transactions that are compacted already.
+     *
+     * @param depth the depth transactions must have to be compacted, which should be beyond the reach of re-orgs
+     */
+    public void setCompactTransactionDepth(int depth) {
+        checkArgument(depth >= 0, "depth must not be negative");
+        lock.lock();
+        try {
+            compactTransactionDepth = depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the depth at which settled transactions are compacted as blocks arrive, or zero if they aren't.
+     */
+    public int getCompactTransactionDepth() {
+        lock.lock();
+        try {
+            return compactTransactionDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The compacted transactions as they are written to the wallet file, with their current depth.
+    List<Protos.Transaction> getCompactedTransactionProtos() {
+        lock.lock();
+        try {
+            List<Protos.Transaction> txProtos = new ArrayList<>(compactedTransactions.size());
+            for (CompactTransaction compacted : compactedTransactions.values())
+                txProtos.add(compacted.toProto(lastBlockSeenHeight));
+            return txProtos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inflates the given compacted transactions, and the compacted transactions spending their outputs, as the
+     * inputs of those need to be connected to them.
+     */
+    private void inflateCompactedTransactions(Collection<Sha256Hash> txIds) {
+        lock.lock();
+        try {
+            Map<Sha256Hash, Protos.Transaction> txProtos = new LinkedHashMap<>();
+            LinkedList<Sha256Hash> work = new LinkedList<>(txIds);
+            while (!work.isEmpty()) {
+                Sha256Hash txId = work.poll();
+                CompactTransaction compacted = compactedTransactions.remove(txId);
+                if (compacted == null)
+                    continue;
+                Protos.Transaction txProto = compacted.toProto(lastBlockSeenHeight);
+                txProtos.put(txId, txProto);
+                for (Protos.TransactionOutput output : txProto.getTransactionOutputList())
+                    if (output.hasSpentByTransactionHash())
+                        work.add(Sha256Hash.wrap(output.getSpentByTransactionHash().toByteArray()));
+            }
+            if (txProtos.isEmpty())
+                return;
+            // The spenders that are inflated already, to connect them to the outputs they spend.
+            Set<Transaction> spenders = new HashSet<>();
+            for (Protos.Transaction txProto : txProtos.values()) {
+                for (Protos.TransactionOutput output : txProto.getTransactionOutputList()) {
+                    if (!output.hasSpentByTransactionHash())
+                        continue;
+                    Transaction spender = inflated(transactions).get(
+                            Sha256Hash.wrap(output.getSpentByTransactionHash().toByteArray()));
+                    if (spender != null)
+                        spenders.add(spender);
+                }
+            }
+            Stopwatch watch = Stopwatch.createStarted();
+            List<WalletTransaction> wtxs;
+            try {
+                wtxs = new WalletProtobufSerializer().readTransactions(params, txProtos.values(), spenders);
+            } catch (UnreadableWalletException e) {
+                throw new IllegalStateException("Could not inflate compacted transactions", e);
+            }
+            for (WalletTransaction wtx : wtxs)
+                addWalletTransactionUnjournaled(wtx.getPool(), wtx.getTransaction());
+            // The transactions they spend may stay compacted.
+            for (WalletTransaction wtx : wtxs) {
+                for (TransactionInput input : wtx.getTransaction().getInputs()) {
+                    TransactionOutPoint outpoint = input.getOutpoint();
+                    CompactTransaction from = compactedTransactions.get(outpoint.getHash());
+                    if (from != null)
+                        input.connectDetached(from.getDetachedOutput(params, (int) outpoint.getIndex()));
+                }
+            }
+            log.debug("Inflated {} compacted transactions in {}", wtxs.size(), watch.stop());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Inflates the compacted transactions that appeared above the given height.
+    private void inflateCompactedTransactionsAbove(int height) {
+        List<Sha256Hash> txIds = new ArrayList<>();
+        for (Map.Entry<Sha256Hash, CompactTransaction> entry : compactedTransactions.entrySet())
+            if (entry.getValue().getAppearedAtHeight() > height)
+                txIds.add(entry.getKey());
+        if (!txIds.isEmpty())
+            inflateCompactedTransactions(txIds);
+    }
+
+    // Inflates the compacted transactions the inputs of the given transaction spend.
+    private void inflateSpentTransactions(Transaction tx) {
+        List<Sha256Hash> txIds = new ArrayList<>();
+        for (TransactionInput input : tx.getInputs())
+            if (compactedTransactions.containsKey(input.getOutpoint().getHash()))
+                txIds.add(input.getOutpoint().getHash());
+        if (!txIds.isEmpty())
+            inflateCompactedTransactions(txIds);
+    }
+
     /**
      * Returns all non-dead, active transactions ordered by recency.
      */
@@ -3259,6 +3781,7 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        journalRequireCompaction();
         unspent.clear();
         spent.clear();
         pending.clear();
@@ -3335,6 +3858,7 @@ public class Wallet extends BaseTaggableObject
             }
             if (dirty) {
                 isConsistentOrThrow();
+                journalRequireCompaction();
                 saveLater();
                 if (log.isInfoEnabled())
                     log.info("Estimated balance is now: {}", getBalance(BalanceType.ESTIMATED).toFriendlyString());
@@ -3878,6 +4402,9 @@ public class Wallet extends BaseTaggableObject
      * transaction whose inputs are also to our wallet, the input amounts are deducted from the outputs contribution, with a minimum of zero
      * contribution. The idea behind this is we avoid double counting money sent to us.
      *
+     * <p>This goes through the whole transaction history, so it inflates the compacted transactions, see
+     * {@link #compactSettledTransactions(int)}.</p>
+     *
      * @return the total amount of satoshis received, regardless of whether it was spent or not.
      */
     public Coin getTotalReceived() {
@@ -3912,6 +4439,8 @@ public class Wallet extends BaseTaggableObject
      * we multiply the sum of the output values by the proportion of satoshi coming in to our inputs. Essentially we treat
      * inputs as pooling into the transaction, becoming fungible and being equally distributed to all outputs.
      *
+     * <p>Like {@link #getTotalReceived()}, this inflates the compacted transactions.</p>
+     *
      * @return the total amount of satoshis sent by us
      */
     public Coin getTotalSent() {
@@ -4536,7 +5065,7 @@ public class Wallet extends BaseTaggableObject
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
                 candidates = new ArrayList<TransactionOutput>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
+                for (TransactionOutput output : unspentOutputs.byDescendingValue()) {
                     if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
                     Transaction transaction = checkNotNull(output.getParentTransaction());
                     if (excludeImmatureCoinbases && !transaction.isMature())
@@ -4843,13 +5372,17 @@ public class Wallet extends BaseTaggableObject
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
             insideReorg = true;
+            // Transactions move between pools in ways the journal doesn't track, so rewrite the wallet file.
+            journalRequireCompaction();
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
+            // Compacted transactions should be too deep to be affected, but this re-org may be deeper than expected.
+            inflateCompactedTransactionsAbove(splitPoint.getHeight());
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
-            for (Transaction tx : getTransactions(true)) {
+            for (Transaction tx : getInflatedTransactions(true)) {
                 Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
                 if (appearsIn == null) continue;  // Pending.
                 for (Map.Entry<Sha256Hash, Integer> block : appearsIn.entrySet())
@@ -4930,7 +5463,7 @@ public class Wallet extends BaseTaggableObject
             int depthToSubtract = oldBlocks.size();
             log.info("depthToSubtract = " + depthToSubtract);
             // Remove depthToSubtract from all transactions in the wallet except for pending.
-            subtractDepth(depthToSubtract, spent.values());
+            subtractDepth(depthToSubtract, inflated(spent).values());
             subtractDepth(depthToSubtract, unspent.values());
             subtractDepth(depthToSubtract, dead.values());
 
@@ -5004,9 +5537,10 @@ public class Wallet extends BaseTaggableObject
     private void calcBloomOutPointsLocked() {
         // TODO: This could be done once and then kept up to date.
         bloomOutPoints.clear();
+        // The outputs of compacted transactions are all spent in the chain, so they don't need to be matched.
         Set<Transaction> all = new HashSet<>();
         all.addAll(unspent.values());
-        all.addAll(spent.values());
+        all.addAll(inflated(spent).values());
         all.addAll(pending.values());
         for (Transaction tx : all) {
             for (TransactionOutput out : tx.getOutputs()) {
@@ -5098,6 +5632,53 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Adds the data elements and outpoints {@link #getBloomFilter(int, double, long)} would insert to the given lists.
+     * Used by {@link WalletHost} to keep one index for many wallets.
+     */
+    /* package */ void getBloomFilterElements(List<byte[]> elements, List<TransactionOutPoint> outPoints) {
+        beginBloomFilterCalculation();
+        try {
+            keyChainGroup.getBloomFilterElements(elements);
+            for (Script script : watchedScripts)
+                for (ScriptChunk chunk : script.getChunks())
+                    if (!chunk.isOpCode() && (chunk.data != null) && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                        elements.add(chunk.data);
+            outPoints.addAll(bloomOutPoints);
+        } finally {
+            endBloomFilterCalculation();
+        }
+    }
+
+    /**
+     * Returns the output scripts this wallet is interested in, for matching against BIP158 compact block filters: the
+     * pay-to-pubkey-hash, pay-to-script-hash and pay-to-pubkey scripts of its keys, including the lookahead ones, and
+     * the watched scripts. Spends of the wallet's outputs match through the scripts of the outputs they spend, so no
+     * outpoints are needed.
+     */
+    public List<byte[]> getFilterScripts() {
+        List<byte[]> elements = new ArrayList<>();
+        List<byte[]> scripts = new ArrayList<>();
+        beginBloomFilterCalculation();
+        try {
+            keyChainGroup.getBloomFilterElements(elements);
+            for (Script script : watchedScripts)
+                scripts.add(script.getProgram());
+        } finally {
+            endBloomFilterCalculation();
+        }
+        for (byte[] element : elements) {
+            if (element.length == 20) {
+                // Key hashes and script hashes look the same, so either could be used in both ways.
+                scripts.add(ScriptBuilder.createP2PKHOutputScript(element).getProgram());
+                scripts.add(ScriptBuilder.createP2SHOutputScript(element).getProgram());
+            } else if (element.length == 33 || element.length == 65) {
+                scripts.add(ScriptBuilder.createP2PKOutputScript(element).getProgram());
+            }
+        }
+        return scripts;
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
@@ -5188,6 +5769,16 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Tells the wallet that the data of an extension changed. Unlike {@link #addOrUpdateExtension(WalletExtension)}
+     * this doesn't write the wallet immediately, but requests an auto-save after the usual delay, so that a burst of
+     * changes results in a single save. Does nothing if auto-saving is not enabled.
+     */
+    public void extensionChanged(WalletExtension extension) {
+        checkNotNull(extension);
+        saveLater();
+    }
+
     /**
      * Returns a snapshot of all registered extension objects. The extensions themselves are not copied.
      */
@@ -5242,6 +5833,10 @@ public class Wallet extends BaseTaggableObject
     public FeeCalculation calculateFee(SendRequest req, Coin value, List<TransactionInput> originalInputs,
                                        boolean needAtLeastReferenceFee, List<TransactionOutput> candidates) throws InsufficientMoneyException {
         checkState(lock.isHeldByCurrentThread());
+        CoinSelector requestedSelector = req.coinSelector == null ? coinSelector : req.coinSelector;
+        if (requestedSelector instanceof BranchAndBoundCoinSelector)
+            return calculateFeeSinglePass(req, value, originalInputs, needAtLeastReferenceFee, candidates,
+                    (BranchAndBoundCoinSelector) requestedSelector);
         // There are 3 possibilities for what adding change might do:
         // 1) No effect
         // 2) Causes increase in fee (change < 0.01 COINS)
@@ -5273,7 +5868,7 @@ public class Wallet extends BaseTaggableObject
             // Of the coins we could spend, pick some that we actually will spend.
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<TransactionOutput>(candidates));
+            CoinSelection selection = selector.select(valueNeeded, new ArrayList<>(candidates));
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
                 valueMissing = valueNeeded.subtract(selection.valueGathered);
@@ -5415,6 +6010,48 @@ public class Wallet extends BaseTaggableObject
         return result;
     }
 
+    /**
+     * Selects inputs and computes the fee in one go, using a size model of the transaction instead of repeatedly
+     * building it for each attempted selection.
+     */
+    private FeeCalculation calculateFeeSinglePass(SendRequest req, Coin value, List<TransactionInput> originalInputs,
+                                                  boolean needAtLeastReferenceFee, List<TransactionOutput> candidates,
+                                                  BranchAndBoundCoinSelector selector) throws InsufficientMoneyException {
+        resetTxInputs(req, originalInputs);
+        Address changeAddress = req.changeAddress;
+        if (changeAddress == null)
+            changeAddress = currentChangeAddress();
+        TransactionOutput changeOutput = new TransactionOutput(params, req.tx, Coin.ZERO, changeAddress);
+        int outputCount = req.tx.getOutputs().size();
+        int changeSize = changeOutput.unsafeBitcoinSerialize().length + VarInt.sizeOf(outputCount + 1)
+                - VarInt.sizeOf(outputCount);
+        Coin minChange = req.ensureMinRequiredFee ? changeOutput.getMinNonDustValue() : Coin.SATOSHI;
+        Coin minFee = needAtLeastReferenceFee ? Transaction.REFERENCE_DEFAULT_MIN_TX_FEE : Coin.ZERO;
+        BranchAndBoundCoinSelector.InputSizer inputSizer = new BranchAndBoundCoinSelector.InputSizer() {
+            @Override
+            public int getSpendingInputSize(TransactionOutput output) {
+                return BranchAndBoundCoinSelector.INPUT_BASE_SIZE + estimateBytesForSigning(output);
+            }
+        };
+        BranchAndBoundCoinSelector.FeeModel model = new BranchAndBoundCoinSelector.FeeModel(req.feePerKb, minFee,
+                req.tx.unsafeBitcoinSerialize().length, originalInputs.size(), changeSize, minChange, inputSizer);
+
+        BranchAndBoundCoinSelector.Selection selection = selector.select(value, candidates, model);
+        Coin valueMissing = selection.getMissing(value);
+        if (valueMissing.signum() > 0) {
+            log.warn("Insufficient value in wallet for send: needed {} more", valueMissing.toFriendlyString());
+            throw new InsufficientMoneyException(valueMissing);
+        }
+        checkState(selection.gathered.size() > 0 || originalInputs.size() > 0);
+        FeeCalculation result = new FeeCalculation();
+        result.bestCoinSelection = selection;
+        if (selection.change.signum() > 0) {
+            changeOutput.setValue(selection.change);
+            result.bestChangeOutput = changeOutput;
+        }
+        return result;
+    }
+
     private void resetTxInputs(SendRequest req, List<TransactionInput> originalInputs) {
         req.tx.clearInputs();
         for (TransactionInput input : originalInputs)
@@ -5423,26 +6060,29 @@ public class Wallet extends BaseTaggableObject
 
     private int estimateBytesForSigning(CoinSelection selection) {
         int size = 0;
-        for (TransactionOutput output : selection.gathered) {
-            try {
-                Script script = output.getScriptPubKey();
-                ECKey key = null;
-                Script redeemScript = null;
-                if (script.isSentToAddress()) {
-                    key = findKeyFromPubHash(script.getPubKeyHash());
-                    checkNotNull(key, "Coin selection includes unspendable outputs");
-                } else if (script.isPayToScriptHash()) {
-                    redeemScript = findRedeemDataFromScriptHash(script.getPubKeyHash()).redeemScript;
-                    checkNotNull(redeemScript, "Coin selection includes unspendable outputs");
-                }
-                size += script.getNumberOfBytesRequiredToSpend(key, redeemScript);
-            } catch (ScriptException e) {
-                // If this happens it means an output script in a wallet tx could not be understood. That should never
-                // happen, if it does it means the wallet has got into an inconsistent state.
-                throw new IllegalStateException(e);
+        for (TransactionOutput output : selection.gathered)
+            size += estimateBytesForSigning(output);
+        return size;
+    }
+
+    private int estimateBytesForSigning(TransactionOutput output) {
+        try {
+            Script script = output.getScriptPubKey();
+            ECKey key = null;
+            Script redeemScript = null;
+            if (script.isSentToAddress()) {
+                key = findKeyFromPubHash(script.getPubKeyHash());
+                checkNotNull(key, "Coin selection includes unspendable outputs");
+            } else if (script.isPayToScriptHash()) {
+                redeemScript = findRedeemDataFromScriptHash(script.getPubKeyHash()).redeemScript;
+                checkNotNull(redeemScript, "Coin selection includes unspendable outputs");
             }
+            return script.getNumberOfBytesRequiredToSpend(key, redeemScript);
+        } catch (ScriptException e) {
+            // If this happens it means an output script in a wallet tx could not be understood. That should never
+            // happen, if it does it means the wallet has got into an inconsistent state.
+            throw new IllegalStateException(e);
         }
-        return size;
     }
 
     //endregion
@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
@@ -50,6 +51,8 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    @Nullable private final WalletJournal journal;
+    private final AtomicBoolean compactionPending;
 
     private volatile Listener vListener;
 
@@ -75,6 +78,16 @@ public class WalletFiles {
      * depending on the urgency of the changes.
      */
     public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit) {
+        this(wallet, file, delay, delayTimeUnit, false);
+    }
+
+    /**
+     * Initialize atomic and optionally delayed writing of the wallet file to disk. If {@code journaled} is set, saves
+     * append the changes to a {@link WalletJournal} instead of rewriting the whole file, and the journal is compacted
+     * into the wallet file on the auto-save thread when it grows too large. With journaling the {@link Listener} is
+     * only called when the full wallet file is written.
+     */
+    public WalletFiles(final Wallet wallet, File file, long delay, TimeUnit delayTimeUnit, boolean journaled) {
         // An executor that starts up threads when needed and shuts them down later.
         this.executor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Wallet autosave thread", Thread.MIN_PRIORITY));
         this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
@@ -86,6 +99,8 @@ public class WalletFiles {
         this.savePending = new AtomicBoolean();
         this.delay = delay;
         this.delayTimeUnit = checkNotNull(delayTimeUnit);
+        this.journal = journaled ? new WalletJournal(wallet, file) : null;
+        this.compactionPending = new AtomicBoolean();
 
         this.saver = new Callable<Void>() {
             @Override
@@ -113,6 +128,14 @@ public class WalletFiles {
         return wallet;
     }
 
+    /**
+     * Get the {@link WalletJournal} changes are appended to, or null if journaling isn't enabled.
+     */
+    @Nullable
+    public WalletJournal getJournal() {
+        return journal;
+    }
+
     /**
      * The given listener will be called on the autosave thread before and after the wallet is saved to disk.
      */
@@ -137,9 +160,17 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        final Listener listener = vListener;
+        if (journal != null) {
+            journal.save(listener);
+            watch.stop();
+            log.info("Save completed in {}", watch);
+            if (journal.isCompactionDue())
+                compactLater();
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
-        final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
         wallet.saveToFile(temp, file);
@@ -158,6 +189,25 @@ public class WalletFiles {
         executor.schedule(saver, delay, delayTimeUnit);
     }
 
+    /**
+     * Queues up compaction of the journal into the wallet file in the background.
+     */
+    private void compactLater() {
+        if (executor.isShutdown() || compactionPending.getAndSet(true))
+            return;   // Already pending.
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactionPending.set(false);
+                try {
+                    journal.compact(vListener);
+                } catch (IOException e) {
+                    log.error("Failed to compact wallet journal", e);
+                }
+            }
+        });
+    }
+
     /**
      * Shut down auto-saving.
      */
@@ -167,6 +217,9 @@ public class WalletFiles {
             executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS); // forever
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
+        } finally {
+            if (journal != null)
+                journal.close();
         }
     }
 }
@@ -0,0 +1,726 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Hosts many wallets on one {@link AbstractBlockChain} and {@link PeerGroup}. Registering each wallet with the
+ * chain and peer group makes every block and broadcast transaction visit every wallet, each of which checks the
+ * transaction against its own keys, and makes the peer group merge a Bloom filter per wallet whenever it recalculates
+ * its filter.</p>
+ *
+ * <p>Instead the host keeps one index from the data elements a wallet puts in its Bloom filter (public keys, their
+ * hashes, P2SH script hashes and the data of watched scripts), the outpoints of the outputs a wallet owns, the
+ * outpoints spent by its transactions and its transaction hashes, to the wallets they belong to. A transaction is
+ * passed to the wallets the index finds for it only, which still check it in full. Entries are never removed while a
+ * wallet is hosted: an entry that no longer applies only costs that wallet one check.</p>
+ *
+ * <p>The host is the only {@link PeerFilterProvider} the peer group sees for its wallets. The filter is built from the
+ * index once and kept; elements added to the index later are inserted into it, so that a new key doesn't rebuild the
+ * filter of all wallets.</p>
+ *
+ * <p>Wallets added with a file are saved by the host on one background thread, at most once per save delay however
+ * often they change, rather than having one {@link WalletFiles} thread each. Don't also call
+ * {@link Wallet#autosaveToFile(File, long, TimeUnit, WalletFiles.Listener)} on them.</p>
+ *
+ * <p>Hosted wallets must not be added to the chain or peer group themselves. Unlike wallets added to a peer group,
+ * they aren't asked whether a filtered block has exhausted their key lookahead, so a block paying many fresh keys at
+ * once may be missed until the chain is replayed.</p>
+ */
+public class WalletHost implements NewBestBlockListener, ReorganizeListener, TransactionReceivedInBlockListener,
+        OnTransactionBroadcastListener, PeerFilterProvider {
+    private static final Logger log = LoggerFactory.getLogger(WalletHost.class);
+
+    private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
+
+    private final ReentrantLock lock = Threading.lock("WalletHost");
+
+    private final AbstractBlockChain chain;
+    @Nullable private final PeerGroup peerGroup;
+    private final long saveDelay;
+    private final TimeUnit saveDelayTimeUnit;
+    private final ScheduledThreadPoolExecutor executor;
+
+    // Tenants are iterated without the lock, for notifying all wallets of a new block.
+    private final List<Tenant> tenants = new CopyOnWriteArrayList<>();
+    @GuardedBy("lock") private final Map<Wallet, Tenant> tenantsByWallet = new HashMap<>();
+
+    // The values of these maps are the owning wallet, or an array of the owning wallets if there are several.
+    @GuardedBy("lock") private final ByteArrayMap<Object> elements = new ByteArrayMap<>();
+    @GuardedBy("lock") private final ByteArrayMap<Object> filterOutPoints = new ByteArrayMap<>();
+    @GuardedBy("lock") private final ByteArrayMap<Object> outPoints = new ByteArrayMap<>();
+    @GuardedBy("lock") private final ByteArrayMap<Object> txIds = new ByteArrayMap<>();
+
+    @GuardedBy("lock") @Nullable private BloomFilter filter;
+    @GuardedBy("lock") private int filterSize;
+    @GuardedBy("lock") private double filterFalsePositiveRate;
+    @GuardedBy("lock") private long filterTweak;
+
+    @GuardedBy("lock") private final Set<Tenant> dirty = new LinkedHashSet<>();
+    @GuardedBy("lock") private boolean savePending;
+    @GuardedBy("lock") private boolean closed;
+
+    /**
+     * Creates a host that saves changed wallets at most every 30 seconds.
+     *
+     * @param chain the chain to receive blocks from
+     * @param peerGroup the peer group to receive broadcast transactions from and to give the Bloom filter to, or null
+     */
+    public WalletHost(AbstractBlockChain chain, @Nullable PeerGroup peerGroup) {
+        this(chain, peerGroup, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a host that saves changed wallets at most once per the given delay.
+     *
+     * @param chain the chain to receive blocks from
+     * @param peerGroup the peer group to receive broadcast transactions from and to give the Bloom filter to, or null
+     */
+    public WalletHost(AbstractBlockChain chain, @Nullable PeerGroup peerGroup, long saveDelay,
+                      TimeUnit saveDelayTimeUnit) {
+        this.chain = checkNotNull(chain);
+        this.peerGroup = peerGroup;
+        this.saveDelay = saveDelay;
+        this.saveDelayTimeUnit = checkNotNull(saveDelayTimeUnit);
+        this.executor = new ScheduledThreadPoolExecutor(1,
+                new ContextPropagatingThreadFactory("WalletHost thread", Thread.MIN_PRIORITY));
+        this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, this);
+        chain.addReorganizeListener(Threading.SAME_THREAD, this);
+        chain.addTransactionReceivedListener(Threading.SAME_THREAD, this);
+        if (peerGroup != null) {
+            peerGroup.addOnTransactionBroadcastListener(Threading.SAME_THREAD, this);
+            peerGroup.addPeerFilterProvider(this);
+        }
+    }
+
+    // A hosted wallet and the listeners that keep the index up to date with it.
+    private class Tenant implements KeyChainEventListener, ScriptsChangeEventListener, WalletChangeEventListener,
+            WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
+        final Wallet wallet;
+        @Nullable final File file;
+        final boolean married;
+        volatile long earliestKeyCreationTime;
+
+        Tenant(Wallet wallet, @Nullable File file) {
+            this.wallet = wallet;
+            this.file = file;
+            this.married = wallet.getActiveKeyChain() instanceof MarriedKeyChain;
+            this.earliestKeyCreationTime = wallet.getEarliestKeyCreationTime();
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            // This runs with the key chain locked, so the wallet must not be asked for anything here.
+            for (ECKey key : keys)
+                earliestKeyCreationTime = Math.min(earliestKeyCreationTime, key.getCreationTimeSeconds());
+            if (married) {
+                // Married wallets filter on P2SH scripts rather than keys, which are only known to the wallet.
+                if (!executor.isShutdown()) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            index(Tenant.this, collect(wallet));
+                        }
+                    });
+                }
+            } else {
+                Entries entries = new Entries();
+                for (ECKey key : keys) {
+                    entries.elements.add(key.getPubKey());
+                    entries.elements.add(key.getPubKeyHash());
+                }
+                index(this, entries);
+            }
+            markDirty(this);
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            if (isAddingScripts) {
+                Entries entries = new Entries();
+                for (Script script : scripts) {
+                    earliestKeyCreationTime = Math.min(earliestKeyCreationTime, script.getCreationTimeSeconds());
+                    entries.addScript(script);
+                }
+                index(this, entries);
+            }
+            markDirty(this);
+        }
+
+        @Override
+        public void onWalletChanged(Wallet wallet) {
+            markDirty(this);
+        }
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            Entries entries = new Entries();
+            entries.addTransaction(wallet, tx);
+            index(this, entries);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            Entries entries = new Entries();
+            entries.addTransaction(wallet, tx);
+            index(this, entries);
+        }
+    }
+
+    // Index entries collected from a wallet without holding the host lock.
+    private static class Entries {
+        final List<byte[]> elements = new ArrayList<>();
+        final List<byte[]> filterOutPoints = new ArrayList<>();
+        final List<byte[]> outPoints = new ArrayList<>();
+        final List<byte[]> txIds = new ArrayList<>();
+
+        void addScript(Script script) {
+            for (ScriptChunk chunk : script.getChunks())
+                if (!chunk.isOpCode() && chunk.data != null && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                    elements.add(chunk.data);
+        }
+
+        void addTransaction(Wallet wallet, Transaction tx) {
+            txIds.add(tx.getTxId().getBytes());
+            for (TransactionInput input : tx.getInputs())
+                outPoints.add(input.getOutpoint().unsafeBitcoinSerialize());
+            for (TransactionOutput output : tx.getOutputs()) {
+                try {
+                    boolean watched = output.isWatched(wallet);
+                    boolean mine = output.isMine(wallet);
+                    if (!watched && !mine)
+                        continue;
+                    byte[] outPoint = output.getOutPointFor().unsafeBitcoinSerialize();
+                    outPoints.add(outPoint);
+                    // The same outputs Wallet.getBloomFilter() inserts: spending them may not reveal any of our keys.
+                    Script script = output.getScriptPubKey();
+                    if (watched || ScriptPattern.isP2PK(script) || ScriptPattern.isP2SH(script))
+                        filterOutPoints.add(outPoint);
+                } catch (ScriptException e) {
+                    // Not ours.
+                }
+            }
+        }
+
+        // Like addTransaction(), but from the wallet file form of a compacted transaction, which isn't inflated.
+        // Wallet.getBloomFilter() leaves compacted transactions out, so none of their outputs go into the filter.
+        void addCompactedTransaction(Wallet wallet, Protos.Transaction txProto) {
+            NetworkParameters params = wallet.getParams();
+            Sha256Hash txId = Sha256Hash.wrap(txProto.getHash().toByteArray());
+            txIds.add(txId.getBytes());
+            for (Protos.TransactionInput input : txProto.getTransactionInputList())
+                outPoints.add(new TransactionOutPoint(params, input.getTransactionOutPointIndex() & 0xFFFFFFFFL,
+                        Sha256Hash.wrap(input.getTransactionOutPointHash().toByteArray())).unsafeBitcoinSerialize());
+            for (int i = 0; i < txProto.getTransactionOutputCount(); i++) {
+                Protos.TransactionOutput outputProto = txProto.getTransactionOutput(i);
+                TransactionOutput output = new TransactionOutput(params, null, Coin.valueOf(outputProto.getValue()),
+                        outputProto.getScriptBytes().toByteArray());
+                try {
+                    if (output.isWatched(wallet) || output.isMine(wallet))
+                        outPoints.add(new TransactionOutPoint(params, i, txId).unsafeBitcoinSerialize());
+                } catch (ScriptException e) {
+                    // Not ours.
+                }
+            }
+        }
+    }
+
+    private static Entries collect(Wallet wallet) {
+        Entries entries = new Entries();
+        List<TransactionOutPoint> bloomOutPoints = new ArrayList<>();
+        // Under the wallet lock, so that no transaction is compacted in between.
+        wallet.lock.lock();
+        try {
+            wallet.getBloomFilterElements(entries.elements, bloomOutPoints);
+            for (TransactionOutPoint outPoint : bloomOutPoints)
+                entries.filterOutPoints.add(outPoint.unsafeBitcoinSerialize());
+            for (Transaction tx : wallet.getInflatedTransactions(true))
+                entries.addTransaction(wallet, tx);
+            for (Protos.Transaction txProto : wallet.getCompactedTransactionProtos())
+                entries.addCompactedTransaction(wallet, txProto);
+        } finally {
+            wallet.lock.unlock();
+        }
+        return entries;
+    }
+
+    /**
+     * Adds a wallet to the host. The wallet must not have been added to the chain or peer group.
+     *
+     * @param file the file to save the wallet to when it changes, or null to leave saving it to the caller
+     */
+    public void addWallet(Wallet wallet, @Nullable File file) {
+        Tenant tenant = new Tenant(wallet, file);
+        lock.lock();
+        try {
+            checkState(!closed, "Host is closed");
+            checkArgument(!tenantsByWallet.containsKey(wallet), "Wallet is already hosted");
+            tenantsByWallet.put(wallet, tenant);
+        } finally {
+            lock.unlock();
+        }
+        // Listen before indexing, so that nothing that changes in between is missed.
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, tenant);
+        wallet.addScriptsChangeEventListener(Threading.SAME_THREAD, tenant);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, tenant);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, tenant);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, tenant);
+        index(tenant, collect(wallet));
+        tenants.add(tenant);
+        if (peerGroup != null) {
+            wallet.setTransactionBroadcaster(peerGroup);
+            // Recalculate even if nothing was new to the filter, as the wallet may have older keys.
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+    }
+
+    /**
+     * Removes a wallet from the host, saving it first if it has changed.
+     */
+    public void removeWallet(Wallet wallet) throws IOException {
+        Tenant tenant;
+        lock.lock();
+        try {
+            tenant = tenantsByWallet.remove(wallet);
+            checkArgument(tenant != null, "Wallet is not hosted");
+            tenants.remove(tenant);
+            boolean filterChanged = removeOwner(elements, wallet);
+            filterChanged |= removeOwner(filterOutPoints, wallet);
+            removeOwner(outPoints, wallet);
+            removeOwner(txIds, wallet);
+            if (filterChanged)
+                filter = null;
+            dirty.remove(tenant);
+        } finally {
+            lock.unlock();
+        }
+        wallet.removeKeyChainEventListener(tenant);
+        wallet.removeScriptsChangeEventListener(tenant);
+        wallet.removeChangeEventListener(tenant);
+        wallet.removeCoinsReceivedEventListener(tenant);
+        wallet.removeCoinsSentEventListener(tenant);
+        if (peerGroup != null) {
+            wallet.setTransactionBroadcaster(null);
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+        save(tenant);
+    }
+
+    /**
+     * Returns the hosted wallets.
+     */
+    public List<Wallet> getWallets() {
+        List<Wallet> wallets = new ArrayList<>(tenants.size());
+        for (Tenant tenant : tenants)
+            wallets.add(tenant.wallet);
+        return wallets;
+    }
+
+    /**
+     * Returns the hosted wallets the given transaction may be relevant to: those owning a key, script or output it
+     * refers to, or holding a transaction it spends from or double spends. This is a superset of the wallets it is
+     * relevant to.
+     */
+    public Set<Wallet> findOwners(Transaction tx) {
+        Set<Wallet> owners = new LinkedHashSet<>();
+        lock.lock();
+        try {
+            addOwners(txIds.get(tx.getTxId().getBytes()), owners);
+            for (TransactionInput input : tx.getInputs()) {
+                addOwners(outPoints.get(input.getOutpoint().unsafeBitcoinSerialize()), owners);
+                try {
+                    addOwners(input.getScriptSig(), owners);
+                } catch (ScriptException e) {
+                    // Data we can't parse can't refer to us.
+                }
+            }
+            for (TransactionOutput output : tx.getOutputs()) {
+                try {
+                    addOwners(output.getScriptPubKey(), owners);
+                } catch (ScriptException e) {
+                    // Data we can't parse can't refer to us.
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return owners;
+    }
+
+    @GuardedBy("lock")
+    private void addOwners(Script script, Set<Wallet> owners) {
+        for (ScriptChunk chunk : script.getChunks())
+            if (!chunk.isOpCode() && chunk.data != null)
+                addOwners(elements.get(chunk.data), owners);
+    }
+
+    private static void addOwners(@Nullable Object value, Set<Wallet> owners) {
+        if (value instanceof Wallet)
+            owners.add((Wallet) value);
+        else if (value != null)
+            Collections.addAll(owners, (Wallet[]) value);
+    }
+
+    // Returns the value with the wallet added to it.
+    private static Object withOwner(@Nullable Object value, Wallet wallet) {
+        if (value == null)
+            return wallet;
+        if (value instanceof Wallet)
+            return value == wallet ? value : new Wallet[] { (Wallet) value, wallet };
+        Wallet[] wallets = (Wallet[]) value;
+        for (Wallet w : wallets)
+            if (w == wallet)
+                return value;
+        Wallet[] result = Arrays.copyOf(wallets, wallets.length + 1);
+        result[wallets.length] = wallet;
+        return result;
+    }
+
+    // Returns the value with the wallet removed from it, or null if no wallet is left.
+    @Nullable
+    private static Object withoutOwner(Object value, Wallet wallet) {
+        if (value instanceof Wallet)
+            return value == wallet ? null : value;
+        Wallet[] wallets = (Wallet[]) value;
+        List<Wallet> result = new ArrayList<>(wallets.length);
+        for (Wallet w : wallets)
+            if (w != wallet)
+                result.add(w);
+        if (result.size() == wallets.length)
+            return value;
+        return result.size() == 1 ? result.get(0) : result.toArray(new Wallet[0]);
+    }
+
+    // Returns true if a key was removed from the map.
+    private static boolean removeOwner(ByteArrayMap<Object> map, Wallet wallet) {
+        List<byte[]> changed = new ArrayList<>();
+        for (byte[] key : map.keys())
+            if (withoutOwner(map.get(key), wallet) != map.get(key))
+                changed.add(key);
+        boolean removed = false;
+        for (byte[] key : changed) {
+            Object remaining = withoutOwner(map.get(key), wallet);
+            if (remaining == null) {
+                map.remove(key);
+                removed = true;
+            } else {
+                map.put(key, remaining);
+            }
+        }
+        return removed;
+    }
+
+    // Adds the entries to the index and to the filter, and has the peer group send the filter again if it changed.
+    private void index(Tenant tenant, Entries entries) {
+        boolean filterChanged = false;
+        lock.lock();
+        try {
+            if (tenantsByWallet.get(tenant.wallet) != tenant)
+                return;   // Removed in the meantime.
+            filterChanged |= add(elements, entries.elements, tenant.wallet, true);
+            filterChanged |= add(filterOutPoints, entries.filterOutPoints, tenant.wallet, true);
+            add(outPoints, entries.outPoints, tenant.wallet, false);
+            add(txIds, entries.txIds, tenant.wallet, false);
+        } finally {
+            lock.unlock();
+        }
+        if (filterChanged && peerGroup != null)
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+    }
+
+    // Returns true if a key was new to the map.
+    @GuardedBy("lock")
+    private boolean add(ByteArrayMap<Object> map, List<byte[]> keys, Wallet wallet, boolean filtered) {
+        boolean added = false;
+        for (byte[] key : keys) {
+            Object value = map.get(key);
+            Object newValue = withOwner(value, wallet);
+            if (newValue == value)
+                continue;
+            map.put(key, newValue);
+            if (value == null) {
+                added = true;
+                if (filtered && filter != null)
+                    filter.insert(key);
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        boolean first = true;
+        for (Wallet wallet : findOwners(tx)) {
+            // Like AbstractBlockChain does for several wallets, give each wallet its own copy of the transaction.
+            Transaction copy = first ? tx : tx.getParams().getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+            first = false;
+            try {
+                wallet.receiveFromBlock(copy, block, blockType, relativityOffset);
+            } catch (ScriptException e) {
+                // As AbstractBlockChain does, don't let scripts we don't understand break the other wallets.
+                log.warn("Failed to parse a script: " + e.toString());
+            }
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                              AbstractBlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        Set<Wallet> owners = new LinkedHashSet<>();
+        lock.lock();
+        try {
+            addOwners(txIds.get(txHash.getBytes()), owners);
+        } finally {
+            lock.unlock();
+        }
+        boolean known = false;
+        for (Wallet wallet : owners)
+            known |= wallet.notifyTransactionIsInBlock(txHash, block, blockType, relativityOffset);
+        return known;
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        for (Tenant tenant : tenants) {
+            tenant.wallet.notifyNewBestBlock(block);
+            // The last block seen must be saved, or the wallet would miss the block's transactions after a restart.
+            markDirty(tenant);
+        }
+    }
+
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks)
+            throws VerificationException {
+        for (Tenant tenant : tenants)
+            tenant.wallet.reorganize(splitPoint, oldBlocks, newBlocks);
+    }
+
+    @Override
+    public void onTransaction(final Peer peer, Transaction tx) {
+        boolean first = true;
+        for (final Wallet wallet : findOwners(tx)) {
+            final Transaction copy = first ? tx : tx.getParams().getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+            first = false;
+            try {
+                if (!wallet.isPendingTransactionRelevant(copy))
+                    continue;
+                if (peer != null && peer.isDownloadTxDependencies()) {
+                    // As Peer does for the wallets added to it.
+                    Futures.addCallback(peer.downloadDependencies(copy), new FutureCallback<List<Transaction>>() {
+                        @Override
+                        public void onSuccess(List<Transaction> dependencies) {
+                            try {
+                                wallet.receivePending(copy, dependencies);
+                            } catch (VerificationException e) {
+                                log.error("Wallet failed to process pending transaction {}", copy.getTxId(), e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable throwable) {
+                            log.error("Could not download dependencies of tx {}", copy.getTxId(), throwable);
+                        }
+                    }, MoreExecutors.directExecutor());
+                } else {
+                    wallet.receivePending(copy, null);
+                }
+            } catch (VerificationException e) {
+                log.error("Wallet failed to verify tx", e);
+            }
+        }
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        long time = Long.MAX_VALUE;
+        for (Tenant tenant : tenants)
+            time = Math.min(time, tenant.earliestKeyCreationTime);
+        return time;
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        lock.lock();
+    }
+
+    @Override
+    public int getBloomFilterElementCount() {
+        lock.lock();
+        try {
+            return elements.size() + filterOutPoints.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        lock.lock();
+        try {
+            if (filter == null || size != filterSize || falsePositiveRate != filterFalsePositiveRate
+                    || nTweak != filterTweak) {
+                BloomFilter newFilter = new BloomFilter(size, falsePositiveRate, nTweak);
+                for (byte[] element : elements.keys())
+                    newFilter.insert(element);
+                for (byte[] outPoint : filterOutPoints.keys())
+                    newFilter.insert(outPoint);
+                filter = newFilter;
+                filterSize = size;
+                filterFalsePositiveRate = falsePositiveRate;
+                filterTweak = nTweak;
+            }
+            // The caller only merges it into its own filter, between begin and end, while we hold the lock.
+            return filter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        lock.unlock();
+    }
+
+    private void markDirty(Tenant tenant) {
+        if (tenant.file == null)
+            return;
+        lock.lock();
+        try {
+            if (closed || !dirty.add(tenant) || savePending)
+                return;
+            savePending = true;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        saveNow();
+                    } catch (IOException e) {
+                        log.error("Failed to save wallets", e);
+                    }
+                }
+            }, saveDelay, saveDelayTimeUnit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the hosted wallets that have changed since they were last saved, on the calling thread.
+     *
+     * @throws IOException if a wallet could not be saved. The other wallets are still saved, and the failed ones
+     * are tried again on the next save.
+     */
+    public void saveNow() throws IOException {
+        List<Tenant> toSave;
+        lock.lock();
+        try {
+            toSave = new ArrayList<>(dirty);
+            dirty.clear();
+            savePending = false;
+        } finally {
+            lock.unlock();
+        }
+        if (!toSave.isEmpty())
+            log.info("Saving {} wallets", toSave.size());
+        IOException failure = null;
+        for (Tenant tenant : toSave) {
+            try {
+                save(tenant);
+            } catch (IOException e) {
+                log.error("Failed to save wallet to {}", tenant.file, e);
+                failure = e;
+                markDirty(tenant);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private void save(Tenant tenant) throws IOException {
+        if (tenant.file != null)
+            tenant.wallet.saveToFile(tenant.file);
+    }
+
+    /**
+     * Stops the host from receiving blocks and transactions and saves the wallets that have changed. The wallets stay
+     * hosted, but won't be saved again.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        chain.removeNewBestBlockListener(this);
+        chain.removeReorganizeListener(this);
+        chain.removeTransactionReceivedListener(this);
+        if (peerGroup != null) {
+            peerGroup.removeOnTransactionBroadcastListener(this);
+            peerGroup.removePeerFilterProvider(this);
+        }
+        executor.shutdown();
+        saveNow();
+    }
+}
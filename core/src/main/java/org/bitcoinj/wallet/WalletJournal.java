@@ -0,0 +1,421 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only journal of wallet changes that sits next to a wallet file, so that auto-saving a large wallet
+ * doesn't have to rewrite the whole file after every block. Each record is a partial {@link Protos.Wallet} containing
+ * the transactions that changed since the previous record, plus the small parts of the wallet state (last seen block,
+ * extensions, tags). Keys and watched scripts are only written when they may have changed. Once the journal grows
+ * beyond a fraction of the wallet file it is compacted: the full wallet is written out in the usual format and a fresh,
+ * empty journal is started.</p>
+ *
+ * <p>The journal starts with a header committing to the hash of the wallet file it applies to, and every record is
+ * checksummed. A journal that doesn't belong to the wallet file next to it (e.g. because a crash happened between
+ * writing a compacted wallet and starting the new journal) is ignored, as is a torn record at its end. Loading a
+ * wallet via {@link Wallet#loadFromFile(File, WalletExtension...)} replays a valid journal automatically.</p>
+ *
+ * <p>Journaling is enabled with {@link Wallet#autosaveToFile(File, long, java.util.concurrent.TimeUnit,
+ * WalletFiles.Listener, boolean)}. Changes to the wallet that the journal cannot express, like removing transactions,
+ * trigger a compaction on the next save.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The suffix appended to the wallet file name to get the journal file name. */
+    public static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    private static final byte[] HEADER_MAGIC = {'B', 'C', 'J', 'J'};
+    private static final int HEADER_VERSION = 1;
+    private static final int FLAG_KEYS = 1;
+    // Records larger than this are considered corrupt.
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    // Compact once the journal exceeds this fraction of the wallet file size, but not before it reaches the minimum.
+    private static final double COMPACTION_RATIO = 0.5;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final Wallet wallet;
+    private final File file;
+    private final File journalFile;
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+
+    // Set from any thread, without the wallet lock, as the key chain lock might be held.
+    private final AtomicBoolean keysDirty = new AtomicBoolean(true);
+    private final AtomicBoolean compactionRequired = new AtomicBoolean(true);
+
+    // All following fields are guarded by the wallet lock.
+    private final Set<Sha256Hash> dirtyTransactions = new LinkedHashSet<>();
+    @Nullable private FileOutputStream journalStream;
+    private long journalSize;
+    private long walletFileSize;
+
+    WalletJournal(Wallet wallet, File file) {
+        this.wallet = checkNotNull(wallet);
+        this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
+    }
+
+    /**
+     * Returns the journal file belonging to the given wallet file.
+     */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getAbsoluteFile().getParentFile(), walletFile.getName() + JOURNAL_FILE_SUFFIX);
+    }
+
+    /** Called by the wallet, with its lock held, when a transaction was added or changed. */
+    void transactionChanged(Sha256Hash txId) {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        dirtyTransactions.add(txId);
+    }
+
+    /** Called by the wallet when its keys, watched scripts or encryption may have changed. */
+    void keysChanged() {
+        keysDirty.set(true);
+    }
+
+    /** Called by the wallet when it changed in a way that can only be persisted by rewriting the wallet file. */
+    void compactionRequired() {
+        compactionRequired.set(true);
+    }
+
+    /**
+     * Appends the changes since the last save to the journal, or writes the full wallet file if the changes cannot
+     * be journaled.
+     */
+    void save(@Nullable WalletFiles.Listener listener) throws IOException {
+        wallet.lock.lock();
+        try {
+            if (compactionRequired.get() || journalStream == null) {
+                compact(listener);
+                return;
+            }
+            List<WalletTransaction> wtxs = new ArrayList<>(dirtyTransactions.size());
+            Set<Sha256Hash> included = new LinkedHashSet<>(dirtyTransactions);
+            // Transactions spent by a changed transaction had the spent-by markers of their outputs updated too.
+            for (Sha256Hash txId : dirtyTransactions) {
+                Transaction tx = wallet.getTransaction(txId);
+                if (tx == null)
+                    continue;
+                for (TransactionInput input : tx.getInputs())
+                    if (wallet.getTransaction(input.getOutpoint().getHash()) != null)
+                        included.add(input.getOutpoint().getHash());
+            }
+            for (Sha256Hash txId : included) {
+                WalletTransaction wtx = getWalletTransaction(txId);
+                if (wtx == null) {
+                    // The transaction has been removed from the wallet, which a journal record can't express.
+                    compact(listener);
+                    return;
+                }
+                wtxs.add(wtx);
+            }
+            boolean includeKeys = keysDirty.getAndSet(false);
+            try {
+                writeRecord(serializer.walletToDeltaProto(wallet, wtxs, includeKeys), includeKeys ? FLAG_KEYS : 0);
+            } catch (IOException | RuntimeException e) {
+                // The journal may now end in a torn record, so don't append to it any more.
+                compactionRequired.set(true);
+                throw e;
+            }
+            log.info("Journaled {} transactions{}", wtxs.size(), includeKeys ? " and keys" : "");
+            dirtyTransactions.clear();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns true if the journal has grown large enough that it should be compacted into the wallet file. */
+    boolean isCompactionDue() {
+        wallet.lock.lock();
+        try {
+            return journalSize > Math.max(MIN_COMPACTION_SIZE, (long) (walletFileSize * COMPACTION_RATIO));
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the full wallet file using an atomic rename, then starts a new empty journal for it.
+     */
+    void compact(@Nullable WalletFiles.Listener listener) throws IOException {
+        wallet.lock.lock();
+        try {
+            final Stopwatch watch = Stopwatch.createStarted();
+            closeJournalStream();
+            compactionRequired.set(false);
+            keysDirty.set(false);
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile("wallet", null, directory);
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            Sha256Hash walletHash;
+            try {
+                walletHash = wallet.saveToFileAndHash(temp, file);
+                dirtyTransactions.clear();
+                walletFileSize = file.length();
+                startJournal(walletHash);
+            } catch (IOException | RuntimeException e) {
+                compactionRequired.set(true);
+                throw e;
+            }
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+            log.info("Compacted wallet journal in {}", watch.stop());
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the journal. Changes since the last save are not written.
+     */
+    void close() {
+        wallet.lock.lock();
+        try {
+            closeJournalStream();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    @Nullable
+    private WalletTransaction getWalletTransaction(Sha256Hash txId) {
+        for (WalletTransaction.Pool pool : WalletTransaction.Pool.values()) {
+            Transaction tx = wallet.getTransactionPool(pool).get(txId);
+            if (tx != null)
+                return new WalletTransaction(pool, tx);
+        }
+        return null;
+    }
+
+    private void startJournal(Sha256Hash walletHash) throws IOException {
+        File temp = File.createTempFile("journal", null, journalFile.getAbsoluteFile().getParentFile());
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            DataOutputStream header = new DataOutputStream(stream);
+            header.write(HEADER_MAGIC);
+            header.writeInt(HEADER_VERSION);
+            header.write(walletHash.getBytes());
+            header.flush();
+            stream.getFD().sync();
+        }
+        if (Utils.isWindows() && journalFile.exists() && !journalFile.delete())
+            throw new IOException("Failed to delete " + journalFile + " for replacement");
+        if (!temp.renameTo(journalFile))
+            throw new IOException("Failed to rename " + temp + " to " + journalFile);
+        journalStream = new FileOutputStream(journalFile, true);
+        journalSize = journalFile.length();
+    }
+
+    private void writeRecord(Protos.Wallet delta, int flags) throws IOException {
+        byte[] payload = delta.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(flags);
+        crc.update(payload);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 13);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(payload.length);
+        record.writeByte(flags);
+        record.write(payload);
+        record.writeInt((int) crc.getValue());
+        record.flush();
+        checkNotNull(journalStream).write(bytes.toByteArray());
+        journalStream.getFD().sync();
+        journalSize += bytes.size();
+    }
+
+    private void closeJournalStream() {
+        if (journalStream == null)
+            return;
+        try {
+            journalStream.close();
+        } catch (IOException e) {
+            log.warn("Failed to close wallet journal", e);
+        }
+        journalStream = null;
+    }
+
+    /**
+     * Reads the wallet file and applies the records of its journal, if there is a valid one. A journal that belongs to
+     * a different version of the wallet file is ignored, and so is everything after a torn or corrupt record.
+     */
+    public static Protos.Wallet readWalletProto(File walletFile) throws IOException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet base;
+        try (InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(walletFile)), digest)) {
+            base = WalletProtobufSerializer.parseToProto(stream);
+            // Make sure everything has been hashed, even if the parser stopped short of the end.
+            byte[] buf = new byte[4096];
+            while (stream.read(buf) != -1) ;
+        }
+        File journalFile = getJournalFile(walletFile);
+        if (!journalFile.exists())
+            return base;
+        byte[] walletHash = digest.digest();
+        try (DataInputStream journal = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            byte[] magic = new byte[HEADER_MAGIC.length];
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            try {
+                journal.readFully(magic);
+                if (!Arrays.equals(magic, HEADER_MAGIC) || journal.readInt() != HEADER_VERSION) {
+                    log.warn("Ignoring unrecognized wallet journal {}", journalFile);
+                    return base;
+                }
+                journal.readFully(hash);
+            } catch (EOFException e) {
+                log.warn("Ignoring truncated wallet journal {}", journalFile);
+                return base;
+            }
+            if (!Arrays.equals(hash, walletHash)) {
+                log.info("Ignoring stale wallet journal {}, it belongs to a different wallet file", journalFile);
+                return base;
+            }
+            Protos.Wallet.Builder builder = base.toBuilder();
+            Map<ByteString, Integer> txIndex = new HashMap<>();
+            for (int i = 0; i < builder.getTransactionCount(); i++)
+                txIndex.put(builder.getTransaction(i).getHash(), i);
+            int records = 0;
+            while (true) {
+                Protos.Wallet delta;
+                int flags;
+                try {
+                    int length = journal.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        log.warn("Corrupt record in wallet journal, ignoring the rest");
+                        break;
+                    }
+                    flags = journal.readUnsignedByte();
+                    byte[] payload = new byte[length];
+                    journal.readFully(payload);
+                    int checksum = journal.readInt();
+                    CRC32 crc = new CRC32();
+                    crc.update(flags);
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        log.warn("Checksum mismatch in wallet journal, ignoring the rest");
+                        break;
+                    }
+                    delta = Protos.Wallet.parseFrom(payload);
+                } catch (EOFException e) {
+                    // Either the end of the journal or a torn write at its end.
+                    break;
+                }
+                applyRecord(builder, txIndex, delta, flags);
+                records++;
+            }
+            if (records > 0)
+                updateDepths(builder);
+            log.info("Applied {} wallet journal records", records);
+            return builder.build();
+        }
+    }
+
+    private static void applyRecord(Protos.Wallet.Builder builder, Map<ByteString, Integer> txIndex,
+                                    Protos.Wallet delta, int flags) {
+        for (Protos.Transaction tx : delta.getTransactionList()) {
+            Integer index = txIndex.get(tx.getHash());
+            if (index != null) {
+                builder.setTransaction(index, tx);
+            } else {
+                txIndex.put(tx.getHash(), builder.getTransactionCount());
+                builder.addTransaction(tx);
+            }
+        }
+        if ((flags & FLAG_KEYS) != 0) {
+            builder.clearKey().addAllKey(delta.getKeyList());
+            builder.clearWatchedScript().addAllWatchedScript(delta.getWatchedScriptList());
+            builder.setEncryptionType(delta.getEncryptionType());
+            if (delta.hasEncryptionParameters())
+                builder.setEncryptionParameters(delta.getEncryptionParameters());
+            else
+                builder.clearEncryptionParameters();
+        }
+        if (delta.hasLastSeenBlockHash())
+            builder.setLastSeenBlockHash(delta.getLastSeenBlockHash()).setLastSeenBlockHeight(delta.getLastSeenBlockHeight());
+        else
+            builder.clearLastSeenBlockHash().clearLastSeenBlockHeight();
+        if (delta.hasLastSeenBlockTimeSecs())
+            builder.setLastSeenBlockTimeSecs(delta.getLastSeenBlockTimeSecs());
+        else
+            builder.clearLastSeenBlockTimeSecs();
+        if (delta.hasDescription())
+            builder.setDescription(delta.getDescription());
+        else
+            builder.clearDescription();
+        if (delta.hasKeyRotationTime())
+            builder.setKeyRotationTime(delta.getKeyRotationTime());
+        else
+            builder.clearKeyRotationTime();
+        builder.clearExtension().addAllExtension(delta.getExtensionList());
+        builder.clearTags().addAllTags(delta.getTagsList());
+        builder.setVersion(delta.getVersion());
+    }
+
+    // Depth changes of building transactions aren't journaled, as every new block changes all of them. They follow
+    // from the height they appeared at and the last seen block height though.
+    private static void updateDepths(Protos.Wallet.Builder builder) {
+        if (!builder.hasLastSeenBlockHeight())
+            return;
+        int lastSeenHeight = builder.getLastSeenBlockHeight();
+        for (int i = 0; i < builder.getTransactionCount(); i++) {
+            Protos.Transaction tx = builder.getTransaction(i);
+            if (!tx.hasConfidence())
+                continue;
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasAppearedAtHeight())
+                continue;
+            int depth = lastSeenHeight - confidence.getAppearedAtHeight() + 1;
+            if (depth > 0 && depth != confidence.getDepth())
+                builder.setTransaction(i, tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)));
+        }
+    }
+}
@@ -74,6 +74,7 @@ public class WalletProtobufSerializer {
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
+    private boolean deferHistory = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
 
     public interface WalletFactory {
@@ -118,6 +119,17 @@ public class WalletProtobufSerializer {
         requireAllExtensionsKnown = value;
     }
 
+    /**
+     * If this property is set to true, {@link #readWallet(InputStream, boolean, WalletExtension[])} streams the wallet
+     * and only deserializes keys, unspent and pending transactions, and the transactions spending their outputs. Spent
+     * and dead transactions are kept in serialized form and only deserialized when the wallet first needs them, e.g.
+     * when listing transactions or receiving a block. The wallet is usable for balance and coin selection right away,
+     * which makes loading large wallets much faster and reduces the peak heap usage.
+     */
+    public void setDeferHistory(boolean value) {
+        deferHistory = value;
+    }
+
     /**
      * Change buffer size for writing wallet to output stream. Default is {@link com.google.protobuf.CodedOutputStream#DEFAULT_BUFFER_SIZE}
      *
@@ -133,10 +145,19 @@ public class WalletProtobufSerializer {
      * Equivalent to {@code walletToProto(wallet).writeTo(output);}
      */
     public void writeWallet(Wallet wallet, OutputStream output) throws IOException {
-        Protos.Wallet walletProto = walletToProto(wallet);
-        final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output, this.walletWriteBufferSize);
-        walletProto.writeTo(codedOutput);
-        codedOutput.flush();
+        wallet.lock.lock();
+        try {
+            Protos.Wallet walletProto = walletToProto(wallet, false);
+            final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output, this.walletWriteBufferSize);
+            walletProto.writeTo(codedOutput);
+            // Deferred transactions are appended as they were read, without parsing them. Repeated fields may come in
+            // any order, so this reads back the same as if they were part of the proto.
+            for (ByteString rawTransaction : wallet.getDeferredTransactionBytes())
+                codedOutput.writeBytes(Protos.Wallet.TRANSACTION_FIELD_NUMBER, rawTransaction);
+            codedOutput.flush();
+        } finally {
+            wallet.lock.unlock();
+        }
     }
 
     /**
@@ -156,17 +177,58 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
-        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
+        return walletToProto(wallet, true);
+    }
+
+    private Protos.Wallet walletToProto(Wallet wallet, boolean includeDeferred) {
+        wallet.lock.lock();
+        try {
+            Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+            walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
+            for (WalletTransaction wtx : wallet.getInflatedWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                walletBuilder.addTransaction(txProto);
+            }
+            // Compacted and deferred transactions are written as they are, without inflating or loading them.
+            walletBuilder.addAllTransaction(wallet.getCompactedTransactionProtos());
+            if (includeDeferred) {
+                for (ByteString rawTransaction : wallet.getDeferredTransactionBytes()) {
+                    try {
+                        walletBuilder.addTransaction(Protos.Transaction.parseFrom(rawTransaction));
+                    } catch (InvalidProtocolBufferException e) {
+                        throw new IllegalStateException("Could not parse deferred transaction", e);
+                    }
+                }
+            }
+
+            populateKeys(wallet, walletBuilder);
+            populateWalletState(wallet, walletBuilder);
+
+            return walletBuilder.build();
+        } finally {
+            wallet.lock.unlock();
         }
+    }
 
+    /**
+     * Converts the given wallet transactions to a partial wallet protobuf, as used for the records of a
+     * {@link WalletJournal}. Besides the transactions, the record carries the parts of the wallet that are cheap to
+     * serialize (last seen block, description, extensions, tags and so on). Keys, watched scripts and encryption
+     * parameters are only included if {@code includeKeys} is set.
+     */
+    Protos.Wallet walletToDeltaProto(Wallet wallet, Collection<WalletTransaction> wtxs, boolean includeKeys) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        for (WalletTransaction wtx : wtxs)
+            walletBuilder.addTransaction(makeTxProto(wtx));
+        if (includeKeys)
+            populateKeys(wallet, walletBuilder);
+        populateWalletState(wallet, walletBuilder);
+        return walletBuilder.build();
+    }
+
+    private static void populateKeys(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
         for (Script script : wallet.getWatchedScripts()) {
@@ -179,15 +241,6 @@ public class WalletProtobufSerializer {
             walletBuilder.addWatchedScript(protoScript);
         }
 
-        // Populate the lastSeenBlockHash field.
-        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
-        if (lastSeenBlockHash != null) {
-            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
-            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
-        }
-        if (wallet.getLastBlockSeenTimeSecs() > 0)
-            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
-
         // Populate the scrypt parameters.
         KeyCrypter keyCrypter = wallet.getKeyCrypter();
         if (keyCrypter == null) {
@@ -204,6 +257,21 @@ public class WalletProtobufSerializer {
                 throw new RuntimeException("The wallet has encryption of type '" + keyCrypter.getUnderstoodEncryptionType() + "' but this WalletProtobufSerializer does not know how to persist this.");
             }
         }
+    }
+
+    private static void populateWalletState(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
+        }
+
+        // Populate the lastSeenBlockHash field.
+        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+        if (lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
 
         if (wallet.getKeyRotationTime() != null) {
             long timeSecs = wallet.getKeyRotationTime().getTime() / 1000;
@@ -219,8 +287,6 @@ public class WalletProtobufSerializer {
 
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
-
-        return walletBuilder.build();
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
@@ -233,7 +299,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -438,17 +504,30 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
+            if (deferHistory && !forceReset)
+                return readWalletDeferringHistory(input, extensions);
             Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, extensions, walletProto, forceReset);
+            return readWallet(walletProto, forceReset, extensions);
         } catch (IOException | IllegalArgumentException | IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         }
     }
 
+    /**
+     * <p>Loads wallet data from the given protocol buffer, looking up the network parameters from the network
+     * identifier it contains. See {@link #readWallet(InputStream, boolean, WalletExtension[])} for the meaning of
+     * {@code forceReset}.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(Protos.Wallet walletProto, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        return readWallet(params, extensions, walletProto, forceReset);
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -618,6 +697,102 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
+    private Wallet readWalletDeferringHistory(InputStream input, @Nullable WalletExtension[] extensions)
+            throws IOException, UnreadableWalletException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        // Everything but the transactions is copied over to be parsed as usual.
+        UnknownFieldSet.Builder otherFields = UnknownFieldSet.newBuilder();
+        List<Protos.Transaction> active = new ArrayList<>();
+        Map<ByteString, ByteString> history = new LinkedHashMap<>();
+        int transactionTag = Protos.Wallet.TRANSACTION_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+        int tag;
+        while ((tag = codedInput.readTag()) != 0) {
+            if (tag != transactionTag) {
+                otherFields.mergeFieldFrom(tag, codedInput);
+                continue;
+            }
+            ByteString txBytes = codedInput.readBytes();
+            CodedInputStream txInput = txBytes.newCodedInput();
+            ByteString hash = null;
+            Protos.Transaction.Pool pool = null;
+            int txTag;
+            while ((hash == null || pool == null) && (txTag = txInput.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(txTag);
+                if (field == Protos.Transaction.HASH_FIELD_NUMBER)
+                    hash = txInput.readBytes();
+                else if (field == Protos.Transaction.POOL_FIELD_NUMBER)
+                    pool = Protos.Transaction.Pool.forNumber(txInput.readEnum());
+                else
+                    txInput.skipField(txTag);
+            }
+            if (hash != null && (pool == Protos.Transaction.Pool.SPENT || pool == Protos.Transaction.Pool.DEAD))
+                history.put(hash, txBytes);
+            else
+                active.add(Protos.Transaction.parseFrom(txBytes));
+        }
+        // Outputs of loaded transactions must be connected to their spending transactions right away, as otherwise
+        // they'd be considered spendable.
+        LinkedList<Protos.Transaction> toScan = new LinkedList<>(active);
+        while (!toScan.isEmpty()) {
+            for (Protos.TransactionOutput output : toScan.poll().getTransactionOutputList()) {
+                if (!output.hasSpentByTransactionHash())
+                    continue;
+                ByteString spendingTx = history.remove(output.getSpentByTransactionHash());
+                if (spendingTx != null) {
+                    Protos.Transaction spendingTxProto = Protos.Transaction.parseFrom(spendingTx);
+                    active.add(spendingTxProto);
+                    toScan.add(spendingTxProto);
+                }
+            }
+        }
+
+        Protos.Wallet walletProto = Protos.Wallet.newBuilder().mergeFrom(otherFields.build().toByteString())
+                .addAllTransaction(active).build();
+        Wallet wallet = readWallet(walletProto, false, extensions);
+        if (!history.isEmpty()) {
+            log.info("Deferred loading of {} spent and dead transactions", history.size());
+            wallet.setDeferredTransactions(new DeferredTransactions(wallet.getParams(), new ArrayList<>(history.values())));
+        }
+        return wallet;
+    }
+
+    /**
+     * Deserializes transactions that were deferred by {@link #setDeferHistory(boolean)}, connecting them to each
+     * other and to the already loaded transactions of the wallet.
+     */
+    List<WalletTransaction> readDeferredTransactions(NetworkParameters params, List<ByteString> rawTransactions,
+                                                     Collection<Transaction> loaded) throws UnreadableWalletException {
+        List<Protos.Transaction> txProtos = new ArrayList<>(rawTransactions.size());
+        try {
+            for (ByteString rawTransaction : rawTransactions)
+                txProtos.add(Protos.Transaction.parseFrom(rawTransaction));
+        } catch (InvalidProtocolBufferException e) {
+            throw new UnreadableWalletException("Could not parse deferred transaction", e);
+        }
+        return readTransactions(params, txProtos, loaded);
+    }
+
+    /**
+     * Deserializes the given transactions, connecting them to each other and to the given, already loaded transactions
+     * of the wallet that spend their outputs.
+     */
+    List<WalletTransaction> readTransactions(NetworkParameters params, Collection<Protos.Transaction> txProtos,
+                                             Collection<Transaction> loaded) throws UnreadableWalletException {
+        try {
+            for (Transaction tx : loaded)
+                txMap.put(hashToByteString(tx.getTxId()), tx);
+            for (Protos.Transaction txProto : txProtos)
+                readTransaction(txProto, params);
+            List<WalletTransaction> wtxs = new ArrayList<>(txProtos.size());
+            for (Protos.Transaction txProto : txProtos)
+                wtxs.add(connectTransactionOutputs(params, txProto));
+            return wtxs;
+        } finally {
+            txMap.clear();
+        }
+    }
+
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
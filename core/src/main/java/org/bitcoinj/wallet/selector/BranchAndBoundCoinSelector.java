@@ -0,0 +1,331 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet.selector;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.wallet.CoinSelection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link CoinSelector} that first searches for a set of inputs that pays the target and the fee without needing
+ * a change output, using a depth-first branch-and-bound search over the effective values of the candidates (their
+ * value minus the fee needed to spend them). If no such set is found within a bounded number of tries, it falls back
+ * to picking the largest outputs first and adding a change output.</p>
+ *
+ * <p>When given a {@link FeeModel} via {@link #select(Coin, List, FeeModel)}, the fee is computed from the estimated
+ * size of the transaction while selecting, so a single call yields the final inputs, fee and change. The
+ * {@link org.bitcoinj.wallet.Wallet} does this automatically if this selector is used.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** The default maximum number of branches the search visits before giving up on a changeless solution. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+
+    /** Size of an input without its script: outpoint, script length and sequence number. */
+    public static final int INPUT_BASE_SIZE = 32 + 4 + 1 + 4;
+
+    private final int maxTries;
+
+    public BranchAndBoundCoinSelector() {
+        this(DEFAULT_MAX_TRIES);
+    }
+
+    public BranchAndBoundCoinSelector(int maxTries) {
+        checkArgument(maxTries >= 0);
+        this.maxTries = maxTries;
+    }
+
+    /** Estimates the size an output adds to a transaction when it is spent, including its signature script. */
+    public interface InputSizer {
+        int getSpendingInputSize(TransactionOutput output);
+    }
+
+    /**
+     * Describes the transaction being funded, so that its fee can be computed for any set of inputs.
+     */
+    public static class FeeModel {
+        /** Fee per kilobyte of transaction size. */
+        public final Coin feePerKb;
+        /** The fee is never lower than this. */
+        public final Coin minFee;
+        /** Size of the transaction before adding the selected inputs and the change output. */
+        public final int baseSize;
+        /** Number of inputs the transaction has before adding the selected ones. */
+        public final int baseInputCount;
+        /** Size a change output adds to the transaction. */
+        public final int changeSize;
+        /** Smallest value of a change output, smaller change is left to the fee instead. */
+        public final Coin minChange;
+        public final InputSizer inputSizer;
+
+        public FeeModel(Coin feePerKb, Coin minFee, int baseSize, int baseInputCount, int changeSize, Coin minChange,
+                        InputSizer inputSizer) {
+            this.feePerKb = checkNotNull(feePerKb);
+            this.minFee = checkNotNull(minFee);
+            this.baseSize = baseSize;
+            this.baseInputCount = baseInputCount;
+            this.changeSize = changeSize;
+            this.minChange = checkNotNull(minChange);
+            this.inputSizer = checkNotNull(inputSizer);
+        }
+
+        /** Returns the fee for a transaction of the given size. */
+        public Coin getFee(int size) {
+            Coin fee = feePerKb.multiply(size).divide(1000);
+            return fee.isLessThan(minFee) ? minFee : fee;
+        }
+
+        /** Returns the size of the transaction with the given number of selected inputs of the given total size. */
+        public int getSize(int inputCount, int inputSize, boolean withChange) {
+            int size = baseSize + inputSize + VarInt.sizeOf(baseInputCount + inputCount) - VarInt.sizeOf(baseInputCount);
+            return withChange ? size + changeSize : size;
+        }
+
+        private static final InputSizer NO_SIZE = new InputSizer() {
+            @Override
+            public int getSpendingInputSize(TransactionOutput output) {
+                return 0;
+            }
+        };
+
+        /** A model without fees, where any positive change is kept. */
+        public static final FeeModel NONE = new FeeModel(Coin.ZERO, Coin.ZERO, 0, 0, 0, Coin.SATOSHI, NO_SIZE);
+    }
+
+    /**
+     * The result of a selection using a {@link FeeModel}. If the candidates were insufficient, {@link #valueGathered}
+     * is lower than the target plus {@link #fee}.
+     */
+    public static class Selection extends CoinSelection {
+        /** The fee the transaction pays with the selected inputs. */
+        public final Coin fee;
+        /** Value of the change output, or zero if there is none. */
+        public final Coin change;
+        /** Estimated size of the signed transaction. */
+        public final int size;
+
+        public Selection(Coin valueGathered, List<TransactionOutput> gathered, Coin fee, Coin change, int size) {
+            super(valueGathered, gathered);
+            this.fee = fee;
+            this.change = change;
+            this.size = size;
+        }
+
+        /** Returns how much value is missing to pay the target and fee, or zero if the selection is sufficient. */
+        public Coin getMissing(Coin target) {
+            Coin missing = target.add(fee).subtract(valueGathered);
+            return missing.signum() > 0 ? missing : Coin.ZERO;
+        }
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        return select(target, candidates, FeeModel.NONE);
+    }
+
+    /**
+     * Selects inputs paying the target value plus the fee given by the model. The candidates list is not modified.
+     */
+    public Selection select(Coin target, List<TransactionOutput> candidates, FeeModel model) {
+        List<TransactionOutput> selectable = new ArrayList<>(candidates.size());
+        long total = 0;
+        for (TransactionOutput output : candidates) {
+            if (shouldSelect(output.getParentTransaction())) {
+                selectable.add(output);
+                total += output.getValue().value;
+            }
+        }
+        if (total < target.value) {
+            // Not enough even without fees, e.g. when asked for all coins to calculate the balance.
+            return new Selection(Coin.valueOf(total), selectable, Coin.ZERO, Coin.ZERO, 0);
+        }
+        Selection selection = selectWithoutChange(target, selectable, model);
+        if (selection == null)
+            selection = selectLargestFirst(target, selectable, model);
+        return selection;
+    }
+
+    /**
+     * Searches for a set of inputs whose value exceeds the target plus fee by less than the cost of adding a change
+     * output, in which case the excess is better left to the fee. Values are in thousandths of a satoshi so that
+     * the fee per byte is exact. Returns null if no such set is found.
+     */
+    private Selection selectWithoutChange(Coin target, List<TransactionOutput> selectable, FeeModel model) {
+        int n = selectable.size();
+        final long[] effectiveValues = new long[n];
+        final int[] sizes = new int[n];
+        Integer[] order = new Integer[n];
+        long available = 0;
+        for (int i = 0; i < n; i++) {
+            TransactionOutput output = selectable.get(i);
+            sizes[i] = model.inputSizer.getSpendingInputSize(output);
+            effectiveValues[i] = output.getValue().value * 1000 - model.feePerKb.value * sizes[i];
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(effectiveValues[b], effectiveValues[a]);
+            }
+        });
+        // Outputs that cost more to spend than they are worth can never help.
+        while (n > 0 && effectiveValues[order[n - 1]] <= 0)
+            n--;
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = effectiveValues[order[i]];
+            available += values[i];
+        }
+
+        long lowerBound = target.value * 1000 + model.feePerKb.value * model.getSize(0, 0, false);
+        long costOfChange = model.feePerKb.value * model.changeSize + model.minChange.value * 1000;
+        int[] selected = new int[n];
+        int selectedCount = 0;
+        int[] best = null;
+        int bestCount = 0;
+        long bestExcess = Long.MAX_VALUE;
+        long value = 0;
+        int index = 0;
+        for (int tries = 0; tries < maxTries; tries++, index++) {
+            boolean backtrack = false;
+            if (value + available < lowerBound || (value > lowerBound && value - lowerBound >= costOfChange)) {
+                backtrack = true;
+            } else if (value >= lowerBound) {
+                if (value - lowerBound < bestExcess) {
+                    bestExcess = value - lowerBound;
+                    best = Arrays.copyOf(selected, selectedCount);
+                    bestCount = selectedCount;
+                    if (bestExcess == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                if (selectedCount == 0)
+                    break;
+                // Restore the outputs skipped since the last selected one, then continue without that one.
+                for (index--; index > selected[selectedCount - 1]; index--)
+                    available += values[index];
+                value -= values[index];
+                selectedCount--;
+            } else {
+                available -= values[index];
+                // Skipping an output and selecting an equal one right after it would just repeat a branch.
+                if (selectedCount == 0 || index - 1 == selected[selectedCount - 1] || values[index] != values[index - 1]) {
+                    value += values[index];
+                    selected[selectedCount++] = index;
+                }
+            }
+        }
+        if (best == null)
+            return null;
+
+        List<TransactionOutput> gathered = new ArrayList<>(bestCount);
+        long total = 0;
+        int inputSize = 0;
+        for (int i : best) {
+            int candidate = order[i];
+            gathered.add(selectable.get(candidate));
+            total += selectable.get(candidate).getValue().value;
+            inputSize += sizes[candidate];
+        }
+        // The search disregards the minimum fee and input count size, so the exact fee might not be covered.
+        int size = model.getSize(bestCount, inputSize, false);
+        Coin fee = model.getFee(size);
+        if (total < target.value + fee.value)
+            return null;
+        return new Selection(Coin.valueOf(total), gathered, Coin.valueOf(total - target.value), Coin.ZERO, size);
+    }
+
+    /**
+     * Adds outputs in order of descending value until the target and fee are paid, computing the fee along the way.
+     */
+    private Selection selectLargestFirst(Coin target, List<TransactionOutput> selectable, FeeModel model) {
+        List<TransactionOutput> sorted = selectable;
+        if (!isSortedByDescendingValue(sorted)) {
+            sorted = new ArrayList<>(selectable);
+            Collections.sort(sorted, new Comparator<TransactionOutput>() {
+                @Override
+                public int compare(TransactionOutput a, TransactionOutput b) {
+                    return Long.compare(b.getValue().value, a.getValue().value);
+                }
+            });
+        }
+        List<TransactionOutput> gathered = new ArrayList<>();
+        long total = 0;
+        int inputSize = 0;
+        int index = 0;
+        while (true) {
+            int sizeWithChange = model.getSize(gathered.size(), inputSize, true);
+            long change = total - target.value - model.getFee(sizeWithChange).value;
+            if (change >= model.minChange.value)
+                return new Selection(Coin.valueOf(total), gathered, Coin.valueOf(total - target.value - change),
+                        Coin.valueOf(change), sizeWithChange);
+            int size = model.getSize(gathered.size(), inputSize, false);
+            long fee = model.getFee(size).value;
+            // Change would be too small to be worth an output, so it goes to the fee.
+            if (total >= target.value + fee)
+                return new Selection(Coin.valueOf(total), gathered, Coin.valueOf(total - target.value), Coin.ZERO, size);
+            if (index == sorted.size())
+                return new Selection(Coin.valueOf(total), gathered, Coin.valueOf(fee), Coin.ZERO, size);
+            TransactionOutput output = sorted.get(index++);
+            gathered.add(output);
+            total += output.getValue().value;
+            inputSize += model.inputSizer.getSpendingInputSize(output);
+        }
+    }
+
+    private static boolean isSortedByDescendingValue(List<TransactionOutput> outputs) {
+        for (int i = 1; i < outputs.size(); i++)
+            if (outputs.get(i - 1).getValue().value < outputs.get(i).getValue().value)
+                return false;
+        return true;
+    }
+
+    /**
+     * Sub-classes can override this to customize whether transactions are usable.
+     */
+    protected boolean shouldSelect(Transaction tx) {
+        if (tx != null) {
+            return DefaultCoinSelector.isSelectable(tx);
+        }
+        return true;
+    }
+
+    private static BranchAndBoundCoinSelector instance;
+
+    /**
+     * Returns a global static instance of the selector.
+     */
+    public static BranchAndBoundCoinSelector get() {
+        // This doesn't have to be thread safe as the object has no state, so discarded duplicates are
+        // harmless.
+        if (instance == null)
+            instance = new BranchAndBoundCoinSelector();
+        return instance;
+    }
+}
@@ -22,8 +22,7 @@ import org.bitcoinj.wallet.CoinSelection;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -64,26 +63,37 @@ public class DefaultCoinSelector implements CoinSelector {
 
     @VisibleForTesting
     public static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
-            }
-        });
+        // Compute the sort keys once per output rather than once per comparison.
+        SortKey[] keys = new SortKey[outputs.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new SortKey(outputs.get(i));
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++)
+            outputs.set(i, keys[i].output);
+    }
+
+    private static class SortKey implements Comparable<SortKey> {
+        final TransactionOutput output;
+        final BigInteger coinDepth;
+
+        SortKey(TransactionOutput output) {
+            this.output = output;
+            this.coinDepth = BigInteger.valueOf(output.getValue().value)
+                    .multiply(BigInteger.valueOf(output.getParentTransactionDepthInBlocks()));
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            int c1 = other.coinDepth.compareTo(coinDepth);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = other.output.getValue().compareTo(output.getValue());
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            BigInteger aHash = output.getParentTransactionHash().toBigInteger();
+            BigInteger bHash = other.output.getParentTransactionHash().toBigInteger();
+            return aHash.compareTo(bHash);
+        }
     }
 
     /**
@@ -0,0 +1,153 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class AddressV2MessageTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+    // The Tor v3 address of the Tor Project's website.
+    private static final String ONION = "2gzyxa5ihm7nsggfxnu52rck2vv4rvmdlkiu3zzui5du4xyclen53wid.onion";
+
+    // Three IPv6 addresses, from the test vectors of Bitcoin Core.
+    private static final String MESSAGE_HEX = "03"
+            + "61bc6649" + "00" + "02" + "10" + "00000000000000000000000000000001" + "0000"
+            + "79627683" + "01" + "02" + "10" + "00000000000000000000000000000001" + "00f1"
+            + "ffffffff" + "fd4804" + "02" + "10" + "00000000000000000000000000000001" + "f1f2";
+
+    // Serializes one address entry of an addrv2 message.
+    private static byte[] entry(long time, long services, int network, byte[] addr, int port) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(time, stream);
+        stream.write(new VarInt(services).encode());
+        stream.write(network);
+        stream.write(new VarInt(addr.length).encode());
+        stream.write(addr);
+        Utils.uint16ToByteStreamBE(port, stream);
+        return stream.toByteArray();
+    }
+
+    private static byte[] message(byte[]... entries) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(new VarInt(entries.length).encode());
+        for (byte[] entry : entries)
+            stream.write(entry);
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void parse() throws Exception {
+        AddressV2Message message = new AddressV2Message(MAINNET, HEX.decode(MESSAGE_HEX));
+        List<PeerAddress> addresses = message.getAddresses();
+        assertEquals(3, addresses.size());
+        for (PeerAddress address : addresses)
+            assertEquals(InetAddress.getByName("::1"), address.getAddr());
+        assertEquals(0x4966bc61L, addresses.get(0).getTime());
+        assertEquals(0, addresses.get(0).getPort());
+        assertEquals(BigInteger.ZERO, addresses.get(0).getServices());
+        assertEquals(0x83766279L, addresses.get(1).getTime());
+        assertEquals(0xf1, addresses.get(1).getPort());
+        assertEquals(BigInteger.valueOf(VersionMessage.NODE_NETWORK), addresses.get(1).getServices());
+        assertEquals(0xffffffffL, addresses.get(2).getTime());
+        assertEquals(0xf1f2, addresses.get(2).getPort());
+        assertEquals(BigInteger.valueOf(0x448), addresses.get(2).getServices());
+        assertEquals(HEX.decode(MESSAGE_HEX).length, message.getMessageSize());
+        assertArrayEquals(HEX.decode(MESSAGE_HEX), message.bitcoinSerialize());
+    }
+
+    @Test
+    public void torV3AndOtherNetworks() throws Exception {
+        byte[] onionKey = PeerAddress.decodeOnion(ONION);
+        byte[] i2p = new byte[32];
+        Arrays.fill(i2p, (byte) 0x55);
+        byte[] payload = message(
+                entry(1000, 1, PeerAddress.NETWORK_TORV3, onionKey, 8333),
+                // I2P, which we can't connect to.
+                entry(1001, 1, 5, i2p, 0),
+                // An unknown network with an address of any length.
+                entry(1002, 1, 200, new byte[7], 8333),
+                entry(1003, 1, PeerAddress.NETWORK_IPV4, new byte[]{1, 2, 3, 4}, 8333));
+        AddressV2Message message = new AddressV2Message(MAINNET, payload);
+        List<PeerAddress> addresses = message.getAddresses();
+        assertEquals(2, addresses.size());
+        assertEquals(ONION, addresses.get(0).getHostname());
+        assertNull(addresses.get(0).getAddr());
+        assertEquals(8333, addresses.get(0).getPort());
+        assertEquals(1000, addresses.get(0).getTime());
+        assertEquals(InetAddress.getByName("1.2.3.4"), addresses.get(1).getAddr());
+        assertEquals(payload.length, message.getMessageSize());
+
+        // The skipped addresses are not written back.
+        AddressV2Message reparsed = new AddressV2Message(MAINNET, message.bitcoinSerialize());
+        assertEquals(addresses, reparsed.getAddresses());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void wrongAddressLength() throws Exception {
+        new AddressV2Message(MAINNET, message(entry(1000, 1, PeerAddress.NETWORK_IPV4, new byte[16], 8333)));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void addressTooLong() throws Exception {
+        new AddressV2Message(MAINNET, message(entry(1000, 1, 200, new byte[513], 8333)));
+    }
+
+    @Test
+    public void mappedIPv4Skipped() throws Exception {
+        byte[] mapped = HEX.decode("00000000000000000000ffff01020304");
+        AddressV2Message message = new AddressV2Message(MAINNET,
+                message(entry(1000, 1, PeerAddress.NETWORK_IPV6, mapped, 8333)));
+        assertTrue(message.getAddresses().isEmpty());
+    }
+
+    @Test
+    public void addAddress() throws Exception {
+        AddressV2Message message = new AddressV2Message(MAINNET, message());
+        message.addAddress(new PeerAddress(MAINNET, null, ONION, 8333, BigInteger.ONE, 1000));
+        message.addAddress(new PeerAddress(MAINNET, InetAddress.getByName("1.2.3.4"), null, 8333, BigInteger.ONE, 1001));
+        assertEquals(message.bitcoinSerialize().length, message.getMessageSize());
+        assertEquals(message.getAddresses(), new AddressV2Message(MAINNET, message.bitcoinSerialize()).getAddresses());
+        message.removeAddress(0);
+        assertEquals(message.bitcoinSerialize().length, message.getMessageSize());
+    }
+
+    @Test
+    public void serializer() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        AddressV2Message message = new AddressV2Message(MAINNET, HEX.decode(MESSAGE_HEX));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        serializer.serialize(message, stream);
+        serializer.serialize(new SendAddrV2Message(MAINNET), stream);
+        ByteBuffer buffer = ByteBuffer.wrap(stream.toByteArray());
+        Message deserialized = serializer.deserialize(buffer);
+        assertTrue(deserialized instanceof AddressV2Message);
+        assertEquals(message.getAddresses(), ((AddressV2Message) deserialized).getAddresses());
+        assertTrue(serializer.deserialize(buffer) instanceof SendAddrV2Message);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class BinaryCheckpointsTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    private CheckpointManager manager;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        manager = new CheckpointManager(MAINNET, null);
+        file = File.createTempFile("checkpoints", null);
+        try (OutputStream out = new FileOutputStream(file)) {
+            assertEquals(manager.getDataHash(), manager.writeBinary(out));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void readsWrittenFile() throws Exception {
+        CheckpointManager read = new CheckpointManager(MAINNET, new FileInputStream(file));
+        assertEquals(manager.numCheckpoints(), read.numCheckpoints());
+        assertEquals(manager.getDataHash(), read.getDataHash());
+    }
+
+    @Test
+    public void mappedLookupMatchesLoaded() throws Exception {
+        long genesisTime = MAINNET.getGenesisBlock().getTimeSeconds();
+        long[] times = { genesisTime + 1, 1262304000, 1400000000, 1500000000, 1600000000, Long.MAX_VALUE / 2 };
+        for (long time : times)
+            assertEquals(manager.getCheckpointBefore(time), CheckpointManager.getCheckpointBefore(MAINNET, file, time));
+
+        // Exactly at a checkpoint, and just before it.
+        StoredBlock checkpoint = manager.getCheckpointBefore(1500000000);
+        long time = checkpoint.getHeader().getTimeSeconds();
+        assertEquals(checkpoint, CheckpointManager.getCheckpointBefore(MAINNET, file, time));
+        assertEquals(manager.getCheckpointBefore(time - 1), CheckpointManager.getCheckpointBefore(MAINNET, file, time - 1));
+    }
+
+    @Test
+    public void checkpointFromFile() throws Exception {
+        long time = 1500000000;
+        MemoryBlockStore store = new MemoryBlockStore(MAINNET);
+        CheckpointManager.checkpoint(MAINNET, file, store, time);
+        // The time is moved back by a week for clock drift.
+        StoredBlock expected = manager.getCheckpointBefore(time - 60 * 60 * 24 * 7);
+        assertEquals(expected, store.getChainHead());
+
+        MemoryBlockStore loaded = new MemoryBlockStore(MAINNET);
+        manager.checkpoint(loaded, time);
+        assertEquals(expected, loaded.getChainHead());
+    }
+}
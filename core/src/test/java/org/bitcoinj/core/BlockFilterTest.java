@@ -0,0 +1,141 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class BlockFilterTest {
+    private static final NetworkParameters TESTNET = TestNet3Params.get();
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Test
+    public void genesisVector() {
+        // First test vector of BIP158.
+        Block genesis = TESTNET.getGenesisBlock();
+        BlockFilter filter = BlockFilter.build(TESTNET, genesis.getHash(),
+                BlockFilter.getBasicFilterElements(genesis, Collections.<byte[]>emptyList()));
+        assertEquals("019dfca8", HEX.encode(filter.getFilterBytes()));
+        assertEquals(1, filter.getNumElements());
+        assertEquals(Sha256Hash.wrap("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750"),
+                filter.computeHeader(Sha256Hash.ZERO_HASH));
+        assertTrue(filter.match(genesis.getTransactions().get(0).getOutput(0).getScriptBytes()));
+    }
+
+    @Test
+    public void matchesMembersOnly() {
+        Random random = new Random(42);
+        List<byte[]> members = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            members.add(ScriptBuilder.createP2PKHOutputScript(randomBytes(random, 20)).getProgram());
+        Sha256Hash blockHash = Sha256Hash.wrap(randomBytes(random, 32));
+        BlockFilter filter = BlockFilter.build(UNITTEST, blockHash, members);
+        assertEquals(500, filter.getNumElements());
+        for (byte[] member : members)
+            assertTrue(filter.match(member));
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+            if (filter.match(randomBytes(random, 25)))
+                falsePositives++;
+        // The false positive rate is 1 in 784931.
+        assertTrue(falsePositives <= 1);
+
+        List<byte[]> query = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            query.add(randomBytes(random, 25));
+        assertFalse(filter.matchAny(query));
+        query.add(members.get(250));
+        assertTrue(filter.matchAny(query));
+    }
+
+    @Test
+    public void emptyFilter() {
+        BlockFilter filter = BlockFilter.build(UNITTEST, Sha256Hash.ZERO_HASH, Collections.<byte[]>emptyList());
+        assertArrayEquals(new byte[] { 0 }, filter.getFilterBytes());
+        assertFalse(filter.match(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void duplicatesAndOpReturnAreSkipped() {
+        byte[] script = ScriptBuilder.createP2PKHOutputScript(new byte[20]).getProgram();
+        BlockFilter filter = BlockFilter.build(UNITTEST, Sha256Hash.ZERO_HASH, Arrays.asList(script, script.clone()));
+        assertEquals(1, filter.getNumElements());
+
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addInput(Sha256Hash.ZERO_HASH, 0, ScriptBuilder.createEmpty());
+        Script opReturn = ScriptBuilder.createOpReturnScript(new byte[] { 1, 2, 3, 4 });
+        tx.addOutput(Coin.ZERO, opReturn);
+        tx.addOutput(Coin.COIN, ScriptBuilder.createP2PKHOutputScript(new byte[20]));
+        Block block = UNITTEST.getGenesisBlock().createNextBlock(Address.fromKey(UNITTEST, new ECKey()));
+        int before = BlockFilter.getBasicFilterElements(block, Collections.<byte[]>emptyList()).size();
+        block.addTransaction(tx);
+        Collection<byte[]> elements = BlockFilter.getBasicFilterElements(block, Collections.singletonList(new byte[0]));
+        assertEquals(before + 1, elements.size());
+        assertFalse(elements.contains(opReturn.getProgram()));
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        MessageSerializer serializer = UNITTEST.getDefaultSerializer();
+        Random random = new Random(1);
+        List<byte[]> elements = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            elements.add(randomBytes(random, 25));
+        BlockFilter filter = BlockFilter.build(UNITTEST, Sha256Hash.wrap(randomBytes(random, 32)), elements);
+        assertEquals(filter, roundTrip(serializer, filter));
+
+        Sha256Hash stopHash = Sha256Hash.wrap(randomBytes(random, 32));
+        GetCFHeadersMessage getHeaders = new GetCFHeadersMessage(UNITTEST, BlockFilter.BASIC, 1000, stopHash);
+        assertEquals(getHeaders, roundTrip(serializer, getHeaders));
+        GetCFiltersMessage getFilters = new GetCFiltersMessage(UNITTEST, BlockFilter.BASIC, 1000, stopHash);
+        assertEquals(getFilters, roundTrip(serializer, getFilters));
+
+        Sha256Hash previous = Sha256Hash.wrap(randomBytes(random, 32));
+        CFHeadersMessage headers = new CFHeadersMessage(UNITTEST, BlockFilter.BASIC, stopHash, previous,
+                Arrays.asList(filter.getFilterHash(), filter.getFilterHash()));
+        assertEquals(headers, roundTrip(serializer, headers));
+        Sha256Hash first = filter.computeHeader(previous);
+        assertEquals(Arrays.asList(first, filter.computeHeader(first)), headers.getFilterHeaders());
+    }
+
+    private static Message roundTrip(MessageSerializer serializer, Message message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(message, out);
+        return serializer.deserialize(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -24,6 +24,7 @@ import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptOpCodes;
+import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.junit.Before;
@@ -311,4 +312,53 @@ public class BlockTest {
             //Expected, do nothing
         }
     }
+    // A block with enough transactions to be verified in parallel.
+    private Block createLargeBlock(int count) {
+        Block block = UNITTEST.getGenesisBlock().createNextBlock(null);
+        Address to = Address.fromKey(UNITTEST, new ECKey());
+        for (int i = 1; i < count; i++)
+            block.addTransaction(FakeTxBuilder.createFakeTx(UNITTEST, Coin.valueOf(i), to));
+        return block;
+    }
+
+    @Test
+    public void parallelMerkleRoot() throws Exception {
+        for (int count : new int[] { Block.PARALLEL_VERIFICATION_THRESHOLD, 1001 }) {
+            Block block = createLargeBlock(count);
+            // The plain algorithm, one level of byte arrays at a time.
+            List<byte[]> level = new ArrayList<>();
+            for (Transaction tx : block.getTransactions())
+                level.add(tx.getTxId().getReversedBytes());
+            while (level.size() > 1) {
+                List<byte[]> next = new ArrayList<>();
+                for (int left = 0; left < level.size(); left += 2) {
+                    int right = Math.min(left + 1, level.size() - 1);
+                    next.add(Sha256Hash.hashTwice(level.get(left), level.get(right)));
+                }
+                level = next;
+            }
+            assertEquals(Sha256Hash.wrapReversed(level.get(0)), block.getMerkleRoot());
+        }
+    }
+
+    @Test
+    public void parallelVerifyTransactions() throws Exception {
+        Block block = createLargeBlock(1000);
+        block.getMerkleRoot();
+        block.verifyTransactions(-1, EnumSet.noneOf(Block.VerifyFlag.class));
+
+        // Of several invalid transactions, the first one is reported, as when verifying serially.
+        Block invalid = createLargeBlock(1000);
+        Transaction noOutputs = invalid.getTransactions().get(300);
+        noOutputs.clearOutputs();
+        Transaction duplicatedInput = invalid.getTransactions().get(700);
+        duplicatedInput.addInput(duplicatedInput.getInput(0));
+        invalid.getMerkleRoot();
+        try {
+            invalid.verifyTransactions(-1, EnumSet.noneOf(Block.VerifyFlag.class));
+            fail();
+        } catch (VerificationException.EmptyInputsOrOutputs e) {
+            // Expected.
+        }
+    }
 }
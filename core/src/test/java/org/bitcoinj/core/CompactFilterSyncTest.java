@@ -0,0 +1,344 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.CompactFilterStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class CompactFilterSyncTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private MemoryBlockStore blockStore;
+    private File directory;
+    private CompactFilterStore filterStore;
+    private FakeFilterServer server;
+    private CompactFilterSync sync;
+    private Wallet wallet;
+
+    // Serves filters, filter headers and blocks of the chain in the block store, like a peer would.
+    private static class FakeFilterServer implements CompactFilterSync.FilterSource {
+        final NetworkParameters params;
+        final List<Block> blocks = new ArrayList<>();
+        final List<BlockFilter> filters = new ArrayList<>();
+        final Map<TransactionOutPoint, byte[]> outputs = new HashMap<>();
+        final List<Integer> fetched = new ArrayList<>();
+        int headerRequests, filterRequests;
+        int tamperedHeight = -1;
+
+        FakeFilterServer(NetworkParameters params) {
+            this.params = params;
+            add(params.getGenesisBlock());
+        }
+
+        void add(Block block) {
+            List<byte[]> spent = new ArrayList<>();
+            for (Transaction tx : block.getTransactions()) {
+                if (!tx.isCoinBase())
+                    for (TransactionInput input : tx.getInputs())
+                        if (outputs.containsKey(input.getOutpoint()))
+                            spent.add(outputs.get(input.getOutpoint()));
+                for (TransactionOutput output : tx.getOutputs())
+                    outputs.put(output.getOutPointFor(), output.getScriptBytes());
+            }
+            blocks.add(block);
+            filters.add(BlockFilter.build(params, block.getHash(), BlockFilter.getBasicFilterElements(block, spent)));
+        }
+
+        int heightOf(Sha256Hash hash) {
+            for (int i = 0; i < blocks.size(); i++)
+                if (blocks.get(i).getHash().equals(hash))
+                    return i;
+            throw new IllegalArgumentException(hash.toString());
+        }
+
+        Sha256Hash filterHeader(int height) {
+            Sha256Hash header = Sha256Hash.ZERO_HASH;
+            for (int i = 0; i <= height; i++)
+                header = filters.get(i).computeHeader(header);
+            return header;
+        }
+
+        @Override
+        public ListenableFuture<CFHeadersMessage> getFilterHeaders(int startHeight, Sha256Hash stopHash) {
+            headerRequests++;
+            List<Sha256Hash> hashes = new ArrayList<>();
+            for (int i = startHeight; i <= heightOf(stopHash); i++)
+                hashes.add(filters.get(i).getFilterHash());
+            return Futures.immediateFuture(new CFHeadersMessage(params, BlockFilter.BASIC, stopHash,
+                    filterHeader(startHeight - 1), hashes));
+        }
+
+        @Override
+        public ListenableFuture<List<BlockFilter>> getFilters(int startHeight, Sha256Hash stopHash) {
+            filterRequests++;
+            List<BlockFilter> result = new ArrayList<>();
+            for (int i = startHeight; i <= heightOf(stopHash); i++) {
+                BlockFilter filter = filters.get(i);
+                if (i == tamperedHeight)
+                    filter = BlockFilter.build(params, filter.getBlockHash(), Arrays.asList(new byte[] { 1 }));
+                result.add(filter);
+            }
+            return Futures.immediateFuture(result);
+        }
+
+        @Override
+        public ListenableFuture<Block> getBlock(Sha256Hash blockHash) {
+            int height = heightOf(blockHash);
+            fetched.add(height);
+            return Futures.immediateFuture(blocks.get(height));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        blockStore = new MemoryBlockStore(UNITTEST);
+        directory = Files.createTempDirectory("cfilters").toFile();
+        filterStore = new CompactFilterStore(UNITTEST, directory);
+        server = new FakeFilterServer(UNITTEST);
+        sync = new CompactFilterSync(UNITTEST, blockStore, filterStore, server, 2);
+        wallet = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        sync.addWallet(wallet);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.resetMocking();
+        sync.close();
+        filterStore.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    private Block addBlock(Transaction... transactions) throws Exception {
+        FakeTxBuilder.BlockPair pair = FakeTxBuilder.createFakeBlock(blockStore,
+                blockStore.getChainHead().getHeight() + 1, transactions);
+        server.add(pair.block);
+        return pair.block;
+    }
+
+    private void addEmptyBlocks(int count) throws Exception {
+        for (int i = 0; i < count; i++)
+            addBlock();
+    }
+
+    @Test
+    public void fetchesOnlyMatchingBlocks() throws Exception {
+        addEmptyBlocks(9);
+        Transaction payment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress());
+        addBlock(payment);
+        addEmptyBlocks(9);
+        Transaction spend = new Transaction(UNITTEST);
+        for (TransactionOutput output : payment.getOutputs())
+            if (output.isMine(wallet))
+                spend.addInput(output);
+        spend.addOutput(COIN, Address.fromKey(UNITTEST, new ECKey()));
+        addBlock(spend);
+        addEmptyBlocks(10);
+
+        sync.sync();
+        // The spend has none of our scripts in it, it matches through the script of the output it spends.
+        assertEquals(Arrays.asList(10, 20), server.fetched);
+        assertEquals(ZERO, wallet.getBalance());
+        assertEquals(2, wallet.getTransactions(false).size());
+        assertEquals(30, wallet.getLastBlockSeenHeight());
+        assertEquals(21, wallet.getTransaction(payment.getTxId()).getConfidence().getDepthInBlocks());
+        assertEquals(30, filterStore.getHeaderHeight());
+        assertEquals(server.filterHeader(30), filterStore.getFilterHeader(30));
+
+        // The next sync only asks for what is new.
+        server.fetched.clear();
+        Transaction second = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress());
+        addEmptyBlocks(2);
+        addBlock(second);
+        sync.sync();
+        assertEquals(Arrays.asList(33), server.fetched);
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(24, wallet.getTransaction(payment.getTxId()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void syncsOnNewBlocks() throws Exception {
+        // On regtest, as the chain can't check the difficulty of unit test blocks without enough history.
+        NetworkParameters params = RegTestParams.get();
+        Context.propagate(new Context(params, 100, Coin.ZERO, false));
+        sync.close();
+        filterStore.close();
+        for (File f : directory.listFiles())
+            f.delete();
+        blockStore = new MemoryBlockStore(params);
+        filterStore = new CompactFilterStore(params, directory);
+        server = new FakeFilterServer(params);
+        // With a single thread, scheduled syncs must not take the thread the matching runs on.
+        sync = new CompactFilterSync(params, blockStore, filterStore, server, 1);
+        wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+        sync.addWallet(wallet);
+        BlockChain chain = new BlockChain(params, blockStore);
+        sync.syncOnNewBlocks(chain);
+
+        Transaction payment = new Transaction(params);
+        payment.addInput(new TransactionInput(params, payment, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] { 1 }))));
+        payment.addOutput(COIN, wallet.currentReceiveAddress());
+        Block block = params.getGenesisBlock().createNextBlock(null);
+        block.addTransaction(payment);
+        block.solve();
+        server.add(block);
+        assertTrue(chain.add(block));
+        assertEquals(COIN, wallet.getBalanceFuture(COIN, Wallet.BalanceType.AVAILABLE).get(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1), server.fetched);
+    }
+
+    @Test
+    public void followsKeysUsedDuringSync() throws Exception {
+        // The second payment is to a key past the lookahead window as it is at the start, which only becomes part of
+        // it once the key of the first payment has been used.
+        Wallet other = Wallet.fromSeed(UNITTEST, wallet.getKeyChainSeed(), Script.ScriptType.P2PKH);
+        List<Address> addresses = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            addresses.add(other.freshReceiveAddress());
+        assertFalse(wallet.isPubKeyHashMine(addresses.get(9).getHash160(), Script.ScriptType.P2PKH));
+        addEmptyBlocks(5);
+        addBlock(FakeTxBuilder.createFakeTx(UNITTEST, COIN, addresses.get(4)));
+        addEmptyBlocks(5);
+        addBlock(FakeTxBuilder.createFakeTx(UNITTEST, COIN, addresses.get(9)));
+
+        sync.sync();
+        assertEquals(Arrays.asList(6, 12), server.fetched);
+        assertEquals(COIN.add(COIN), wallet.getBalance());
+    }
+
+    @Test
+    public void rescanUsesStoredFilters() throws Exception {
+        ECKey imported = new ECKey();
+        addEmptyBlocks(4);
+        addBlock(FakeTxBuilder.createFakeTx(UNITTEST, COIN, imported));
+        addEmptyBlocks(5);
+        sync.sync();
+        assertTrue(server.fetched.isEmpty());
+        assertEquals(ZERO, wallet.getBalance());
+
+        wallet.importKey(imported);
+        int headerRequests = server.headerRequests;
+        int filterRequests = server.filterRequests;
+        sync.rescan(wallet, 0);
+        assertEquals(headerRequests, server.headerRequests);
+        assertEquals(filterRequests, server.filterRequests);
+        assertEquals(Arrays.asList(5), server.fetched);
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(6, wallet.getTransactions(false).iterator().next().getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void storeSurvivesRestart() throws Exception {
+        addEmptyBlocks(20);
+        sync.sync();
+        sync.close();
+        filterStore.close();
+
+        filterStore = new CompactFilterStore(UNITTEST, directory);
+        assertEquals(20, filterStore.getHeaderHeight());
+        assertEquals(0, filterStore.getBaseHeight());
+        assertEquals(server.filters.get(7), filterStore.getFilter(7));
+        assertEquals(server.blocks.get(7).getHash(), filterStore.getBlockHash(7));
+
+        // Only the new headers are asked for.
+        sync = new CompactFilterSync(UNITTEST, blockStore, filterStore, server, 2);
+        sync.addWallet(wallet);
+        addEmptyBlocks(1);
+        int filterRequests = server.filterRequests;
+        sync.sync();
+        assertEquals(21, filterStore.getHeaderHeight());
+        assertEquals(filterRequests + 1, server.filterRequests);
+        assertTrue(filterStore.hasFilter(21));
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        addEmptyBlocks(8);
+        Transaction orphaned = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress());
+        addBlock(orphaned);
+        addEmptyBlocks(1);
+        sync.sync();
+        assertEquals(COIN, wallet.getBalance());
+        server.fetched.clear();
+        StoredBlock fork = blockStore.get(server.blocks.get(7).getHash());
+        // Replace the blocks above 7 by a longer branch.
+        while (server.blocks.size() > 8) {
+            server.blocks.remove(server.blocks.size() - 1);
+            server.filters.remove(server.filters.size() - 1);
+        }
+        blockStore.setChainHead(fork);
+        Transaction payment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress());
+        addEmptyBlocks(2);
+        addBlock(payment);
+        addEmptyBlocks(1);
+
+        sync.sync();
+        assertEquals(11, filterStore.getHeaderHeight());
+        assertEquals(server.blocks.get(9).getHash(), filterStore.getBlockHash(9));
+        assertEquals(server.filterHeader(11), filterStore.getFilterHeader(11));
+        assertEquals(Arrays.asList(10), server.fetched);
+        assertEquals(11, wallet.getLastBlockSeenHeight());
+        // The payment of the abandoned branch is pending again.
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING,
+                wallet.getTransaction(orphaned.getTxId()).getConfidence().getConfidenceType());
+        assertEquals(2, wallet.getTransaction(payment.getTxId()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void rejectsFilterNotMatchingHeader() throws Exception {
+        addEmptyBlocks(10);
+        server.tamperedHeight = 4;
+        try {
+            sync.sync();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertFalse(filterStore.hasFilter(4));
+        server.tamperedHeight = -1;
+        sync.sync();
+        assertTrue(filterStore.hasFilter(4));
+    }
+}
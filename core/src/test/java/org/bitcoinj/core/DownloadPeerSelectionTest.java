@@ -0,0 +1,136 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DownloadPeerSelectionTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private PeerGroup peerGroup;
+
+    // A connected peer at a fixed height, without a connection.
+    private static class FakePeer extends Peer {
+        private final VersionMessage peerVersion;
+
+        FakePeer(int port) throws Exception {
+            super(UNITTEST, new VersionMessage(UNITTEST, 100),
+                    new PeerAddress(UNITTEST, InetAddress.getLoopbackAddress(), port), null);
+            peerVersion = new VersionMessage(UNITTEST, 100);
+        }
+
+        @Override
+        public VersionMessage getPeerVersionMessage() {
+            return peerVersion;
+        }
+
+        @Override
+        public long getBestHeight() {
+            return 100;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        peerGroup = new PeerGroup(UNITTEST, null);
+    }
+
+    @Test
+    public void randomWithoutMeasurements() throws Exception {
+        List<Peer> peers = Arrays.<Peer>asList(new FakePeer(1), new FakePeer(2), new FakePeer(3));
+        List<Peer> selected = new ArrayList<>();
+        for (int i = 0; i < 100 && selected.size() < peers.size(); i++) {
+            Peer peer = peerGroup.selectDownloadPeer(peers);
+            assertTrue(peers.contains(peer));
+            if (!selected.contains(peer))
+                selected.add(peer);
+        }
+        assertEquals(peers.size(), selected.size());
+    }
+
+    @Test
+    public void prefersFastestMeasuredPeer() throws Exception {
+        Peer slow = new FakePeer(1), fast = new FakePeer(2), medium = new FakePeer(3);
+        slow.addDownloadSpeedSample(1000);
+        fast.addDownloadSpeedSample(100000);
+        medium.addDownloadSpeedSample(50000);
+        for (int i = 0; i < 10; i++)
+            assertSame(fast, peerGroup.selectDownloadPeer(Arrays.asList(slow, medium, fast)));
+    }
+
+    @Test
+    public void triesUnmeasuredPeerBeforeSlowOne() throws Exception {
+        Peer slow = new FakePeer(1), fast = new FakePeer(2), unknown = new FakePeer(3);
+        slow.addDownloadSpeedSample(1000);
+        fast.addDownloadSpeedSample(100000);
+        // The unmeasured peer is expected to be as fast as the median, which is the fast peer.
+        List<Peer> selected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Peer peer = peerGroup.selectDownloadPeer(Arrays.asList(slow, fast, unknown));
+            assertNotSame(slow, peer);
+            if (!selected.contains(peer))
+                selected.add(peer);
+        }
+        assertEquals(2, selected.size());
+    }
+
+    @Test
+    public void movesAwayFromPeerSlowerThanOthers() throws Exception {
+        Peer current = new FakePeer(1), fast = new FakePeer(2), medium = new FakePeer(3);
+        List<Peer> peers = Arrays.asList(current, fast, medium);
+        fast.addDownloadSpeedSample(100000);
+        medium.addDownloadSpeedSample(80000);
+        current.addDownloadSpeedSample(30000);
+        assertNull(peerGroup.selectFasterDownloadPeer(current, peers, 0.25));
+        current.addDownloadSpeedSample(0);
+        assertSame(fast, peerGroup.selectFasterDownloadPeer(current, peers, 0.25));
+    }
+
+    @Test
+    public void keepsPeerBeforeOthersServedTheChain() throws Exception {
+        Peer current = new FakePeer(1), other1 = new FakePeer(2), other2 = new FakePeer(3);
+        List<Peer> peers = Arrays.asList(current, other1, other2);
+        assertNull(peerGroup.selectFasterDownloadPeer(current, peers, 0.25));
+        // The filtered bytes per second drop, e.g. after the fast catchup time or in a quiet stretch of the chain,
+        // while the peer stays fast. Without measurements of the others there's nothing to compare that against.
+        current.addDownloadSpeedSample(100000);
+        for (int i = 0; i < 10; i++)
+            current.addDownloadSpeedSample(1000);
+        assertNull(peerGroup.selectFasterDownloadPeer(current, peers, 0.25));
+    }
+
+    @Test
+    public void speedAndLatencyAverages() throws Exception {
+        Peer peer = new FakePeer(1);
+        assertEquals(-1, peer.getDownloadSpeed());
+        assertEquals(Long.MAX_VALUE, peer.getResponseLatency());
+        peer.addDownloadSpeedSample(1000);
+        assertEquals(1000, peer.getDownloadSpeed());
+        peer.addDownloadSpeedSample(0);
+        assertEquals(800, peer.getDownloadSpeed());
+    }
+}
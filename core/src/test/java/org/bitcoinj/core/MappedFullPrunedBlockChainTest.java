@@ -0,0 +1,63 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MappedFullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A memory mapped file implementation of the FullPrunedBlockStoreTest
+ */
+public class MappedFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private File directory;
+
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        try {
+            directory = Files.createTempDirectory("mappedfullprunedblockstore").toFile();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        return new MappedFullPrunedBlockStore(params, directory, blockCount);
+    }
+
+    private void deleteFiles() {
+        if (directory != null) {
+            for (File f : directory.listFiles())
+                f.delete();
+            directory.delete();
+            directory = null;
+        }
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // The store was created in an empty directory by createStore.
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ParallelBlockFetcherTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private OrderCheckingChain chain;
+    private List<Block> blocks;
+    private Map<Sha256Hash, Block> blocksByHash;
+    private ParallelBlockFetcher fetcher;
+
+    // Only checks that the blocks connect, as the difficulty rules need a longer chain than the test builds.
+    private static class OrderCheckingChain extends BlockChain {
+        private Sha256Hash head = UNITTEST.getGenesisBlock().getHash();
+        private volatile int height;
+
+        OrderCheckingChain() throws Exception {
+            super(UNITTEST, new MemoryBlockStore(UNITTEST));
+        }
+
+        @Override
+        public synchronized boolean add(Block block) {
+            if (!block.getPrevBlockHash().equals(head))
+                return false;
+            head = block.getHash();
+            height++;
+            return true;
+        }
+    }
+
+    // Records the blocks asked for without a connection, and answers when told to.
+    private class FakePeer extends Peer {
+        final Map<Sha256Hash, SettableFuture<Block>> pending = new LinkedHashMap<>();
+        final List<Sha256Hash> requested = new ArrayList<>();
+
+        FakePeer(int port) {
+            super(UNITTEST, new VersionMessage(UNITTEST, 100),
+                    new PeerAddress(UNITTEST, InetAddress.getLoopbackAddress(), port), null);
+        }
+
+        @Override
+        public synchronized List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+            List<ListenableFuture<Block>> futures = new ArrayList<>();
+            for (Sha256Hash hash : blockHashes) {
+                SettableFuture<Block> future = SettableFuture.create();
+                pending.put(hash, future);
+                requested.add(hash);
+                futures.add(future);
+            }
+            return futures;
+        }
+
+        void answer(int height) {
+            SettableFuture<Block> future;
+            synchronized (this) {
+                future = pending.remove(blocks.get(height - 1).getHash());
+            }
+            assertNotNull("Block " + height + " was not requested", future);
+            future.set(blocksByHash.get(blocks.get(height - 1).getHash()));
+        }
+
+        void answerAll() {
+            List<SettableFuture<Block>> futures = new ArrayList<>();
+            List<Sha256Hash> hashes;
+            synchronized (this) {
+                hashes = new ArrayList<>(pending.keySet());
+                futures.addAll(pending.values());
+                pending.clear();
+            }
+            for (int i = 0; i < futures.size(); i++)
+                futures.get(i).set(blocksByHash.get(hashes.get(i)));
+        }
+
+        synchronized int pendingCount() {
+            return pending.size();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // Stalls are timed by the mock clock, so only the tests advancing it see any.
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        chain = new OrderCheckingChain();
+        blocks = new ArrayList<>();
+        blocksByHash = new HashMap<>();
+        Block prev = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 20; i++) {
+            prev = prev.createNextBlock(null);
+            blocks.add(prev);
+            blocksByHash.put(prev.getHash(), prev);
+        }
+        fetcher = ParallelBlockFetcher.forHeaders(chain, blocks);
+    }
+
+    @After
+    public void tearDown() {
+        fetcher.stop();
+        Utils.resetMocking();
+    }
+
+    private void waitForHeight(int height) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (chain.height < height && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(height, chain.height);
+    }
+
+    @Test
+    public void deliversInOrderFromSeveralPeers() throws Exception {
+        fetcher.setBlocksPerPeer(3);
+        fetcher.setWindow(8);
+        ListenableFuture<Integer> future = fetcher.start();
+        FakePeer a = new FakePeer(1), b = new FakePeer(2), c = new FakePeer(3);
+        fetcher.addPeer(a);
+        fetcher.addPeer(b);
+        fetcher.addPeer(c);
+        // Every peer got a contiguous range, and nothing beyond the window was asked for.
+        assertEquals(3, a.pendingCount());
+        assertEquals(3, b.pendingCount());
+        assertEquals(2, c.pendingCount());
+        assertEquals(blocks.get(0).getHash(), a.requested.get(0));
+        assertEquals(blocks.get(3).getHash(), b.requested.get(0));
+
+        // Blocks that arrive early wait for the ones before them.
+        c.answerAll();
+        b.answerAll();
+        Thread.sleep(50);
+        assertEquals(0, chain.height);
+        a.answer(1);
+        waitForHeight(1);
+        a.answerAll();
+        waitForHeight(8);
+
+        while (!future.isDone()) {
+            a.answerAll();
+            b.answerAll();
+            c.answerAll();
+            Thread.sleep(5);
+        }
+        assertEquals(20, (int) future.get());
+        assertEquals(20, chain.height);
+        assertEquals(20, a.requested.size() + b.requested.size() + c.requested.size());
+    }
+
+    @Test
+    public void limitsBufferedBlocks() throws Exception {
+        fetcher.setBlocksPerPeer(2);
+        // Room for a single block.
+        fetcher.setMaxBufferedBytes(1);
+        fetcher.start();
+        FakePeer peer = new FakePeer(1);
+        fetcher.addPeer(peer);
+        assertEquals(2, peer.requested.size());
+        peer.answer(2);
+        // The buffer is full, so nothing more is requested until block 1 arrives.
+        assertEquals(2, peer.requested.size());
+        peer.answer(1);
+        waitForHeight(2);
+        assertEquals(4, peer.requested.size());
+    }
+
+    @Test
+    public void retriesMissingBlocksElsewhere() throws Exception {
+        fetcher.setBlocksPerPeer(1);
+        ListenableFuture<Integer> future = fetcher.start();
+        FakePeer a = new FakePeer(1), b = new FakePeer(2);
+        fetcher.addPeer(a);
+        fetcher.addPeer(b);
+        // Peer a doesn't have block 1, which is then asked of b once it has room.
+        SettableFuture<Block> missing;
+        synchronized (a) {
+            missing = a.pending.remove(blocks.get(0).getHash());
+        }
+        missing.cancel(true);
+        b.answer(2);
+        assertEquals(blocks.get(0).getHash(), b.requested.get(1));
+        while (!future.isDone()) {
+            a.answerAll();
+            b.answerAll();
+            Thread.sleep(5);
+        }
+        assertEquals(20, (int) future.get());
+    }
+
+    @Test
+    public void reassignsStalledRequests() throws Exception {
+        fetcher.setStallTimeout(50, TimeUnit.MILLISECONDS);
+        ListenableFuture<Integer> future = fetcher.start();
+        FakePeer stalling = new FakePeer(1), good = new FakePeer(2);
+        fetcher.addPeer(stalling);
+        fetcher.addPeer(good);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!future.isDone() && System.currentTimeMillis() < deadline) {
+            good.answerAll();
+            Utils.rollMockClockMillis(20);
+            Thread.sleep(5);
+        }
+        assertEquals(20, (int) future.get(0, TimeUnit.SECONDS));
+        assertTrue(stalling.requested.size() > 0);
+    }
+
+    @Test
+    public void failsOnBlockNotConnecting() throws Exception {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        hashes.add(blocks.get(1).getHash());
+        fetcher = new ParallelBlockFetcher(chain, hashes);
+        ListenableFuture<Integer> future = fetcher.start();
+        FakePeer peer = new FakePeer(1);
+        fetcher.addPeer(peer);
+        peer.answerAll();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressDatabaseTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+    // The Tor v3 address of the Tor Project's website.
+    private static final String ONION = "2gzyxa5ihm7nsggfxnu52rck2vv4rvmdlkiu3zzui5du4xyclen53wid.onion";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        file = File.createTempFile("peers", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+        file.delete();
+    }
+
+    private static PeerAddress address(String ip) throws Exception {
+        return new PeerAddress(MAINNET, InetAddress.getByName(ip), 8333);
+    }
+
+    // The database fills in the services, which PeerAddress.equals() takes into account.
+    private static List<InetSocketAddress> sockets(List<PeerAddress> addresses) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (PeerAddress address : addresses)
+            result.add(address.toSocketAddress());
+        return result;
+    }
+
+    @Test
+    public void scoring() throws Exception {
+        PeerAddressDatabase db = new PeerAddressDatabase(MAINNET, file);
+        PeerAddress fast = address("1.1.1.1"), slow = address("2.2.2.2"), failing = address("3.3.3.3"),
+                untried = address("4.4.4.4");
+        db.addAddresses(Arrays.asList(fast, slow, failing, untried));
+        assertEquals(4, db.size());
+        for (PeerAddress address : Arrays.asList(fast, slow, failing))
+            db.recordAttempt(address);
+        db.recordSuccess(fast, VersionMessage.NODE_NETWORK, 100);
+        db.recordSuccess(slow, VersionMessage.NODE_NETWORK, 3000);
+        db.recordFailure(failing);
+        assertEquals(sockets(Arrays.asList(fast, slow, untried, failing)), sockets(db.getBestAddresses(10, 0)));
+        assertEquals(sockets(Arrays.asList(fast, slow)), sockets(db.getBestAddresses(2, 0)));
+        // A peer that stopped answering falls behind.
+        db.recordAttempt(fast);
+        db.recordFailure(fast);
+        db.recordAttempt(fast);
+        db.recordFailure(fast);
+        assertTrue(db.getScore(fast) < db.getScore(slow));
+        assertEquals(-1, db.getScore(address("5.5.5.5")), 0);
+    }
+
+    @Test
+    public void requiredServices() throws Exception {
+        PeerAddressDatabase db = new PeerAddressDatabase(MAINNET, file);
+        PeerAddress full = address("1.1.1.1"), limited = address("2.2.2.2"), unknown = address("3.3.3.3");
+        db.recordSuccess(full, VersionMessage.NODE_NETWORK | VersionMessage.NODE_BLOOM, 100);
+        db.recordSuccess(limited, VersionMessage.NODE_NETWORK_LIMITED, 100);
+        db.addAddresses(Arrays.asList(unknown));
+        List<PeerAddress> best = db.getBestAddresses(10, VersionMessage.NODE_BLOOM);
+        assertEquals(sockets(Arrays.asList(full, unknown)), sockets(best));
+        assertEquals(VersionMessage.NODE_NETWORK | VersionMessage.NODE_BLOOM, best.get(0).getServices().longValue());
+    }
+
+    @Test
+    public void trimsWorstAddresses() throws Exception {
+        PeerAddressDatabase db = new PeerAddressDatabase(MAINNET, file, 2);
+        PeerAddress good = address("1.1.1.1"), bad = address("2.2.2.2"), other = address("3.3.3.3");
+        db.recordAttempt(bad);
+        db.recordFailure(bad);
+        db.recordSuccess(good, VersionMessage.NODE_NETWORK, 100);
+        db.addAddresses(Arrays.asList(other));
+        assertEquals(2, db.size());
+        assertEquals(-1, db.getScore(bad), 0);
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        PeerAddressDatabase db = new PeerAddressDatabase(MAINNET, file);
+        PeerAddress ipv4 = address("1.2.3.4"), ipv6 = address("2001:db8::1"),
+                onion = new PeerAddress(MAINNET, ONION, 8333);
+        db.recordAttempt(ipv4);
+        db.recordSuccess(ipv4, VersionMessage.NODE_NETWORK, 200);
+        db.recordAttempt(ipv6);
+        db.recordFailure(ipv6);
+        db.recordSuccess(onion, VersionMessage.NODE_NETWORK, 900);
+        // Not a Tor v3 address, so it can't be stored.
+        db.addAddresses(Arrays.asList(new PeerAddress(MAINNET, "example.onion", 8333)));
+        assertEquals(3, db.size());
+        db.save();
+
+        PeerAddressDatabase loaded = new PeerAddressDatabase(MAINNET, file);
+        assertEquals(3, loaded.size());
+        for (PeerAddress address : Arrays.asList(ipv4, ipv6, onion))
+            assertEquals(db.getScore(address), loaded.getScore(address), 0);
+        List<PeerAddress> best = loaded.getBestAddresses(3, 0);
+        assertEquals(ipv4.toSocketAddress(), best.get(0).toSocketAddress());
+        assertEquals(ONION, best.get(1).getHostname());
+    }
+
+    @Test
+    public void addressesFromAddrV2() throws Exception {
+        PeerAddressDatabase db = new PeerAddressDatabase(MAINNET, file);
+        long now = Utils.currentTimeSeconds();
+        AddressV2Message message = new AddressV2Message(MAINNET, new byte[]{0});
+        message.addAddress(new PeerAddress(MAINNET, null, ONION, 8333,
+                BigInteger.valueOf(VersionMessage.NODE_NETWORK), now));
+        message.addAddress(new PeerAddress(MAINNET, InetAddress.getByName("1.2.3.4"), null, 8333,
+                BigInteger.valueOf(VersionMessage.NODE_NETWORK), now - 30 * 24 * 60 * 60));
+        db.addAddresses(new AddressV2Message(MAINNET, message.bitcoinSerialize()).getAddresses());
+        assertEquals(2, db.size());
+        // The onion address was seen more recently, and has the services asked for.
+        List<PeerAddress> best = db.getBestAddresses(2, VersionMessage.NODE_NETWORK);
+        assertEquals(ONION, best.get(0).getHostname());
+        assertEquals(address("1.2.3.4").toSocketAddress(), best.get(1).toSocketAddress());
+    }
+
+    @Test
+    public void corruptFileIsIgnored() throws Exception {
+        PeerAddressDatabase db = new PeerAddressDatabase(MAINNET, file);
+        db.recordSuccess(address("1.2.3.4"), VersionMessage.NODE_NETWORK, 200);
+        db.save();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 10);
+            raf.write(0xff);
+        }
+        assertEquals(0, new PeerAddressDatabase(MAINNET, file).size());
+    }
+}
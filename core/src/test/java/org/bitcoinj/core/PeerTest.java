@@ -40,6 +40,7 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
@@ -516,6 +517,22 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(7250, peer.getPingTime());
     }
 
+    @Test
+    public void getAddrV2() throws Exception {
+        connectWithVersion(70001, VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH);
+        // Sent while connecting, sendaddrv2 is ignored at any time.
+        inbound(writeTarget, new SendAddrV2Message(UNITTEST));
+        ListenableFuture<AddressMessage> future = peer.getAddr();
+        assertTrue(outbound(writeTarget) instanceof GetAddrMessage);
+        String onion = "2gzyxa5ihm7nsggfxnu52rck2vv4rvmdlkiu3zzui5du4xyclen53wid.onion";
+        AddressV2Message addresses = new AddressV2Message(UNITTEST, new byte[]{0});
+        addresses.addAddress(new PeerAddress(UNITTEST, null, onion, 8333, BigInteger.ONE, 1000));
+        inbound(writeTarget, addresses);
+        List<PeerAddress> received = future.get().getAddresses();
+        assertEquals(1, received.size());
+        assertEquals(onion, received.get(0).getHostname());
+    }
+
     @Test
     public void recursiveDependencyDownloadDisabled() throws Exception {
         peer.setDownloadTxDependencies(false);
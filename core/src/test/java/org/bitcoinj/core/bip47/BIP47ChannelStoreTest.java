@@ -0,0 +1,126 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core.bip47;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BIP47ChannelStoreTest {
+    private static final String NOTIFICATION_ADDRESS = "1JDdmqFLhpzcUwPeinhJbUPw4Co3aWLyzW";
+    private static final String OTHER_NOTIFICATION_ADDRESS = "1ChvUUvht2hUQufHBXF8NgLhW8SwE2ecGV";
+
+    private BIP47ChannelStore store;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(UnitTestParams.get()));
+        store = new BIP47ChannelStore();
+    }
+
+    private static BIP47Channel createChannel(String notificationAddress) {
+        BIP47Channel channel = new BIP47Channel(notificationAddress, Sha256Hash.of(notificationAddress.getBytes()));
+        channel.setPaymentCode("PM8TJSBiQmNQDwTogMAbyqJe2PE2kQXjtgh88MRTxsrnHC8zpEtJ8j7Aj628oUFk8X6P5rJ7P5qDudE4Hwq9JXSRzGcZJbdJAjM9oVQ1UKU37GUcaLYV");
+        channel.setStatusSent();
+        channel.incrementOutgoingIndex();
+        channel.addNewIncomingAddress("1A1zP1eP5QGefi2DMPTfTL5SLmv7DivfNa", 0);
+        channel.addNewIncomingAddress("12c6DSiU4Rq3P4ZxziKxzrPRvHVDmVn2Jz", 1).setSeen(true);
+        return channel;
+    }
+
+    private static void assertChannelEquals(BIP47Channel expected, BIP47Channel actual) {
+        assertEquals(expected.getNotificationAddress(), actual.getNotificationAddress());
+        assertEquals(expected.getPaymentCode(), actual.getPaymentCode());
+        assertEquals(expected.isNotificationTransactionSent(), actual.isNotificationTransactionSent());
+        assertEquals(expected.getCurrentOutgoingIndex(), actual.getCurrentOutgoingIndex());
+        assertEquals(expected.getCurrentIncomingIndex(), actual.getCurrentIncomingIndex());
+        assertEquals(expected.getNtxHash(), actual.getNtxHash());
+        assertEquals(expected.getIncomingAddresses().size(), actual.getIncomingAddresses().size());
+        for (int i = 0; i < expected.getIncomingAddresses().size(); i++) {
+            BIP47Address a = expected.getIncomingAddresses().get(i), b = actual.getIncomingAddresses().get(i);
+            assertEquals(a.getAddress(), b.getAddress());
+            assertEquals(a.getIndex(), b.getIndex());
+            assertEquals(a.isSeen(), b.isSeen());
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        BIP47Channel channel = createChannel(NOTIFICATION_ADDRESS);
+        store.channelChanged(channel);
+        // A channel without payment code or notification transaction.
+        BIP47Channel bare = new BIP47Channel(OTHER_NOTIFICATION_ADDRESS, null);
+        store.channelChanged(bare);
+
+        BIP47ChannelStore read = new BIP47ChannelStore();
+        read.deserializeWalletExtension(null, store.serializeWalletExtension());
+        List<BIP47Channel> channels = read.getChannels();
+        assertEquals(2, channels.size());
+        assertChannelEquals(channel, channels.get(0));
+        assertChannelEquals(bare, channels.get(1));
+        assertArrayEquals(store.serializeWalletExtension(), read.serializeWalletExtension());
+    }
+
+    @Test
+    public void channelChangedReplacesChannel() throws Exception {
+        BIP47Channel channel = createChannel(NOTIFICATION_ADDRESS);
+        store.channelChanged(channel);
+        byte[] before = store.serializeWalletExtension();
+        channel.addNewIncomingAddress("1BoatSLRHtKNngkdXEeobR76b53LETtpyT", 2);
+        // The stored state is only updated when the change is reported.
+        assertArrayEquals(before, store.serializeWalletExtension());
+        store.channelChanged(channel);
+        assertEquals(1, store.size());
+        assertEquals(3, store.getChannels().get(0).getIncomingAddresses().size());
+        assertEquals(2, store.getChannels().get(0).getCurrentIncomingIndex());
+    }
+
+    @Test
+    public void savedInWallet() throws Exception {
+        Wallet wallet = Wallet.createDeterministic(UnitTestParams.get(), Script.ScriptType.P2PKH);
+        wallet.addExtension(store);
+        BIP47Channel channel = createChannel(NOTIFICATION_ADDRESS);
+        store.channelChanged(channel);
+        wallet.extensionChanged(store);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, bytes);
+        BIP47ChannelStore loaded = new BIP47ChannelStore();
+        new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(bytes.toByteArray()), loaded);
+        assertEquals(1, loaded.size());
+        assertChannelEquals(channel, loaded.getChannels().get(0));
+    }
+
+    @Test(expected = Exception.class)
+    public void corruptData() throws Exception {
+        store.channelChanged(createChannel(NOTIFICATION_ADDRESS));
+        byte[] data = store.serializeWalletExtension();
+        new BIP47ChannelStore().deserializeWalletExtension(null, Arrays.copyOf(data, data.length - 3));
+    }
+}
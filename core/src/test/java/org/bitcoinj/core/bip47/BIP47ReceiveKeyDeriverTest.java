@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core.bip47;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BIP47ReceiveKeyDeriverTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    private final Random random = new Random(47);
+    private BIP47Account account;
+    private BIP47ReceiveKeyDeriver deriver;
+
+    private BIP47Account createAccount() {
+        byte[] seed = new byte[32];
+        random.nextBytes(seed);
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(seed);
+        DeterministicKey purpose = HDKeyDerivation.deriveChildKey(master, 47 | ChildNumber.HARDENED_BIT);
+        DeterministicKey coin = HDKeyDerivation.deriveChildKey(purpose, ChildNumber.HARDENED_BIT);
+        return new BIP47Account(MAINNET, coin, 0);
+    }
+
+    @Before
+    public void setUp() {
+        account = createAccount();
+        deriver = new BIP47ReceiveKeyDeriver(MAINNET, account);
+    }
+
+    // The key as derived through the shared secret computed by JCA.
+    private ECKey referenceKey(String senderPaymentCode, int index) throws Exception {
+        return new BIP47PaymentAddress(MAINNET, new BIP47PaymentCode(senderPaymentCode), 0,
+                account.keyAt(index).getPrivKeyBytes()).getReceiveECKey();
+    }
+
+    @Test
+    public void matchesPaymentAddress() throws Exception {
+        String sender = createAccount().getStringPaymentCode();
+        for (int i = 0; i < 10; i++)
+            assertEquals(referenceKey(sender, i), deriver.deriveKey(sender, i));
+        // Cached material gives the same keys.
+        assertEquals(referenceKey(sender, 3), deriver.deriveKey(sender, 3));
+    }
+
+    @Test
+    public void deriveManyChannels() throws Exception {
+        List<String> senders = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            senders.add(createAccount().getStringPaymentCode());
+        // Enough keys that some shared secrets have leading zero bytes, which must be kept.
+        Map<String, List<ECKey>> keys = deriver.deriveKeys(senders, 5, 150);
+        assertEquals(senders, new ArrayList<>(keys.keySet()));
+        for (String sender : senders) {
+            List<ECKey> channelKeys = keys.get(sender);
+            assertEquals(150, channelKeys.size());
+            for (int i = 0; i < channelKeys.size(); i++)
+                assertEquals(referenceKey(sender, 5 + i), channelKeys.get(i));
+        }
+        assertEquals(keys.get(senders.get(2)), deriver.deriveKeys(senders.get(2), 5, 150));
+    }
+}
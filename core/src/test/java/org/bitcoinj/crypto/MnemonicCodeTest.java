@@ -20,12 +20,19 @@ package org.bitcoinj.crypto;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.bitcoinj.core.Utils.HEX;
 import static org.bitcoinj.core.Utils.WHITESPACE_SPLITTER;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 /**
  * Test the various guard clauses of {@link MnemonicCode}.
@@ -82,4 +89,41 @@ public class MnemonicCodeTest {
         List<String> code = WHITESPACE_SPLITTER.splitToList("legal winner thank year wave sausage worth useful legal winner thank yellow");
         MnemonicCode.toSeed(code, null);
     }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullPassphraseInBatch() throws Exception {
+        List<String> code = WHITESPACE_SPLITTER.splitToList("legal winner thank year wave sausage worth useful legal winner thank yellow");
+        MnemonicCode.toSeeds(Collections.singletonList(code), Collections.<String>singletonList(null));
+    }
+
+    @Test
+    public void testBatchMatchesSingle() throws Exception {
+        List<List<String>> codes = new ArrayList<>();
+        List<String> passphrases = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] entropy = new byte[16];
+            Arrays.fill(entropy, (byte) i);
+            codes.add(mc.toMnemonic(entropy));
+            passphrases.add(i % 2 == 0 ? "" : "TREZOR" + i);
+        }
+        List<byte[]> seeds = MnemonicCode.toSeeds(codes, passphrases);
+        assertEquals(codes.size(), seeds.size());
+        for (int i = 0; i < codes.size(); i++)
+            assertArrayEquals(MnemonicCode.toSeed(codes.get(i), passphrases.get(i)), seeds.get(i));
+        assertEquals(0, MnemonicCode.toSeeds(new ArrayList<List<String>>(), new ArrayList<String>()).size());
+    }
+
+    @Test
+    public void testPBKDF2MatchesJCE() throws Exception {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+        byte[] salt = "mnemonicsalt".getBytes(StandardCharsets.UTF_8);
+        // Shorter than, equal to and longer than one HMAC-SHA512 block.
+        for (int length : new int[] { 20, 64, 100, 128 }) {
+            for (int rounds : new int[] { 1, 2, 2048 }) {
+                byte[] expected = factory.generateSecret(
+                        new PBEKeySpec("password".toCharArray(), salt, rounds, length * 8)).getEncoded();
+                assertArrayEquals(expected, PBKDF2SHA512.derive("password", "mnemonicsalt", rounds, length));
+            }
+        }
+    }
 }
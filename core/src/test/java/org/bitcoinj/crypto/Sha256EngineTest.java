@@ -0,0 +1,123 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Sha256EngineTest {
+    private final Sha256Engine engine = Sha256Engine.jvm();
+    private final Random random = new Random(42);
+
+    @After
+    public void tearDown() {
+        Sha256Hash.setEngine(Sha256Engine.jvm());
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] referenceHashTwice(byte[] input, int offset, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(input, offset, length);
+        return digest.digest(digest.digest());
+    }
+
+    @Test
+    public void hashAndHashTwice() throws Exception {
+        byte[] input = randomBytes(200);
+        byte[] output = new byte[40];
+        engine.hash(input, 10, 150, output, 8);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(input, 10, 150);
+        assertArrayEquals(digest.digest(), Arrays.copyOfRange(output, 8, 40));
+
+        engine.hashTwice(input, 0, 100, input, 100, 100, output, 0);
+        assertArrayEquals(referenceHashTwice(input, 0, 200), Arrays.copyOf(output, 32));
+        assertArrayEquals(referenceHashTwice(input, 0, 200), Sha256Hash.hashTwice(input));
+    }
+
+    @Test
+    public void midstate() throws Exception {
+        byte[] header = randomBytes(80);
+        Sha256Engine.Midstate midstate = engine.midstate(header, 0, 64);
+        byte[] output = new byte[32];
+        for (int nonce = 0; nonce < 3; nonce++) {
+            header[79] = (byte) nonce;
+            engine.hashTwice(midstate, header, 64, 16, output, 0);
+            assertArrayEquals(referenceHashTwice(header, 0, 80), output);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void midstateOfPartialBlock() {
+        engine.midstate(new byte[80], 0, 80);
+    }
+
+    @Test
+    public void hashTwiceMany() throws Exception {
+        byte[] input = randomBytes(5 * 64 + 7);
+        byte[] output = new byte[5 * 32];
+        engine.hashTwiceMany(input, 7, 64, 5, output, 0);
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(referenceHashTwice(input, 7 + i * 64, 64), Arrays.copyOfRange(output, i * 32, i * 32 + 32));
+    }
+
+    @Test
+    public void pluggedInEngineIsUsed() throws Exception {
+        final int[] calls = new int[1];
+        Sha256Hash.setEngine(new Sha256Engine() {
+            @Override
+            public void hash(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+                calls[0]++;
+                engine.hash(input, offset, length, output, outputOffset);
+            }
+
+            @Override
+            public void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                                  byte[] output, int outputOffset) {
+                calls[0]++;
+                engine.hashTwice(input1, offset1, length1, input2, offset2, length2, output, outputOffset);
+            }
+
+            @Override
+            public Midstate midstate(byte[] input, int offset, int length) {
+                return engine.midstate(input, offset, length);
+            }
+
+            @Override
+            public void hashTwice(Midstate midstate, byte[] input, int offset, int length, byte[] output,
+                                  int outputOffset) {
+                calls[0]++;
+                engine.hashTwice(midstate, input, offset, length, output, outputOffset);
+            }
+        });
+        byte[] input = randomBytes(10);
+        assertArrayEquals(referenceHashTwice(input, 0, 10), Sha256Hash.twiceOf(input).getBytes());
+        assertEquals(1, calls[0]);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.kits;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.bip47.BIP47Account;
+import org.bitcoinj.core.bip47.BIP47Channel;
+import org.bitcoinj.core.bip47.BIP47PaymentCode;
+import org.bitcoinj.crypto.BIP47SecretPoint;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.net.RestClient;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BIP47AppKitTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    private final Random random = new Random(47);
+    private File directory;
+    private BIP47AppKit kit;
+    private Wallet wallet;
+    private HttpServer server;
+    // The responses of the stand-in notification API by path, anything else is answered with 404.
+    private final Map<String, String> responses = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private CountDownLatch parallel = new CountDownLatch(0);
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(MAINNET);
+        Context.propagate(context);
+        directory = Files.createTempDirectory("bip47appkit").toFile();
+        kit = new BIP47AppKit(context, Script.ScriptType.P2PKH, null, directory, "test");
+        // Only the wallet is needed, the kit isn't started.
+        wallet = Wallet.createDeterministic(context, Script.ScriptType.P2PKH);
+        kit.vWallet = wallet;
+        kit.setAccount();
+        kit.loadBip47MetaData();
+        wallet.addWatchedAddress(kit.getAccount(0).getNotificationAddress());
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requests.putIfAbsent(path, new AtomicInteger());
+                requests.get(path).incrementAndGet();
+                if (path.startsWith("/tx/data/")) {
+                    parallel.countDown();
+                    try {
+                        parallel.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                String response = responses.get(path);
+                byte[] body = (response != null ? response : "").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(response != null ? 200 : 404, body.length > 0 ? body.length : -1);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+        kit.setNotificationApiUrl("http://localhost:" + server.getAddress().getPort())
+                .setRestClient(new RestClient(RestClient.createHttpClient(4, 4)));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    private BIP47Account createAccount() {
+        byte[] seed = new byte[32];
+        random.nextBytes(seed);
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(seed);
+        DeterministicKey purpose = HDKeyDerivation.deriveChildKey(master, 47 | ChildNumber.HARDENED_BIT);
+        DeterministicKey coin = HDKeyDerivation.deriveChildKey(purpose, ChildNumber.HARDENED_BIT);
+        return new BIP47Account(MAINNET, coin, 0);
+    }
+
+    // A notification transaction from the given account to the kit, as BIP47AppKit#makeNotificationTransaction makes it.
+    private Transaction createNotificationTransaction(BIP47Account sender) throws Exception {
+        ECKey inputKey = new ECKey();
+        byte[] fundingTxId = new byte[32];
+        random.nextBytes(fundingTxId);
+        TransactionOutPoint outPoint = new TransactionOutPoint(MAINNET, 0, Sha256Hash.wrap(fundingTxId));
+        BIP47Account receiver = kit.getAccount(0);
+        byte[] secret = new BIP47SecretPoint(inputKey.getPrivKeyBytes(),
+                receiver.getNotificationKey().getPubKey()).ECDHSecretAsBytes();
+        byte[] mask = BIP47PaymentCode.getMask(secret, outPoint.bitcoinSerialize());
+
+        Transaction tx = new Transaction(MAINNET);
+        tx.addInput(new TransactionInput(MAINNET, tx,
+                ScriptBuilder.createInputScript(TransactionSignature.dummy(), inputKey).getProgram(), outPoint));
+        tx.addOutput(Transaction.MIN_NONDUST_OUTPUT, receiver.getNotificationAddress());
+        tx.addOutput(Coin.ZERO, ScriptBuilder.createOpReturnScript(
+                BIP47PaymentCode.blind(sender.getPaymentCode().getPayload(), mask)));
+        return tx;
+    }
+
+    private void serveTransaction(Transaction tx) {
+        responses.put("/tx/data/" + tx.getTxId(), "{\"tx\":\"" + Utils.HEX.encode(tx.bitcoinSerialize()) + "\"}");
+    }
+
+    private void serveUtxos(Sha256Hash... txIds) {
+        StringBuilder json = new StringBuilder("{\"utxos\":[");
+        for (int i = 0; i < txIds.length; i++)
+            json.append(i > 0 ? "," : "").append("{\"tx_hash\":\"").append(txIds[i]).append("\"}");
+        responses.put("/address/utxos/" + kit.getAccount(0).getNotificationAddress(), json.append("]}").toString());
+    }
+
+    private int requestCount(String path) {
+        AtomicInteger count = requests.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+    @Test
+    public void grabsNotificationTransactionsInParallel() throws Exception {
+        BIP47Account alice = createAccount(), bob = createAccount();
+        Transaction fromAlice = createNotificationTransaction(alice);
+        Transaction fromBob = createNotificationTransaction(bob);
+        byte[] missingTxId = new byte[32];
+        random.nextBytes(missingTxId);
+        Sha256Hash missing = Sha256Hash.wrap(missingTxId);
+        serveTransaction(fromAlice);
+        serveTransaction(fromBob);
+        // Two outputs of the same transaction, and one transaction the server fails to serve.
+        serveUtxos(fromAlice.getTxId(), fromAlice.getTxId(), fromBob.getTxId(), missing);
+        // Each transaction is only served once all of them were requested.
+        parallel = new CountDownLatch(3);
+
+        final List<Integer> batches = new ArrayList<>();
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                batches.add(keys.size());
+            }
+        });
+        String address = kit.getAccount(0).getNotificationAddress().toString();
+        // Sooner than a request waits for the others, so fetching them one after another times out.
+        List<BIP47Channel> channels = kit.grabNotificationAddressUtxos(address).get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, parallel.getCount());
+        assertEquals(1, requestCount("/tx/data/" + fromAlice.getTxId()));
+        assertEquals(1, requestCount("/tx/data/" + missing));
+        Set<String> paymentCodes = new HashSet<>();
+        for (BIP47Channel channel : channels) {
+            paymentCodes.add(channel.getPaymentCode());
+            assertEquals(BIP47Channel.LOOKAHEAD, channel.getIncomingAddresses().size());
+        }
+        Set<String> expected = new HashSet<>();
+        expected.add(alice.getStringPaymentCode());
+        expected.add(bob.getStringPaymentCode());
+        assertEquals(expected, paymentCodes);
+        assertNotNull(kit.getBip47MetaForPaymentCode(alice.getStringPaymentCode()));
+        // The keys of both channels were imported together.
+        assertEquals(1, batches.size());
+        assertEquals(2 * BIP47Channel.LOOKAHEAD, (int) batches.get(0));
+    }
+
+    @Test
+    public void savePaymentCodesInOneBatch() throws Exception {
+        final List<Integer> batches = new ArrayList<>();
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                batches.add(keys.size());
+            }
+        });
+        List<BIP47PaymentCode> paymentCodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            paymentCodes.add(createAccount().getPaymentCode());
+        // A payment code given twice gets one channel.
+        paymentCodes.add(paymentCodes.get(0));
+
+        List<BIP47Channel> channels = kit.savePaymentCodes(paymentCodes);
+        assertEquals(3, channels.size());
+        assertEquals(1, batches.size());
+        assertEquals(3 * BIP47Channel.LOOKAHEAD, (int) batches.get(0));
+        Map<String, BIP47Channel> byPaymentCode = new HashMap<>();
+        for (BIP47Channel channel : channels)
+            byPaymentCode.put(channel.getPaymentCode(), channel);
+        for (int i = 0; i < 3; i++) {
+            BIP47Channel channel = byPaymentCode.get(paymentCodes.get(i).toString());
+            assertSame(channel, kit.getBip47MetaForPaymentCode(paymentCodes.get(i).toString()));
+            // The incoming addresses are those of the keys derived for the channel, which the wallet has.
+            ECKey key = kit.getReceiveKeyDeriver().deriveKey(paymentCodes.get(i).toString(), 0);
+            assertEquals(kit.getAddressOfKey(key).toString(), channel.getIncomingAddresses().get(0).getAddress());
+            assertTrue(wallet.hasKey(key));
+        }
+
+        // Channels that have incoming addresses already are left alone.
+        assertTrue(kit.savePaymentCodes(paymentCodes).isEmpty());
+        assertEquals(1, batches.size());
+    }
+
+    // A transaction paying to the given address from somewhere else.
+    private static Transaction createPayment(Address to) {
+        Transaction tx = new Transaction(MAINNET);
+        tx.addInput(Sha256Hash.of(to.getHash160()), 0, new ScriptBuilder().build());
+        tx.addOutput(Coin.COIN, to);
+        return tx;
+    }
+
+    @Test
+    public void findsChannelByIncomingAddress() throws Exception {
+        String paymentCode = createAccount().getStringPaymentCode();
+        BIP47Channel channel = kit.savePaymentCodes(Collections.singletonList(
+                new BIP47PaymentCode(paymentCode))).get(0);
+        Address address = kit.getAddressOfKey(kit.getReceiveKeyDeriver().deriveKey(paymentCode, 3));
+
+        // By either format, whichever the channel stores.
+        assertSame(channel, kit.getBip47MetaForAddress(address.toString()));
+        assertSame(channel, kit.getBip47MetaForAddress(address.toCash().toString()));
+        assertEquals(paymentCode, kit.getPaymentCodeForAddress(address.toCash().toString()));
+        assertTrue(kit.isToBIP47Address(createPayment(address)));
+    }
+
+    @Test
+    public void incomingAddressMiss() throws Exception {
+        kit.savePaymentCodes(Collections.singletonList(createAccount().getPaymentCode()));
+        Address other = Address.fromKey(MAINNET, new ECKey());
+        assertNull(kit.getBip47MetaForAddress(other.toString()));
+        assertNull(kit.getBip47MetaForAddress(other.toCash().toString()));
+        assertNull(kit.getBip47MetaForAddress("not an address"));
+        assertFalse(kit.isToBIP47Address(createPayment(other)));
+        assertFalse(kit.generateNewBip47IncomingAddress(other.toString()));
+    }
+
+    @Test
+    public void incomingIndexMovesForward() throws Exception {
+        String paymentCode = createAccount().getStringPaymentCode();
+        BIP47Channel channel = kit.savePaymentCodes(Collections.singletonList(
+                new BIP47PaymentCode(paymentCode))).get(0);
+        int last = BIP47Channel.LOOKAHEAD - 1;
+        assertEquals(last, channel.getCurrentIncomingIndex());
+        ECKey next = kit.getReceiveKeyDeriver().deriveKey(paymentCode, last + 1);
+        Address nextAddress = kit.getAddressOfKey(next);
+        assertNull(kit.getBip47MetaForAddress(nextAddress.toString()));
+
+        // A payment to the last lookahead address derives the key after it.
+        String lastAddress = channel.getIncomingAddresses().get(last).getAddress();
+        assertTrue(kit.generateNewBip47IncomingAddress(lastAddress));
+        assertEquals(last + 1, channel.getCurrentIncomingIndex());
+        assertTrue(wallet.hasKey(next));
+        assertSame(channel, kit.getBip47MetaForAddress(nextAddress.toCash().toString()));
+        assertTrue(kit.isToBIP47Address(createPayment(nextAddress)));
+        // An address is only seen once.
+        assertFalse(kit.generateNewBip47IncomingAddress(lastAddress));
+        assertEquals(last + 1, channel.getCurrentIncomingIndex());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.HashHelper;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class NetHelperTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+    private static final int CASH_ACCOUNT_GENESIS = 563620;
+    private static final String BLOCK_HASH = "000000000000000002d6a0ac7bee4fb5f0dc6c01de0c7fa1b1a2ae6a2e4e9e1e";
+
+    private HttpServer server;
+    private String baseUrl;
+    private NetHelper netHelper;
+    // The responses of the stand-in servers by path, anything else is answered with 404.
+    private final Map<String, String> responses = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requests.putIfAbsent(path, new AtomicInteger());
+                requests.get(path).incrementAndGet();
+                String response = responses.get(path);
+                byte[] body = (response != null ? response : "").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(response != null ? 200 : 404, body.length > 0 ? body.length : -1);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        netHelper = new NetHelper(new RestClient(RestClient.createHttpClient(4, 4)),
+                new String[]{baseUrl + "/cashacct"}, new String[]{baseUrl + "/details/"});
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    // A Cash Account registration paying to the given P2PKH hash.
+    private static Transaction createRegistration(String name, byte[] hash160) {
+        Transaction tx = new Transaction(MAINNET);
+        tx.addInput(Sha256Hash.of(name.getBytes(StandardCharsets.UTF_8)), 0, new ScriptBuilder().build());
+        byte[] payment = new byte[hash160.length + 1];
+        payment[0] = 0x01;
+        System.arraycopy(hash160, 0, payment, 1, hash160.length);
+        tx.addOutput(Coin.ZERO, new ScriptBuilder().op(ScriptOpCodes.OP_RETURN)
+                .data(Utils.HEX.decode("01010101"))
+                .data(name.getBytes(StandardCharsets.UTF_8))
+                .data(payment)
+                .build());
+        return tx;
+    }
+
+    private int requestCount(String path) {
+        AtomicInteger count = requests.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+    @Test
+    public void getCashAccountAddress() throws Exception {
+        byte[] hash160 = new ECKey().getPubKeyHash();
+        String address = CashAddress.fromP2PKHHash(MAINNET, hash160).toString();
+        Transaction registration = createRegistration("satoshi", hash160);
+        String txId = registration.getTxId().toString();
+        responses.put("/cashacct/lookup/100/satoshi", "{\"results\":[{\"transaction\":\""
+                + Utils.HEX.encode(registration.bitcoinSerialize()) + "\"}]}");
+        responses.put("/details/" + txId, "{\"blockheight\":" + (CASH_ACCOUNT_GENESIS + 100)
+                + ",\"blockhash\":\"" + BLOCK_HASH + "\"}");
+        String collision = new HashHelper().getCashAccountCollision(BLOCK_HASH, txId);
+        responses.put("/cashacct/account/100/satoshi/" + collision,
+                "{\"information\":{\"payment\":[{\"address\":\"" + address + "\"}]}}");
+
+        assertEquals(address, netHelper.getCashAccountAddress(MAINNET, "satoshi#100"));
+        // The height and the block hash come from one response.
+        assertEquals(1, requestCount("/details/" + txId));
+
+        // The registration is cached, the explorer is asked again as the block may have changed.
+        assertEquals(address, netHelper.getCashAccountAddress(MAINNET, "satoshi#100"));
+        assertEquals(1, requestCount("/cashacct/lookup/100/satoshi"));
+        assertEquals(2, requestCount("/details/" + txId));
+    }
+
+    @Test
+    public void cashAccountNotFound() throws Exception {
+        assertEquals("Cash Account not found.", netHelper.getCashAccountAddress(MAINNET, "nobody#100"));
+        assertEquals(1, requestCount("/cashacct/lookup/100/nobody"));
+    }
+
+    @Test
+    public void cashAccountAtOtherHeight() throws Exception {
+        byte[] hash160 = new ECKey().getPubKeyHash();
+        Transaction registration = createRegistration("satoshi", hash160);
+        responses.put("/cashacct/lookup/100/satoshi", "{\"results\":[{\"transaction\":\""
+                + Utils.HEX.encode(registration.bitcoinSerialize()) + "\"}]}");
+        responses.put("/details/" + registration.getTxId(), "{\"blockheight\":" + (CASH_ACCOUNT_GENESIS + 101)
+                + ",\"blockhash\":\"" + BLOCK_HASH + "\"}");
+        assertEquals("Unexpected Cash Account. Server possibly hacked.",
+                netHelper.getCashAccountAddress(MAINNET, "satoshi#100"));
+    }
+}
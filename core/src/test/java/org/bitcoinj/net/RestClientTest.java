@@ -0,0 +1,131 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RestClientTest {
+    private static final int PARALLEL_REQUESTS = 4;
+
+    private HttpServer server;
+    private String baseUrl;
+    private RestClient client;
+    private final AtomicInteger requests = new AtomicInteger();
+    // Released once as many requests as the client may send to one host are waiting on the server at once.
+    private final CountDownLatch parallel = new CountDownLatch(PARALLEL_REQUESTS);
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/parallel/")) {
+                    parallel.countDown();
+                    try {
+                        parallel.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                int status = path.equals("/missing") ? 404 : 200;
+                byte[] body = ("{\"path\":\"" + path + "\"}").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        client = new RestClient(RestClient.createHttpClient(PARALLEL_REQUESTS, PARALLEL_REQUESTS));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void get() throws Exception {
+        assertEquals("{\"path\":\"/tx\"}", client.get(baseUrl + "/tx", false).get());
+        assertEquals("/tx", client.getJson(baseUrl + "/tx", false).get().getString("path"));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void cache() throws Exception {
+        client.get(baseUrl + "/tx", true).get();
+        assertEquals("/tx", client.getJsonOrNull(baseUrl + "/tx", true).getString("path"));
+        assertEquals(1, requests.get());
+        // Responses that may change are always fetched.
+        client.get(baseUrl + "/tx", false).get();
+        assertEquals(2, requests.get());
+        client.clearCache();
+        client.get(baseUrl + "/tx", true).get();
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void failure() throws Exception {
+        try {
+            client.get(baseUrl + "/missing", true).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertNull(client.getJsonOrNull(baseUrl + "/missing", true));
+        // Failures aren't cached.
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        // Each request only completes once all of them reached the server.
+        List<ListenableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < PARALLEL_REQUESTS; i++)
+            futures.add(client.get(baseUrl + "/parallel/" + i, true));
+        for (int i = 0; i < PARALLEL_REQUESTS; i++)
+            assertEquals("{\"path\":\"/parallel/" + i + "\"}", futures.get(i).get(10, TimeUnit.SECONDS));
+        assertEquals(0, parallel.getCount());
+    }
+}
@@ -233,6 +233,64 @@ public class ScriptTest {
         assertEquals("OP_0 push length", 0, stack.get(0).length);
     }
 
+    @Test
+    public void numberEncoding() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = i < 1000 ? i - 500 : random.nextInt() >> random.nextInt(32);
+            byte[] expected = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false));
+            assertArrayEquals(String.valueOf(value), expected, Script.encodeNumber(value));
+            if (expected.length <= 5)
+                assertEquals(value, Script.castToLong(expected, 5, true));
+        }
+        // Negative zero and non-minimal encodings still decode like Bitcoin Core.
+        assertEquals(0, Script.castToLong(new byte[] { (byte) 0x80 }, 4, false));
+        assertEquals(-1, Script.castToLong(new byte[] { 1, 0, (byte) 0x80 }, 4, false));
+        assertEquals(-2147483647L, Script.castToLong(HEX.decode("ffffffff"), 4, true));
+    }
+
+    @Test
+    public void standardTemplateSpends() {
+        ECKey key1 = new ECKey(), key2 = new ECKey(), key3 = new ECKey();
+        Coin value = Coin.COIN;
+
+        Script p2pkh = ScriptBuilder.createP2PKHOutputScript(key1);
+        Transaction tx = buildSpendingTransaction(buildCreditingTransaction(p2pkh), new Script(new byte[0]));
+        TransactionSignature sig = tx.calculateWitnessSignature(0, key1, p2pkh.getProgram(), value, SigHash.ALL, false);
+        ScriptBuilder.createInputScript(sig, key1).correctlySpends(tx, 0, p2pkh, value, Script.ALL_VERIFY_FLAGS);
+        try {
+            ScriptBuilder.createInputScript(sig, key2).correctlySpends(tx, 0, p2pkh, value, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_EQUALVERIFY, e.getError());
+        }
+
+        Script p2pk = ScriptBuilder.createP2PKOutputScript(key1);
+        sig = tx.calculateWitnessSignature(0, key1, p2pk.getProgram(), value, SigHash.ALL, false);
+        ScriptBuilder.createInputScript(sig).correctlySpends(tx, 0, p2pk, value, Script.ALL_VERIFY_FLAGS);
+        try {
+            ScriptBuilder.createInputScript(sig).correctlySpends(tx, 0, p2pk, Coin.CENT, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, e.getError());
+        }
+
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, ImmutableList.of(key1, key2, key3));
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        TransactionSignature sig1 = tx.calculateWitnessSignature(0, key1, redeemScript.getProgram(), value, SigHash.ALL, false);
+        TransactionSignature sig3 = tx.calculateWitnessSignature(0, key3, redeemScript.getProgram(), value, SigHash.ALL, false);
+        ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(sig1, sig3), redeemScript)
+                .correctlySpends(tx, 0, p2sh, value, Script.ALL_VERIFY_FLAGS);
+        try {
+            // Signatures must be in the same order as the keys.
+            ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(sig3, sig1), redeemScript)
+                    .correctlySpends(tx, 0, p2sh, value, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, e.getError());
+        }
+    }
+
     private Script parseScriptString(String string) throws IOException {
         String[] words = string.split("[ \\t\\n]");
 
@@ -0,0 +1,125 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+public class ScriptValidationCacheTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private final ScriptValidationCache cache = ScriptValidationCache.get();
+    private final ECKey key = new ECKey();
+    private final Coin value = Coin.COIN;
+    private Script scriptPubKey;
+    private Transaction tx;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(UNITTEST));
+        cache.clear();
+        scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+        Transaction funding = new Transaction(UNITTEST);
+        funding.addOutput(value, scriptPubKey);
+        tx = new Transaction(UNITTEST);
+        tx.addInput(funding.getOutput(0));
+        tx.addOutput(value.divide(2), ScriptBuilder.createP2PKHOutputScript(new ECKey()));
+        TransactionSignature sig = tx.calculateWitnessSignature(0, key, scriptPubKey.getProgram(), value,
+                SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(sig, key));
+    }
+
+    @After
+    public void tearDown() {
+        cache.setEnabled(true);
+        cache.clear();
+    }
+
+    private void verify(Transaction tx, EnumSet<VerifyFlag> flags) {
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, value, flags);
+    }
+
+    @Test
+    public void secondVerificationHitsCache() {
+        verify(tx, Script.ALL_VERIFY_FLAGS);
+        assertEquals(0, cache.getScriptHits());
+        assertEquals(1, cache.getScriptMisses());
+        assertEquals(1, cache.getSignatureMisses());
+
+        // The same transaction as received again, e.g. in a block.
+        Transaction copy = UNITTEST.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        verify(copy, Script.ALL_VERIFY_FLAGS);
+        assertEquals(1, cache.getScriptHits());
+        assertEquals(1, cache.getSignatureMisses());
+        assertEquals(0.5, cache.getScriptHitRate(), 0);
+    }
+
+    @Test
+    public void differentFlagsStillHitSignatureCache() {
+        verify(tx, Script.ALL_VERIFY_FLAGS);
+        verify(tx, EnumSet.of(VerifyFlag.P2SH));
+        assertEquals(0, cache.getScriptHits());
+        assertEquals(2, cache.getScriptMisses());
+        assertEquals(1, cache.getSignatureHits());
+        assertEquals(1, cache.getSignatureMisses());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        Script wrongScriptPubKey = ScriptBuilder.createP2PKHOutputScript(new ECKey());
+        for (int i = 0; i < 2; i++) {
+            try {
+                tx.getInput(0).getScriptSig().correctlySpends(tx, 0, wrongScriptPubKey, value, Script.ALL_VERIFY_FLAGS);
+                fail();
+            } catch (ScriptException e) {
+                assertEquals(ScriptError.SCRIPT_ERR_EQUALVERIFY, e.getError());
+            }
+        }
+        assertEquals(0, cache.getScriptHits());
+
+        // A different value changes the signature hash, so the signature must not verify.
+        for (int i = 0; i < 2; i++) {
+            try {
+                tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, Coin.CENT, Script.ALL_VERIFY_FLAGS);
+                fail();
+            } catch (ScriptException e) {
+                assertEquals(ScriptError.SCRIPT_ERR_EVAL_FALSE, e.getError());
+            }
+        }
+        assertEquals(0, cache.getScriptHits());
+        assertEquals(0, cache.getSignatureHits());
+    }
+
+    @Test
+    public void disabled() {
+        cache.setEnabled(false);
+        verify(tx, Script.ALL_VERIFY_FLAGS);
+        verify(tx, Script.ALL_VERIFY_FLAGS);
+        assertEquals(0, cache.getScriptHits() + cache.getScriptMisses());
+        assertEquals(0, cache.getSignatureHits() + cache.getSignatureMisses());
+    }
+}
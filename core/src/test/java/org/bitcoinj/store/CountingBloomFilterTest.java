@@ -0,0 +1,150 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CountingBloomFilterTest {
+    private static final byte[] TAG = Sha256Hash.of(new byte[] { 1 }).getBytes();
+    private static final byte[] OTHER_TAG = Sha256Hash.of(new byte[] { 2 }).getBytes();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("countingbloomfilter", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static List<byte[]> hashes(int count, int seed) {
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            hashes.add(Sha256Hash.of(new byte[] { (byte) seed, (byte) i, (byte) (i >> 8) }).getBytes());
+        return hashes;
+    }
+
+    @Test
+    public void addAndRemove() throws Exception {
+        CountingBloomFilter filter = CountingBloomFilter.create(file, 1000);
+        List<byte[]> added = hashes(1000, 0);
+        for (byte[] hash : added)
+            filter.add(hash);
+        for (byte[] hash : added)
+            assertTrue(filter.mightContain(hash));
+        assertEquals(1000, filter.getEntries());
+
+        int falsePositives = 0;
+        for (byte[] hash : hashes(1000, 1))
+            if (filter.mightContain(hash))
+                falsePositives++;
+        assertTrue(falsePositives < 50);
+
+        // Removing half of the entries must not affect the others.
+        for (byte[] hash : added.subList(0, 500))
+            filter.remove(hash);
+        for (byte[] hash : added.subList(500, 1000))
+            assertTrue(filter.mightContain(hash));
+        assertEquals(500, filter.getEntries());
+        int removedStillPresent = 0;
+        for (byte[] hash : added.subList(0, 500))
+            if (filter.mightContain(hash))
+                removedStillPresent++;
+        assertTrue(removedStillPresent < 25);
+        filter.close(TAG);
+    }
+
+    @Test
+    public void sameHashAddedTwice() throws Exception {
+        CountingBloomFilter filter = CountingBloomFilter.create(file, 10);
+        byte[] hash = hashes(1, 0).get(0);
+        filter.add(hash);
+        filter.add(hash);
+        filter.remove(hash);
+        assertTrue(filter.mightContain(hash));
+        filter.remove(hash);
+        assertFalse(filter.mightContain(hash));
+        filter.close(TAG);
+    }
+
+    @Test
+    public void saturatedCountersStay() throws Exception {
+        CountingBloomFilter filter = CountingBloomFilter.create(file, 10);
+        byte[] hash = hashes(1, 0).get(0);
+        for (int i = 0; i < 20; i++)
+            filter.add(hash);
+        for (int i = 0; i < 20; i++)
+            filter.remove(hash);
+        // After an overflow the real count is unknown, so the entry must never appear to be gone.
+        assertTrue(filter.mightContain(hash));
+        filter.close(TAG);
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        CountingBloomFilter filter = CountingBloomFilter.create(file, 100);
+        List<byte[]> added = hashes(100, 0);
+        for (byte[] hash : added)
+            filter.add(hash);
+        filter.close(TAG);
+
+        filter = CountingBloomFilter.open(file, TAG);
+        assertNotNull(filter);
+        assertEquals(100, filter.getEntries());
+        assertEquals(100, filter.getCapacity());
+        for (byte[] hash : added)
+            assertTrue(filter.mightContain(hash));
+        filter.close(TAG);
+    }
+
+    @Test
+    public void reopenWithDifferentTag() throws Exception {
+        CountingBloomFilter.create(file, 100).close(TAG);
+        assertNull(CountingBloomFilter.open(file, OTHER_TAG));
+    }
+
+    @Test
+    public void notClosedIsNotReused() throws Exception {
+        CountingBloomFilter.create(file, 100).close(TAG);
+        CountingBloomFilter filter = CountingBloomFilter.open(file, TAG);
+        assertNotNull(filter);
+        // As if the process died without closing the filter.
+        assertNull(CountingBloomFilter.open(file, TAG));
+        filter.close(TAG);
+        filter = CountingBloomFilter.open(file, TAG);
+        assertNotNull(filter);
+        filter.close(TAG);
+    }
+
+    @Test
+    public void missingFile() throws Exception {
+        assertNull(CountingBloomFilter.open(file, TAG));
+    }
+}
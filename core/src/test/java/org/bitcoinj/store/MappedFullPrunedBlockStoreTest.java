@@ -0,0 +1,282 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedFullPrunedBlockStoreTest {
+    private static NetworkParameters UNITTEST;
+    private static final int SEGMENT_SIZE = 4096;
+
+    private final List<File> directories = new ArrayList<>();
+    private File directory;
+    private Script script;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Utils.resetMocking();
+        UNITTEST = UnitTestParams.get();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        directory = newDirectory();
+        script = ScriptBuilder.createP2PKHOutputScript(new ECKey());
+    }
+
+    @After
+    public void tearDown() {
+        for (File dir : directories) {
+            File[] files = dir.listFiles();
+            if (files != null)
+                for (File f : files)
+                    f.delete();
+            dir.delete();
+        }
+    }
+
+    private File newDirectory() throws IOException {
+        File dir = Files.createTempDirectory("mappedfullprunedblockstore").toFile();
+        directories.add(dir);
+        return dir;
+    }
+
+    private MappedFullPrunedBlockStore open(File dir) throws BlockStoreException {
+        return new MappedFullPrunedBlockStore(UNITTEST, dir, 10, SEGMENT_SIZE);
+    }
+
+    private UTXO utxo(int tx, int index) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) tx, (byte) (tx >> 8) }), index, Coin.valueOf(tx, index), 1,
+                false, script);
+    }
+
+    // Copies the files a store has written so far, as if the process had died.
+    private File copyWithoutClosing(MappedFullPrunedBlockStore store) throws IOException {
+        File copy = newDirectory();
+        // Holding the lock of the store keeps compaction from deleting segments while they are copied.
+        synchronized (store) {
+            for (File f : directory.listFiles())
+                if (f.getName().startsWith("segment-"))
+                    Files.copy(f.toPath(), new File(copy, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return copy;
+    }
+
+    @Test
+    public void newStore() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getVerifiedChainHead());
+        assertNotNull(store.getUndoBlock(genesis.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(Address.fromKey(UNITTEST, new ECKey()))
+                .cloneAsHeader());
+        store.beginDatabaseBatchWrite();
+        store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(),
+                new TransactionOutputChanges(Collections.singletonList(utxo(1, 0)), new ArrayList<UTXO>())));
+        store.addUnspentTransactionOutput(utxo(1, 0));
+        store.addUnspentTransactionOutput(utxo(1, 1));
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(utxo(1, 1));
+        store.close();
+
+        store = open(directory);
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(utxo(1, 0), store.getTransactionOutput(utxo(1, 0).getHash(), 0));
+        assertNull(store.getTransactionOutput(utxo(1, 1).getHash(), 1));
+        assertTrue(store.hasUnspentOutputs(utxo(1, 0).getHash(), 2));
+        StoredUndoableBlock undo = store.getUndoBlock(b1.getHeader().getHash());
+        assertEquals(Collections.singletonList(utxo(1, 0)), undo.getTxOutChanges().txOutsCreated);
+        store.close();
+    }
+
+    @Test
+    public void abortedBatch() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        store.addUnspentTransactionOutput(utxo(1, 0));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(utxo(1, 0));
+        store.addUnspentTransactionOutput(utxo(2, 0));
+        assertNull(store.getTransactionOutput(utxo(1, 0).getHash(), 0));
+        assertNotNull(store.getTransactionOutput(utxo(2, 0).getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(utxo(1, 0).getHash(), 0));
+        assertNull(store.getTransactionOutput(utxo(2, 0).getHash(), 0));
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void removeMissingOutput() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        try {
+            store.removeUnspentTransactionOutput(utxo(1, 0));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void rebuildIndexAfterCrash() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        for (int i = 0; i < 200; i++)
+            store.addUnspentTransactionOutput(utxo(i, 0));
+        for (int i = 0; i < 100; i++)
+            store.removeUnspentTransactionOutput(utxo(i, 0));
+        File copy = copyWithoutClosing(store);
+        store.close();
+
+        MappedFullPrunedBlockStore recovered = open(copy);
+        for (int i = 0; i < 200; i++)
+            assertEquals(i >= 100, recovered.hasUnspentOutputs(utxo(i, 0).getHash(), 1));
+        recovered.close();
+    }
+
+    @Test
+    public void damagedBatchIsDropped() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        store.addUnspentTransactionOutput(utxo(1, 0));
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(utxo(2, 0));
+        store.addUnspentTransactionOutput(utxo(3, 0));
+        store.commitDatabaseBatchWrite();
+        File copy = copyWithoutClosing(store);
+        store.close();
+
+        // Damage the last byte written, which belongs to the commit record of the batch.
+        File segment = null;
+        for (File f : copy.listFiles())
+            if (segment == null || f.getName().compareTo(segment.getName()) > 0)
+                segment = f;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long last = file.length() - 1;
+            while (last > 0) {
+                file.seek(last);
+                if (file.read() != 0)
+                    break;
+                last--;
+            }
+            file.seek(last);
+            int b = file.read();
+            file.seek(last);
+            file.write(b ^ 1);
+        }
+
+        MappedFullPrunedBlockStore recovered = open(copy);
+        assertNotNull(recovered.getTransactionOutput(utxo(1, 0).getHash(), 0));
+        assertNull(recovered.getTransactionOutput(utxo(2, 0).getHash(), 0));
+        assertNull(recovered.getTransactionOutput(utxo(3, 0).getHash(), 0));
+        // Appending continues after the last intact batch.
+        recovered.addUnspentTransactionOutput(utxo(4, 0));
+        recovered.close();
+        recovered = open(copy);
+        assertNotNull(recovered.getTransactionOutput(utxo(4, 0).getHash(), 0));
+        assertNull(recovered.getTransactionOutput(utxo(3, 0).getHash(), 0));
+        recovered.close();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        for (int round = 0; round < 20; round++) {
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < 50; i++)
+                store.addUnspentTransactionOutput(utxo(round * 50 + i, 0));
+            store.commitDatabaseBatchWrite();
+            // Spend all but one output of each round.
+            store.beginDatabaseBatchWrite();
+            for (int i = 1; i < 50; i++)
+                store.removeUnspentTransactionOutput(utxo(round * 50 + i, 0));
+            store.commitDatabaseBatchWrite();
+        }
+        store.compact();
+        int segments = 0;
+        for (File f : directory.listFiles())
+            if (f.getName().startsWith("segment-"))
+                segments++;
+        // 1000 outputs of about 80 bytes were written, but only 20 remain.
+        assertTrue("segments: " + segments, segments <= 4);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i % 50 == 0, store.hasUnspentOutputs(utxo(i, 0).getHash(), 1));
+        store.close();
+
+        store = open(directory);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i % 50 == 0, store.hasUnspentOutputs(utxo(i, 0).getHash(), 1));
+        store.close();
+    }
+
+    @Test
+    public void pruneUndoBlocks() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        StoredBlock block = store.getChainHead();
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            block = block.build(block.getHeader().createNextBlock(Address.fromKey(UNITTEST, new ECKey()))
+                    .cloneAsHeader());
+            store.beginDatabaseBatchWrite();
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new ArrayList<Transaction>()));
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+            blocks.add(block);
+        }
+        // With a depth of 10, undo data is kept for the blocks above height 5.
+        for (StoredBlock b : blocks) {
+            Sha256Hash hash = b.getHeader().getHash();
+            assertEquals(b.getHeight() > 5, store.getUndoBlock(hash) != null);
+            assertEquals(b, store.getOnceUndoableStoredBlock(hash));
+        }
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void lockedDirectory() throws Exception {
+        MappedFullPrunedBlockStore store = open(directory);
+        try {
+            open(directory);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class UTXOSnapshotTest {
+    private static NetworkParameters UNITTEST;
+
+    private MemoryFullPrunedBlockStore source;
+    private List<StoredBlock> blocks;
+    private List<UTXO> outputs;
+    private File directory;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Utils.resetMocking();
+        UNITTEST = UnitTestParams.get();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST));
+        source = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        blocks = new ArrayList<>();
+        outputs = new ArrayList<>();
+        StoredBlock block = source.getChainHead();
+        for (int i = 0; i < 20; i++) {
+            block = block.build(block.getHeader().createNextBlock(Address.fromKey(UNITTEST, new ECKey()))
+                    .cloneAsHeader());
+            source.put(block, new StoredUndoableBlock(block.getHeader().getHash(), new ArrayList<Transaction>()));
+            source.setVerifiedChainHead(block);
+            blocks.add(block);
+            UTXO output = new UTXO(Sha256Hash.of(new byte[] { (byte) i }), i % 3, Coin.valueOf(i + 1), i + 1,
+                    i % 2 == 0, ScriptBuilder.createP2PKHOutputScript(new ECKey()));
+            source.addUnspentTransactionOutput(output);
+            outputs.add(output);
+        }
+        directory = Files.createTempDirectory("utxosnapshot").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    private byte[] write(FullPrunedBlockStore store, int headers) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UTXOSnapshot.write(store, headers, bos);
+        return bos.toByteArray();
+    }
+
+    private static Set<UTXO> unspentOutputs(FullPrunedBlockStore store) throws BlockStoreException {
+        final Set<UTXO> result = new HashSet<>();
+        store.visitUnspentOutputs(new FullPrunedBlockStore.UnspentOutputVisitor() {
+            @Override
+            public void visit(UTXO output) {
+                assertTrue(result.add(output));
+            }
+        });
+        return result;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] bytes = write(source, 5);
+        StoredBlock head = blocks.get(blocks.size() - 1);
+
+        for (FullPrunedBlockStore target : new FullPrunedBlockStore[] {
+                new MemoryFullPrunedBlockStore(UNITTEST, 10), new MappedFullPrunedBlockStore(UNITTEST, directory, 10) }) {
+            UTXOSnapshot snapshot = UTXOSnapshot.read(target, new ByteArrayInputStream(bytes));
+            assertEquals(head, snapshot.getBaseBlock());
+            assertEquals(outputs.size(), snapshot.getOutputCount());
+            assertEquals(head, target.getChainHead());
+            assertEquals(head, target.getVerifiedChainHead());
+            assertEquals(new HashSet<>(outputs), unspentOutputs(target));
+
+            // The base block can be built on, but not disconnected. The headers before it are there for the
+            // difficulty rules only.
+            assertEquals(head, target.getOnceUndoableStoredBlock(head.getHeader().getHash()));
+            assertNull(target.getUndoBlock(head.getHeader().getHash()));
+            for (StoredBlock block : blocks.subList(blocks.size() - 6, blocks.size() - 1)) {
+                assertEquals(block, target.get(block.getHeader().getHash()));
+                assertNull(target.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+            }
+            assertNull(target.get(blocks.get(blocks.size() - 7).getHeader().getHash()));
+
+            // Writing it again gives the same set hash, whatever order the store keeps the outputs in.
+            assertEquals(snapshot.getHash(), UTXOSnapshot.verify(UNITTEST, new ByteArrayInputStream(write(target, 0)))
+                    .getHash());
+            target.close();
+        }
+    }
+
+    @Test
+    public void hashDependsOnOutputs() throws Exception {
+        Sha256Hash before = UTXOSnapshot.verify(UNITTEST, new ByteArrayInputStream(write(source, 0))).getHash();
+        source.removeUnspentTransactionOutput(outputs.get(3));
+        Sha256Hash after = UTXOSnapshot.verify(UNITTEST, new ByteArrayInputStream(write(source, 0))).getHash();
+        assertNotEquals(before, after);
+    }
+
+    @Test
+    public void muHash() throws Exception {
+        // The elements of the MuHash3072 test in Bitcoin Core: 32 bytes, the first of which is 0, 1 and 2.
+        byte[] zero = new byte[32], one = new byte[32], two = new byte[32];
+        one[0] = 1;
+        two[0] = 2;
+        UTXOSnapshot.SetHasher hasher = new UTXOSnapshot.SetHasher();
+        // The empty set is the number 1.
+        byte[] emptySet = new byte[384];
+        emptySet[0] = 1;
+        assertEquals(Sha256Hash.of(emptySet), hasher.getMuHash());
+        hasher.add(zero);
+        hasher.add(one);
+        assertEquals("47c63ab4f6dd0635ca62f50b2ef9189157b9e53416d6c3e6f383a715aac6969c", hasher.getMuHash().toString());
+        UTXOSnapshot.SetHasher reordered = new UTXOSnapshot.SetHasher();
+        reordered.add(one);
+        reordered.add(zero);
+        assertEquals(hasher.getMuHash(), reordered.getMuHash());
+        hasher.add(two);
+        assertNotEquals(reordered.getMuHash(), hasher.getMuHash());
+    }
+
+    @Test
+    public void corruptSnapshot() throws Exception {
+        byte[] bytes = write(source, 0);
+        // Flip a bit in the middle of the outputs.
+        bytes[bytes.length - 200] ^= 1;
+        MemoryFullPrunedBlockStore target = new MemoryFullPrunedBlockStore(UNITTEST, 10);
+        try {
+            UTXOSnapshot.read(target, new ByteArrayInputStream(bytes));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        // The store was not moved to the snapshot.
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), target.getVerifiedChainHead().getHeader().getHash());
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), target.getChainHead().getHeader().getHash());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshot() throws Exception {
+        byte[] bytes = write(source, 0);
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        UTXOSnapshot.verify(UNITTEST, new ByteArrayInputStream(truncated));
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongNetwork() throws Exception {
+        UTXOSnapshot.verify(MainNetParams.get(), new ByteArrayInputStream(write(source, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void storeNotEmpty() throws Exception {
+        UTXOSnapshot.read(source, new ByteArrayInputStream(write(source, 0)));
+    }
+}
@@ -180,6 +180,7 @@ public class TestWithNetworkConnections {
         writeTarget.sendMessage(new VersionAck());
         try {
             checkState(writeTarget.nextMessageBlocking() instanceof VersionMessage);
+            checkState(writeTarget.nextMessageBlocking() instanceof SendAddrV2Message);
             checkState(writeTarget.nextMessageBlocking() instanceof VersionAck);
             peer.getVersionHandshakeFuture().get();
             synchronized (doneConnecting) {
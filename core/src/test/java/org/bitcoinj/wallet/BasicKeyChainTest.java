@@ -26,6 +26,7 @@ import org.bitcoinj.crypto.KeyCrypterException;
 import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.AbstractKeyChainEventListener;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -167,6 +168,28 @@ public class BasicKeyChainTest {
         key.getPrivKeyBytes();
     }
 
+    @Test
+    public void encryptDecryptManyKeys() {
+        // Enough keys for the work to be split into batches.
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            keys.add(new ECKey());
+        chain.importKeys(keys);
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = keyCrypter.deriveKey("foobar");
+        BasicKeyChain encrypted = chain.toEncrypted(keyCrypter, aesKey);
+        List<ECKey> encryptedKeys = encrypted.getKeys();
+        assertEquals(keys.size(), encryptedKeys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertArrayEquals(keys.get(i).getPubKey(), encryptedKeys.get(i).getPubKey());
+            assertTrue(encryptedKeys.get(i).isEncrypted());
+        }
+        BasicKeyChain decrypted = encrypted.toDecrypted(aesKey);
+        List<ECKey> decryptedKeys = decrypted.getKeys();
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(keys.get(i), decryptedKeys.get(i));
+    }
+
     @Test(expected = KeyCrypterException.class)
     public void cannotImportEncryptedKey() {
         final ECKey key1 = new ECKey();
@@ -0,0 +1,172 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BlockFileRescanTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private MemoryBlockStore blockStore;
+    private Wallet wallet;
+    private File directory;
+    private List<Block> blocks;
+    private Transaction payment, p2pkPayment, p2pkSpend, latePayment;
+    private Block sideBlock;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        blockStore = new MemoryBlockStore(UNITTEST);
+        wallet = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        directory = Files.createTempDirectory("blocks").toFile();
+
+        // The same keys as the wallet, to pay keys the wallet doesn't look for yet.
+        Wallet other = Wallet.fromSeed(UNITTEST, wallet.getKeyChainSeed(), Script.ScriptType.P2PKH);
+        List<Address> addresses = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            addresses.add(other.freshReceiveAddress());
+        assertFalse(wallet.isPubKeyHashMine(addresses.get(9).getHash160(), Script.ScriptType.P2PKH));
+
+        blocks = new ArrayList<>();
+        blocks.add(UNITTEST.getGenesisBlock());
+        addBlock();
+        payment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, addresses.get(4));
+        addBlock(payment);
+        p2pkPayment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveKey());
+        addBlock(p2pkPayment);
+        // Spending a pay to pubkey output pushes no key, it is only found by its outpoint.
+        p2pkSpend = new Transaction(UNITTEST);
+        p2pkSpend.addInput(p2pkPayment.getOutput(0));
+        p2pkSpend.addOutput(COIN, Address.fromKey(UNITTEST, new ECKey()));
+        StoredBlock fork = blockStore.getChainHead();
+        addBlock(p2pkSpend);
+        latePayment = FakeTxBuilder.createFakeTx(UNITTEST, COIN, addresses.get(9));
+        addBlock(latePayment);
+        for (int i = 0; i < 3; i++)
+            addBlock();
+
+        // A shorter branch paying the wallet, which must be ignored.
+        StoredBlock head = blockStore.getChainHead();
+        sideBlock = FakeTxBuilder.createFakeBlock(blockStore, fork, fork.getHeight() + 1,
+                FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress())).block;
+        blockStore.setChainHead(head);
+
+        // The files hold the blocks out of order, like a node that downloaded them in parallel.
+        writeBlocks("blk00000.dat", blocks.get(0), blocks.get(1), blocks.get(5));
+        writeBlocks("blk00001.dat", blocks.get(3), sideBlock, blocks.get(2));
+        writeBlocks("blk00002.dat", blocks.get(4), blocks.get(6), blocks.get(8), blocks.get(7));
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    private void addBlock(Transaction... transactions) {
+        blocks.add(FakeTxBuilder.createFakeBlock(blockStore, blocks.size(), transactions).block);
+    }
+
+    private void writeBlocks(String name, Block... blocks) throws IOException {
+        try (OutputStream out = new FileOutputStream(new File(directory, name))) {
+            for (Block block : blocks) {
+                byte[] bytes = block.bitcoinSerialize();
+                Utils.uint32ToByteStreamBE(UNITTEST.getPacketMagic(), out);
+                Utils.uint32ToByteStreamLE(bytes.length, out);
+                out.write(bytes);
+            }
+        }
+    }
+
+    @Test
+    public void rescan() throws Exception {
+        final AtomicInteger files = new AtomicInteger();
+        BlockFileRescan rescan = new BlockFileRescan(UNITTEST, directory);
+        rescan.setProgressListener(new BlockFileRescan.ProgressListener() {
+            @Override
+            public void onFileScanned(int pass, int filesDone, int filesTotal, long blocks) {
+                assertEquals(3, filesTotal);
+                files.incrementAndGet();
+            }
+        });
+        StoredBlock tip = rescan.rescan(wallet);
+
+        assertEquals(blocks.get(8).getHash(), tip.getHeader().getHash());
+        assertEquals(8, wallet.getLastBlockSeenHeight());
+        assertEquals(blocks.get(8).getHash(), wallet.getLastBlockSeenHash());
+        // The late payment and the spend are only found on later passes.
+        assertTrue(files.get() > 3);
+        assertEquals(4, wallet.getTransactions(false).size());
+        assertEquals(COIN.add(COIN), wallet.getBalance());
+        assertNull(wallet.getTransaction(sideBlock.getTransactions().get(1).getTxId()));
+        assertEquals(7, wallet.getTransaction(payment.getTxId()).getConfidence().getDepthInBlocks());
+        assertEquals(4, wallet.getTransaction(latePayment.getTxId()).getConfidence().getDepthInBlocks());
+        assertEquals(ZERO, wallet.getTransaction(p2pkSpend.getTxId()).getValueSentToMe(wallet));
+    }
+
+    @Test
+    public void rescanToBlock() throws Exception {
+        BlockFileRescan rescan = new BlockFileRescan(UNITTEST, Arrays.asList(new File(directory, "blk00000.dat"),
+                new File(directory, "blk00001.dat"), new File(directory, "blk00002.dat")), 2);
+        StoredBlock tip = rescan.rescan(wallet, blocks.get(3).getHash());
+        assertEquals(3, tip.getHeight());
+        assertEquals(3, wallet.getLastBlockSeenHeight());
+        assertEquals(COIN.add(COIN), wallet.getBalance());
+        assertEquals(2, wallet.getTransactions(false).size());
+        assertEquals(2, wallet.getTransaction(payment.getTxId()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stopBlockMissing() throws Exception {
+        new BlockFileRescan(UNITTEST, directory).rescan(wallet, Sha256Hash.ZERO_HASH);
+    }
+
+    @Test
+    public void rescanReplacesHistory() throws Exception {
+        Transaction stale = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.freshReceiveAddress());
+        wallet.receivePending(stale, null);
+        new BlockFileRescan(UNITTEST, directory).rescan(wallet);
+        assertNull(wallet.getTransaction(stale.getTxId()));
+        assertEquals(COIN.add(COIN), wallet.getBalance());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.bitcoinj.wallet.selector.BranchAndBoundCoinSelector;
+import org.bitcoinj.wallet.selector.BranchAndBoundCoinSelector.FeeModel;
+import org.bitcoinj.wallet.selector.BranchAndBoundCoinSelector.Selection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest extends TestWithWallet {
+    private final Address OTHER_ADDRESS = Address.fromKey(UNITTEST, new ECKey());
+    private static final int INPUT_SIZE = 148;
+    private static final BranchAndBoundCoinSelector.InputSizer FIXED_INPUT_SIZE = new BranchAndBoundCoinSelector.InputSizer() {
+        @Override
+        public int getSpendingInputSize(TransactionOutput output) {
+            return INPUT_SIZE;
+        }
+    };
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private List<TransactionOutput> outputs(Coin... values) {
+        Transaction t = new Transaction(UNITTEST);
+        for (Coin value : values)
+            t.addOutput(value, myAddress);
+        t.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        return new ArrayList<>(t.getOutputs());
+    }
+
+    @Test
+    public void exactMatchWithoutChange() {
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.multiply(3), COIN.multiply(2), COIN);
+        Selection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(4), candidates, FeeModel.NONE);
+        assertEquals(COIN.multiply(4), selection.valueGathered);
+        assertTrue(selection.gathered.contains(candidates.get(1)));
+        assertTrue(selection.gathered.contains(candidates.get(3)));
+        assertEquals(ZERO, selection.change);
+        assertEquals(ZERO, selection.fee);
+    }
+
+    @Test
+    public void fallbackWithChange() {
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.multiply(3));
+        Selection selection = new BranchAndBoundCoinSelector().select(COIN.multiply(4), candidates, FeeModel.NONE);
+        assertEquals(1, selection.gathered.size());
+        assertTrue(selection.gathered.contains(candidates.get(0)));
+        assertEquals(COIN, selection.change);
+    }
+
+    @Test
+    public void feeComputedFromSize() {
+        FeeModel model = new FeeModel(Coin.valueOf(1000), ZERO, 10 + 34, 0, 34, Coin.valueOf(546), FIXED_INPUT_SIZE);
+        List<TransactionOutput> candidates = outputs(COIN.multiply(5), COIN.multiply(2), CENT);
+        Selection selection = new BranchAndBoundCoinSelector().select(COIN, candidates, model);
+        // No changeless solution, so the largest output is spent.
+        assertEquals(1, selection.gathered.size());
+        assertTrue(selection.gathered.contains(candidates.get(0)));
+        assertEquals(model.getSize(1, INPUT_SIZE, true), selection.size);
+        assertEquals(model.getFee(selection.size), selection.fee);
+        assertEquals(selection.valueGathered, COIN.add(selection.fee).add(selection.change));
+    }
+
+    @Test
+    public void smallExcessGoesToFee() {
+        // Spending the CENT output alone leaves an excess smaller than a change output would cost.
+        FeeModel model = new FeeModel(Coin.valueOf(1000), ZERO, 10 + 34, 0, 34, Coin.valueOf(546), FIXED_INPUT_SIZE);
+        List<TransactionOutput> candidates = outputs(COIN, CENT);
+        Coin target = CENT.subtract(Coin.valueOf(model.getSize(1, INPUT_SIZE, false) + 100));
+        Selection selection = new BranchAndBoundCoinSelector().select(target, candidates, model);
+        assertEquals(1, selection.gathered.size());
+        assertTrue(selection.gathered.contains(candidates.get(1)));
+        assertEquals(ZERO, selection.change);
+        assertEquals(CENT.subtract(target), selection.fee);
+    }
+
+    @Test
+    public void insufficient() {
+        FeeModel model = new FeeModel(Coin.valueOf(1000), ZERO, 10 + 34, 0, 34, Coin.valueOf(546), FIXED_INPUT_SIZE);
+        List<TransactionOutput> candidates = outputs(COIN);
+        Selection selection = new BranchAndBoundCoinSelector().select(COIN, candidates, model);
+        assertTrue(selection.getMissing(COIN).signum() > 0);
+        assertEquals(ZERO, new BranchAndBoundCoinSelector().select(CENT, candidates, model).getMissing(CENT));
+    }
+
+    @Test
+    public void completeTx() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN.multiply(2), myKey);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, myKey);
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addOutput(COIN.divide(2), OTHER_ADDRESS);
+        SendRequest req = SendRequest.forTx(tx);
+        req.coinSelector = BranchAndBoundCoinSelector.get();
+        req.feePerKb = Coin.valueOf(1000);
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getInputs().size());
+        assertEquals(2, req.tx.getOutputs().size());
+        Coin fee = req.tx.getFee();
+        assertTrue(fee.signum() > 0);
+        int size = req.tx.unsafeBitcoinSerialize().length;
+        assertTrue(fee.compareTo(req.feePerKb.multiply(size).divide(1000)) >= 0);
+    }
+}
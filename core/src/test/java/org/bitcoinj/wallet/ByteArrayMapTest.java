@@ -0,0 +1,121 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ByteArrayMapTest {
+    private final Random random = new Random(42);
+
+    private byte[] randomKey(int length) {
+        byte[] key = new byte[length];
+        random.nextBytes(key);
+        return key;
+    }
+
+    @Test
+    public void putGetRemove() {
+        ByteArrayMap<String> map = new ByteArrayMap<>();
+        byte[] key = randomKey(20);
+        assertNull(map.get(key));
+        assertNull(map.put(key, "a"));
+        assertEquals("a", map.get(key.clone()));
+        assertTrue(map.containsKey(key));
+        assertEquals("a", map.put(key, "b"));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(key));
+        assertNull(map.get(key));
+        assertNull(map.remove(key));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void keyIsCopied() {
+        ByteArrayMap<String> map = new ByteArrayMap<>();
+        byte[] key = randomKey(33);
+        map.put(key, "a");
+        byte[] original = key.clone();
+        key[0]++;
+        assertEquals("a", map.get(original));
+        assertNull(map.get(key));
+    }
+
+    @Test
+    public void shortKeys() {
+        ByteArrayMap<Integer> map = new ByteArrayMap<>();
+        for (int i = 0; i < 256; i++)
+            map.put(new byte[] { (byte) i }, i);
+        map.put(new byte[0], -1);
+        for (int i = 0; i < 256; i++)
+            assertEquals(Integer.valueOf(i), map.get(new byte[] { (byte) i }));
+        assertEquals(Integer.valueOf(-1), map.get(new byte[0]));
+        assertEquals(257, map.size());
+    }
+
+    @Test
+    public void manyKeysInInsertionOrder() {
+        ByteArrayMap<Integer> map = new ByteArrayMap<>();
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            byte[] key = randomKey(i % 2 == 0 ? 20 : 33);
+            keys.add(key);
+            map.put(key, i);
+        }
+        // Remove every third key, which also exercises compaction when the table is rebuilt.
+        for (int i = 0; i < keys.size(); i += 3)
+            assertEquals(Integer.valueOf(i), map.remove(keys.get(i)));
+        for (int i = 10000; i < 12000; i++) {
+            byte[] key = randomKey(20);
+            keys.add(key);
+            map.put(key, i);
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i < 10000 && i % 3 == 0) {
+                assertNull(map.get(keys.get(i)));
+            } else {
+                assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+                expected.add(i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, new ArrayList<>(map.values()));
+        int i = 0;
+        for (byte[] key : map.keys())
+            assertArrayEquals(keys.get(expected.get(i++)), key);
+        assertEquals(expected.size(), i);
+    }
+
+    @Test
+    public void clear() {
+        ByteArrayMap<String> map = new ByteArrayMap<>();
+        byte[] key = randomKey(20);
+        map.put(key, "a");
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(key));
+        assertFalse(map.values().iterator().hasNext());
+        map.put(key, "b");
+        assertEquals("b", map.get(key));
+    }
+}
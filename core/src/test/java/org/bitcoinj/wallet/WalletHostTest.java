@@ -0,0 +1,275 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletHostTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private MemoryBlockStore blockStore;
+    private BlockChain chain;
+    private WalletHost host;
+    private List<CountingWallet> wallets;
+    private File directory;
+
+    // Counts the blocks transactions it is asked to check.
+    private static class CountingWallet extends Wallet {
+        int received;
+
+        CountingWallet() {
+            super(UNITTEST, KeyChainGroup.builder(UNITTEST).fromRandom(Script.ScriptType.P2PKH).build());
+        }
+
+        @Override
+        public void receiveFromBlock(Transaction tx, StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                     int relativityOffset) throws VerificationException {
+            received++;
+            super.receiveFromBlock(tx, block, blockType, relativityOffset);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        blockStore = new MemoryBlockStore(UNITTEST);
+        chain = new BlockChain(UNITTEST, blockStore);
+        host = new WalletHost(chain, null, 1, TimeUnit.HOURS);
+        wallets = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            CountingWallet wallet = new CountingWallet();
+            host.addWallet(wallet, null);
+            wallets.add(wallet);
+        }
+        directory = Files.createTempDirectory("wallethost").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.resetMocking();
+        host.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    // Passes a block to the host the way AbstractBlockChain passes it to its listeners.
+    private void addBlock(Transaction... transactions) throws Exception {
+        FakeTxBuilder.BlockPair pair = FakeTxBuilder.createFakeBlock(blockStore,
+                blockStore.getChainHead().getHeight() + 1, transactions);
+        int offset = 0;
+        for (Transaction tx : transactions)
+            host.receiveFromBlock(tx, pair.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, offset++);
+        blockStore.setChainHead(pair.storedBlock);
+        host.notifyNewBestBlock(pair.storedBlock);
+    }
+
+    @Test
+    public void routesOnlyToOwners() throws Exception {
+        Wallet owner = wallets.get(1);
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST, COIN, owner.currentReceiveAddress());
+        addBlock(tx);
+        assertEquals(COIN, owner.getBalance());
+        assertEquals(1, wallets.get(1).received);
+        assertEquals(0, wallets.get(0).received);
+        assertEquals(0, wallets.get(2).received);
+        // Every wallet still follows the chain.
+        for (Wallet wallet : wallets)
+            assertEquals(blockStore.getChainHead().getHeight(), wallet.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void routesToSeveralOwners() throws Exception {
+        Wallet a = wallets.get(0), b = wallets.get(2);
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST, COIN, a.currentReceiveAddress());
+        tx.addOutput(COIN, b.currentReceiveAddress());
+        assertEquals(2, host.findOwners(tx).size());
+        addBlock(tx);
+        assertEquals(COIN, a.getBalance());
+        assertEquals(COIN, b.getBalance());
+        assertEquals(0, wallets.get(1).received);
+        // Each wallet got its own copy.
+        assertNotSame(a.getTransaction(tx.getTxId()), b.getTransaction(tx.getTxId()));
+    }
+
+    @Test
+    public void routesSpendsByOutPoint() throws Exception {
+        Wallet owner = wallets.get(0);
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST, COIN, owner.currentReceiveAddress());
+        addBlock(tx);
+        TransactionOutput ours = null;
+        for (TransactionOutput output : tx.getOutputs())
+            if (output.isMine(owner))
+                ours = output;
+
+        // A spend without any of our keys in it is found through the outpoint alone.
+        Transaction spend = new Transaction(UNITTEST);
+        spend.addInput(ours);
+        spend.addOutput(COIN, Address.fromKey(UNITTEST, new ECKey()));
+        assertEquals(Collections.<Wallet>singleton(owner), host.findOwners(spend));
+        addBlock(spend);
+        assertEquals(ZERO, owner.getBalance());
+    }
+
+    @Test
+    public void indexesNewKeysAndFilterIncrementally() throws Exception {
+        Wallet owner = wallets.get(2);
+        int count = host.getBloomFilterElementCount();
+        host.beginBloomFilterCalculation();
+        BloomFilter filter;
+        try {
+            filter = host.getBloomFilter(count + 100, 0.0001, 1234);
+        } finally {
+            host.endBloomFilterCalculation();
+        }
+
+        ECKey key = new ECKey();
+        owner.importKey(key);
+        assertEquals(count + 2, host.getBloomFilterElementCount());
+        host.beginBloomFilterCalculation();
+        try {
+            BloomFilter updated = host.getBloomFilter(count + 100, 0.0001, 1234);
+            // The key was inserted into the filter rather than rebuilding it.
+            assertSame(filter, updated);
+            assertTrue(updated.contains(key.getPubKeyHash()));
+            assertTrue(updated.contains(key.getPubKey()));
+        } finally {
+            host.endBloomFilterCalculation();
+        }
+
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST, COIN, Address.fromKey(UNITTEST, key));
+        addBlock(tx);
+        assertEquals(COIN, owner.getBalance());
+        assertEquals(1, wallets.get(2).received);
+    }
+
+    @Test
+    public void filterMatchesWalletFilters() throws Exception {
+        // The wallets must not be called between begin and end, as the host is locked then.
+        BloomFilter merged = new BloomFilter(1000, 0.0001, 42);
+        for (Wallet wallet : wallets)
+            merged.merge(wallet.getBloomFilter(1000, 0.0001, 42));
+        host.beginBloomFilterCalculation();
+        try {
+            assertEquals(merged, host.getBloomFilter(1000, 0.0001, 42));
+        } finally {
+            host.endBloomFilterCalculation();
+        }
+    }
+
+    @Test
+    public void pendingTransactions() throws Exception {
+        Wallet owner = wallets.get(0);
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST, COIN, owner.currentReceiveAddress());
+        host.onTransaction(null, tx);
+        assertEquals(COIN, owner.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertNull(wallets.get(1).getTransaction(tx.getTxId()));
+        // A filtered block may only name the hash of a transaction seen before, which is routed by the hash.
+        FakeTxBuilder.BlockPair pair = FakeTxBuilder.createFakeBlock(blockStore, 1, tx);
+        assertTrue(host.notifyTransactionIsInBlock(tx.getTxId(), pair.storedBlock,
+                AbstractBlockChain.NewBlockType.BEST_CHAIN, 0));
+        assertFalse(host.notifyTransactionIsInBlock(Sha256Hash.ZERO_HASH, pair.storedBlock,
+                AbstractBlockChain.NewBlockType.BEST_CHAIN, 1));
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING,
+                owner.getTransaction(tx.getTxId()).getConfidence().getConfidenceType());
+    }
+
+    @Test
+    public void removeWallet() throws Exception {
+        Wallet removed = wallets.get(1);
+        Address address = removed.currentReceiveAddress();
+        int count = host.getBloomFilterElementCount();
+        host.removeWallet(removed);
+        assertEquals(2, host.getWallets().size());
+        assertTrue(host.getBloomFilterElementCount() < count);
+        addBlock(FakeTxBuilder.createFakeTx(UNITTEST, COIN, address));
+        assertEquals(0, wallets.get(1).received);
+        assertEquals(ZERO, removed.getBalance());
+    }
+
+    @Test
+    public void indexesCompactedTransactionsWithoutInflating() throws Exception {
+        Wallet wallet = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        host.addWallet(wallet, null);
+        Transaction t1 = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress());
+        addBlock(t1);
+        TransactionOutput ours = null;
+        for (TransactionOutput output : t1.getOutputs())
+            if (output.isMine(wallet))
+                ours = output;
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(ours);
+        t2.addOutput(COIN, Address.fromKey(UNITTEST, new ECKey()));
+        addBlock(t2);
+        assertEquals(2, wallet.compactSettledTransactions(1));
+
+        host.removeWallet(wallet);
+        host.addWallet(wallet, null);
+        assertEquals(2, wallet.getCompactedTransactionCount());
+        // Found by the txid and by the outpoint it spends, without any of its keys in it.
+        assertEquals(Collections.singleton(wallet), host.findOwners(t2));
+        Transaction doubleSpend = new Transaction(UNITTEST);
+        doubleSpend.addInput(ours.getOutPointFor().getHash(), ours.getIndex(), new Script(new byte[0]));
+        doubleSpend.addOutput(COIN, Address.fromKey(UNITTEST, new ECKey()));
+        assertEquals(Collections.singleton(wallet), host.findOwners(doubleSpend));
+        assertEquals(2, wallet.getCompactedTransactionCount());
+    }
+
+    @Test
+    public void savesChangedWallets() throws Exception {
+        Wallet wallet = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        File file = new File(directory, "wallet");
+        host.addWallet(wallet, file);
+        Wallet unchanged = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        File unchangedFile = new File(directory, "unchanged");
+        host.addWallet(unchanged, unchangedFile);
+
+        Transaction tx = FakeTxBuilder.createFakeTx(UNITTEST, COIN, wallet.currentReceiveAddress());
+        addBlock(tx);
+        host.saveNow();
+        assertEquals(COIN, Wallet.loadFromFile(file).getBalance());
+        // Every wallet saw the block, so every wallet is saved.
+        assertEquals(blockStore.getChainHead().getHeight(), Wallet.loadFromFile(unchangedFile).getLastBlockSeenHeight());
+
+        // Nothing is saved when nothing changed.
+        assertTrue(file.delete());
+        host.saveNow();
+        assertFalse(file.exists());
+        host.close();
+        assertFalse(file.exists());
+    }
+}
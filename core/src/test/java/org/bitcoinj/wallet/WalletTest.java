@@ -55,6 +55,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
@@ -1834,6 +1838,244 @@ public class WalletTest extends TestWithWallet {
         assertNull(results[1]);
     }
 
+    @Test
+    public void autosaveJournaled() throws Exception {
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        File journalFile = WalletJournal.getJournalFile(f);
+        journalFile.deleteOnExit();
+        // Delayed saves never happen during the test, only immediate ones.
+        wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null, true);
+        // The first save writes the full wallet file and starts a journal.
+        ECKey key = wallet.freshReceiveKey();
+        Sha256Hash walletHash = Sha256Hash.of(f);
+        long journalSize = journalFile.length();
+        assertTrue(journalFile.exists());
+
+        Transaction t1 = sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0), key);
+        Transaction t2 = createFakeTx(UNITTEST, COIN, myAddress);
+        if (wallet.isPendingTransactionRelevant(t2))
+            wallet.receivePending(t2, null);
+        Transaction t3 = new Transaction(UNITTEST);
+        t3.addInput(t1.getOutput(0));
+        t3.addOutput(valueOf(4, 0), OTHER_ADDRESS);
+        wallet.commitTx(t3);
+        ECKey key2 = wallet.freshReceiveKey();
+        // Further saves only append to the journal.
+        assertEquals(walletHash, Sha256Hash.of(f));
+        assertTrue(journalFile.length() > journalSize);
+
+        // Load without shutting down auto-saving first, as after a crash.
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getBalance(BalanceType.ESTIMATED), loaded.getBalance(BalanceType.ESTIMATED));
+        assertEquals(wallet.getTransactions(true).size(), loaded.getTransactions(true).size());
+        assertEquals(Pool.SPENT, poolOf(wallet, t1.getTxId()));
+        assertEquals(Pool.SPENT, poolOf(loaded, t1.getTxId()));
+        assertEquals(Pool.PENDING, poolOf(loaded, t2.getTxId()));
+        assertEquals(Pool.PENDING, poolOf(loaded, t3.getTxId()));
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.getLastBlockSeenHeight(), loaded.getLastBlockSeenHeight());
+        assertEquals(key2, loaded.findKeyFromPubKey(key2.getPubKey()));
+        assertEquals(wallet.getIssuedReceiveKeys(), loaded.getIssuedReceiveKeys());
+        wallet.shutdownAutosaveAndWait();
+    }
+
+    @Test
+    public void staleJournalIgnored() throws Exception {
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        File journalFile = WalletJournal.getJournalFile(f);
+        journalFile.deleteOnExit();
+        wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null, true);
+        ECKey key = wallet.freshReceiveKey();
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0), key);
+        wallet.shutdownAutosaveAndWait();
+
+        // Writing the wallet file without the journal makes the journal stale.
+        Wallet other = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        other.saveToFile(f);
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(Coin.ZERO, loaded.getBalance());
+        assertEquals(0, loaded.getTransactions(true).size());
+    }
+
+    @Test
+    public void journalTornRecordIgnored() throws Exception {
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        File journalFile = WalletJournal.getJournalFile(f);
+        journalFile.deleteOnExit();
+        wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null, true);
+        ECKey key = wallet.freshReceiveKey();
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0), key);
+        long sizeAfterFirstTx = journalFile.length();
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(1, 0), key);
+        wallet.shutdownAutosaveAndWait();
+
+        // Cut the last record in half, as if the process died while appending it.
+        long fullSize = journalFile.length();
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(sizeAfterFirstTx + (fullSize - sizeAfterFirstTx) / 2);
+        }
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(valueOf(5, 0), loaded.getBalance());
+    }
+
+    @Test
+    public void deferredHistoryLoad() throws Exception {
+        ECKey key = wallet.freshReceiveKey();
+        Transaction t1 = sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0), key);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(valueOf(4, 0), OTHER_ADDRESS);
+        wallet.commitTx(t2);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t2);
+        Transaction t3 = sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(2, 0), key);
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        f.deleteOnExit();
+        wallet.saveToFile(f);
+
+        Wallet loaded = Wallet.loadFromFile(f, true);
+        assertTrue(loaded.hasDeferredTransactions());
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(Pool.UNSPENT, poolOf(loaded, t3.getTxId()));
+        // Accessing the history loads it.
+        assertEquals(wallet.getTransactions(true).size(), loaded.getTransactions(true).size());
+        assertFalse(loaded.hasDeferredTransactions());
+        assertEquals(Pool.SPENT, poolOf(loaded, t1.getTxId()));
+        assertEquals(Pool.SPENT, poolOf(loaded, t2.getTxId()));
+        assertEquals(loaded.getTransaction(t2.getTxId()).getInput(0).getConnectedOutput(),
+                loaded.getTransaction(t1.getTxId()).getOutput(0));
+        assertTrue(loaded.isConsistent());
+    }
+
+    @Test
+    public void compactSettledTransactions() throws Exception {
+        ECKey key = wallet.freshReceiveKey();
+        Transaction t1 = sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0), key);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(valueOf(4, 0), OTHER_ADDRESS);
+        wallet.commitTx(t2);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t2);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(2, 0), key);
+        int size = wallet.getTransactions(true).size();
+
+        assertEquals(0, wallet.compactSettledTransactions(4));
+        assertEquals(1, wallet.compactSettledTransactions(3));
+        assertEquals(1, wallet.compactSettledTransactions(2));
+        assertEquals(2, wallet.getCompactedTransactionCount());
+        assertEquals(valueOf(2, 0), wallet.getBalance());
+        assertEquals(2, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(Pool.SPENT, poolOf(wallet, t1.getTxId()));
+        assertTrue(wallet.isConsistent());
+        // Receiving doesn't need them.
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(1, 0), key);
+        assertEquals(2, wallet.getCompactedTransactionCount());
+
+        // They are saved as they are.
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        f.deleteOnExit();
+        wallet.saveToFile(f);
+        assertEquals(2, wallet.getCompactedTransactionCount());
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(size + 1, loaded.getTransactions(true).size());
+        assertEquals(valueOf(3, 0), loaded.getBalance());
+        assertEquals(4, loaded.getTransaction(t1.getTxId()).getConfidence().getDepthInBlocks());
+
+        // Looking one up inflates it, together with the transaction spending it.
+        Transaction inflated = wallet.getTransaction(t1.getTxId());
+        assertEquals(0, wallet.getCompactedTransactionCount());
+        assertNotSame(t1, inflated);
+        assertEquals(4, inflated.getConfidence().getDepthInBlocks());
+        assertEquals(inflated.getOutput(0), wallet.getTransaction(t2.getTxId()).getInput(0).getConnectedOutput());
+        assertEquals(size + 1, wallet.getTransactions(true).size());
+        assertTrue(wallet.isConsistent());
+        // Which makes them count in the chain again.
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(1, 0), key);
+        assertEquals(5, inflated.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void compactTransactionsWithUnsettledSpender() throws Exception {
+        Transaction t1 = sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(3, 0));
+        Transaction t2 = wallet.createSend(OTHER_ADDRESS, COIN);
+        wallet.commitTx(t2);
+        // The spender is pending, so t1 isn't settled.
+        assertEquals(0, wallet.compactSettledTransactions(1));
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t2);
+        wallet.setCompactTransactionDepth(2);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(1, 0));
+        assertEquals(1, wallet.getCompactedTransactionCount());
+        assertEquals(Pool.UNSPENT, poolOf(wallet, t2.getTxId()));
+
+        // The change output of t2 can still be spent, its input is connected to a copy of the output it spends.
+        TransactionInput input = t2.getInput(0);
+        assertNull(input.getConnectedTransaction());
+        assertEquals(valueOf(3, 0), input.getConnectedOutput().getValue());
+        assertEquals(valueOf(3, 0), t2.getInputSum());
+        Transaction t3 = wallet.createSend(OTHER_ADDRESS, valueOf(2, 0));
+        wallet.commitTx(t3);
+        assertEquals(1, wallet.getCompactedTransactionCount());
+        assertTrue(wallet.isConsistent());
+
+        // Inflating t1 connects t2 to it again.
+        assertEquals(t2.getValueSentFromMe(wallet), valueOf(3, 0));
+        assertEquals(0, wallet.getCompactedTransactionCount());
+        assertEquals(wallet.getTransaction(t1.getTxId()).getOutput(0), input.getConnectedOutput());
+        assertEquals(t2, input.getConnectedOutput().getSpentBy().getParentTransaction());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void deferredHistoryLoadFailureKeepsHistory() throws Exception {
+        ECKey key = wallet.freshReceiveKey();
+        Transaction t1 = sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0), key);
+        Transaction t2 = new Transaction(UNITTEST);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(valueOf(4, 0), OTHER_ADDRESS);
+        wallet.commitTx(t2);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t2);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(2, 0), key);
+        // Make t1 point to a spending transaction that doesn't exist, so the history can't be connected.
+        Protos.Wallet.Builder corrupt = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
+        for (Protos.Transaction.Builder tx : corrupt.getTransactionBuilderList())
+            if (tx.getHash().equals(WalletProtobufSerializer.hashToByteString(t1.getTxId())))
+                tx.getTransactionOutputBuilder(0).setSpentByTransactionHash(
+                        WalletProtobufSerializer.hashToByteString(Sha256Hash.of(new byte[] { 1 })));
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        f.deleteOnExit();
+        try (OutputStream output = new FileOutputStream(f)) {
+            corrupt.build().writeTo(output);
+        }
+
+        Wallet loaded = Wallet.loadFromFile(f, true);
+        assertEquals(valueOf(2, 0), loaded.getBalance());
+        try {
+            loaded.loadDeferredTransactions();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertTrue(loaded.hasDeferredTransactions());
+
+        // Saving still writes the history as it was read.
+        File saved = File.createTempFile("bitcoinj-unit-test", null);
+        saved.deleteOnExit();
+        loaded.saveToFile(saved);
+        Protos.Wallet savedProto;
+        try (InputStream input = new FileInputStream(saved)) {
+            savedProto = WalletProtobufSerializer.parseToProto(input);
+        }
+        assertEquals(3, savedProto.getTransactionCount());
+        assertTrue(savedProto.getTransactionList().containsAll(corrupt.getTransactionList()));
+    }
+
+    private static Pool poolOf(Wallet wallet, Sha256Hash txId) {
+        for (Pool pool : Pool.values())
+            if (wallet.getTransactionPool(pool).containsKey(txId))
+                return pool;
+        return null;
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
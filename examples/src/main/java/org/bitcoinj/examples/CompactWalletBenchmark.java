@@ -0,0 +1,128 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.primitives.Ints;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the heap used by a wallet with a long transaction history before and after compacting its settled
+ * transactions, and how long compacting and inflating them takes. The wallet receives coins that are swept to another
+ * address in batches, like a merchant wallet. The number of transactions can be given as the first argument and
+ * defaults to 500,000. Run it with a heap large enough for the uncompacted wallet, e.g. -Xmx4g.
+ */
+public class CompactWalletBenchmark {
+    private static final int SWEEP_INPUTS = 9;
+    // The size of a P2PKH input script, the content doesn't matter here.
+    private static final int SCRIPT_SIG_LENGTH = 107;
+
+    public static void main(String[] args) {
+        int numTxns = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        long baseHeap = usedHeap();
+
+        System.out.println("Creating " + numTxns + " transactions...");
+        Wallet wallet = Wallet.createDeterministic(params, Script.ScriptType.P2PKH);
+        Address to = wallet.freshReceiveAddress();
+        Address away = Address.fromKey(params, new ECKey());
+        List<Transaction> txns = new ArrayList<>(numTxns);
+        List<Transaction> receives = new ArrayList<>(SWEEP_INPUTS);
+        for (int i = 0; i < numTxns; i++) {
+            Transaction tx = new Transaction(params);
+            if (receives.size() < SWEEP_INPUTS) {
+                Sha256Hash fundingTxId = Sha256Hash.of(Ints.toByteArray(i));
+                tx.addInput(new TransactionInput(params, tx, new byte[SCRIPT_SIG_LENGTH],
+                        new TransactionOutPoint(params, 0, fundingTxId)));
+                tx.addOutput(Coin.COIN, to);
+                receives.add(tx);
+            } else {
+                for (Transaction receive : receives) {
+                    TransactionInput input = tx.addInput(new TransactionInput(params, tx,
+                            new byte[SCRIPT_SIG_LENGTH], new TransactionOutPoint(params, 0, receive)));
+                    input.connect(receive.getOutput(0));
+                }
+                tx.addOutput(Coin.COIN.multiply(receives.size()), away);
+                receives.clear();
+            }
+            // One transaction per block.
+            tx.getConfidence().setAppearedAtChainHeight(i + 1);
+            tx.getConfidence().setDepthInBlocks(numTxns - i);
+            txns.add(tx);
+        }
+        for (Transaction tx : txns) {
+            boolean spent = tx.getOutput(0).getSpentBy() != null || !tx.getOutput(0).isMine(wallet);
+            wallet.addWalletTransaction(new WalletTransaction(
+                    spent ? WalletTransaction.Pool.SPENT : WalletTransaction.Pool.UNSPENT, tx));
+        }
+        wallet.setLastBlockSeenHeight(numTxns);
+        Sha256Hash oldest = txns.get(0).getTxId();
+        Sha256Hash newest = txns.get(numTxns - 1).getTxId();
+        txns = null;
+        receives = null;
+        reportHeap("Full wallet", usedHeap() - baseHeap, numTxns);
+
+        Stopwatch watch = Stopwatch.createStarted();
+        int compacted = wallet.compactSettledTransactions(6);
+        report("Compact " + compacted + " transactions", watch, compacted);
+        reportHeap("Compacted wallet", usedHeap() - baseHeap, numTxns);
+
+        watch = Stopwatch.createStarted();
+        wallet.getTransaction(newest);
+        report("Get newest transaction", watch, 1);
+        watch = Stopwatch.createStarted();
+        wallet.getTransaction(oldest);
+        report("Get oldest transaction", watch, 1);
+        watch = Stopwatch.createStarted();
+        int size = wallet.getTransactions(true).size();
+        report("Inflate all transactions", watch, size);
+        reportHeap("Inflated wallet", usedHeap() - baseHeap, numTxns);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void reportHeap(String state, long bytes, int numTxns) {
+        System.out.println(state + ": " + (bytes >> 20) + " MB heap, " + bytes / numTxns + " bytes/transaction");
+    }
+
+    private static void report(String operation, Stopwatch watch, int count) {
+        long millis = watch.elapsed(TimeUnit.MILLISECONDS);
+        System.out.println(operation + ": " + millis + " ms, " + (count * 1000L / Math.max(1, millis)) + " transactions/s");
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import com.google.common.base.Stopwatch;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.wallet.Wallet;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to encrypt, re-encrypt and decrypt a wallet with many imported keys. The number of keys
+ * can be given as the first argument and defaults to 100,000.
+ */
+public class KeyEncryptionBenchmark {
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        System.out.println("Generating " + numKeys + " keys on " + Runtime.getRuntime().availableProcessors()
+                + " processors...");
+        List<ECKey> keys = new ArrayList<>(numKeys);
+        for (int i = 0; i < numKeys; i++)
+            keys.add(new ECKey());
+        Wallet wallet = Wallet.createBasic(MainNetParams.get());
+        wallet.importKeys(keys);
+
+        // Derive the AES keys up front so that only the per-key work is measured.
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt();
+        KeyParameter aesKey = keyCrypter.deriveKey("first password");
+        KeyParameter newAesKey = keyCrypter.deriveKey("second password");
+
+        Stopwatch watch = Stopwatch.createStarted();
+        wallet.encrypt(keyCrypter, aesKey);
+        report("Encrypt", watch, numKeys);
+
+        watch = Stopwatch.createStarted();
+        wallet.changeEncryptionKey(keyCrypter, aesKey, newAesKey);
+        report("Change encryption key", watch, numKeys);
+
+        watch = Stopwatch.createStarted();
+        wallet.decrypt(newAesKey);
+        report("Decrypt", watch, numKeys);
+    }
+
+    private static void report(String operation, Stopwatch watch, int numKeys) {
+        long millis = watch.elapsed(TimeUnit.MILLISECONDS);
+        System.out.println(operation + ": " + millis + " ms, " + (numKeys * 1000L / Math.max(1, millis)) + " keys/s");
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import com.google.common.base.Stopwatch;
+import org.bitcoinj.crypto.MnemonicCode;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to derive BIP39 seeds from many mnemonics, one after the other and as a batch. The number
+ * of mnemonics can be given as the first argument and defaults to 1,000.
+ */
+public class MnemonicSeedBenchmark {
+    public static void main(String[] args) throws Exception {
+        int numSeeds = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        System.out.println("Generating " + numSeeds + " mnemonics on " + Runtime.getRuntime().availableProcessors()
+                + " processors...");
+        SecureRandom random = new SecureRandom();
+        List<List<String>> mnemonics = new ArrayList<>(numSeeds);
+        List<String> passphrases = new ArrayList<>(numSeeds);
+        for (int i = 0; i < numSeeds; i++) {
+            byte[] entropy = new byte[16];
+            random.nextBytes(entropy);
+            mnemonics.add(MnemonicCode.INSTANCE.toMnemonic(entropy));
+            passphrases.add("passphrase " + i);
+        }
+
+        // Warm up, so that the JIT has compiled the HMAC before anything is measured.
+        MnemonicCode.toSeeds(mnemonics.subList(0, Math.min(numSeeds, 100)), passphrases.subList(0, Math.min(numSeeds, 100)));
+
+        Stopwatch watch = Stopwatch.createStarted();
+        for (int i = 0; i < numSeeds; i++)
+            MnemonicCode.toSeed(mnemonics.get(i), passphrases.get(i));
+        report("One by one", watch, numSeeds);
+
+        watch = Stopwatch.createStarted();
+        MnemonicCode.toSeeds(mnemonics, passphrases);
+        report("Batch", watch, numSeeds);
+    }
+
+    private static void report(String operation, Stopwatch watch, int numSeeds) {
+        long millis = watch.elapsed(TimeUnit.MILLISECONDS);
+        System.out.println(operation + ": " + millis + " ms, " + (numSeeds * 1000L / Math.max(1, millis)) + " seeds/s");
+    }
+}
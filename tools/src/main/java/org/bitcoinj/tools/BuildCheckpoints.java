@@ -33,8 +33,6 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 import java.util.Date;
 import java.util.List;
 import java.util.TreeMap;
@@ -67,22 +65,8 @@ public class BuildCheckpoints implements Callable<Integer> {
     }
 
     private static void writeBinaryCheckpoints(TreeMap<Integer, StoredBlock> checkpoints, File file) throws Exception {
-        MessageDigest digest = Sha256Hash.newDigest();
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file, false);
-             DigestOutputStream digestOutputStream = new DigestOutputStream(fileOutputStream, digest);
-             DataOutputStream dataOutputStream = new DataOutputStream(digestOutputStream)) {
-            digestOutputStream.on(false);
-            dataOutputStream.writeBytes("CHECKPOINTS 1");
-            dataOutputStream.writeInt(0); // Number of signatures to read. Do this later.
-            digestOutputStream.on(true);
-            dataOutputStream.writeInt(checkpoints.size());
-            ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
-            for (StoredBlock block : checkpoints.values()) {
-                block.serializeCompact(buffer);
-                dataOutputStream.write(buffer.array());
-                buffer.position(0);
-            }
-            Sha256Hash checkpointsHash = Sha256Hash.wrap(digest.digest());
+        try (FileOutputStream fileOutputStream = new FileOutputStream(file, false)) {
+            Sha256Hash checkpointsHash = CheckpointManager.writeBinary(checkpoints.values(), fileOutputStream);
             System.out.println("Hash of checkpoints data is " + checkpointsHash);
             System.out.println("Checkpoints written to '" + file.getCanonicalPath() + "'.");
         }
@@ -0,0 +1,96 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import com.google.common.base.Preconditions;
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.store.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes the unspent outputs of a full pruned block store to a {@link UTXOSnapshot} file, or loads such a file into
+ * a new store.
+ */
+public class UTXOSnapshotTool {
+    public static void main(String[] args) throws BlockStoreException, IOException {
+        System.out.println("USAGE: UTXOSnapshotTool (prod|test) (export|import) (H2|LevelDB|Mapped) blockStore snapshot [height]");
+        System.out.println("       UTXOSnapshotTool (prod|test) verify snapshot");
+        System.out.println("       export writes the outputs at the verified chain head of the store. If a height is given,");
+        System.out.println("       the store must be at exactly that height, eg. after BlockImporter has stopped there.");
+        System.out.println("       import loads the snapshot into a store that must not have any blocks yet.");
+        Preconditions.checkArgument(args.length >= 3);
+
+        NetworkParameters params;
+        if (args[0].equals("test"))
+            params = TestNet3Params.get();
+        else
+            params = MainNetParams.get();
+        new Context(params);
+
+        if (args[1].equals("verify")) {
+            Preconditions.checkArgument(args.length == 3);
+            try (InputStream in = new BufferedInputStream(new FileInputStream(args[2]))) {
+                System.out.println(UTXOSnapshot.verify(params, in));
+            }
+            return;
+        }
+
+        Preconditions.checkArgument(args.length == 5 || args.length == 6);
+        FullPrunedBlockStore store;
+        if (args[2].equals("H2")) {
+            store = new H2FullPrunedBlockStore(params, args[3], 1000);
+        } else if (args[2].equals("LevelDB")) {
+            store = new LevelDBFullPrunedBlockStore(params, args[3], 1000);
+        } else if (args[2].equals("Mapped")) {
+            store = new MappedFullPrunedBlockStore(params, new File(args[3]), 1000);
+        } else {
+            System.err.println("Unknown store " + args[2]);
+            return;
+        }
+
+        try {
+            if (args[1].equals("export")) {
+                int height = store.getVerifiedChainHead().getHeight();
+                if (args.length == 6 && height != Integer.parseInt(args[5])) {
+                    System.err.println("Store is at height " + height + ", not " + args[5]);
+                    return;
+                }
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[4]))) {
+                    System.out.println(UTXOSnapshot.write(store, UTXOSnapshot.DEFAULT_HEADERS, out));
+                }
+            } else if (args[1].equals("import")) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(args[4]))) {
+                    System.out.println(UTXOSnapshot.read(store, in));
+                }
+            } else {
+                System.err.println("Unknown command " + args[1]);
+            }
+        } finally {
+            store.close();
+        }
+    }
+}